@@ -0,0 +1,130 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Generates the input data of the benchmarks: victims addresses, messages and a
+ * complete configuration folder of a given size.
+ */
+final class BenchmarkData {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final String[] DOMAINS = {"example.com", "test.ch", "mail.example.org", "domain.net"};
+    private static final String SEPARATOR = "$---";
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    private BenchmarkData() {
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Builds a deterministic victims address.
+     *
+     * @param index the index of the victim.
+     * @return a valid email address.
+     */
+    static String victim(int index) {
+        return "victim." + index + "@" + DOMAINS[index % DOMAINS.length];
+    }
+
+    /**
+     * Builds a list of victims addresses.
+     *
+     * @param size the number of addresses.
+     * @return the list of addresses.
+     */
+    static List<String> victims(int size) {
+        List<String> victims = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            victims.add(victim(i));
+        }
+        return victims;
+    }
+
+    /**
+     * Builds a French prank message, with non-ASCII characters like the ones of
+     * the configuration folder.
+     *
+     * @param index the index of the message.
+     * @return the message.
+     */
+    static Message message(int index) {
+        return new Message("Félicitations n°" + index + ", vous avez gagné !",
+                "Bonjour,\nVous êtes notre heureux gagnant du tirage n°" + index + ".\n"
+                + "Contactez-nous pour récupérer votre prix.\nMeilleures salutations,\nLe Comité des Prix.");
+    }
+
+    /**
+     * Writes a configuration folder (config.txt, messages.txt and victims.txt)
+     * into a new temporary folder. The number of groups is chosen so that every
+     * group has four members.
+     *
+     * @param nbVictims  the number of victims.
+     * @param nbMessages the number of messages.
+     * @return the configuration folder.
+     * @throws IOException if the files cannot be written.
+     */
+    static Path configFolder(int nbVictims, int nbMessages) throws IOException {
+        Path folder = Files.createTempDirectory("dai-lab-smtp-bench");
+
+        Files.writeString(folder.resolve("config.txt"), String.join("\n",
+                "smtpServerAddress=localhost",
+                "smtpServerPort=1025",
+                "messagesEncoding=UTF-8",
+                "messagesSeparator=" + SEPARATOR,
+                "messagesFileName=messages.txt",
+                "victimsFileName=victims.txt",
+                "nbGroups=" + Math.max(1, nbVictims / 4)));
+
+        try (BufferedWriter writer = Files.newBufferedWriter(folder.resolve("victims.txt"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < nbVictims; i++) {
+                writer.write(victim(i));
+                writer.write('\n');
+            }
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(folder.resolve("messages.txt"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < nbMessages; i++) {
+                Message message = message(i);
+                if (i > 0) {
+                    writer.write(SEPARATOR + "\n");
+                }
+                writer.write(message.getSubject() + "\n" + message.getBody() + "\n");
+            }
+        }
+
+        return folder;
+    }
+
+    /**
+     * Deletes a folder created by configFolder().
+     *
+     * @param folder the folder to delete.
+     * @throws IOException if the folder cannot be deleted.
+     */
+    static void delete(Path folder) throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Entry point of the benchmarks jar. Accepts the usual JMH command line options,
+ * but enables the allocation profiler (-prof gc) and writes the results as JSON
+ * into results/ by default, one file per run, so that runs can be compared over
+ * time.
+ */
+public class BenchmarkRunner {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final String RESULTS_FOLDER = "results";
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()
+                || commandLine.shouldListResultFormats() || commandLine.shouldListWithParams()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+
+        if (commandLine.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if (!commandLine.getResult().hasValue() && !commandLine.getResultFormat().hasValue()) {
+            new File(RESULTS_FOLDER).mkdirs();
+            options.resultFormat(ResultFormatType.JSON)
+                    .result(RESULTS_FOLDER + "/jmh-" + LocalDateTime.now().format(TIMESTAMP) + ".json");
+        }
+
+        new Runner(options.build()).run();
+    }
+}
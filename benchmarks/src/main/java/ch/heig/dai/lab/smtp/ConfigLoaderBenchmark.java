@@ -0,0 +1,67 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the configuration loading on generated configuration folders of
+ * increasing size: parsing config.txt, then loading the messages and the
+ * victims files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigLoaderBenchmark {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    @Param({"1000", "100000", "1000000"})
+    public int nbVictims;
+
+    private Path folder;
+    private ConfigLoader configLoader;
+
+    // ------------------------------------------------------------------------------
+    // Setup
+    // ------------------------------------------------------------------------------
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        folder = BenchmarkData.configFolder(nbVictims, Math.max(1, nbVictims / 100));
+        configLoader = new ConfigLoader(folder.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkData.delete(folder);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Benchmarks
+    // ------------------------------------------------------------------------------
+    @Benchmark
+    public ConfigLoader loadConfig() throws IOException {
+        return new ConfigLoader(folder.toString());
+    }
+
+    @Benchmark
+    public List<Message> getMessages() throws IOException {
+        return configLoader.getMessages();
+    }
+
+    @Benchmark
+    public List<String> getVictims() throws IOException {
+        return configLoader.getVictims();
+    }
+}
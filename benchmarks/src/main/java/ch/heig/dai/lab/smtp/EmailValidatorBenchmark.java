@@ -0,0 +1,74 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the single-pass EmailValidator with the regular expression it
+ * replaces, called as before (String.matches, which compiles the Pattern on
+ * every call) and precompiled. That both agree is checked by
+ * EmailValidatorTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmailValidatorBenchmark {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    @Param({"valid", "invalid", "adversarial"})
+    public String input;
+
+    private static final Pattern PATTERN = Pattern.compile(Email.REGEX);
+
+    private String email;
+    private byte[] emailBytes;
+
+    // ------------------------------------------------------------------------------
+    // Setup
+    // ------------------------------------------------------------------------------
+    @Setup(Level.Trial)
+    public void setup() {
+        email = switch (input) {
+            case "valid" -> "service@subdomain.service-provider.example.com";
+            case "invalid" -> "service@subdomain.service-provider.example.c0m";
+            // Long run of domain characters with no valid top-level domain at the end
+            default -> "a".repeat(64) + "@" + "a-b.".repeat(1000) + "x1";
+        };
+        emailBytes = email.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Benchmarks
+    // ------------------------------------------------------------------------------
+    @Benchmark
+    public boolean stringMatches() {
+        return email.matches(Email.REGEX);
+    }
+
+    @Benchmark
+    public boolean precompiledPattern() {
+        return PATTERN.matcher(email).matches();
+    }
+
+    @Benchmark
+    public boolean validatorChars() {
+        return EmailValidator.isValid(email);
+    }
+
+    @Benchmark
+    public boolean validatorBytes() {
+        return EmailValidator.isValid(emailBytes, 0, emailBytes.length);
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the generation of groups of four members from victims lists of
+ * increasing size, in file order and shuffled from a seed, the victims being
+ * held in an AddressArena as the application does. The groups themselves are
+ * checked by GroupGeneratorTest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupGeneratorBenchmark {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    @Param({"1000", "100000", "1000000"})
+    public int nbVictims;
+
+    private static final long SEED = 42;
+
+    private GroupGenerator groupGenerator;
+
+    // ------------------------------------------------------------------------------
+    // Setup
+    // ------------------------------------------------------------------------------
+    @Setup(Level.Trial)
+    public void setup() {
+        List<String> victims = BenchmarkData.victims(nbVictims);
+        AddressArena arena = new AddressArena(nbVictims, nbVictims * 32);
+        victims.forEach(arena::add);
+        groupGenerator = new GroupGenerator(arena.asList(), nbVictims / 4);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Benchmarks
+    // ------------------------------------------------------------------------------
+    @Benchmark
+    public List<Group> generateGroups() {
+        return groupGenerator.generateGroups();
+    }
+
+    @Benchmark
+    public List<Group> generateShuffledGroups() {
+        return groupGenerator.generateGroups(SEED);
+    }
+}
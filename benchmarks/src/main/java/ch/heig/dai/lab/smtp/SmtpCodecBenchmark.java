@@ -0,0 +1,156 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the string-based SMTP handling that SmtpClient used before the
+ * SmtpCodec (BufferedWriter with "line + \n", BufferedReader with one String per
+ * reply line) with the byte-level codec. One operation is the envelope of one
+ * email with three receivers: MAIL FROM, RCPT TO, DATA and their replies.
+ * Run with "-prof gc" to compare the allocation rate per message
+ * (gc.alloc.rate.norm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmtpCodecBenchmark {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final Charset ENCODING = StandardCharsets.UTF_8;
+    private static final String SENDER = "alice@example.com";
+    private static final List<String> RECEIVERS = List.of("bob@example.com", "claire@example.com", "peter@example.com");
+    private static final byte[] REPLIES = ("250 OK\r\n".repeat(1 + 3) + "354 Start mail input\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private BufferedReader legacyIn;
+    private BufferedWriter legacyOut;
+    private SmtpCodec codec;
+
+    // ------------------------------------------------------------------------------
+    // Setup
+    // ------------------------------------------------------------------------------
+    @Setup
+    public void setup() {
+        legacyIn = new BufferedReader(new InputStreamReader(Channels.newInputStream(new RepeatingChannel(REPLIES)), ENCODING));
+        legacyOut = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), ENCODING));
+        codec = new SmtpCodec(new RepeatingChannel(REPLIES), new DiscardingChannel(), ENCODING);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Benchmarks
+    // ------------------------------------------------------------------------------
+    @Benchmark
+    public int legacyStrings() throws IOException {
+        int accepted = 0;
+        accepted += legacyCommand("MAIL FROM:<" + SENDER + ">", "250");
+        for (String receiver : RECEIVERS) {
+            accepted += legacyCommand("RCPT TO:<" + receiver + ">", "250");
+        }
+        accepted += legacyCommand("DATA", "354");
+        return accepted;
+    }
+
+    @Benchmark
+    public int byteCodec() throws IOException {
+        int accepted = 0;
+        codec.command("MAIL FROM:<", SENDER, ">");
+        codec.flush();
+        accepted += codec.readReply() == 250 ? 1 : 0;
+        for (String receiver : RECEIVERS) {
+            codec.command("RCPT TO:<", receiver, ">");
+            codec.flush();
+            accepted += codec.readReply() == 250 ? 1 : 0;
+        }
+        codec.command("DATA");
+        codec.flush();
+        accepted += codec.readReply() == 354 ? 1 : 0;
+        return accepted;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * The command/reply exchange as SmtpClient implemented it before the codec.
+     */
+    private int legacyCommand(String outLine, String prefix) throws IOException {
+        legacyOut.write(outLine + "\n");
+        legacyOut.flush();
+        String inLine = legacyIn.readLine();
+        return inLine.startsWith(prefix) ? 1 : 0;
+    }
+
+    /**
+     * Channel serving the same bytes over and over, standing in for a server
+     * that always gives the same replies.
+     */
+    static final class RepeatingChannel implements ReadableByteChannel {
+        private final byte[] content;
+        private int position;
+
+        RepeatingChannel(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            int read = 0;
+            while (dst.hasRemaining()) {
+                int length = Math.min(dst.remaining(), content.length - position);
+                dst.put(content, position, length);
+                position = (position + length) % content.length;
+                read += length;
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Channel dropping everything written to it.
+     */
+    static final class DiscardingChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures SmtpClient.send end to end (envelope, headers, body and replies)
+ * against the in-process SmtpSink, with and without PIPELINING.
+ * The event log is set to summary, so that its background writer stays out of
+ * the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmtpSendBenchmark {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    @Param({"true", "false"})
+    public boolean pipelining;
+
+    private SmtpSink sink;
+    private SmtpClient smtpClient;
+    private Email email;
+
+    // ------------------------------------------------------------------------------
+    // Setup
+    // ------------------------------------------------------------------------------
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        EventLog.get().configure(ConfigLoader.LOG_LEVELS.summary, 1);
+
+        sink = new SmtpSink(0)
+                .setExtensions(pipelining ? List.of("PIPELINING", "8BITMIME") : List.of("8BITMIME"))
+                .start();
+        smtpClient = new SmtpClient("localhost", sink.getPort(), StandardCharsets.UTF_8);
+        smtpClient.connect();
+        email = new Email(BenchmarkData.victim(0),
+                List.of(BenchmarkData.victim(1), BenchmarkData.victim(2), BenchmarkData.victim(3), BenchmarkData.victim(4)),
+                BenchmarkData.message(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        // A failed QUIT must not throw the measurements of the trial away
+        smtpClient.close();
+        sink.close();
+    }
+
+    // ------------------------------------------------------------------------------
+    // Benchmarks
+    // ------------------------------------------------------------------------------
+    @Benchmark
+    public void send() throws IOException {
+        smtpClient.send(email);
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a suppression list lookup, for a recipient on the list (Bloom
+ * filter then sorted hashes) and off it (Bloom filter alone, most of the
+ * time), from a String and from the bytes of an AddressArena. The list is
+ * compiled, saved and memory-mapped back as the application does. Before
+ * measuring, the setup checks that the compiled and the mapped list find
+ * every listed address, whatever its case, and none of the absent ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SuppressionListBenchmark {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    @Param({"1000", "1000000", "5000000"})
+    public int nbAddresses;
+
+    private static final int NB_LOOKUPS = 1024;
+
+    private SuppressionList list;
+    private String[] listed;
+    private String[] absent;
+    private List<String> listedArena;
+    private List<String> absentArena;
+    private int next;
+
+    // ------------------------------------------------------------------------------
+    // Setup
+    // ------------------------------------------------------------------------------
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        List<String> addresses = new ArrayList<>(nbAddresses);
+        for (int i = 0; i < nbAddresses; i++) {
+            addresses.add(BenchmarkData.victim(2 * i));
+        }
+        SuppressionList compiled = SuppressionList.compile(addresses);
+
+        Path file = Files.createTempFile("dai-lab-smtp-bench", ".bin");
+        try {
+            compiled.save(file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                list = SuppressionList.wrap(data);
+            }
+        } finally {
+            Files.delete(file);
+        }
+
+        check(compiled, list);
+
+        listed = new String[NB_LOOKUPS];
+        absent = new String[NB_LOOKUPS];
+        AddressArena listedBytes = new AddressArena(NB_LOOKUPS, NB_LOOKUPS * 32);
+        AddressArena absentBytes = new AddressArena(NB_LOOKUPS, NB_LOOKUPS * 32);
+        for (int i = 0; i < NB_LOOKUPS; i++) {
+            // Spread over the whole list, so that the lookups are not served from a warm cache line
+            int index = (int) ((long) i * 7919 % nbAddresses);
+            listed[i] = BenchmarkData.victim(2 * index);
+            absent[i] = BenchmarkData.victim(2 * index + 1);
+            listedBytes.add(listed[i]);
+            absentBytes.add(absent[i]);
+        }
+        listedArena = listedBytes.asList();
+        absentArena = absentBytes.asList();
+    }
+
+    /**
+     * Checks the answers of a compiled list and of its memory-mapped copy:
+     * every listed address must be found, also in upper case, and no absent
+     * address, the false positives of the Bloom filter being caught by the
+     * sorted hashes.
+     *
+     * @param compiled the list compiled in memory.
+     * @param mapped   the same list, saved then memory-mapped.
+     * @throws IllegalStateException if a check fails.
+     */
+    private void check(SuppressionList compiled, SuppressionList mapped) throws IllegalStateException {
+        if (mapped.size() != nbAddresses) {
+            throw new IllegalStateException("Mapped list has " + mapped.size() + " addresses instead of " + nbAddresses);
+        }
+        for (int i = 0; i < nbAddresses; i++) {
+            String address = BenchmarkData.victim(2 * i);
+            if (!compiled.contains(address) || !mapped.contains(address) || !mapped.contains(address.toUpperCase())) {
+                throw new IllegalStateException("Listed address not found: " + address);
+            }
+            String other = BenchmarkData.victim(2 * i + 1);
+            if (compiled.contains(other) || mapped.contains(other)) {
+                throw new IllegalStateException("Absent address found: " + other);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Benchmarks
+    // ------------------------------------------------------------------------------
+    @Benchmark
+    public boolean listedString() {
+        return list.contains(listed[next++ & (NB_LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public boolean absentString() {
+        return list.contains(absent[next++ & (NB_LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public boolean listedArena() {
+        return list.contains(listedArena, next++ & (NB_LOOKUPS - 1));
+    }
+
+    @Benchmark
+    public boolean absentArena() {
+        return list.contains(absentArena, next++ & (NB_LOOKUPS - 1));
+    }
+}
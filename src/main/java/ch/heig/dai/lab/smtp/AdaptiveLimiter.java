@@ -0,0 +1,156 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit on the number of emails sent at the same time to one SMTP
+ * server, in the AIMD style of TCP congestion control. The limit starts at 1
+ * and doubles with every round of successful emails (slow start) until the
+ * first sign of congestion, then grows by 1 per round while the latency stays
+ * flat. It is halved when the server answers with a temporary failure (4xx),
+ * or when the p99 latency of the last WINDOW_SIZE emails jumps above
+ * LATENCY_TOLERANCE times its baseline. An email started before the last cut
+ * does not cut the limit again, so one burst of failures halves it only once.
+ */
+class AdaptiveLimiter {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final int MIN_LIMIT = 1;
+    private static final int WINDOW_SIZE = 100;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double DECREASE_RATIO = 0.5;
+    private static final int BASELINE_DRIFT = 8;
+
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final long[] window = new long[WINDOW_SIZE];
+
+    private double limit = MIN_LIMIT;
+    private boolean slowStart = true;
+    private int inFlight;
+    private int windowCount;
+    private long baselineP99 = Long.MAX_VALUE;
+    private long lastDecrease = System.nanoTime();
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs a limiter that never lets more than maxLimit emails through at
+     * the same time.
+     *
+     * @param maxLimit the highest limit, usually the number of connections.
+     * @throws IllegalArgumentException if the highest limit is less than 1.
+     */
+    AdaptiveLimiter(int maxLimit) throws IllegalArgumentException {
+        if (maxLimit < MIN_LIMIT) {
+            throw new IllegalArgumentException("Concurrency limit must be at least 1.");
+        }
+        this.maxLimit = maxLimit;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Waits until fewer emails than the current limit are being sent, then
+     * counts one more.
+     *
+     * @return the value of System.nanoTime() when the email was let through.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    long acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                available.await();
+            }
+            inFlight++;
+            return System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts one email less and adapts the limit to its outcome.
+     *
+     * @param start the value returned by acquire() for this email.
+     * @param error the error the email failed with, null if it was sent.
+     */
+    void release(long start, Throwable error) {
+        long now = System.nanoTime();
+        long latency = now - start;
+
+        lock.lock();
+        try {
+            inFlight--;
+
+            boolean congested = error instanceof SmtpDeliveryException e && e.isTransient() && !e.isRecipientLimit();
+            if (error == null) {
+                congested = sample(latency);
+            }
+
+            if (congested) {
+                // Only the emails sent under the current limit may cut it
+                if (start - lastDecrease > 0) {
+                    limit = Math.max(MIN_LIMIT, limit * DECREASE_RATIO);
+                    slowStart = false;
+                    lastDecrease = now;
+                }
+            } else if (error == null && latency <= baselineP99 * LATENCY_TOLERANCE) {
+                limit = Math.min(maxLimit, limit + (slowStart ? 1 : 1 / limit));
+            }
+
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the current limit.
+     *
+     * @return the number of emails that may be sent at the same time.
+     */
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a latency to the current window. When the window is full, compares
+     * its p99 to the baseline: the baseline follows a lower p99 at once, and a
+     * higher one slowly, so that a server lastingly slower becomes the new
+     * normal after a few windows. Must be called with the lock held.
+     *
+     * @param latency the latency of a successful email, in nanoseconds.
+     * @return true if the p99 of the window jumped above the tolerance.
+     */
+    private boolean sample(long latency) {
+        window[windowCount++] = latency;
+        if (windowCount < WINDOW_SIZE) {
+            return false;
+        }
+        windowCount = 0;
+
+        Arrays.sort(window);
+        long p99 = window[(int) Math.ceil(WINDOW_SIZE * 0.99) - 1];
+        boolean jumped = baselineP99 != Long.MAX_VALUE && p99 > baselineP99 * LATENCY_TOLERANCE;
+        baselineP99 = p99 <= baselineP99 ? p99 : baselineP99 + (p99 - baselineP99) / BASELINE_DRIFT;
+        return jumped;
+    }
+}
@@ -0,0 +1,334 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Compact store of email addresses: the bytes of every address are packed one
+ * after the other into a single byte array, indexed by an int array of
+ * offsets. A valid address is ASCII, so it takes one byte per character plus
+ * 4 bytes of offset, instead of the 60 to 80 bytes of overhead of a String
+ * object and its array, and the whole store is two objects for the GC to trace.
+ * The addresses are read through AddressList views, which are lists of
+ * Strings for the rest of the application, but whose addresses are written to
+ * the SMTP server straight from the bytes of the arena.
+ * An arena is filled by a single thread, then only read.
+ */
+public final class AddressArena {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private byte[] data;
+    private int[] offsets;
+    private int size;
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs an empty arena sized for the expected content. It grows as
+     * needed if the estimates are too low.
+     *
+     * @param expectedAddresses the expected number of addresses.
+     * @param expectedBytes     the expected total length of the addresses, in bytes.
+     */
+    public AddressArena(int expectedAddresses, int expectedBytes) {
+        this.data = new byte[Math.max(DEFAULT_CAPACITY, expectedBytes)];
+        this.offsets = new int[Math.max(DEFAULT_CAPACITY, expectedAddresses) + 1];
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Adds an address given as text.
+     *
+     * @param address the address, which must be ASCII.
+     * @return the index of the address in the arena.
+     * @throws IllegalArgumentException if the address is not ASCII.
+     */
+    public int add(CharSequence address) throws IllegalArgumentException {
+        int length = address.length();
+        ensureCapacity(length);
+        int start = offsets[size];
+        for (int i = 0; i < length; i++) {
+            char c = address.charAt(i);
+            if (c >= 0x80) {
+                throw new IllegalArgumentException("Address is not ASCII: " + address);
+            }
+            data[start + i] = (byte) c;
+        }
+        return append(length);
+    }
+
+    /**
+     * Adds an address copied from a slice of a buffer, for instance a mapped
+     * file, without decoding it.
+     *
+     * @param source the buffer holding the address as ASCII bytes.
+     * @param offset the index of the first byte of the address.
+     * @param length the number of bytes of the address.
+     * @return the index of the address in the arena.
+     */
+    int add(ByteBuffer source, int offset, int length) {
+        ensureCapacity(length);
+        source.get(offset, data, offsets[size], length);
+        return append(length);
+    }
+
+    /**
+     * Removes the last address added, for instance once it is found invalid.
+     *
+     * @throws IllegalStateException if the arena is empty.
+     */
+    void removeLast() throws IllegalStateException {
+        if (size == 0) {
+            throw new IllegalStateException("Arena is empty.");
+        }
+        size--;
+    }
+
+    /**
+     * Records the end of an address whose bytes were just copied after the last one.
+     *
+     * @param length the number of bytes of the address.
+     * @return the index of the address.
+     */
+    private int append(int length) {
+        offsets[size + 1] = offsets[size] + length;
+        return size++;
+    }
+
+    /**
+     * Makes room for one more address of the given length.
+     *
+     * @param length the number of bytes of the address.
+     */
+    private void ensureCapacity(int length) {
+        if (size + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length + (offsets.length >> 1));
+        }
+        int needed = offsets[size] + length;
+        if (needed > data.length) {
+            data = Arrays.copyOf(data, Math.max(needed, data.length + (data.length >> 1)));
+        }
+    }
+
+    /**
+     * Releases the capacity left over by the estimates, once every address was
+     * added. An array is only copied if more than an eighth of it is unused, a
+     * copy briefly doubling its footprint.
+     */
+    public void trimToSize() {
+        if (data.length - offsets[size] > data.length / 8) {
+            data = Arrays.copyOf(data, offsets[size]);
+        }
+        if (offsets.length - (size + 1) > offsets.length / 8) {
+            offsets = Arrays.copyOf(offsets, size + 1);
+        }
+    }
+
+    /**
+     * Gets the number of addresses in the arena.
+     *
+     * @return the number of addresses.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Decodes an address into a String.
+     *
+     * @param index the index of the address.
+     * @return the address.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    public String get(int index) throws IndexOutOfBoundsException {
+        Objects.checkIndex(index, size);
+        return new String(data, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Gets a view of every address of the arena.
+     *
+     * @return a list of the addresses, in the order they were added.
+     */
+    public AddressList asList() {
+        return new AddressList(this, null, 0, size);
+    }
+
+    /**
+     * Gets the bytes of the addresses, shared with the arena.
+     *
+     * @return the array of the arena, only valid until the next address is added.
+     */
+    byte[] data() {
+        return data;
+    }
+
+    /**
+     * Gets the offset of an address in the bytes of the arena.
+     *
+     * @param index the index of the address.
+     * @return the index of its first byte.
+     */
+    int start(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Gets the end of an address in the bytes of the arena.
+     *
+     * @param index the index of the address.
+     * @return the index after its last byte.
+     */
+    int end(int index) {
+        return offsets[index + 1];
+    }
+
+    /**
+     * A list of addresses of an arena, either an index range or a selection of
+     * indices. Reading an element decodes a String, but the sublists and
+     * selections are views that copy no address, and SmtpCodec writes the
+     * addresses of such a list from the bytes of the arena.
+     */
+    public static final class AddressList extends AbstractList<String> implements RandomAccess {
+        // --------------------------------------------------------------------------
+        // Attributes
+        // --------------------------------------------------------------------------
+        private final AddressArena arena;
+        private final int[] indices;
+        private final int from;
+        private final int to;
+
+        // --------------------------------------------------------------------------
+        // Constructor
+        // --------------------------------------------------------------------------
+        /**
+         * Constructs a view over the addresses from..to of an arena, or over
+         * the arena indices indices[from..to] if indices is not null.
+         *
+         * @param arena   the arena holding the addresses.
+         * @param indices the arena indices of the addresses, null for a range.
+         * @param from    the first index of the view, inclusive.
+         * @param to      the last index of the view, exclusive.
+         */
+        private AddressList(AddressArena arena, int[] indices, int from, int to) {
+            this.arena = arena;
+            this.indices = indices;
+            this.from = from;
+            this.to = to;
+        }
+
+        // --------------------------------------------------------------------------
+        // Methods
+        // --------------------------------------------------------------------------
+        /**
+         * Decodes an address of the list.
+         *
+         * @param index the index of the address in the list.
+         * @return the address.
+         * @throws IndexOutOfBoundsException if the index is out of range.
+         */
+        @Override
+        public String get(int index) throws IndexOutOfBoundsException {
+            return arena.get(arenaIndex(index));
+        }
+
+        /**
+         * Gets the number of addresses in the list.
+         *
+         * @return the number of addresses.
+         */
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        /**
+         * Gets a view of a range of the list, without copying it.
+         *
+         * @param fromIndex the first index of the range, inclusive.
+         * @param toIndex   the last index of the range, exclusive.
+         * @return the addresses of the range.
+         * @throws IndexOutOfBoundsException if the range is out of bounds.
+         */
+        @Override
+        public AddressList subList(int fromIndex, int toIndex) throws IndexOutOfBoundsException {
+            Objects.checkFromToIndex(fromIndex, toIndex, size());
+            return new AddressList(arena, indices, from + fromIndex, from + toIndex);
+        }
+
+        /**
+         * Gets a view of some addresses of the list, in the given order.
+         *
+         * @param positions the indices in this list of the addresses to keep.
+         * @param fromIndex the first position to keep, inclusive.
+         * @param toIndex   the last position to keep, exclusive.
+         * @return the selected addresses.
+         * @throws IndexOutOfBoundsException if a position is out of range.
+         */
+        AddressList select(int[] positions, int fromIndex, int toIndex) throws IndexOutOfBoundsException {
+            int[] selected = new int[toIndex - fromIndex];
+            for (int i = 0; i < selected.length; i++) {
+                selected[i] = arenaIndex(positions[fromIndex + i]);
+            }
+            return new AddressList(arena, selected, 0, selected.length);
+        }
+
+        /**
+         * Gets a view of all the addresses of the list, in the order of a
+         * permutation. The permutation is rewritten in place into arena
+         * indices and becomes the index array of the view, so that nothing is
+         * copied: its sublists are index ranges of the permutation.
+         *
+         * @param permutation the indices in this list of all its addresses, in their new order.
+         * @return the permuted addresses.
+         * @throws IndexOutOfBoundsException if an index is out of range.
+         * @throws IllegalArgumentException  if the permutation does not have the size of the list.
+         */
+        AddressList permute(int[] permutation) throws IndexOutOfBoundsException, IllegalArgumentException {
+            if (permutation.length != size()) {
+                throw new IllegalArgumentException("Permutation of " + permutation.length
+                        + " indices for a list of " + size() + " addresses.");
+            }
+            for (int i = 0; i < permutation.length; i++) {
+                permutation[i] = arenaIndex(permutation[i]);
+            }
+            return new AddressList(arena, permutation, 0, permutation.length);
+        }
+
+        /**
+         * Gets the index in the arena of an address of the list.
+         *
+         * @param index the index of the address in the list.
+         * @return the index of the address in the arena.
+         * @throws IndexOutOfBoundsException if the index is out of range.
+         */
+        int arenaIndex(int index) throws IndexOutOfBoundsException {
+            Objects.checkIndex(index, size());
+            return indices == null ? from + index : indices[from + index];
+        }
+
+        /**
+         * Gets the arena holding the addresses.
+         *
+         * @return the arena.
+         */
+        AddressArena arena() {
+            return arena;
+        }
+    }
+}
@@ -8,23 +8,32 @@ package ch.heig.dai.lab.smtp;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * The ConfigLoader class is responsible for loading and parsing configuration
  * values from files. It provides methods to retrieve victims email addresses,
  * messages, SMTP server settings, and other configuration parameters.
  */
-public class ConfigLoader {
+public final class ConfigLoader {
     // ------------------------------------------------------------------------------
     // Attributes
     // ------------------------------------------------------------------------------
     private final Map<String, String> configValues;
+    private final String configFolder;
 
     private static final String CONFIG_FOLDER = "config";
     private static final String CONFIG_FILE = "config.txt";
-    private static final String CONFIG_FILE_PATH = CONFIG_FOLDER + "/" + CONFIG_FILE;
     private enum CONFIG_KEYS  {
         messagesFileName,
         victimsFileName,
@@ -34,6 +43,130 @@ public class ConfigLoader {
         smtpServerAddress,
         smtpServerPort
     }
+    private enum OPTIONAL_CONFIG_KEYS {
+        smtpRelays,
+        smtpPoolSize,
+        smtpIdleTimeout,
+        smtpReplyTimeout,
+        smtpRateLimit,
+        smtpMaxRetries,
+        smtpRetryDelay,
+        smtpMaxRecipients,
+        smtpEngine,
+        smtpStartTls,
+        nioEventLoops,
+        victimsStreaming,
+        suppressionFileName,
+        outputFormat,
+        outputPath,
+        outputWriters,
+        spoolFile,
+        spoolDurability,
+        minGroupSize,
+        maxGroupSize,
+        groupSeed,
+        logLevel,
+        logSampling,
+        pipelineQueueSize,
+        pipelineLoadThreads,
+        pipelineGroupThreads,
+        pipelineBatchThreads,
+        pipelineRenderThreads
+    }
+    private static final Set<OPTIONAL_CONFIG_KEYS> NUMERIC_OPTIONAL_CONFIG_KEYS = EnumSet.of(
+            OPTIONAL_CONFIG_KEYS.smtpPoolSize,
+            OPTIONAL_CONFIG_KEYS.smtpIdleTimeout,
+            OPTIONAL_CONFIG_KEYS.smtpReplyTimeout,
+            OPTIONAL_CONFIG_KEYS.smtpRateLimit,
+            OPTIONAL_CONFIG_KEYS.smtpMaxRetries,
+            OPTIONAL_CONFIG_KEYS.smtpRetryDelay,
+            OPTIONAL_CONFIG_KEYS.smtpMaxRecipients,
+            OPTIONAL_CONFIG_KEYS.nioEventLoops,
+            OPTIONAL_CONFIG_KEYS.outputWriters,
+            OPTIONAL_CONFIG_KEYS.logSampling,
+            OPTIONAL_CONFIG_KEYS.pipelineQueueSize,
+            OPTIONAL_CONFIG_KEYS.pipelineLoadThreads,
+            OPTIONAL_CONFIG_KEYS.pipelineGroupThreads,
+            OPTIONAL_CONFIG_KEYS.pipelineBatchThreads,
+            OPTIONAL_CONFIG_KEYS.pipelineRenderThreads,
+            OPTIONAL_CONFIG_KEYS.minGroupSize,
+            OPTIONAL_CONFIG_KEYS.maxGroupSize
+    );
+
+    /**
+     * The engines available to send the emails: the blocking SmtpClient or the
+     * non-blocking NioSmtpClient.
+     */
+    public enum SMTP_ENGINES {
+        blocking,
+        nio
+    }
+
+    /**
+     * Where the emails go: to the SMTP server, or written to the disk as a
+     * single mbox file or as a Maildir tree, without any server.
+     */
+    public enum OUTPUT_FORMATS {
+        smtp,
+        mbox,
+        maildir
+    }
+
+    /**
+     * The lowest level of the events logged while sending, from the most to
+     * the least verbose; summary logs no event, only the final metrics.
+     */
+    public enum LOG_LEVELS {
+        debug,
+        info,
+        warn,
+        error,
+        summary
+    }
+
+    /**
+     * When the records of the outbound spool are forced to the disk: never,
+     * in the background every few milliseconds, or before an email is
+     * considered sent.
+     */
+    public enum SPOOL_DURABILITY {
+        none,
+        batch,
+        sync
+    }
+
+    /**
+     * The victims loaded from the victims file, with the report of the lines
+     * that were left out.
+     *
+     * @param addresses      the valid addresses without duplicates, in file order, backed by an AddressArena.
+     * @param invalidCount   the number of lines that are not a valid email address.
+     * @param invalidLines   the first invalid lines, with their line number.
+     * @param duplicateCount the number of addresses already found earlier in the file.
+     * @param duplicates     the first duplicate addresses.
+     */
+    public record Victims(List<String> addresses, int invalidCount, List<String> invalidLines,
+                          int duplicateCount, List<String> duplicates) {
+    }
+
+    private static final int DEFAULT_SMTP_POOL_SIZE = 1;
+    private static final int DEFAULT_SMTP_IDLE_TIMEOUT = 30000;
+    private static final int DEFAULT_SMTP_REPLY_TIMEOUT = 60000;
+    private static final int DEFAULT_SMTP_RATE_LIMIT = 0;
+    private static final int DEFAULT_SMTP_MAX_RETRIES = 3;
+    private static final int DEFAULT_SMTP_RETRY_DELAY = 1000;
+    private static final int DEFAULT_SMTP_MAX_RECIPIENTS = 100;
+    private static final int DEFAULT_NIO_EVENT_LOOPS = 1;
+    private static final int DEFAULT_OUTPUT_WRITERS = 1;
+    private static final int DEFAULT_LOG_SAMPLING = 1;
+    private static final int DEFAULT_PIPELINE_QUEUE_SIZE = 1024;
+    private static final int DEFAULT_PIPELINE_LOAD_THREADS = 1;
+    private static final int DEFAULT_PIPELINE_GROUP_THREADS = 1;
+    private static final int DEFAULT_PIPELINE_BATCH_THREADS = 1;
+    private static final int DEFAULT_PIPELINE_RENDER_THREADS = 1;
+    private static final int DEFAULT_MIN_GROUP_SIZE = GroupGenerator.DEFAULT_MIN_GROUP_SIZE;
+    private static final int DEFAULT_MAX_GROUP_SIZE = GroupGenerator.DEFAULT_MAX_GROUP_SIZE;
+    private static final String ASCII_SAMPLE = "\t\n\r $-.{}";
 
     // ------------------------------------------------------------------------------
     // Constructor
@@ -47,7 +180,21 @@ public class ConfigLoader {
      *                                  invalid.
      */
     public ConfigLoader() throws IOException, IllegalArgumentException {
-        this.configValues = loadConfig();
+        this(CONFIG_FOLDER);
+    }
+
+    /**
+     * Constructor reading the configuration file, and the files it refers to,
+     * from the given folder instead of the default "config" folder.
+     *
+     * @param configFolder the folder containing the configuration file.
+     * @throws IOException if an error occurs while reading the configuration file.
+     * @throws IllegalArgumentException if a required configuration key is missing or
+     *                                  invalid.
+     */
+    public ConfigLoader(String configFolder) throws IOException, IllegalArgumentException {
+        this.configFolder = configFolder;
+        this.configValues = loadConfig(configFolder + "/" + CONFIG_FILE);
         validateConfig();
     }
 
@@ -57,14 +204,15 @@ public class ConfigLoader {
     /**
      * Loads configuration values from the configuration file.
      *
+     * @param configFilePath the path to the configuration file.
      * @return a Map containing key-value pairs of configuration settings.
      * @throws IOException if an error occurs while reading the configuration file.
      * @throws IllegalArgumentException if the configuration file contains invalid lines.
      */
-    private static Map<String, String> loadConfig() throws IOException, IllegalArgumentException {
+    static Map<String, String> loadConfig(String configFilePath) throws IOException, IllegalArgumentException {
         Map<String, String> config = new HashMap<>();
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(CONFIG_FILE_PATH))) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(configFilePath))) {
             String line;
             while ((line = reader.readLine()) != null) {
                 line = line.trim();
@@ -80,7 +228,7 @@ public class ConfigLoader {
                     String value = parts[1].trim();
                     config.put(key, value);
                 } else {
-                    throw new IllegalArgumentException("Invalid line in " + CONFIG_FILE_PATH +" file: " + line);
+                    throw new IllegalArgumentException("Invalid line in " + configFilePath +" file: " + line);
                 }
             }
         }
@@ -103,10 +251,88 @@ public class ConfigLoader {
         try {
             Integer.parseInt(configValues.get(CONFIG_KEYS.nbGroups.toString()));
             Integer.parseInt(configValues.get(CONFIG_KEYS.smtpServerPort.toString()));
+            for (var key : NUMERIC_OPTIONAL_CONFIG_KEYS) {
+                if (configValues.containsKey(key.toString()) && !configValues.get(key.toString()).isBlank()) {
+                    if (Integer.parseInt(configValues.get(key.toString())) < 0) {
+                        throw new IllegalArgumentException("Negative value in configuration: " + key);
+                    }
+                }
+            }
         } catch (NumberFormatException e) {
             throw new IllegalArgumentException("Invalid numeric value in configuration: " + e.getMessage());
         }
 
+        try {
+            getSmtpEngine();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid SMTP engine in configuration: " + configValues.get(OPTIONAL_CONFIG_KEYS.smtpEngine.toString()));
+        }
+
+        try {
+            getSpoolDurability();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid spool durability in configuration: " + configValues.get(OPTIONAL_CONFIG_KEYS.spoolDurability.toString()));
+        }
+
+        try {
+            getOutputFormat();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid output format in configuration: " + configValues.get(OPTIONAL_CONFIG_KEYS.outputFormat.toString()));
+        }
+
+        if (getOutputFormat() != OUTPUT_FORMATS.smtp && getOutputPath() == null) {
+            throw new IllegalArgumentException("Missing output path for the " + getOutputFormat() + " output format.");
+        }
+
+        if (getOutputWriters() < 1) {
+            throw new IllegalArgumentException("Output writers must be at least 1.");
+        }
+
+        if (getSmtpPoolSize() < 1) {
+            throw new IllegalArgumentException("SMTP pool size must be at least 1.");
+        }
+
+        try {
+            getLogLevel();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid log level in configuration: " + configValues.get(OPTIONAL_CONFIG_KEYS.logLevel.toString()));
+        }
+
+        if (getPipelineQueueSize() < 1 || getPipelineBatchThreads() < 1 || getPipelineRenderThreads() < 1) {
+            throw new IllegalArgumentException("Pipeline queue size, batch threads and render threads must be at least 1.");
+        }
+
+        // The victims are grouped in file order and the messages assigned in turn, on a single worker
+        if (getPipelineLoadThreads() != 1 || getPipelineGroupThreads() != 1) {
+            throw new IllegalArgumentException("Pipeline load and group threads must be 1, these stages keep the order.");
+        }
+
+        if (getLogSampling() < 1) {
+            throw new IllegalArgumentException("Log sampling must be at least 1.");
+        }
+
+        try {
+            getGroupSeed();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid group seed in configuration: " + configValues.get(OPTIONAL_CONFIG_KEYS.groupSeed.toString()));
+        }
+
+        if (getGroupSeed() != null && isVictimsStreaming()) {
+            throw new IllegalArgumentException("Shuffled groups need the victims in memory, victimsStreaming must be false.");
+        }
+
+        if (getSmtpMaxRecipients() < 1) {
+            throw new IllegalArgumentException("SMTP max recipients must be at least 1.");
+        }
+
+        if (getSmtpRelays().size() > 1 && getSmtpEngine() != SMTP_ENGINES.blocking) {
+            throw new IllegalArgumentException("Multiple SMTP relays are only supported by the blocking engine.");
+        }
+
+        if (isSmtpStartTls() && getSmtpEngine() != SMTP_ENGINES.blocking) {
+            throw new IllegalArgumentException("STARTTLS is only supported by the blocking engine.");
+        }
+
         try {
             Charset.forName(configValues.get(CONFIG_KEYS.messagesEncoding.toString()));
         } catch (Exception e) {
@@ -115,67 +341,303 @@ public class ConfigLoader {
     }
 
     /**
-     * Retrieves the list of the victims email addresses from the victims file.
+     * Loads the victims email addresses from the victims file. The file is
+     * memory-mapped and split into ranges of lines that are validated,
+     * normalized (trimmed, domain in lower case) and deduplicated in parallel
+     * by VictimsLoader. Blank lines are ignored, invalid lines and duplicates
+     * are left out and reported instead of failing the load.
      *
-     * @return a list of valid email addresses.
+     * @return the valid addresses without duplicates, with the report of the load.
      * @throws IOException if an error occurs while reading the victims file.
-     * @throws IllegalArgumentException if an invalid email address is found.
      */
-    public List<String> getVictims() throws IOException, IllegalArgumentException {
-        List<String> emailAddresses = new ArrayList<>();
+    public Victims loadVictims() throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(Path.of(getVictimsFilePath()), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Victims file is too large to be mapped: " + getVictimsFilePath());
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(getVictimsFilePath(), getEncoding()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (!Email.isValid(line)) {
-                    throw new IllegalArgumentException("Invalid email address: " + line);
-                }
-                emailAddresses.add(line);
+        // Addresses are ASCII, lines of other charsets are transcoded once
+        Charset encoding = getEncoding();
+        if (!Arrays.equals(ASCII_SAMPLE.getBytes(encoding), ASCII_SAMPLE.getBytes(StandardCharsets.US_ASCII))) {
+            data = StandardCharsets.UTF_8.encode(encoding.decode(data));
+            encoding = StandardCharsets.UTF_8;
+        }
+        return VictimsLoader.load(data, encoding);
+    }
+
+    /**
+     * Retrieves the list of the victims email addresses from the victims file,
+     * without the invalid lines and duplicates (see loadVictims).
+     *
+     * @return a list of valid email addresses, backed by an AddressArena.
+     * @throws IOException if an error occurs while reading the victims file.
+     */
+    public List<String> getVictims() throws IOException {
+        return loadVictims().addresses();
+    }
+
+    /**
+     * Loads the suppression list, the addresses that must not receive any
+     * email. A list compiled with SuppressionList.main is memory-mapped and
+     * used as is. A text list, one address per line, is compiled in memory.
+     *
+     * @return the suppression list, or null if none is configured.
+     * @throws IOException if an error occurs while reading the suppression list.
+     * @throws IllegalArgumentException if a compiled list is corrupted.
+     */
+    public SuppressionList getSuppressionList() throws IOException, IllegalArgumentException {
+        String name = configValues.get(OPTIONAL_CONFIG_KEYS.suppressionFileName.toString());
+        if (name == null || name.isBlank()) {
+            return null;
+        }
+
+        String path = configFolder + "/" + name;
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Suppression list is too large to be mapped: " + path);
             }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (SuppressionList.isCompiled(data)) {
+            return SuppressionList.wrap(data);
+        }
+
+        // Addresses are ASCII, lines of other charsets are transcoded once
+        Charset encoding = getEncoding();
+        if (!Arrays.equals(ASCII_SAMPLE.getBytes(encoding), ASCII_SAMPLE.getBytes(StandardCharsets.US_ASCII))) {
+            data = StandardCharsets.UTF_8.encode(encoding.decode(data));
+        }
+        return SuppressionList.compile(data);
+    }
+
+    /**
+     * Streams the victims email addresses from the victims file. Lines are read
+     * and validated one at a time as the stream is consumed, so memory use does
+     * not depend on the size of the file. Each line is trimmed, validated and
+     * normalized (domain in lower case) as by loadVictims; blank lines are
+     * ignored and invalid lines are left out and reported. Duplicates are kept,
+     * finding them would need every address in memory. The stream must be
+     * closed to release the file.
+     *
+     * @param invalidLine called with each invalid line, with its line number, as it is found.
+     * @return a lazy stream of valid email addresses, in file order.
+     * @throws IOException if the victims file cannot be opened.
+     * @throws UncheckedIOException (when consumed) if an error occurs while reading the file.
+     */
+    public Stream<String> streamVictims(Consumer<String> invalidLine) throws IOException {
+        int[] lineNumber = {0};
+        return Files.lines(Path.of(getVictimsFilePath()), getEncoding())
+                .map(line -> {
+                    lineNumber[0]++;
+                    return line.trim();
+                })
+                .filter(line -> {
+                    if (line.isEmpty()) {
+                        return false;
+                    }
+                    if (!Email.isValid(line)) {
+                        invalidLine.accept("line " + lineNumber[0] + ": " + line);
+                        return false;
+                    }
+                    return true;
+                })
+                .map(ConfigLoader::normalizeDomain);
+    }
+
+    /**
+     * Counts the victims streamVictims returns, reading the victims file once
+     * with the same validation so that the groups are sized for them.
+     *
+     * @return the number of valid lines in the victims file.
+     * @throws IOException if an error occurs while reading the victims file.
+     */
+    public int countVictims() throws IOException {
+        try (Stream<String> victims = streamVictims(line -> {})) {
+            return Math.toIntExact(victims.count());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
+    }
 
-        return emailAddresses;
+    /**
+     * Puts the domain of a valid address in lower case, the local part being
+     * case-sensitive (RFC 5321, section 2.4).
+     *
+     * @param address the valid address.
+     * @return the address with its domain in lower case.
+     */
+    private static String normalizeDomain(String address) {
+        int at = address.lastIndexOf('@');
+        return address.substring(0, at + 1) + address.substring(at + 1).toLowerCase(Locale.ROOT);
     }
 
     /**
      * Retrieves the list of messages from the messages file. Messages are separated
-     * by a predefined separator.
+     * by a line starting with the separator, the first non-blank line of a message
+     * being its subject and the following lines its body, indentation included.
+     * The file is memory-mapped and scanned for separators at the byte level:
+     * each message is a view over the mapping, decoded and parsed into its
+     * template only when it is first used, so the heap only holds the messages
+     * actually sent. The ${placeholder} fields are still checked here.
      *
      * @return a list of Message objects containing the subject and body.
      * @throws IOException if an error occurs while reading the messages file.
+     * @throws IllegalArgumentException if the file holds no message, or if a body
+     *                                  contains an unknown or unterminated placeholder.
      */
-    public List<Message> getMessages() throws IOException {
+    public List<Message> getMessages() throws IOException, IllegalArgumentException {
+        Charset encoding = getEncoding();
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(Path.of(getMessagesFilePath()), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Messages file is too large to be mapped: " + getMessagesFilePath());
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        // Line terminators cannot be found byte by byte in other charsets, the file is transcoded once
+        if (!Arrays.equals(ASCII_SAMPLE.getBytes(encoding), ASCII_SAMPLE.getBytes(StandardCharsets.US_ASCII))) {
+            data = StandardCharsets.UTF_8.encode(encoding.decode(data));
+            encoding = StandardCharsets.UTF_8;
+        }
+
+        byte[] separator = getSeparator().getBytes(encoding);
         List<Message> messages = new ArrayList<>();
+        int limit = data.limit();
+        int messageStart = 0;
+        int lineStart = 0;
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(getMessagesFilePath(), getEncoding()))) {
-            String line;
-            String subject = null;
-            StringBuilder body = new StringBuilder();
+        while (lineStart < limit) {
+            int lineEnd = lineEnd(data, lineStart, limit);
+            if (startsWith(data, skipBlanks(data, lineStart, lineEnd), lineEnd, separator)) {
+                addMessage(messages, data, messageStart, lineStart, encoding);
+                messageStart = nextLine(data, lineEnd, limit);
+            }
+            lineStart = nextLine(data, lineEnd, limit);
+        }
+        addMessage(messages, data, messageStart, limit, encoding);
 
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
+        if (messages.isEmpty()) {
+            throw new IllegalArgumentException("No message found in messages file: " + getMessagesFilePath());
+        }
+        return messages;
+    }
 
-                if (line.startsWith(getSeparator())) {
-                    if (subject != null) {
-                        messages.add(new Message(subject, body.toString().stripTrailing()));
-                    }
-                    subject = null;
-                    body = new StringBuilder();
-                    continue;
-                }
+    /**
+     * Adds the message found between two separators, if it is not blank: the
+     * subject is its first non-blank line, trimmed, and the body the following
+     * lines, without trailing whitespace.
+     *
+     * @param messages the messages found so far.
+     * @param data     the content of the messages file.
+     * @param from     the index of the first byte of the message.
+     * @param to       the index after the last byte of the message.
+     * @param encoding the charset of the file.
+     * @throws IllegalArgumentException if the body contains an unknown or unterminated placeholder.
+     */
+    private static void addMessage(List<Message> messages, ByteBuffer data, int from, int to, Charset encoding)
+            throws IllegalArgumentException {
+        int subjectStart = from;
+        while (subjectStart < to && isBlank(data.get(subjectStart))) {
+            subjectStart++;
+        }
+        if (subjectStart == to) {
+            return;
+        }
 
-                if (subject == null) {
-                    subject = line;
-                } else {
-                    body.append(line).append("\n");
-                }
-            }
+        int subjectEnd = lineEnd(data, subjectStart, to);
+        int bodyStart = nextLine(data, subjectEnd, to);
+        while (subjectEnd > subjectStart && isBlank(data.get(subjectEnd - 1))) {
+            subjectEnd--;
+        }
+        int bodyEnd = to;
+        while (bodyEnd > bodyStart && isBlank(data.get(bodyEnd - 1))) {
+            bodyEnd--;
+        }
 
-            messages.add(new Message(subject, body.toString().stripTrailing()));
+        messages.add(new Message(data.slice(subjectStart, subjectEnd - subjectStart),
+                data.slice(bodyStart, bodyEnd - bodyStart), encoding));
+    }
+
+    /**
+     * Finds the end of a line.
+     *
+     * @param data  the content of the file.
+     * @param from  the index of the first byte of the line.
+     * @param limit the index after the last byte to scan.
+     * @return the index of the line terminator ("\n" or "\r"), limit if there is none.
+     */
+    static int lineEnd(ByteBuffer data, int from, int limit) {
+        int i = from;
+        while (i < limit && data.get(i) != '\n' && data.get(i) != '\r') {
+            i++;
         }
+        return i;
+    }
 
-        return messages;
+    /**
+     * Finds the start of the next line.
+     *
+     * @param data    the content of the file.
+     * @param lineEnd the index of a line terminator, as returned by lineEnd().
+     * @param limit   the index after the last byte to scan.
+     * @return the index after the line terminator ("\n", "\r" or "\r\n").
+     */
+    static int nextLine(ByteBuffer data, int lineEnd, int limit) {
+        if (lineEnd < limit && data.get(lineEnd) == '\r' && lineEnd + 1 < limit && data.get(lineEnd + 1) == '\n') {
+            return lineEnd + 2;
+        }
+        return Math.min(lineEnd + 1, limit);
+    }
+
+    /**
+     * Skips the spaces and tabs at the start of a line.
+     *
+     * @param data    the content of the file.
+     * @param from    the index of the first byte of the line.
+     * @param lineEnd the index of the line terminator.
+     * @return the index of the first other byte, lineEnd if there is none.
+     */
+    private static int skipBlanks(ByteBuffer data, int from, int lineEnd) {
+        while (from < lineEnd && (data.get(from) == ' ' || data.get(from) == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Tells whether a line starts with the given bytes.
+     *
+     * @param data    the content of the file.
+     * @param from    the index to compare from.
+     * @param lineEnd the index of the line terminator.
+     * @param prefix  the bytes to look for.
+     * @return true if the line starts with the prefix.
+     */
+    private static boolean startsWith(ByteBuffer data, int from, int lineEnd, byte[] prefix) {
+        if (lineEnd - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data.get(from + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether a byte is whitespace or a control character.
+     *
+     * @param b the byte.
+     * @return true if the byte is at most a space.
+     */
+    static boolean isBlank(byte b) {
+        return b >= 0 && b <= ' ';
     }
 
     /**
@@ -184,7 +646,7 @@ public class ConfigLoader {
      * @return the file path to the messages file.
      */
     private String getMessagesFilePath() {
-        return CONFIG_FOLDER + "/" + configValues.get(CONFIG_KEYS.messagesFileName.toString());
+        return configFolder + "/" + configValues.get(CONFIG_KEYS.messagesFileName.toString());
     }
 
     /**
@@ -193,7 +655,7 @@ public class ConfigLoader {
      * @return the file path to the victims file.
      */
     private String getVictimsFilePath() {
-        return CONFIG_FOLDER + "/" + configValues.get(CONFIG_KEYS.victimsFileName.toString());
+        return configFolder + "/" + configValues.get(CONFIG_KEYS.victimsFileName.toString());
     }
 
     /**
@@ -224,6 +686,38 @@ public class ConfigLoader {
         return Integer.parseInt(configValues.get(CONFIG_KEYS.nbGroups.toString()));
     }
 
+    /**
+     * Retrieves the minimum number of members of a group, sender included.
+     *
+     * @return the minimum group size, 2 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getMinGroupSize() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.minGroupSize, DEFAULT_MIN_GROUP_SIZE);
+    }
+
+    /**
+     * Retrieves the maximum number of members of a group, sender included.
+     *
+     * @return the maximum group size, 5 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getMaxGroupSize() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.maxGroupSize, DEFAULT_MAX_GROUP_SIZE);
+    }
+
+    /**
+     * Retrieves the seed the victims are shuffled with before being grouped,
+     * so that a shuffled run can be reproduced.
+     *
+     * @return the seed, or null if the victims are grouped in file order.
+     * @throws NumberFormatException if the configuration value is not a valid long integer.
+     */
+    public Long getGroupSeed() throws NumberFormatException {
+        String value = configValues.get(OPTIONAL_CONFIG_KEYS.groupSeed.toString());
+        return value == null || value.isBlank() ? null : Long.parseLong(value);
+    }
+
     /**
      * Retrieves the SMTP server address from the configuration.
      *
@@ -242,4 +736,326 @@ public class ConfigLoader {
     public int getSmtpServerPort() throws NumberFormatException {
         return Integer.parseInt(configValues.get(CONFIG_KEYS.smtpServerPort.toString()));
     }
+
+    /**
+     * Retrieves the SMTP relays the emails are sent through, written as a
+     * comma-separated list of "address:port[:weight]", an IPv6 address being
+     * written in brackets ("[::1]:25"). Without this key, the single SMTP
+     * server of smtpServerAddress and smtpServerPort is used.
+     *
+     * @return the configured relays, at least one.
+     * @throws IllegalArgumentException if a relay definition is malformed.
+     */
+    public List<SmtpRelay> getSmtpRelays() throws IllegalArgumentException {
+        String value = configValues.get(OPTIONAL_CONFIG_KEYS.smtpRelays.toString());
+        if (value == null || value.isBlank()) {
+            return List.of(new SmtpRelay(getSmtpServerAddress(), getSmtpServerPort(), 1));
+        }
+
+        List<SmtpRelay> relays = new ArrayList<>();
+        for (String relay : value.split(",")) {
+            relays.add(SmtpRelay.parse(relay));
+        }
+        return relays;
+    }
+
+    /**
+     * Retrieves the maximum number of connections opened in parallel to the SMTP
+     * server (to each relay when several are configured). A pool size of 1 sends the emails sequentially over a single
+     * connection.
+     *
+     * @return the SMTP connection pool size, 1 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getSmtpPoolSize() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.smtpPoolSize, DEFAULT_SMTP_POOL_SIZE);
+    }
+
+    /**
+     * Retrieves the time, in milliseconds, after which an idle pooled SMTP
+     * connection is closed instead of being reused.
+     *
+     * @return the idle timeout in milliseconds, 30000 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getSmtpIdleTimeout() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.smtpIdleTimeout, DEFAULT_SMTP_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Retrieves the time, in milliseconds, to wait for a connection to the SMTP
+     * server and for each of its replies before giving up on the session.
+     *
+     * @return the reply timeout in milliseconds, 0 to wait forever, 60000 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getSmtpReplyTimeout() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.smtpReplyTimeout, DEFAULT_SMTP_REPLY_TIMEOUT);
+    }
+
+    /**
+     * Retrieves the maximum number of emails sent per second to the SMTP server
+     * (to each relay when several are configured).
+     *
+     * @return the rate limit in emails per second, 0 (unlimited) if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getSmtpRateLimit() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.smtpRateLimit, DEFAULT_SMTP_RATE_LIMIT);
+    }
+
+    /**
+     * Retrieves the number of times an email temporarily refused by the SMTP
+     * server (4xx reply) is sent again before being reported as failed.
+     *
+     * @return the maximum number of retries, 3 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getSmtpMaxRetries() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.smtpMaxRetries, DEFAULT_SMTP_MAX_RETRIES);
+    }
+
+    /**
+     * Retrieves the base delay, in milliseconds, before an email temporarily
+     * refused is sent again. The delay doubles with every retry.
+     *
+     * @return the base retry delay in milliseconds, 1000 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getSmtpRetryDelay() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.smtpRetryDelay, DEFAULT_SMTP_RETRY_DELAY);
+    }
+
+    /**
+     * Retrieves the maximum number of recipients of a single mail transaction.
+     * Larger groups are split into several transactions, the recipients of a
+     * same domain being kept together. RFC 5321 requires servers to accept at
+     * least 100 recipients.
+     *
+     * @return the maximum number of recipients per transaction, 100 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getSmtpMaxRecipients() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.smtpMaxRecipients, DEFAULT_SMTP_MAX_RECIPIENTS);
+    }
+
+    /**
+     * Retrieves the engine used to send the emails.
+     *
+     * @return the configured SMTP engine, blocking if not configured.
+     * @throws IllegalArgumentException if the configuration value is not a known engine.
+     */
+    public SMTP_ENGINES getSmtpEngine() throws IllegalArgumentException {
+        String value = configValues.get(OPTIONAL_CONFIG_KEYS.smtpEngine.toString());
+        return value == null || value.isBlank() ? SMTP_ENGINES.blocking : SMTP_ENGINES.valueOf(value);
+    }
+
+    /**
+     * Tells whether the SMTP sessions are upgraded to TLS with STARTTLS before
+     * sending anything, a relay not offering it being an error.
+     *
+     * @return true if STARTTLS is required, false if not configured.
+     */
+    public boolean isSmtpStartTls() {
+        return Boolean.parseBoolean(configValues.get(OPTIONAL_CONFIG_KEYS.smtpStartTls.toString()));
+    }
+
+    /**
+     * Retrieves the number of event loop threads driving the sessions of the
+     * non-blocking engine.
+     *
+     * @return the number of event loops, 1 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getNioEventLoops() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.nioEventLoops, DEFAULT_NIO_EVENT_LOOPS);
+    }
+
+    /**
+     * Tells whether the victims are streamed from the file while the emails are
+     * sent, instead of being loaded in memory first.
+     *
+     * @return true if the victims streaming mode is enabled, false if not configured.
+     */
+    public boolean isVictimsStreaming() {
+        return Boolean.parseBoolean(configValues.get(OPTIONAL_CONFIG_KEYS.victimsStreaming.toString()));
+    }
+
+    /**
+     * Retrieves where the emails go.
+     *
+     * @return the configured output format, smtp if not configured.
+     * @throws IllegalArgumentException if the configuration value is not a known format.
+     */
+    public OUTPUT_FORMATS getOutputFormat() throws IllegalArgumentException {
+        String value = configValues.get(OPTIONAL_CONFIG_KEYS.outputFormat.toString());
+        return value == null || value.isBlank() ? OUTPUT_FORMATS.smtp : OUTPUT_FORMATS.valueOf(value);
+    }
+
+    /**
+     * Retrieves the path the emails are written to, with the mbox or maildir
+     * output format.
+     *
+     * @return the path of the mbox file or of the Maildir folder, or null if not configured.
+     */
+    public String getOutputPath() {
+        String value = configValues.get(OPTIONAL_CONFIG_KEYS.outputPath.toString());
+        return value == null || value.isBlank() ? null : value;
+    }
+
+    /**
+     * Retrieves the number of emails written to the disk at the same time,
+     * with the mbox or maildir output format.
+     *
+     * @return the number of parallel writers, 1 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getOutputWriters() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.outputWriters, DEFAULT_OUTPUT_WRITERS);
+    }
+
+    /**
+     * Retrieves the capacity of the queue between two stages of the pipeline
+     * building the emails, which bounds the emails held in memory.
+     *
+     * @return the queue size, 1024 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getPipelineQueueSize() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.pipelineQueueSize, DEFAULT_PIPELINE_QUEUE_SIZE);
+    }
+
+    /**
+     * Retrieves the number of workers reading and validating the streamed
+     * victims. The stage keeps the file order, so only 1 is accepted.
+     *
+     * @return the number of load threads, 1 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getPipelineLoadThreads() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.pipelineLoadThreads, DEFAULT_PIPELINE_LOAD_THREADS);
+    }
+
+    /**
+     * Retrieves the number of workers grouping the victims and assigning the
+     * messages. The stage assigns the messages in turn, so only 1 is accepted.
+     *
+     * @return the number of group threads, 1 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getPipelineGroupThreads() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.pipelineGroupThreads, DEFAULT_PIPELINE_GROUP_THREADS);
+    }
+
+    /**
+     * Retrieves the number of workers splitting the emails into mail
+     * transactions.
+     *
+     * @return the number of batch threads, 1 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getPipelineBatchThreads() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.pipelineBatchThreads, DEFAULT_PIPELINE_BATCH_THREADS);
+    }
+
+    /**
+     * Retrieves the number of workers rendering the emails for the transport
+     * before they are sent.
+     *
+     * @return the number of render threads, 1 if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getPipelineRenderThreads() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.pipelineRenderThreads, DEFAULT_PIPELINE_RENDER_THREADS);
+    }
+
+    /**
+     * Retrieves the lowest level of the events logged while sending.
+     *
+     * @return the configured log level, info if not configured.
+     * @throws IllegalArgumentException if the configuration value is not a known level.
+     */
+    public LOG_LEVELS getLogLevel() throws IllegalArgumentException {
+        String value = configValues.get(OPTIONAL_CONFIG_KEYS.logLevel.toString());
+        return value == null || value.isBlank() ? LOG_LEVELS.info : LOG_LEVELS.valueOf(value);
+    }
+
+    /**
+     * Retrieves the sampling of the info and debug events: one event out of
+     * this number is logged.
+     *
+     * @return the log sampling, 1 (every event) if not configured.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    public int getLogSampling() throws NumberFormatException {
+        return getOptionalInt(OPTIONAL_CONFIG_KEYS.logSampling, DEFAULT_LOG_SAMPLING);
+    }
+
+    /**
+     * Retrieves the path of the outbound spool, the journal that lets an
+     * interrupted campaign be resumed without sending its emails twice.
+     *
+     * @return the path of the spool file, or null if the spool is disabled.
+     */
+    public String getSpoolFile() {
+        String value = configValues.get(OPTIONAL_CONFIG_KEYS.spoolFile.toString());
+        return value == null || value.isBlank() ? null : value;
+    }
+
+    /**
+     * Retrieves when the records of the outbound spool are forced to the disk.
+     *
+     * @return the configured durability, batch if not configured.
+     * @throws IllegalArgumentException if the configuration value is not a known durability.
+     */
+    public SPOOL_DURABILITY getSpoolDurability() throws IllegalArgumentException {
+        String value = configValues.get(OPTIONAL_CONFIG_KEYS.spoolDurability.toString());
+        return value == null || value.isBlank() ? SPOOL_DURABILITY.batch : SPOOL_DURABILITY.valueOf(value);
+    }
+
+    /**
+     * Describes the campaign this configuration generates: the input files,
+     * by size and last modification, and the parameters of the grouping. Two
+     * runs with the same description generate the same emails, so that the
+     * outbound spool can resume an interrupted campaign.
+     *
+     * @return the description of the campaign.
+     * @throws IOException if an input file cannot be read.
+     */
+    public String getCampaign() throws IOException {
+        return String.join(";",
+                describeFile(getVictimsFilePath()),
+                describeFile(getMessagesFilePath()),
+                "messagesEncoding=" + getEncoding(),
+                "nbGroups=" + getNbGroups(),
+                "minGroupSize=" + getMinGroupSize(),
+                "maxGroupSize=" + getMaxGroupSize(),
+                "groupSeed=" + getGroupSeed(),
+                "victimsStreaming=" + isVictimsStreaming());
+    }
+
+    /**
+     * Describes an input file by its path, size and last modification.
+     *
+     * @param path the path of the file.
+     * @return the description of the file.
+     * @throws IOException if the file cannot be read.
+     */
+    private static String describeFile(String path) throws IOException {
+        Path file = Path.of(path);
+        return file + ":" + Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+    }
+
+    /**
+     * Retrieves an optional integer configuration value.
+     *
+     * @param key          the optional configuration key.
+     * @param defaultValue the value returned if the key is not configured.
+     * @return the configured value, or the default value if the key is missing or blank.
+     * @throws NumberFormatException if the configuration value is not a valid integer.
+     */
+    private int getOptionalInt(OPTIONAL_CONFIG_KEYS key, int defaultValue) throws NumberFormatException {
+        String value = configValues.get(key.toString());
+        return value == null || value.isBlank() ? defaultValue : Integer.parseInt(value);
+    }
 }
@@ -5,7 +5,14 @@
 
 package ch.heig.dai.lab.smtp;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Represents an email with a sender, a list of receivers, and a message.
@@ -19,10 +26,53 @@ public class Email {
     private final String sender;
     private final List<String> receivers;
     private final Message message;
+    private volatile Rendering rendering;
 
-    private final static String REGEX = "^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\" +
+    final static String REGEX = "^[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\" +
             ".[a-zA-Z]{2,}$";
 
+    /**
+     * The email rendered for a server: its headers and the payload of its
+     * body, in the transfer encoding and the form of the transfer mode the
+     * server supports.
+     *
+     * @param encoding     the character encoding of the email.
+     * @param eightBitMime whether the server accepts 8-bit text.
+     * @param chunked      whether the body is sent with BDAT instead of DATA.
+     * @param headers      the encoded headers, followed by the blank line.
+     * @param segments     the buffers of the body, never written themselves.
+     * @param size         the size of the message in bytes, headers included.
+     */
+    record Rendering(Charset encoding, boolean eightBitMime, boolean chunked, byte[] headers,
+                     ByteBuffer[] segments, long size) {
+        /**
+         * Gets buffers over the body, ready to be written, so that the
+         * rendering can be sent again on a retry.
+         *
+         * @return the buffers to send in order.
+         */
+        ByteBuffer[] payload() {
+            ByteBuffer[] payload = new ByteBuffer[segments.length];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = segments[i].duplicate();
+            }
+            return payload;
+        }
+
+        /**
+         * Tells whether the rendering is the one of a server with the given
+         * capabilities.
+         *
+         * @param encoding     the character encoding of the email.
+         * @param capabilities the capabilities of the server.
+         * @return true if the rendering can be sent to the server as is.
+         */
+        boolean matches(Charset encoding, SmtpCapabilities capabilities) {
+            return this.encoding.equals(encoding) && eightBitMime == capabilities.eightBitMime()
+                    && chunked == capabilities.chunking();
+        }
+    }
+
     // ------------------------------------------------------------------------------
     // Constructor
     // ------------------------------------------------------------------------------
@@ -67,6 +117,15 @@ public class Email {
         return message.getSubject();
     }
 
+    /**
+     * Gets the message (subject and body) of the email.
+     *
+     * @return the Message object of the email.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
     /**
      * Gets the body of the email.
      *
@@ -76,6 +135,152 @@ public class Email {
         return message.getBody();
     }
 
+    /**
+     * Renders the email for a server with the given capabilities: the headers,
+     * then the body in the transfer encoding chosen by
+     * SmtpClient.transferEncoding(). The rendering is cached, so that checking
+     * the size of the email, sending it and sending it again on a retry
+     * render it only once.
+     *
+     * @param encoding     the character encoding of the email.
+     * @param capabilities the capabilities of the server.
+     * @return the rendered email.
+     */
+    Rendering render(Charset encoding, SmtpCapabilities capabilities) {
+        Rendering current = rendering;
+        if (current == null || !current.matches(encoding, capabilities)) {
+            String transferEncoding = SmtpClient.transferEncoding(this, capabilities);
+            ByteBuffer[] payload = SmtpClient.render(this, encoding, capabilities, transferEncoding);
+            byte[] headers = SmtpClient.buildHeaders(this, encoding, transferEncoding).getBytes(encoding);
+            current = new Rendering(encoding, capabilities.eightBitMime(), capabilities.chunking(), headers,
+                    payload, headers.length + SmtpClient.remaining(payload));
+            rendering = current;
+        }
+        return current;
+    }
+
+    /**
+     * Splits the email into mail transactions of at most maxRecipients
+     * recipients each, sharing the sender and the message. The recipients are
+     * grouped by domain, so that a single DATA upload reaches all the
+     * recipients of a domain through the receiving server. A domain larger
+     * than a transaction first fills whole transactions of its own; the
+     * remaining domains are then packed whole, first-fit decreasing, so that
+     * a domain is never split when it fits in a transaction. A personalized
+     * message is rendered for each recipient, so it is sent in one transaction
+     * per recipient.
+     *
+     * @param maxRecipients the maximum number of recipients per transaction.
+     * @return the emails to send, this email itself if it is small enough.
+     * @throws IllegalArgumentException if maxRecipients is less than 1.
+     */
+    public List<Email> batches(int maxRecipients) throws IllegalArgumentException {
+        if (maxRecipients < 1) {
+            throw new IllegalArgumentException("Max recipients must be at least 1.");
+        }
+        if (message.isPersonalized()) {
+            maxRecipients = 1;
+        }
+        if (receivers.size() <= maxRecipients) {
+            return List.of(this);
+        }
+
+        // Stable counting sort of the recipients by domain, in order of first appearance
+        Map<String, Integer> domainIds = new HashMap<>();
+        int[] domainOf = new int[receivers.size()];
+        for (int i = 0; i < domainOf.length; i++) {
+            String receiver = receivers.get(i);
+            String domain = receiver.substring(receiver.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+            domainOf[i] = domainIds.computeIfAbsent(domain, d -> domainIds.size());
+        }
+        int domains = domainIds.size();
+        int[] next = new int[domains + 1];
+        for (int domain : domainOf) {
+            next[domain + 1]++;
+        }
+        for (int d = 1; d < next.length; d++) {
+            next[d] += next[d - 1];
+        }
+        int[] bounds = next.clone();
+        int[] order = new int[domainOf.length];
+        for (int i = 0; i < domainOf.length; i++) {
+            order[next[domainOf[i]]++] = i;
+        }
+
+        // A domain larger than a transaction fills whole ones, its remainder is packed with the others
+        List<Email> batches = new ArrayList<>();
+        int[] remainderFrom = new int[domains];
+        // Sorted by decreasing size, then by domain: (maxRecipients - size) << 32 | domain
+        long[] pieces = new long[domains];
+        int nbPieces = 0;
+        for (int d = 0; d < domains; d++) {
+            int from = bounds[d];
+            for (; bounds[d + 1] - from >= maxRecipients; from += maxRecipients) {
+                batches.add(new Email(sender, select(order, from, from + maxRecipients), message));
+            }
+            if (from < bounds[d + 1]) {
+                remainderFrom[d] = from;
+                pieces[nbPieces++] = (long) (maxRecipients - (bounds[d + 1] - from)) << 32 | d;
+            }
+        }
+        Arrays.sort(pieces, 0, nbPieces);
+
+        // First-fit decreasing of the whole domains
+        int[] binFill = new int[nbPieces];
+        int[] pieceBin = new int[nbPieces];
+        int nbBins = 0;
+        for (int p = 0; p < nbPieces; p++) {
+            int size = maxRecipients - (int) (pieces[p] >>> 32);
+            int bin = 0;
+            while (bin < nbBins && binFill[bin] + size > maxRecipients) {
+                bin++;
+            }
+            if (bin == nbBins) {
+                nbBins++;
+            }
+            binFill[bin] += size;
+            pieceBin[p] = bin;
+        }
+
+        // The transactions laid out one after the other, each domain in a single run
+        int[] binStart = new int[nbBins + 1];
+        for (int bin = 0; bin < nbBins; bin++) {
+            binStart[bin + 1] = binStart[bin] + binFill[bin];
+        }
+        int[] binNext = Arrays.copyOf(binStart, nbBins);
+        int[] packed = new int[binStart[nbBins]];
+        for (int p = 0; p < nbPieces; p++) {
+            int domain = (int) pieces[p];
+            int size = maxRecipients - (int) (pieces[p] >>> 32);
+            System.arraycopy(order, remainderFrom[domain], packed, binNext[pieceBin[p]], size);
+            binNext[pieceBin[p]] += size;
+        }
+        for (int bin = 0; bin < nbBins; bin++) {
+            batches.add(new Email(sender, select(packed, binStart[bin], binStart[bin + 1]), message));
+        }
+        return batches;
+    }
+
+    /**
+     * Selects some recipients of the email, as a view of the same arena if the
+     * recipients are an AddressList, so that no address is copied.
+     *
+     * @param positions the indices of the recipients to select.
+     * @param from      the first position to select, inclusive.
+     * @param to        the last position to select, exclusive.
+     * @return the selected recipients, in the order of the positions.
+     */
+    private List<String> select(int[] positions, int from, int to) {
+        if (receivers instanceof AddressArena.AddressList list) {
+            return list.select(positions, from, to);
+        }
+        List<String> selected = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            selected.add(receivers.get(positions[i]));
+        }
+        return selected;
+    }
+
     /**
      * Returns a string representation of the email, including the sender,
      * receivers, subject, and body.
@@ -90,12 +295,13 @@ public class Email {
     }
 
     /**
-     * Validates if the given email address follows a valid format.
+     * Validates if the given email address follows a valid format (the format
+     * described by REGEX, checked in a single pass by EmailValidator).
      *
      * @param email the email address to validate.
      * @return true if the email address is valid, false otherwise.
      */
     public static boolean isValid(String email) {
-        return email != null && email.matches(REGEX);
+        return EmailValidator.isValid(email);
     }
 }
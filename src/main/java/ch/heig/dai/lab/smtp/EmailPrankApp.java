@@ -6,8 +6,20 @@
 package ch.heig.dai.lab.smtp;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * The EmailPrankApp class runs the email prank application. It initializes
@@ -15,67 +27,644 @@ import java.util.List;
  * using an SMTP client.
  */
 public class EmailPrankApp {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    /**
+     * Sends a single email, blocking until it is sent. Implemented by the
+     * connection pools.
+     */
+    @FunctionalInterface
+    private interface EmailSender {
+        void send(Email email) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Notified of the outcome of every email, for instance to journal it in
+     * the outbound spool.
+     */
+    @FunctionalInterface
+    private interface SendListener {
+        void completed(Email email, Throwable error);
+    }
+
+    /**
+     * What the render stage renders the emails for: the capabilities of the
+     * transport they are sent through, once the transport knows them. Until
+     * then, or with several relays whose capabilities may differ, the emails
+     * pass through unrendered and the session sending them renders them.
+     */
+    private static final class RenderTarget {
+        private final Charset encoding;
+        private volatile Supplier<SmtpCapabilities> capabilities = () -> null;
+
+        /**
+         * Constructs a target pointing at no transport yet.
+         *
+         * @param encoding the character encoding of the emails.
+         */
+        private RenderTarget(Charset encoding) {
+            this.encoding = encoding;
+        }
+
+        /**
+         * Points the render stage at the transport the emails are sent through.
+         *
+         * @param capabilities gets the capabilities of the transport, null while they are unknown.
+         */
+        private void set(Supplier<SmtpCapabilities> capabilities) {
+            this.capabilities = capabilities;
+        }
+
+        /**
+         * Renders an email for the transport, if its capabilities are known,
+         * so that sending it only writes the cached rendering.
+         *
+         * @param email the email to render.
+         * @return the email.
+         * @see Email#render(Charset, SmtpCapabilities)
+         */
+        private List<Email> render(Email email) {
+            SmtpCapabilities known = capabilities.get();
+            if (known != null) {
+                email.render(encoding, known);
+            }
+            return List.of(email);
+        }
+    }
 
     public static void main(String[] args) {
+        OutboundSpool spool = null;
+        Pipeline pipeline = null;
         try {
+            SmtpMetrics.get().register();
+
             ConfigLoader configLoader = new ConfigLoader();
+            EventLog.get().configure(configLoader.getLogLevel(), configLoader.getLogSampling());
+            SendListener listener = (email, error) -> { };
+            RenderTarget target = new RenderTarget(configLoader.getEncoding());
+
+            if (configLoader.getSpoolFile() != null) {
+                spool = new OutboundSpool(Path.of(configLoader.getSpoolFile()), configLoader.getSpoolDurability());
+                listener = spool::completed;
+
+                String campaign = configLoader.getCampaign();
+                if (spool.isInterrupted()) {
+                    // Generated again below, the spool sending only what the interrupted run did not
+                    if (!campaign.equals(spool.getCampaign())) {
+                        throw new IOException("[Spool] The inputs of the interrupted campaign changed, delete "
+                                + configLoader.getSpoolFile() + " to start a new campaign.");
+                    }
+                    System.out.println("Resuming the interrupted campaign, " + spool.getOutstandingCount()
+                            + " emails from the spool first...");
+                } else if (spool.hasOutstanding()) {
+                    System.out.println("Resuming " + spool.getOutstandingCount() + " emails from the spool...");
+                    if (!spool.isComplete()) {
+                        System.err.println("[Spool] The previous campaign stopped before queuing all its emails, only the queued ones are resumed.");
+                    }
+                    sendEmails(spool.outstanding(), configLoader, listener, target);
+                    return;
+                } else {
+                    spool.startCampaign(campaign);
+                }
+            }
+
+            List<Message> messages = configLoader.getMessages();
+            pipeline = new Pipeline(configLoader.getPipelineQueueSize());
+            pipeline.register();
+
+            if (configLoader.isVictimsStreaming()) {
+                GroupGenerator groupGenerator = new GroupGenerator(
+                        configLoader.countVictims(),
+                        configLoader.getNbGroups(),
+                        configLoader.getMinGroupSize(),
+                        configLoader.getMaxGroupSize()
+                );
+
+                try (Stream<String> victims = configLoader.streamVictims(
+                        line -> System.err.println("[Victims] Invalid line skipped, " + line))) {
+                    // Read and validated in order on a worker of their own, ahead of the grouping
+                    Iterator<String> addresses = pipeline.stage("load", victims.iterator(),
+                            configLoader.getPipelineLoadThreads(), List::of);
+                    sendEmails(
+                            queue(buildEmails(pipeline, groupGenerator.generateGroups(addresses), messages,
+                                    configLoader, target), spool),
+                            configLoader,
+                            listener,
+                            target
+                    );
+                }
+            } else {
+                ConfigLoader.Victims victims = configLoader.loadVictims();
+                report(victims);
+                GroupGenerator groupGenerator = new GroupGenerator(
+                        victims.addresses(),
+                        configLoader.getNbGroups(),
+                        configLoader.getMinGroupSize(),
+                        configLoader.getMaxGroupSize()
+                );
+
+                // Cut one at a time by the group stage, so the first groups are sent before the last are cut
+                Long seed = configLoader.getGroupSeed();
+                Iterator<Group> groups = seed == null
+                        ? groupGenerator.iterateGroups()
+                        : groupGenerator.iterateGroups(seed);
+
+                sendEmails(
+                        queue(buildEmails(pipeline, groups, messages, configLoader, target), spool),
+                        configLoader,
+                        listener,
+                        target
+                );
+            }
+        } catch (Exception e) {
+            EventLog.get().close();
+            System.err.println(e.getMessage());
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+            EventLog.get().close();
+            if (spool != null) {
+                try {
+                    spool.close();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+            SmtpMetrics.get().printSummary(System.out);
+            if (pipeline != null) {
+                pipeline.printSummary(System.out);
+            }
+            EventLog.get().printSummary(System.out);
+        }
+    }
+
+    /**
+     * Prints the lines of the victims file that were left out of the victims.
+     *
+     * @param victims the loaded victims.
+     */
+    private static void report(ConfigLoader.Victims victims) {
+        if (victims.invalidCount() > 0) {
+            System.err.println("[Victims] " + victims.invalidCount() + " invalid line(s) skipped:");
+            victims.invalidLines().forEach(line -> System.err.println("  " + line));
+            if (victims.invalidCount() > victims.invalidLines().size()) {
+                System.err.println("  ... and " + (victims.invalidCount() - victims.invalidLines().size()) + " more");
+            }
+        }
+        if (victims.duplicateCount() > 0) {
+            System.out.println("[Victims] " + victims.duplicateCount() + " duplicate address(es) removed, "
+                    + victims.addresses().size() + " distinct address(es) left.");
+        }
+    }
+
+    /**
+     * Journals the emails in the outbound spool as they are generated, if the
+     * spool is enabled.
+     *
+     * @param emails the generated emails.
+     * @param spool  the outbound spool, null if disabled.
+     * @return the emails to send.
+     */
+    private static Iterator<Email> queue(Iterator<Email> emails, OutboundSpool spool) {
+        return spool == null ? emails : spool.queue(emails);
+    }
+
+    /**
+     * Chains the stages building the emails to send from the groups, ahead of
+     * the sender reading their output. The group stage forms the groups (from
+     * the output of the load stage when the victims are streamed, cutting
+     * them one at a time otherwise) and assigns them their message, in
+     * order, so it runs on a single worker. The batch stage splits the emails
+     * of the large groups into mail transactions the SMTP server accepts, on
+     * pipelineBatchThreads workers. The render stage renders each transaction
+     * for the transport, on pipelineRenderThreads workers. A slow sender
+     * fills the queues and blocks every stage.
+     *
+     * @param pipeline     the pipeline the stages are added to.
+     * @param groups       the groups, generated as they are read.
+     * @param messages     the list of messages loaded from the configuration.
+     * @param configLoader the configuration of the stages.
+     * @param target       what the render stage renders the emails for.
+     * @return the emails to send, one per transaction.
+     * @see Email#batches(int)
+     */
+    private static Iterator<Email> buildEmails(Pipeline pipeline, Iterator<Group> groups, List<Message> messages,
+                                               ConfigLoader configLoader, RenderTarget target) {
+        int maxRecipients = configLoader.getSmtpMaxRecipients();
+        Iterator<Email> emails = pipeline.stage("group", generateEmails(groups, messages),
+                configLoader.getPipelineGroupThreads(), List::of);
+        Iterator<Email> batches = pipeline.stage("batch", emails, configLoader.getPipelineBatchThreads(),
+                email -> email.batches(maxRecipients));
+        return pipeline.stage("render", batches, configLoader.getPipelineRenderThreads(), target::render);
+    }
+
+    /**
+     * Generates the Email objects lazily from the provided groups and messages.
+     * Each group has one sender and multiple receivers, and a message is assigned
+     * to each email. An email is only built when it is about to be sent.
+     *
+     * @param groups   the groups generated by the GroupGenerator.
+     * @param messages the list of messages loaded from the configuration.
+     * @return an iterator over the Email objects ready to be sent.
+     */
+    private static Iterator<Email> generateEmails(Iterator<Group> groups, List<Message> messages) {
+        return new Iterator<>() {
+            private int messageIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return groups.hasNext();
+            }
+
+            @Override
+            public Email next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                Group group = groups.next();
+                Email email = new Email(group.getSender(), group.getReceivers(), messages.get(messageIndex));
+                messageIndex = (messageIndex + 1) % messages.size();
+                return email;
+            }
+        };
+    }
+
+    /**
+     * Sends the emails with the SMTP engine selected in the configuration,
+     * pointing the render stage at it once it knows the capabilities of the
+     * server.
+     *
+     * @param emails       the emails to send.
+     * @param configLoader the configuration of the SMTP server and engine.
+     * @param listener     notified of the outcome of every email.
+     * @param target       what the render stage renders the emails for.
+     * @throws IOException if an I/O error occurs with the sequential client, or reading the suppression list.
+     * @throws InterruptedException if the thread is interrupted while waiting for the emails to be sent.
+     */
+    private static void sendEmails(Iterator<Email> emails, ConfigLoader configLoader, SendListener listener,
+                                   RenderTarget target) throws IOException, InterruptedException {
+        RetryPolicy retryPolicy = new RetryPolicy(configLoader.getSmtpMaxRetries(), configLoader.getSmtpRetryDelay());
+        TokenBucket rateLimiter = new TokenBucket(configLoader.getSmtpRateLimit());
+        SuppressionList suppression = configLoader.getSuppressionList();
+        if (suppression != null) {
+            System.out.println("[Suppression] " + suppression.size() + " addresses will not receive any email.");
+        }
+        StartTls startTls = configLoader.isSmtpStartTls() ? StartTls.withDefaultContext() : null;
+        // As many emails waiting for a connection as in a pipeline queue, so a slow relay throttles the pipeline
+        int maxInFlight = configLoader.getPipelineQueueSize();
 
-            GroupGenerator groupGenerator = new GroupGenerator(
-                    configLoader.getVictims(),
-                    configLoader.getNbGroups()
+        if (configLoader.getOutputFormat() != ConfigLoader.OUTPUT_FORMATS.smtp) {
+            FileTransport fileTransport = new FileTransport(
+                    Path.of(configLoader.getOutputPath()),
+                    configLoader.getOutputFormat(),
+                    configLoader.getEncoding()
             );
+            target.set(fileTransport::getCapabilities);
 
+            sendEmails(emails, fileTransport, configLoader.getOutputWriters(), listener, retryPolicy, suppression);
+        } else if (configLoader.getSmtpEngine() == ConfigLoader.SMTP_ENGINES.nio) {
+            NioSmtpClient nioSmtpClient = new NioSmtpClient(
+                    configLoader.getSmtpServerAddress(),
+                    configLoader.getSmtpServerPort(),
+                    configLoader.getEncoding(),
+                    configLoader.getSmtpPoolSize(),
+                    configLoader.getNioEventLoops(),
+                    configLoader.getSmtpReplyTimeout()
+            );
+
+            AdaptiveLimiter limiter = new AdaptiveLimiter(configLoader.getSmtpPoolSize());
+
+            nioSmtpClient.connect();
+            target.set(nioSmtpClient::getCapabilities);
+            try {
+                sendEmails(emails, email -> send(email, nioSmtpClient, limiter, rateLimiter), maxInFlight, listener,
+                        retryPolicy, suppression);
+            } finally {
+                nioSmtpClient.quit();
+            }
+        } else if (configLoader.getSmtpRelays().size() > 1) {
+            ShardedSmtpClientPool shardedSmtpClientPool = new ShardedSmtpClientPool(
+                    configLoader.getSmtpRelays(),
+                    configLoader.getEncoding(),
+                    configLoader.getSmtpPoolSize(),
+                    configLoader.getSmtpIdleTimeout(),
+                    configLoader.getSmtpReplyTimeout(),
+                    configLoader.getSmtpRateLimit(),
+                    startTls
+            );
+
+            // The relays may differ, each session renders the emails for its own
+            try {
+                sendEmails(emails, shardedSmtpClientPool::send, maxInFlight, listener, retryPolicy, suppression);
+            } finally {
+                shardedSmtpClientPool.close();
+            }
+        } else if (configLoader.getSmtpPoolSize() == 1) {
             SmtpClient smtpClient = new SmtpClient(
                     configLoader.getSmtpServerAddress(),
                     configLoader.getSmtpServerPort(),
-                    configLoader.getEncoding()
+                    configLoader.getEncoding(),
+                    startTls,
+                    configLoader.getSmtpReplyTimeout()
             );
 
             smtpClient.connect();
-            sendEmails(
-                    generateEmails(
-                            groupGenerator.generateGroups(),
-                            configLoader.getMessages()
-                    ),
-                    smtpClient
+            target.set(smtpClient::getCapabilities);
+            try {
+                sendEmails(emails, smtpClient, listener, retryPolicy, rateLimiter, suppression);
+            } finally {
+                // Sends QUIT, or drops the connection if the session can no longer take it
+                smtpClient.close();
+            }
+        } else {
+            SmtpClientPool smtpClientPool = new SmtpClientPool(
+                    configLoader.getSmtpServerAddress(),
+                    configLoader.getSmtpServerPort(),
+                    configLoader.getEncoding(),
+                    configLoader.getSmtpPoolSize(),
+                    configLoader.getSmtpIdleTimeout(),
+                    configLoader.getSmtpReplyTimeout(),
+                    configLoader.getSmtpRateLimit(),
+                    startTls
             );
-            smtpClient.quit();
-        } catch (Exception e) {
-            System.err.println(e.getMessage());
+            target.set(smtpClientPool::getCapabilities);
+
+            try {
+                sendEmails(emails, smtpClientPool::send, maxInFlight, listener, retryPolicy, suppression);
+            } finally {
+                smtpClientPool.close();
+            }
         }
     }
 
     /**
-     * Generates a list of Email objects based on the provided groups and messages.
-     * Each group has one sender and multiple receivers, and a message is assigned
-     * to each email.
+     * Sends the emails using the specified SMTP client. This method assumes
+     * the client is already connected to the SMTP server. An email temporarily
+     * refused is sent again after a delay, the session being reset (or opened
+     * again if the server closed it or did not answer in time) before the next
+     * attempt. An email refused
+     * by the server, entirely or for some of its recipients, is reported and
+     * does not stop the others, as with a pool of connections.
      *
-     * @param groups   the list of groups generated by the GroupGenerator.
-     * @param messages the list of messages loaded from the configuration.
-     * @return a list of Email objects ready to be sent.
+     * @param emails      the emails to send.
+     * @param smtpClient  the SMTP client used to send the emails.
+     * @param listener    notified of the outcome of every email.
+     * @param retryPolicy when to send again an email temporarily refused.
+     * @param rateLimiter the maximum number of emails sent per second.
+     * @param suppression the addresses that must not receive any email, null if none.
+     * @throws IOException if the connection to the server fails, which stops the sending.
+     * @throws InterruptedException if the thread is interrupted while waiting to send an email.
      */
-    private static List<Email> generateEmails(List<Group> groups, List<Message> messages ) {
-        List<Email> emails = new ArrayList<>();
-        int messageIndex = 0;
+    private static void sendEmails(Iterator<Email> emails, SmtpClient smtpClient, SendListener listener,
+                                   RetryPolicy retryPolicy, TokenBucket rateLimiter, SuppressionList suppression)
+            throws IOException, InterruptedException {
+        AtomicBoolean failed = new AtomicBoolean();
+        EmailSender sender = email -> {
+            rateLimiter.acquire();
+            try {
+                if (failed.get()) {
+                    recover(smtpClient);
+                    failed.set(false);
+                }
+                smtpClient.send(email);
+            } catch (IOException e) {
+                failed.set(true);
+                throw e;
+            }
+        };
 
-        for (Group group : groups) {
-            emails.add(new Email(group.getSender(), group.getReceivers(), messages.get(messageIndex)));
-            messageIndex = (messageIndex + 1) % messages.size();
+        while (emails.hasNext()) {
+            Throwable error = deliver(emails.next(), sender, listener, retryPolicy, suppression);
+            if (error instanceof SmtpDeliveryException) {
+                EventLog.get().failure(error);
+            } else if (error instanceof IOException e) {
+                throw e;
+            } else if (error instanceof InterruptedException e) {
+                throw e;
+            }
         }
+    }
 
-        return emails;
+    /**
+     * Sends the emails through a transport that needs no connection pool,
+     * such as the FileTransport writing them to the disk, with at most the
+     * given number of emails sent at the same time. With a single writer, the
+     * emails are sent in order from the calling thread and the first failure
+     * stops the sending.
+     *
+     * @param emails      the emails to send.
+     * @param transport   the thread-safe transport, opened before the first email and closed after the last one.
+     * @param writers     the number of emails sent at the same time.
+     * @param listener    notified of the outcome of every email.
+     * @param retryPolicy when to send again an email temporarily refused.
+     * @param suppression the addresses that must not receive any email, null if none.
+     * @throws IOException if the transport cannot be opened or closed, or an email cannot be sent by a single writer.
+     * @throws InterruptedException if the thread is interrupted while waiting for the emails to be sent.
+     */
+    private static void sendEmails(Iterator<Email> emails, MailTransport transport, int writers,
+                                   SendListener listener, RetryPolicy retryPolicy, SuppressionList suppression)
+            throws IOException, InterruptedException {
+        transport.connect();
+        try {
+            if (writers == 1) {
+                while (emails.hasNext()) {
+                    if (deliver(emails.next(), transport::send, listener, retryPolicy, suppression)
+                            instanceof IOException e) {
+                        throw e;
+                    }
+                }
+            } else {
+                Semaphore slots = new Semaphore(writers);
+                sendEmails(emails, email -> {
+                    slots.acquire();
+                    try {
+                        transport.send(email);
+                    } finally {
+                        slots.release();
+                    }
+                }, writers, listener, retryPolicy, suppression);
+            }
+        } finally {
+            transport.quit();
+        }
     }
 
     /**
-     * Sends a list of emails using the specified SMTP client. This method assumes
-     * the client is already connected to the SMTP server.
+     * Brings a session back to a state where a new mail transaction can start,
+     * after a failed one: resets it after a refusal of the server, or connects
+     * again if the server closed it or the transaction failed without a
+     * complete reply, whose late reply would be read as the answer to RSET.
      *
-     * @param emails     the list of emails to send.
-     * @param smtpClient the SMTP client used to send the emails.
+     * @param smtpClient the session to recover.
+     * @throws IOException if the session cannot be opened again.
      */
-    private static void sendEmails(List<Email> emails, SmtpClient smtpClient) throws IOException{
-        for (Email email : emails) {
-            smtpClient.send(email);
+    private static void recover(SmtpClient smtpClient) throws IOException {
+        if (!smtpClient.isInStep()) {
+            smtpClient.close();
+            smtpClient.connect();
+            return;
+        }
+        try {
+            smtpClient.reset();
+        } catch (IOException e) {
+            smtpClient.close();
+            smtpClient.connect();
+        }
+    }
+
+    /**
+     * Sends an email over the sessions of the non-blocking client, once the
+     * adaptive limit and the rate limit let it through. The event loops
+     * interleave the transactions of all sessions while the calling virtual
+     * thread waits for the outcome.
+     *
+     * @param email         the email to send.
+     * @param nioSmtpClient the connected non-blocking SMTP client.
+     * @param limiter       the adaptive limit on the emails sent at the same time.
+     * @param rateLimiter   the maximum number of emails sent per second.
+     * @throws IOException if an I/O error occurs or the server rejects the email.
+     * @throws InterruptedException if the thread is interrupted while waiting for a limit.
+     */
+    private static void send(Email email, NioSmtpClient nioSmtpClient, AdaptiveLimiter limiter,
+                             TokenBucket rateLimiter) throws IOException, InterruptedException {
+        rateLimiter.acquire();
+        long start = limiter.acquire();
+        Throwable error = null;
+        try {
+            nioSmtpClient.send(email);
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            limiter.release(start, error);
+        }
+    }
+
+    /**
+     * Sends the emails in parallel over a pool of SMTP connections, or over the
+     * sessions of the non-blocking client. Each email is sent from its own
+     * virtual thread, the pool bounding the number of connections actually
+     * open. At most maxInFlight emails are waiting for a connection at the
+     * same time, the next email being taken from the iterator only when one
+     * of them is done. A failed email does not stop the others, each failure
+     * is reported as it happens, and an email temporarily refused waits on its
+     * virtual thread before being sent again, without holding a connection.
+     *
+     * @param emails      the emails to send.
+     * @param sender      the pool of SMTP connections used to send the emails.
+     * @param maxInFlight the maximum number of emails being sent at the same time.
+     * @param listener    notified of the outcome of every email.
+     * @param retryPolicy when to send again an email temporarily refused.
+     * @param suppression the addresses that must not receive any email, null if none.
+     * @throws InterruptedException if the thread is interrupted while waiting for the emails to be sent.
+     */
+    private static void sendEmails(Iterator<Email> emails, EmailSender sender, int maxInFlight,
+                                   SendListener listener, RetryPolicy retryPolicy, SuppressionList suppression)
+            throws InterruptedException {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (emails.hasNext()) {
+                Email email = emails.next();
+                inFlight.acquire();
+                executor.execute(() -> {
+                    try {
+                        Throwable error = deliver(email, sender, listener, retryPolicy, suppression);
+                        if (error != null) {
+                            EventLog.get().failure(error);
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Sends an email, sending it again to the recipients temporarily refused
+     * until the retry policy gives up, and notifies the listener of the final
+     * outcome. Recipients accepted or refused for good by an attempt are not
+     * part of the next one. The recipients on the suppression list are left
+     * out just before the first attempt, an email left without recipients
+     * being considered sent.
+     *
+     * @param email       the email to send.
+     * @param sender      the sender used for every attempt.
+     * @param listener    notified of the outcome of the email.
+     * @param retryPolicy when to send again an email temporarily refused.
+     * @param suppression the addresses that must not receive any email, null if none.
+     * @return the error of the last attempt, null if the email was sent to every recipient.
+     */
+    private static Throwable deliver(Email email, EmailSender sender, SendListener listener, RetryPolicy retryPolicy,
+                                     SuppressionList suppression) {
+        List<String> accepted = new ArrayList<>();
+        List<String> rejected = new ArrayList<>();
+        Email attempt = email;
+        Throwable error = null;
+
+        if (suppression != null) {
+            List<String> receivers = suppression.retain(email.getReceivers());
+            if (receivers != email.getReceivers()) {
+                SmtpMetrics.get().recipientsSuppressed(email.getReceivers().size() - receivers.size());
+                if (receivers.isEmpty()) {
+                    listener.completed(email, null);
+                    return null;
+                }
+                attempt = new Email(email.getSender(), receivers, email.getMessage());
+            }
+        }
+
+        for (int retries = 0; ; retries++) {
+            try {
+                sender.send(attempt);
+                accepted.addAll(attempt.getReceivers());
+                error = null;
+                break;
+            } catch (SmtpDeliveryException e) {
+                error = e;
+                accepted.addAll(e.getAccepted());
+                rejected.addAll(e.isPermanent() && e.getAccepted().isEmpty() && e.getRejected().isEmpty()
+                        ? attempt.getReceivers()
+                        : e.getRejected());
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                // The application is stopping: no other attempt, but the caller must still see the interrupt
+                Thread.currentThread().interrupt();
+                error = e;
+                break;
+            }
+
+            Set<String> settled = new HashSet<>(accepted);
+            settled.addAll(rejected);
+            List<String> pending = new ArrayList<>(attempt.getReceivers());
+            pending.removeIf(settled::contains);
+            if (pending.isEmpty() || !retryPolicy.shouldRetry(error, retries)) {
+                break;
+            }
+
+            long delay = retryPolicy.delayMillis(error, retries);
+            EventLog.get().retry(error, retries + 1, retryPolicy.getMaxRetries(), delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = e;
+                break;
+            }
+            attempt = new Email(email.getSender(), pending, email.getMessage());
+        }
+
+        // Report what every attempt delivered, not only the last one
+        if (error instanceof IOException e && (!accepted.isEmpty() || !rejected.isEmpty())) {
+            int code = e instanceof SmtpDeliveryException refusal ? refusal.getCode() : 0;
+            error = new SmtpDeliveryException(code, e.getMessage(), accepted, rejected);
         }
+        listener.completed(email, error);
+        return error;
     }
 }
@@ -0,0 +1,147 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+/**
+ * Hand-written, single-pass validator for email addresses. It accepts exactly
+ * the addresses matched by Email.REGEX ("local@domain.tld", where the local part
+ * uses letters, digits and "._%+-", the domain letters, digits, "." and "-", and
+ * the top-level domain at least two letters) without compiling a Pattern or
+ * allocating. It works on any CharSequence as well as on a slice of bytes, so
+ * that addresses can be validated straight from a file buffer.
+ */
+final class EmailValidator {
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Utility class, not meant to be instantiated.
+     */
+    private EmailValidator() {
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Validates an email address given as characters.
+     *
+     * @param email the email address to validate.
+     * @return true if the email address is valid, false otherwise.
+     */
+    static boolean isValid(CharSequence email) {
+        if (email == null) {
+            return false;
+        }
+
+        int length = email.length();
+        int at = -1;
+        int lastDot = -1;
+
+        for (int i = 0; i < length; i++) {
+            char c = email.charAt(i);
+            if (at < 0) {
+                if (c == '@') {
+                    at = i;
+                } else if (!isLocalChar(c)) {
+                    return false;
+                }
+            } else if (c == '.') {
+                lastDot = i;
+            } else if (!isDomainChar(c)) {
+                return false;
+            }
+        }
+
+        return isValidShape(at, lastDot, length) && isTopLevelDomain(email, lastDot + 1, length);
+    }
+
+    /**
+     * Validates an email address given as a slice of ASCII-compatible bytes.
+     *
+     * @param bytes  the buffer containing the email address.
+     * @param offset the index of the first byte of the address.
+     * @param length the number of bytes of the address.
+     * @return true if the email address is valid, false otherwise.
+     */
+    static boolean isValid(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int at = -1;
+        int lastDot = -1;
+
+        for (int i = offset; i < end; i++) {
+            char c = (char) (bytes[i] & 0xFF);
+            if (at < 0) {
+                if (c == '@') {
+                    at = i - offset;
+                } else if (!isLocalChar(c)) {
+                    return false;
+                }
+            } else if (c == '.') {
+                lastDot = i - offset;
+            } else if (!isDomainChar(c)) {
+                return false;
+            }
+        }
+
+        if (!isValidShape(at, lastDot, length)) {
+            return false;
+        }
+        for (int i = offset + lastDot + 1; i < end; i++) {
+            if (!isLetter((char) (bytes[i] & 0xFF))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the position of the "@" and of the last "." of an address whose
+     * characters are all allowed: non-empty local part, non-empty domain before
+     * the last dot and at least two characters after it.
+     *
+     * @param at      the index of the "@", -1 if there is none.
+     * @param lastDot the index of the last "." after the "@", -1 if there is none.
+     * @param length  the length of the address.
+     * @return true if the address has the expected shape.
+     */
+    private static boolean isValidShape(int at, int lastDot, int length) {
+        return at > 0 && lastDot > at + 1 && length - lastDot - 1 >= 2;
+    }
+
+    /**
+     * Checks that the characters of the top-level domain are all letters.
+     *
+     * @param email the email address.
+     * @param start the index of the first character of the top-level domain.
+     * @param end   the index after the last character of the top-level domain.
+     * @return true if the top-level domain only contains letters.
+     */
+    private static boolean isTopLevelDomain(CharSequence email, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isLetter(email.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLocalChar(char c) {
+        return isLetter(c) || isDigit(c) || c == '.' || c == '_' || c == '%' || c == '+' || c == '-';
+    }
+
+    private static boolean isDomainChar(char c) {
+        return isLetter(c) || isDigit(c) || c == '.' || c == '-';
+    }
+}
@@ -0,0 +1,407 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Process-wide log of the send path. Logging an event only stores its kind
+ * and arguments in a slot of a bounded lock-free ring buffer; a background
+ * thread drains the ring in batches, formats the lines and prints each batch
+ * with a single write, so the senders never build a String nor wait on the
+ * lock of System.out. Events below the configured level are discarded before
+ * touching the ring, info and debug events can be sampled, and an event
+ * logged while the ring is full is dropped and counted rather than slowing the
+ * sender down. Warnings and errors go to System.err, the other events to
+ * System.out.
+ */
+public class EventLog {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    /**
+     * The events of the send path, with the level they are logged at.
+     */
+    enum EVENTS {
+        CONNECT(ConfigLoader.LOG_LEVELS.info),
+        SEND(ConfigLoader.LOG_LEVELS.info),
+        QUIT(ConfigLoader.LOG_LEVELS.info),
+        RETRY(ConfigLoader.LOG_LEVELS.warn),
+        FAILURE(ConfigLoader.LOG_LEVELS.error),
+        RELAY_DOWN(ConfigLoader.LOG_LEVELS.warn),
+        RELAY_UP(ConfigLoader.LOG_LEVELS.info),
+        EVENT_LOOP_STOPPED(ConfigLoader.LOG_LEVELS.error);
+
+        private final ConfigLoader.LOG_LEVELS level;
+
+        /**
+         * Constructs an event logged at the given level.
+         *
+         * @param level the level of the event.
+         */
+        EVENTS(ConfigLoader.LOG_LEVELS level) {
+            this.level = level;
+        }
+    }
+
+    /**
+     * A slot of the ring, reused by every event written to it. Its fields are
+     * published by the sequence of the slot.
+     */
+    private static final class Slot {
+        private EVENTS event;
+        private Object first;
+        private Object second;
+        private long a;
+        private long b;
+    }
+
+    private static final EventLog INSTANCE = new EventLog();
+    private static final int CAPACITY = 1 << 13;
+    private static final int MASK = CAPACITY - 1;
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final Slot[] slots = new Slot[CAPACITY];
+    // Vyukov's bounded queue: a slot is free for position p when its sequence is p, full when it is p + 1
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private volatile ConfigLoader.LOG_LEVELS level = ConfigLoader.LOG_LEVELS.info;
+    private volatile int sampling = 1;
+    private volatile boolean closed;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final StringBuilder out = new StringBuilder();
+    private final StringBuilder err = new StringBuilder();
+    private final Thread writer;
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Creates every slot of the ring and starts the writer thread.
+     */
+    private EventLog() {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        writer = Thread.ofPlatform().name("event-log").daemon().start(this::drainLoop);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Gets the log shared by every sender of the application.
+     *
+     * @return the log.
+     */
+    public static EventLog get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets which events are logged.
+     *
+     * @param level    the lowest level logged, summary to log no event at all.
+     * @param sampling one info or debug event out of sampling is logged, 1 to log them all.
+     * @throws IllegalArgumentException if the sampling is less than 1.
+     */
+    public void configure(ConfigLoader.LOG_LEVELS level, int sampling) throws IllegalArgumentException {
+        if (sampling < 1) {
+            throw new IllegalArgumentException("Log sampling must be at least 1.");
+        }
+        this.level = level;
+        this.sampling = sampling;
+    }
+
+    /**
+     * Tells whether an event is logged at the configured level.
+     *
+     * @param event the event.
+     * @return true if its level is at least the configured one.
+     */
+    boolean isEnabled(EVENTS event) {
+        return event.level.compareTo(level) >= 0;
+    }
+
+    /**
+     * Logs the opening of a connection.
+     *
+     * @param host     the address of the SMTP server.
+     * @param port     the port of the SMTP server.
+     * @param sessions the number of sessions opened, 1 for a single connection.
+     */
+    void connect(String host, int port, int sessions) {
+        log(EVENTS.CONNECT, host, null, port, sessions);
+    }
+
+    /**
+     * Logs an email sent; the email itself is only printed at the debug level.
+     *
+     * @param email the email sent.
+     * @param host  the address of the SMTP server.
+     * @param port  the port of the SMTP server.
+     */
+    void send(Email email, String host, int port) {
+        log(EVENTS.SEND, email, host, port, 0);
+    }
+
+    /**
+     * Logs the closing of a connection.
+     *
+     * @param host     the address of the SMTP server.
+     * @param port     the port of the SMTP server.
+     * @param sessions the number of sessions closed, 1 for a single connection.
+     */
+    void quit(String host, int port, int sessions) {
+        log(EVENTS.QUIT, host, null, port, sessions);
+    }
+
+    /**
+     * Logs an email temporarily refused, which is sent again after a delay.
+     *
+     * @param error      the error of the attempt.
+     * @param retry      the number of the next attempt, from 1.
+     * @param maxRetries the maximum number of retries.
+     * @param delay      the delay before the next attempt, in milliseconds.
+     */
+    void retry(Throwable error, int retry, int maxRetries, long delay) {
+        log(EVENTS.RETRY, error, null, (long) retry << 32 | maxRetries, delay);
+    }
+
+    /**
+     * Logs an email that could not be sent.
+     *
+     * @param error the error of its last attempt.
+     */
+    void failure(Throwable error) {
+        log(EVENTS.FAILURE, error, null, 0, 0);
+    }
+
+    /**
+     * Logs a relay marked down.
+     *
+     * @param relay the unreachable relay.
+     * @param error the error of the connection.
+     */
+    void relayDown(SmtpRelay relay, Throwable error) {
+        log(EVENTS.RELAY_DOWN, relay, error, 0, 0);
+    }
+
+    /**
+     * Logs a relay marked down that delivered an email again.
+     *
+     * @param relay the relay back up.
+     */
+    void relayUp(SmtpRelay relay) {
+        log(EVENTS.RELAY_UP, relay, null, 0, 0);
+    }
+
+    /**
+     * Logs the unexpected end of an event loop of the non-blocking engine.
+     *
+     * @param error the error that stopped it.
+     */
+    void eventLoopStopped(Throwable error) {
+        log(EVENTS.EVENT_LOOP_STOPPED, error, null, 0, 0);
+    }
+
+    /**
+     * Stores an event in the next slot of the ring, unless its level is not
+     * logged, it is sampled out, the ring is full or the log is closed, in
+     * which case no writer would ever drain it. Lock-free: a producer
+     * claims a position with a compare-and-set, fills the slot, then publishes
+     * it by moving its sequence forward.
+     *
+     * @param event  the event.
+     * @param first  the first argument of the event.
+     * @param second the second argument of the event.
+     * @param a      the first numeric argument of the event.
+     * @param b      the second numeric argument of the event.
+     */
+    private void log(EVENTS event, Object first, Object second, long a, long b) {
+        if (!isEnabled(event)) {
+            return;
+        }
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        int rate = sampling;
+        if (rate > 1 && event.level.compareTo(ConfigLoader.LOG_LEVELS.info) <= 0
+                && ThreadLocalRandom.current().nextInt(rate) != 0) {
+            sampledOut.increment();
+            return;
+        }
+
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.get((int) position & MASK);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                // Not yet drained since the previous turn of the ring
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        Slot slot = slots[(int) position & MASK];
+        slot.event = event;
+        slot.first = first;
+        slot.second = second;
+        slot.a = a;
+        slot.b = b;
+        sequences.set((int) position & MASK, position + 1);
+    }
+
+    /**
+     * Body of the writer thread: drains the ring in batches, and sleeps a
+     * millisecond when it is empty, until the log is closed.
+     */
+    private void drainLoop() {
+        while (true) {
+            int drained;
+            synchronized (this) {
+                drained = drain();
+            }
+            if (drained == 0) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Formats up to BATCH_SIZE events from the ring and prints them, with one
+     * write per output stream. The caller must hold the lock of the log.
+     *
+     * @return the number of events drained.
+     */
+    private int drain() {
+        int drained = 0;
+        while (drained < BATCH_SIZE) {
+            int index = (int) head & MASK;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Slot slot = slots[index];
+            format(slot, slot.event.level.compareTo(ConfigLoader.LOG_LEVELS.warn) >= 0 ? err : out);
+            slot.first = null;
+            slot.second = null;
+            sequences.set(index, head + CAPACITY);
+            head++;
+            drained++;
+        }
+
+        print(System.out, out);
+        print(System.err, err);
+        written.add(drained);
+        return drained;
+    }
+
+    /**
+     * Formats the line of an event.
+     *
+     * @param slot  the slot holding the event.
+     * @param lines where to append the line.
+     */
+    private void format(Slot slot, StringBuilder lines) {
+        switch (slot.event) {
+            case CONNECT -> {
+                lines.append("Connecting ");
+                if (slot.b > 1) {
+                    lines.append(slot.b).append(" sessions ");
+                }
+                lines.append("to ").append(slot.first).append(':').append(slot.a);
+            }
+            case SEND -> {
+                lines.append("Sending email... (").append(slot.second).append(':').append(slot.a).append(')');
+                if (level == ConfigLoader.LOG_LEVELS.debug) {
+                    lines.append(System.lineSeparator()).append(slot.first);
+                }
+            }
+            case QUIT -> lines.append(slot.b > 1 ? "Closing connections..." : "Closing connection...");
+            case RETRY -> lines.append(((Throwable) slot.first).getMessage())
+                    .append(" (retry ").append(slot.a >>> 32).append('/').append(slot.a & 0xFFFFFFFFL)
+                    .append(" in ").append(slot.b).append(" ms)");
+            case FAILURE -> lines.append(((Throwable) slot.first).getMessage());
+            case RELAY_DOWN -> lines.append("[Relay] ").append(slot.first).append(" is down: ")
+                    .append(((Throwable) slot.second).getMessage());
+            case RELAY_UP -> lines.append("[Relay] ").append(slot.first).append(" is up again");
+            case EVENT_LOOP_STOPPED -> lines.append("[NIO] Event loop stopped: ")
+                    .append(((Throwable) slot.first).getMessage());
+        }
+        lines.append(System.lineSeparator());
+    }
+
+    /**
+     * Prints formatted lines with a single write, then clears them.
+     *
+     * @param stream the stream to print to.
+     * @param lines  the formatted lines.
+     */
+    private static void print(PrintStream stream, StringBuilder lines) {
+        if (!lines.isEmpty()) {
+            stream.print(lines);
+            stream.flush();
+            lines.setLength(0);
+        }
+    }
+
+    /**
+     * Writes every event logged so far and stops the writer thread. The
+     * events logged afterwards are dropped. Does nothing if already closed.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            while (drain() > 0) {
+                // Events published while the writer was stopping
+            }
+        }
+    }
+
+    /**
+     * Prints how many events were written, sampled out and dropped, if some
+     * were not written.
+     *
+     * @param out the stream to print to.
+     */
+    public void printSummary(PrintStream out) {
+        if (sampledOut.sum() > 0 || dropped.sum() > 0) {
+            out.printf("[Log] %d events written, %d sampled out, %d dropped (log buffer full or closed)%n",
+                    written.sum(), sampledOut.sum(), dropped.sum());
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport writing the emails to the disk instead of sending them, to check a
+ * whole campaign or measure its generation without any SMTP server. Each email
+ * is written as the exact message an SmtpClient would send: the same headers
+ * and the same rendered body, with CRLF line endings, without dot-stuffing.
+ * The output is either a single mbox file (mboxrd flavour: a "From " line
+ * before each message, body lines matching ">*From " quoted with one more '>')
+ * or a Maildir tree, one file per message, written in tmp then moved to new.
+ * Everything is written with gathering writes of the shared payload buffers.
+ * The mbox messages are buffered and written in batches of BATCH_SIZE bytes,
+ * by whichever thread fills the batch. The transport is thread-safe, so the
+ * emails can be rendered and written by parallel writers.
+ */
+class FileTransport implements MailTransport {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final int BATCH_SIZE = 256 * 1024;
+    private static final int MAX_BATCH_BUFFERS = 1024;
+    // The exact message an SmtpClient would send: 8bit body, without dot-stuffing
+    static final SmtpCapabilities CAPABILITIES = new SmtpCapabilities(false, true, true, false, 0, false);
+    private static final byte[] FROM = "From ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final DateTimeFormatter ASCTIME =
+            DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.ROOT);
+
+    private final Path path;
+    private final ConfigLoader.OUTPUT_FORMATS format;
+    private final Charset encoding;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private FileChannel mbox;
+    private String date;
+    private String uniqueSuffix;
+    private final List<ByteBuffer> batch = new ArrayList<>();
+    private long batchSize;
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs a transport writing the emails to the given mbox file or
+     * Maildir folder.
+     *
+     * @param path     the mbox file, appended to if it exists, or the root of the Maildir tree.
+     * @param format   the output format, mbox or maildir.
+     * @param encoding the character encoding of the messages.
+     * @throws IllegalArgumentException if the format does not write to the disk.
+     */
+    public FileTransport(Path path, ConfigLoader.OUTPUT_FORMATS format, Charset encoding)
+            throws IllegalArgumentException {
+        if (format == ConfigLoader.OUTPUT_FORMATS.smtp) {
+            throw new IllegalArgumentException("The file transport writes mbox or maildir, not " + format + ".");
+        }
+        this.path = path;
+        this.format = format;
+        this.encoding = encoding;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Opens the mbox file, or creates the tmp, new and cur folders of the
+     * Maildir tree.
+     *
+     * @throws IOException if the output cannot be created.
+     */
+    @Override
+    public void connect() throws IOException {
+        if (format == ConfigLoader.OUTPUT_FORMATS.mbox) {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            mbox = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            // Every message of the run is dated from its start
+            date = ZonedDateTime.now().format(ASCTIME);
+        } else {
+            Files.createDirectories(path.resolve("tmp"));
+            Files.createDirectories(path.resolve("new"));
+            Files.createDirectories(path.resolve("cur"));
+            uniqueSuffix = "P" + ProcessHandle.current().pid() + "Q%d." + hostName();
+        }
+    }
+
+    /**
+     * Gets the capabilities the emails are written for: an 8bit body, without
+     * dot-stuffing.
+     *
+     * @return the capabilities of the transport.
+     */
+    @Override
+    public SmtpCapabilities getCapabilities() {
+        return CAPABILITIES;
+    }
+
+    /**
+     * Writes an email as the message that would have been sent to an SMTP
+     * server, and counts it in SmtpMetrics as if it had been sent. The email
+     * is rendered, unless it was rendered for this transport before.
+     *
+     * @param email the email to write.
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    @Override
+    public void send(Email email) throws IOException {
+        Email.Rendering rendering = email.render(encoding, CAPABILITIES);
+        byte[] headers = rendering.headers();
+        ByteBuffer[] payload = rendering.payload();
+        long size = rendering.size();
+
+        if (format == ConfigLoader.OUTPUT_FORMATS.mbox) {
+            size = append(email, headers, payload);
+        } else {
+            writeMaildir(headers, payload, size);
+        }
+
+        SmtpMetrics.get().bytesSent(size);
+        SmtpMetrics.get().messageSent(email.getReceivers().size());
+    }
+
+    /**
+     * Appends a message to the current mbox batch, after its "From " line and
+     * followed by a blank line, and writes the batch if it is full.
+     *
+     * @param email   the email, whose sender goes on the "From " line.
+     * @param headers the encoded headers, followed by the blank line.
+     * @param payload the rendered body.
+     * @return the number of bytes added to the mbox file.
+     * @throws IOException if an I/O error occurs while writing the batch.
+     */
+    private long append(Email email, byte[] headers, ByteBuffer[] payload) throws IOException {
+        if (needsQuoting(payload)) {
+            payload = new ByteBuffer[]{ ByteBuffer.wrap(quote(payload)) };
+        }
+        ByteBuffer separator = ByteBuffer.wrap(("From " + email.getSender() + " " + date + "\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        long size = separator.remaining() + headers.length + SmtpClient.remaining(payload) + CRLF.length;
+
+        synchronized (this) {
+            batch.add(separator);
+            batch.add(ByteBuffer.wrap(headers));
+            batch.addAll(List.of(payload));
+            batch.add(ByteBuffer.wrap(CRLF));
+            batchSize += size;
+            if (batchSize >= BATCH_SIZE || batch.size() >= MAX_BATCH_BUFFERS) {
+                flush();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes the current mbox batch with gathering writes. The caller must
+     * hold the lock of the transport.
+     *
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    private void flush() throws IOException {
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+        writeFully(mbox, buffers, batchSize);
+        batch.clear();
+        batchSize = 0;
+    }
+
+    /**
+     * Writes a message to its own Maildir file, in tmp first, then moves it
+     * to new so that a reader never sees a partial message.
+     *
+     * @param headers the encoded headers, followed by the blank line.
+     * @param payload the rendered body.
+     * @param size    the size of the message in bytes.
+     * @throws IOException if an I/O error occurs while writing or moving the file.
+     */
+    private void writeMaildir(byte[] headers, ByteBuffer[] payload, long size) throws IOException {
+        // time.M<micros>P<pid>Q<sequence>.host, unique within the host
+        Instant now = Instant.now();
+        String name = now.getEpochSecond() + ".M" + now.getNano() / 1000
+                + uniqueSuffix.formatted(sequence.incrementAndGet());
+        Path tmp = path.resolve("tmp").resolve(name);
+
+        ByteBuffer[] buffers = new ByteBuffer[payload.length + 1];
+        buffers[0] = ByteBuffer.wrap(headers);
+        System.arraycopy(payload, 0, buffers, 1, payload.length);
+        try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            writeFully(file, buffers, size);
+        }
+        Files.move(tmp, path.resolve("new").resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes buffers until all their bytes are written, a gathering write
+     * possibly writing only some of them.
+     *
+     * @param channel the file to write to.
+     * @param buffers the buffers to write in order.
+     * @param size    the total number of bytes to write.
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers, long size) throws IOException {
+        int first = 0;
+        while (size > 0) {
+            size -= channel.write(buffers, first, buffers.length - first);
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+
+    /**
+     * Tells whether a body has a line matching ">*From ", which a mbox reader
+     * would take for the start of the next message, or for a line quoted by
+     * the writer. The payload buffers are scanned in place.
+     *
+     * @param payload the rendered body, starting at the beginning of a line.
+     * @return true if a line must be quoted.
+     */
+    static boolean needsQuoting(ByteBuffer[] payload) {
+        // Number of bytes of "From " matched after the '>' of the current line, -1 if it cannot match
+        int matched = 0;
+        for (ByteBuffer part : payload) {
+            for (int i = part.position(); i < part.limit(); i++) {
+                byte b = part.get(i);
+                if (b == '\n') {
+                    matched = 0;
+                } else if (matched < 0 || (matched == 0 && b == '>')) {
+                    continue;
+                } else if (b == FROM[matched]) {
+                    if (++matched == FROM.length) {
+                        return true;
+                    }
+                } else {
+                    matched = -1;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies a body, adding a '>' in front of each line matching ">*From ".
+     *
+     * @param payload the rendered body, starting at the beginning of a line.
+     * @return the quoted body.
+     */
+    static byte[] quote(ByteBuffer[] payload) {
+        byte[] bytes = new byte[(int) SmtpClient.remaining(payload)];
+        int length = 0;
+        for (ByteBuffer part : payload) {
+            part.get(part.position(), bytes, length, part.remaining());
+            length += part.remaining();
+        }
+
+        ByteArrayOutputStream quoted = new ByteArrayOutputStream(bytes.length + 16);
+        for (int start = 0; start < bytes.length; ) {
+            int end = start;
+            while (end < bytes.length && bytes[end] != '\n') {
+                end++;
+            }
+            end = Math.min(end + 1, bytes.length);
+            int from = start;
+            while (from < end && bytes[from] == '>') {
+                from++;
+            }
+            if (end - from >= FROM.length
+                    && Arrays.equals(bytes, from, from + FROM.length, FROM, 0, FROM.length)) {
+                quoted.write('>');
+            }
+            quoted.write(bytes, start, end - start);
+            start = end;
+        }
+        return quoted.toByteArray();
+    }
+
+    /**
+     * Gets the name of the host, for the unique names of the Maildir files,
+     * without the characters a Maildir name reserves.
+     *
+     * @return the host name.
+     */
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName().replace("/", "\\057").replace(":", "\\072");
+        } catch (IOException e) {
+            return "localhost";
+        }
+    }
+
+    /**
+     * Writes the last mbox batch and closes the file. A Maildir tree has
+     * nothing left to write.
+     *
+     * @throws IOException if an I/O error occurs while writing or closing.
+     */
+    @Override
+    public void quit() throws IOException {
+        if (mbox != null) {
+            synchronized (this) {
+                try {
+                    flush();
+                } finally {
+                    mbox.close();
+                    mbox = null;
+                }
+            }
+        }
+    }
+}
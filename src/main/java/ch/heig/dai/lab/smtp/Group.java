@@ -6,6 +6,7 @@
 package ch.heig.dai.lab.smtp;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a group of emails with a sender, a list of receivers, and a unique
@@ -20,7 +21,7 @@ public class Group {
     private final List<String> receivers;
     private final int id;
 
-    private static int counter = 0;
+    private static final AtomicInteger counter = new AtomicInteger();
 
     // ------------------------------------------------------------------------------
     // Constructor
@@ -33,14 +34,46 @@ public class Group {
      * @param receivers a list of email addresses representing the receivers of the group.
      */
     public Group(String sender, List<String> receivers) {
+        this(counter.getAndIncrement(), sender, receivers);
+    }
+
+    /**
+     * Constructs a Group object with an identifier allocated beforehand with
+     * allocateIds, so that groups built in parallel get the identifiers of
+     * their order.
+     *
+     * @param id        the unique identifier of the group.
+     * @param sender    the email address of the sender for this group.
+     * @param receivers a list of email addresses representing the receivers of the group.
+     */
+    Group(int id, String sender, List<String> receivers) {
         this.sender = sender;
         this.receivers = receivers;
-        this.id = counter++;
+        this.id = id;
     }
 
     // ------------------------------------------------------------------------------
     // Methods
     // ------------------------------------------------------------------------------
+    /**
+     * Allocates a block of consecutive group identifiers. Thread-safe.
+     *
+     * @param count the number of identifiers to allocate.
+     * @return the first identifier of the block.
+     */
+    static int allocateIds(int count) {
+        return counter.getAndAdd(count);
+    }
+
+    /**
+     * Gets the unique identifier of this group.
+     *
+     * @return the group identifier.
+     */
+    public int getId() {
+        return id;
+    }
+
     /**
      * Gets the email address of the sender in this group.
      *
@@ -5,21 +5,37 @@
 
 package ch.heig.dai.lab.smtp;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 /**
  * Generates groups of participants for the prank email application. Each group
  * has a sender and one or more receivers. Ensures that the number of groups and
- * group sizes are valid.
+ * group sizes are valid. A group has between 2 and 5 members unless other
+ * limits are given. The groups are cut in file order, or from a permutation of
+ * the emails drawn from a seed, so that a shuffled run can be reproduced.
  */
 public class GroupGenerator {
     // ------------------------------------------------------------------------------
     // Attributes
     // ------------------------------------------------------------------------------
     private final List<String> emails;
+    private final int numberOfEmails;
     private final int numberOfGroups;
 
+    static final int DEFAULT_MIN_GROUP_SIZE = 2;
+    static final int DEFAULT_MAX_GROUP_SIZE = 5;
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+
     // ------------------------------------------------------------------------------
     // Constructor
     // ------------------------------------------------------------------------------
@@ -35,21 +51,67 @@ public class GroupGenerator {
      *                                  or if there are too many emails to form valid groups.
      */
     public GroupGenerator(List<String> emails, int numberOfGroups) throws IllegalArgumentException {
-        if (numberOfGroups < 1) {
-            throw new IllegalArgumentException("Number of groups must be at least 1.");
-        }
-
-        if (emails.size() < numberOfGroups * 2) {
-            throw new IllegalArgumentException("Not enough emails to form groups " +
-                    "of at least 2 emails.");
-        }
+        this(emails, numberOfGroups, DEFAULT_MIN_GROUP_SIZE, DEFAULT_MAX_GROUP_SIZE);
+    }
 
-        if (emails.size() > numberOfGroups * 5) {
-            throw new IllegalArgumentException("Too many emails to form valid " +
-                    "groups of at most 5 emails.");
-        }
+    /**
+     * Constructs a GroupGenerator object with a list of email addresses, a specified
+     * number of groups and limits on the size of the groups (sender included).
+     *
+     * @param emails a list of email addresses to divide into groups.
+     * @param numberOfGroups the number of groups to generate.
+     * @param minGroupSize the minimum number of members of a group, at least 2.
+     * @param maxGroupSize the maximum number of members of a group.
+     * @throws IllegalArgumentException if the number of groups is less than 1,
+     *                                  if the size limits are invalid,
+     *                                  if there are not enough emails to form groups,
+     *                                  or if there are too many emails to form valid groups.
+     */
+    public GroupGenerator(List<String> emails, int numberOfGroups, int minGroupSize, int maxGroupSize)
+            throws IllegalArgumentException {
+        validate(emails.size(), numberOfGroups, minGroupSize, maxGroupSize);
 
         this.emails = emails;
+        this.numberOfEmails = emails.size();
+        this.numberOfGroups = numberOfGroups;
+    }
+
+    /**
+     * Constructs a GroupGenerator object for a stream of email addresses whose
+     * total count is known in advance (for instance from a cheap pre-count pass
+     * over the victims file). The groups are then generated with
+     * generateGroups(Iterator) as the addresses arrive.
+     *
+     * @param numberOfEmails the total number of email addresses that will be streamed.
+     * @param numberOfGroups the number of groups to generate.
+     * @throws IllegalArgumentException if the number of groups is less than 1,
+     *                                  if there are not enough emails to form groups,
+     *                                  or if there are too many emails to form valid groups.
+     */
+    public GroupGenerator(int numberOfEmails, int numberOfGroups) throws IllegalArgumentException {
+        this(numberOfEmails, numberOfGroups, DEFAULT_MIN_GROUP_SIZE, DEFAULT_MAX_GROUP_SIZE);
+    }
+
+    /**
+     * Constructs a GroupGenerator object for a stream of email addresses whose
+     * total count is known in advance, with limits on the size of the groups
+     * (sender included).
+     *
+     * @param numberOfEmails the total number of email addresses that will be streamed.
+     * @param numberOfGroups the number of groups to generate.
+     * @param minGroupSize the minimum number of members of a group, at least 2.
+     * @param maxGroupSize the maximum number of members of a group.
+     * @throws IllegalArgumentException if the number of groups is less than 1,
+     *                                  if the size limits are invalid,
+     *                                  if there are not enough emails to form groups,
+     *                                  or if there are too many emails to form valid groups.
+     */
+    public GroupGenerator(int numberOfEmails, int numberOfGroups, int minGroupSize, int maxGroupSize)
+            throws IllegalArgumentException {
+        validate(numberOfEmails, numberOfGroups, minGroupSize, maxGroupSize);
+
+        this.emails = null;
+        this.numberOfEmails = numberOfEmails;
         this.numberOfGroups = numberOfGroups;
     }
 
@@ -59,30 +121,314 @@ public class GroupGenerator {
     /**
      * Generates groups of participants. Each group contains one sender and multiple
      * receivers. The groups are generated in a balanced way, ensuring that group
-     * sizes are as equal as possible.
+     * sizes are as equal as possible. The receivers of a group are a view of
+     * its index range in the list of emails, so no address is copied; with the
+     * AddressList of an AddressArena, a group is a pair of indices.
+     *
+     * @return a list of Group objects representing the generated groups.
+     * @throws IllegalStateException if the generator was built for a stream of emails.
+     */
+    public List<Group> generateGroups() throws IllegalStateException {
+        if (emails == null) {
+            throw new IllegalStateException("No list of emails, use generateGroups(Iterator) instead.");
+        }
+        return split(emails);
+    }
+
+    /**
+     * Generates groups of participants from the emails shuffled with the
+     * given seed: the same seed and the same emails always give the same
+     * groups. The emails are not moved, a Fisher-Yates shuffle draws a
+     * permutation of their indices and each group is a range of it (with the
+     * AddressList of an AddressArena, a range of arena indices). The group
+     * sizes are balanced as with generateGroups().
      *
+     * @param seed the seed of the shuffle.
      * @return a list of Group objects representing the generated groups.
+     * @throws IllegalStateException if the generator was built for a stream of emails.
+     */
+    public List<Group> generateGroups(long seed) throws IllegalStateException {
+        if (emails == null) {
+            throw new IllegalStateException("Streamed emails cannot be shuffled.");
+        }
+        return split(shuffle(seed));
+    }
+
+    /**
+     * Generates the same groups as generateGroups(), one at a time: a group is
+     * only cut when it is asked for, so the first ones can be sent while the
+     * others are not built yet. Their identifiers are allocated as a block
+     * when the iterator is created.
+     *
+     * @return an iterator producing the groups in order.
+     * @throws IllegalStateException if the generator was built for a stream of emails.
      */
-    public List<Group> generateGroups() {
-        List<Group> groups = new ArrayList<>();
+    public Iterator<Group> iterateGroups() throws IllegalStateException {
+        if (emails == null) {
+            throw new IllegalStateException("No list of emails, use generateGroups(Iterator) instead.");
+        }
+        return cut(emails);
+    }
 
-        int baseGroupSize = emails.size() / numberOfGroups;
-        int extraEmails = emails.size() % numberOfGroups;
+    /**
+     * Generates the same groups as generateGroups(long), one at a time. The
+     * permutation is drawn when the iterator is created, each group being cut
+     * from it when it is asked for.
+     *
+     * @param seed the seed of the shuffle.
+     * @return an iterator producing the groups in order.
+     * @throws IllegalStateException if the generator was built for a stream of emails.
+     */
+    public Iterator<Group> iterateGroups(long seed) throws IllegalStateException {
+        if (emails == null) {
+            throw new IllegalStateException("Streamed emails cannot be shuffled.");
+        }
+        return cut(shuffle(seed));
+    }
 
-        int emailIndex = 0;
+    /**
+     * Draws a permutation of the emails from a seed with a Fisher-Yates
+     * shuffle of their indices, without moving them.
+     *
+     * @param seed the seed of the shuffle.
+     * @return a view of the emails in the order of the permutation.
+     */
+    private List<String> shuffle(long seed) {
+        int[] permutation = new int[numberOfEmails];
+        for (int i = 0; i < permutation.length; i++) {
+            permutation[i] = i;
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = permutation.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swapped = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = swapped;
+        }
 
-        for (int i = 0; i < numberOfGroups; i++) {
-            int currentGroupSize = baseGroupSize + (i < extraEmails ? 1 : 0);
-            List<String> groupEmails = new ArrayList<>();
+        return emails instanceof AddressArena.AddressList list
+                ? list.permute(permutation)
+                : new Permutation(emails, permutation, 0, permutation.length);
+    }
 
-            for (int j = 0; j < currentGroupSize; j++) {
-                groupEmails.add(emails.get(emailIndex++));
+    /**
+     * Cuts the emails into balanced groups of consecutive members, the first
+     * one of each being its sender. The receivers are views of the emails, so
+     * no address is copied. Many groups are built in parallel chunks, each
+     * group getting the identifier of its position in a block allocated
+     * beforehand, so the result does not depend on the threads.
+     *
+     * @param members the emails, in the order they are grouped.
+     * @return the groups, in order.
+     */
+    private List<Group> split(List<String> members) {
+        int firstId = Group.allocateIds(numberOfGroups);
+        Group[] groups = new Group[numberOfGroups];
+
+        IntStream indices = IntStream.range(0, numberOfGroups);
+        if (numberOfGroups >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            indices = indices.parallel();
+        }
+        indices.forEach(i -> groups[i] = group(members, firstId, i));
+        return Arrays.asList(groups);
+    }
+
+    /**
+     * Cuts the emails into the same groups as split(), one at a time.
+     *
+     * @param members the emails, in the order they are grouped.
+     * @return an iterator producing the groups in order.
+     */
+    private Iterator<Group> cut(List<String> members) {
+        int firstId = Group.allocateIds(numberOfGroups);
+
+        return new Iterator<>() {
+            private int groupIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return groupIndex < numberOfGroups;
+            }
+
+            @Override
+            public Group next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return group(members, firstId, groupIndex++);
+            }
+        };
+    }
+
+    /**
+     * Builds a group of the balanced cut of the emails: the first groups get
+     * one more member when the emails do not divide evenly.
+     *
+     * @param members the emails, in the order they are grouped.
+     * @param firstId the identifier of the first group.
+     * @param index   the position of the group.
+     * @return the group.
+     */
+    private Group group(List<String> members, int firstId, int index) {
+        int baseGroupSize = numberOfEmails / numberOfGroups;
+        int extraEmails = numberOfEmails % numberOfGroups;
+        int start = index * baseGroupSize + Math.min(index, extraEmails);
+        int groupSize = baseGroupSize + (index < extraEmails ? 1 : 0);
+        return new Group(firstId + index, members.get(start), members.subList(start + 1, start + groupSize));
+    }
+
+    /**
+     * Generates the groups lazily from a stream of email addresses. A group is
+     * emitted as soon as enough addresses have been read for it, so only the
+     * members of the current group are held in memory. The group sizes follow
+     * the same balanced rule as generateGroups(), based on the number of emails
+     * given to the constructor.
+     *
+     * @param emails an iterator over the email addresses, in file order.
+     * @return an iterator producing the groups one at a time.
+     */
+    public Iterator<Group> generateGroups(Iterator<String> emails) {
+        int baseGroupSize = numberOfEmails / numberOfGroups;
+        int extraEmails = numberOfEmails % numberOfGroups;
+
+        return new Iterator<>() {
+            private int groupIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return groupIndex < numberOfGroups;
             }
 
-            Group group = new Group(groupEmails.get(0), groupEmails.subList(1, groupEmails.size()));
-            groups.add(group);
+            @Override
+            public Group next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                int currentGroupSize = baseGroupSize + (groupIndex < extraEmails ? 1 : 0);
+                List<String> groupEmails = new ArrayList<>(currentGroupSize);
+
+                for (int j = 0; j < currentGroupSize; j++) {
+                    if (!emails.hasNext()) {
+                        throw new IllegalArgumentException("Expected " + numberOfEmails +
+                                " emails but the victims ended after group " + groupIndex + ".");
+                    }
+                    groupEmails.add(emails.next());
+                }
+
+                groupIndex++;
+                return new Group(groupEmails.get(0), groupEmails.subList(1, groupEmails.size()));
+            }
+        };
+    }
+
+    /**
+     * Validates that the number of emails is sufficient and reasonable for the
+     * number of groups.
+     *
+     * @param numberOfEmails the number of email addresses to divide into groups.
+     * @param numberOfGroups the number of groups to generate.
+     * @param minGroupSize the minimum number of members of a group.
+     * @param maxGroupSize the maximum number of members of a group.
+     * @throws IllegalArgumentException if the number of groups is less than 1,
+     *                                  if the size limits are invalid,
+     *                                  if there are not enough emails to form groups,
+     *                                  or if there are too many emails to form valid groups.
+     */
+    private static void validate(int numberOfEmails, int numberOfGroups, int minGroupSize, int maxGroupSize)
+            throws IllegalArgumentException {
+        if (numberOfGroups < 1) {
+            throw new IllegalArgumentException("Number of groups must be at least 1.");
+        }
+
+        if (minGroupSize < 2) {
+            throw new IllegalArgumentException("Minimum group size must be at least 2 (a sender and a receiver).");
         }
 
-        return groups;
+        if (maxGroupSize < minGroupSize) {
+            throw new IllegalArgumentException("Maximum group size must not be less than the minimum group size.");
+        }
+
+        if (numberOfEmails < (long) numberOfGroups * minGroupSize) {
+            throw new IllegalArgumentException("Not enough emails to form groups " +
+                    "of at least " + minGroupSize + " emails.");
+        }
+
+        if (numberOfEmails > (long) numberOfGroups * maxGroupSize) {
+            throw new IllegalArgumentException("Too many emails to form valid " +
+                    "groups of at most " + maxGroupSize + " emails.");
+        }
+    }
+
+    /**
+     * A view of a list in the order of a permutation of its indices, whose
+     * sublists are index ranges of the same permutation.
+     */
+    private static final class Permutation extends AbstractList<String> implements RandomAccess {
+        // --------------------------------------------------------------------------
+        // Attributes
+        // --------------------------------------------------------------------------
+        private final List<String> list;
+        private final int[] indices;
+        private final int from;
+        private final int to;
+
+        // --------------------------------------------------------------------------
+        // Constructor
+        // --------------------------------------------------------------------------
+        /**
+         * Constructs a view over the elements indices[from..to] of a list.
+         *
+         * @param list    the permuted list.
+         * @param indices the permutation of the indices of the list.
+         * @param from    the first index of the view in the permutation, inclusive.
+         * @param to      the last index of the view in the permutation, exclusive.
+         */
+        private Permutation(List<String> list, int[] indices, int from, int to) {
+            this.list = list;
+            this.indices = indices;
+            this.from = from;
+            this.to = to;
+        }
+
+        // --------------------------------------------------------------------------
+        // Methods
+        // --------------------------------------------------------------------------
+        /**
+         * Gets an element of the view.
+         *
+         * @param index the index of the element in the view.
+         * @return the element.
+         * @throws IndexOutOfBoundsException if the index is out of range.
+         */
+        @Override
+        public String get(int index) throws IndexOutOfBoundsException {
+            Objects.checkIndex(index, size());
+            return list.get(indices[from + index]);
+        }
+
+        /**
+         * Gets the number of elements of the view.
+         *
+         * @return the number of elements.
+         */
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        /**
+         * Gets a view of a range of the view, without copying it.
+         *
+         * @param fromIndex the first index of the range, inclusive.
+         * @param toIndex   the last index of the range, exclusive.
+         * @return the elements of the range.
+         * @throws IndexOutOfBoundsException if the range is out of bounds.
+         */
+        @Override
+        public List<String> subList(int fromIndex, int toIndex) throws IndexOutOfBoundsException {
+            Objects.checkFromToIndex(fromIndex, toIndex, size());
+            return new Permutation(list, indices, from + fromIndex, from + toIndex);
+        }
     }
 }
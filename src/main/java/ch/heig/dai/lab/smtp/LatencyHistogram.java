@@ -0,0 +1,126 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size latency histogram in the style of HdrHistogram. Values are stored
+ * in log-linear buckets: every power of two is split into 128 sub-buckets, so
+ * a recorded value is known with a relative error below 1% whatever its
+ * magnitude. Recording is a single atomic increment and never allocates, so it
+ * can be called from the SMTP hot path by many threads at once.
+ */
+class LatencyHistogram {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_COUNT = SUB_BUCKET_COUNT << 1;
+    private static final int MAX_VALUE_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Records a value. Negative values are recorded as 0, values above 2^40
+     * (about 18 minutes in nanoseconds) in the last bucket.
+     *
+     * @param value the value to record, usually a duration in nanoseconds.
+     */
+    void record(long value) {
+        long clamped = Math.min(Math.max(value, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(clamped));
+        total.increment();
+        max.accumulate(clamped);
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return the number of recorded values.
+     */
+    long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * Gets the highest recorded value.
+     *
+     * @return the highest recorded value, 0 if nothing was recorded.
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the value below which the given fraction of the recorded values
+     * fall.
+     *
+     * @param percentile the percentile, between 0 and 100 (for instance 99.9).
+     * @return the value at the percentile, 0 if nothing was recorded.
+     */
+    long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[counts.length()];
+        long count = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(valueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Computes the bucket of a value: values below 256 have a bucket of their
+     * own, larger values share a bucket with the values having the same 8 most
+     * significant bits.
+     *
+     * @param value the value, between 0 and MAX_VALUE.
+     * @return the index of the bucket.
+     */
+    private static int indexOf(long value) {
+        if (value < LINEAR_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_COUNT + (shift - 1) * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    /**
+     * Computes the highest value of a bucket, the inverse of indexOf().
+     *
+     * @param index the index of the bucket.
+     * @return the highest value falling into the bucket.
+     */
+    private static long valueOf(int index) {
+        if (index < LINEAR_COUNT) {
+            return index;
+        }
+        int shift = (index - LINEAR_COUNT) / SUB_BUCKET_COUNT + 1;
+        long subBucket = (index - LINEAR_COUNT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.IOException;
+
+/**
+ * Common interface of the engines able to deliver emails. The application opens
+ * the transport, sends every email through it and closes it at the end.
+ */
+interface MailTransport {
+    /**
+     * Opens the transport and performs the initial handshake.
+     *
+     * @throws IOException if an I/O error occurs while opening the transport.
+     */
+    void connect() throws IOException;
+
+    /**
+     * Sends an email through the transport.
+     *
+     * @param email the email to send.
+     * @throws IOException if an I/O error occurs or the email is rejected.
+     */
+    void send(Email email) throws IOException;
+
+    /**
+     * Gets the capabilities the transport renders the emails for, so that
+     * they can be rendered with Email.render() before send().
+     *
+     * @return the capabilities, null if not known yet.
+     */
+    SmtpCapabilities getCapabilities();
+
+    /**
+     * Closes the transport.
+     *
+     * @throws IOException if an I/O error occurs while closing the transport.
+     */
+    void quit() throws IOException;
+}
@@ -5,30 +5,109 @@
 
 package ch.heig.dai.lab.smtp;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
 /**
  * Represents a message containing a subject and a body. Provides methods
  * to access the subject and body of the message, as well as a formatted string
  * representation of the message.
+ * The body is a template: its ${placeholder} fields are parsed once, into
+ * literal segments encoded once per charset and shared by every email, and
+ * placeholders filled in for each email as small separate buffers.
+ * A message loaded from the messages file is a view over the mapping of the
+ * file: its subject and body are only decoded, and its template parsed, when
+ * the message is first used.
  */
 public class Message {
     // ------------------------------------------------------------------------------
     // Attributes
     // ------------------------------------------------------------------------------
-    private final String subject;
-    private final String body;
+    private final ByteBuffer subjectBytes;
+    private final ByteBuffer bodyBytes;
+    private final Charset sourceEncoding;
+    private volatile Content content;
+    private volatile Template template;
+    private volatile Template chunkedTemplate;
+    private volatile EncodedSubject encodedSubject;
+
+    private static final String PLACEHOLDER_START = "${";
+    private static final String PLACEHOLDER_END = "}";
+    private static final int ENCODED_WORD_LENGTH = 75;
+    private static final int ENCODED_LINE_LENGTH = 76;
+    // The first encoded-word of the subject follows the name of its header
+    private static final int SUBJECT_OFFSET = "Subject: ".length();
+    private static final int QUOTED_PRINTABLE_LINE_LENGTH = 76;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The fields a message body may refer to as ${field}.
+     */
+    public enum PLACEHOLDERS {
+        recipient,
+        name,
+        sender
+    }
+
+    /**
+     * The decoded subject and body, with the body split into literal segments
+     * around its placeholders: literals[i] comes before placeholders[i], and
+     * the last literal ends the body. The body is ascii if every character of
+     * its literals is.
+     */
+    private record Content(String subject, String body, String[] literals, PLACEHOLDERS[] placeholders,
+                           boolean[] placeholderAtLineStart, boolean ascii) { }
+
+    /**
+     * The literal segments of the body encoded with a given charset, ready to
+     * be sent after DATA or BDAT. The last segment ends the payload.
+     */
+    private record Template(Charset encoding, ByteBuffer[] literals) { }
+
+    /**
+     * The subject as it is written in the Subject header for a given charset.
+     */
+    private record EncodedSubject(Charset encoding, String text) { }
 
     // ------------------------------------------------------------------------------
     // Constructor
     // ------------------------------------------------------------------------------
     /**
-     * Constructs a Message object with the specified subject and body.
+     * Constructs a Message object with the specified subject and body, and
+     * parses the placeholders of the body.
      *
      * @param subject the subject of the email message.
      * @param body    the body of the email message.
+     * @throws IllegalArgumentException if the body contains an unknown or unterminated placeholder.
      */
-    Message(String subject, String body) {
-        this.subject = subject;
-        this.body = body;
+    Message(String subject, String body) throws IllegalArgumentException {
+        this.subjectBytes = null;
+        this.bodyBytes = null;
+        this.sourceEncoding = null;
+        this.content = parse(subject, body);
+    }
+
+    /**
+     * Constructs a Message object over encoded bytes, typically slices of a
+     * memory-mapped file, decoded on first use. The placeholders are checked
+     * right away on the raw bytes, so that a faulty message is reported when
+     * it is loaded rather than when it is sent.
+     *
+     * @param subject  the encoded subject, not copied.
+     * @param body     the encoded body, not copied.
+     * @param encoding the charset of the bytes, which must encode ASCII as single bytes.
+     * @throws IllegalArgumentException if the body contains an unknown or unterminated placeholder.
+     */
+    Message(ByteBuffer subject, ByteBuffer body, Charset encoding) throws IllegalArgumentException {
+        this.subjectBytes = subject.asReadOnlyBuffer();
+        this.bodyBytes = body.asReadOnlyBuffer();
+        this.sourceEncoding = encoding;
+        checkPlaceholders();
     }
 
     // ------------------------------------------------------------------------------
@@ -40,16 +119,506 @@ public class Message {
      * @return the subject of the message.
      */
     public String getSubject() {
-        return subject;
+        return content().subject();
     }
 
     /**
-     * Gets the body of the message.
+     * Gets the body of the message, placeholders included.
      *
      * @return the body of the message.
      */
     public String getBody() {
-        return body;
+        return content().body();
+    }
+
+    /**
+     * Tells whether the body refers to its recipient, in which case each
+     * recipient must get an email of its own.
+     *
+     * @return true if the body contains ${recipient} or ${name}.
+     */
+    public boolean isPersonalized() {
+        for (PLACEHOLDERS placeholder : content().placeholders()) {
+            if (placeholder != PLACEHOLDERS.sender) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the subject as it is written in the Subject header: as is if it is
+     * printable ASCII, otherwise as RFC 2047 "B" encoded-words in the given
+     * charset, folded so that no line exceeds 76 characters, the name of the
+     * header included. The result is computed on first use and cached.
+     *
+     * @param encoding the character encoding of the message.
+     * @return the header value, which may span several folded lines.
+     */
+    public String getEncodedSubject(Charset encoding) {
+        EncodedSubject current = encodedSubject;
+        if (current == null || !current.encoding().equals(encoding)) {
+            current = new EncodedSubject(encoding, encodeWords(getSubject(), encoding, SUBJECT_OFFSET));
+            encodedSubject = current;
+        }
+        return current.text();
+    }
+
+    /**
+     * Renders the body for an email, as it is sent after the DATA command and
+     * the headers: encoded with the given charset, with CRLF line endings,
+     * dot-stuffed (RFC 5321, section 4.5.2) and followed by the end of data
+     * indicator ("CRLF.CRLF"), or as it is sent in BDAT chunks (RFC 3030):
+     * neither dot-stuffed nor terminated, the chunks being length-prefixed.
+     * The literal segments are encoded on first use and cached, so a message
+     * shared by many emails is only encoded once, and each email only gets
+     * buffers over the values of its placeholders. A body without placeholders
+     * is a single shared buffer.
+     *
+     * @param email    the email the placeholders are filled in for.
+     * @param encoding the character encoding of the body.
+     * @param chunked  whether the body is sent with BDAT instead of DATA.
+     * @return the buffers to send in order, to be written with a gathering write.
+     */
+    public ByteBuffer[] render(Email email, Charset encoding, boolean chunked) {
+        Content content = content();
+        PLACEHOLDERS[] placeholders = content.placeholders();
+        ByteBuffer[] shared = template(encoding, chunked).literals();
+        ByteBuffer[] parts = new ByteBuffer[2 * placeholders.length + 1];
+
+        for (int i = 0; i < placeholders.length; i++) {
+            String value = fill(placeholders[i], email);
+            if (!chunked && content.placeholderAtLineStart()[i] && value.startsWith(".")) {
+                value = "." + value;
+            }
+            parts[2 * i] = shared[i].duplicate();
+            parts[2 * i + 1] = ByteBuffer.wrap(value.getBytes(encoding));
+        }
+        parts[parts.length - 1] = shared[placeholders.length].duplicate();
+        return parts;
+    }
+
+    /**
+     * Tells whether the body of an email is plain ASCII, so that it can be
+     * sent as 7bit to a server that does not accept 8-bit text.
+     *
+     * @param email the email the placeholders are filled in for.
+     * @return true if the literals and the values of the placeholders are ASCII.
+     */
+    public boolean isAscii(Email email) {
+        Content content = content();
+        if (!content.ascii()) {
+            return false;
+        }
+        for (PLACEHOLDERS placeholder : content.placeholders()) {
+            if (!isAscii(fill(placeholder, email))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Renders the body for an email in quoted-printable (RFC 2045, section
+     * 6.7), for a server that does not accept 8-bit text: the body is filled
+     * in, encoded with the given charset, then every byte outside printable
+     * ASCII is written as =XX and the lines longer than 76 characters are
+     * split with soft line breaks. The result is dot-stuffed and terminated
+     * as by render(). Unlike render(), nothing is shared between emails.
+     *
+     * @param email    the email the placeholders are filled in for.
+     * @param encoding the character encoding of the body.
+     * @param chunked  whether the body is sent with BDAT instead of DATA.
+     * @return the buffers to send in order, to be written with a gathering write.
+     */
+    public ByteBuffer[] renderQuotedPrintable(Email email, Charset encoding, boolean chunked) {
+        Content content = content();
+        PLACEHOLDERS[] placeholders = content.placeholders();
+        String[] literals = content.literals();
+        StringBuilder body = new StringBuilder(content.body().length() + 64);
+
+        for (int i = 0; i < placeholders.length; i++) {
+            body.append(literals[i]).append(fill(placeholders[i], email));
+        }
+        body.append(literals[placeholders.length]);
+
+        String encoded = encodeQuotedPrintable(body.toString().getBytes(encoding));
+        return new ByteBuffer[]{
+                ByteBuffer.wrap(encodePayload(encoded, StandardCharsets.US_ASCII, true, true, chunked))
+        };
+    }
+
+    /**
+     * Gets the literal segments encoded with the given charset for the given
+     * transfer mode, encoding them on first use.
+     *
+     * @param encoding the character encoding of the body.
+     * @param chunked  whether the body is sent with BDAT instead of DATA.
+     * @return the cached template.
+     */
+    private Template template(Charset encoding, boolean chunked) {
+        Template current = chunked ? chunkedTemplate : template;
+        if (current == null || !current.encoding().equals(encoding)) {
+            String[] literals = content().literals();
+            ByteBuffer[] encoded = new ByteBuffer[literals.length];
+            for (int i = 0; i < literals.length; i++) {
+                // A placeholder value is never empty nor spans lines, so only the first segment starts a line
+                byte[] bytes = encodePayload(literals[i], encoding, i == 0, i == literals.length - 1, chunked);
+                encoded[i] = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+            }
+            current = new Template(encoding, encoded);
+            if (chunked) {
+                chunkedTemplate = current;
+            } else {
+                template = current;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Gets the decoded subject and body and the parsed template, decoding and
+     * parsing them on first use for a message loaded from a file. Concurrent
+     * first uses may both decode the message, with the same result.
+     *
+     * @return the content of the message.
+     */
+    private Content content() {
+        Content current = content;
+        if (current == null) {
+            current = parse(sourceEncoding.decode(subjectBytes.duplicate()).toString(),
+                    sourceEncoding.decode(bodyBytes.duplicate()).toString());
+            content = current;
+        }
+        return current;
+    }
+
+    /**
+     * Splits a body into literal segments around its ${placeholder} fields.
+     *
+     * @param subject the subject of the message, used in error messages.
+     * @param body    the body to parse.
+     * @return the content of the message.
+     * @throws IllegalArgumentException if the body contains an unknown or unterminated placeholder.
+     */
+    private static Content parse(String subject, String body) throws IllegalArgumentException {
+        List<String> literals = new ArrayList<>();
+        List<PLACEHOLDERS> placeholders = new ArrayList<>();
+        int from = 0;
+        int start;
+        while ((start = body.indexOf(PLACEHOLDER_START, from)) >= 0) {
+            int end = body.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated placeholder in message: " + subject);
+            }
+            String name = body.substring(start + PLACEHOLDER_START.length(), end);
+            try {
+                placeholders.add(PLACEHOLDERS.valueOf(name));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown placeholder ${" + name + "} in message: " + subject);
+            }
+            literals.add(body.substring(from, start));
+            from = end + PLACEHOLDER_END.length();
+        }
+        literals.add(body.substring(from));
+
+        boolean[] placeholderAtLineStart = new boolean[placeholders.size()];
+        for (int i = 0; i < placeholderAtLineStart.length; i++) {
+            String before = literals.get(i);
+            placeholderAtLineStart[i] = before.isEmpty()
+                    ? i == 0
+                    : before.endsWith("\n") || before.endsWith("\r");
+        }
+        return new Content(subject, body, literals.toArray(new String[0]),
+                placeholders.toArray(new PLACEHOLDERS[0]), placeholderAtLineStart, isAscii(body));
+    }
+
+    /**
+     * Checks the ${placeholder} fields of an encoded body without decoding it.
+     * Placeholder names are ASCII, and no byte of a multi-byte character of an
+     * ASCII-compatible charset is an ASCII byte, so the raw bytes can be
+     * compared directly. The body is only decoded to report an error.
+     *
+     * @throws IllegalArgumentException if the body contains an unknown or unterminated placeholder.
+     */
+    private void checkPlaceholders() throws IllegalArgumentException {
+        ByteBuffer body = bodyBytes;
+        int limit = body.limit();
+        for (int i = body.position(); i + 1 < limit; i++) {
+            if (body.get(i) != '$' || body.get(i + 1) != '{') {
+                continue;
+            }
+            int end = i + 2;
+            while (end < limit && body.get(end) != '}') {
+                end++;
+            }
+            if (end == limit || !isPlaceholder(body, i + 2, end)) {
+                // Decoding reports the exact error
+                parse(sourceEncoding.decode(subjectBytes.duplicate()).toString(),
+                        sourceEncoding.decode(bodyBytes.duplicate()).toString());
+            }
+            i = end;
+        }
+    }
+
+    /**
+     * Tells whether encoded bytes spell the name of a placeholder.
+     *
+     * @param bytes the encoded body.
+     * @param start the index of the first byte of the name.
+     * @param end   the index after the last byte of the name.
+     * @return true if the name is one of PLACEHOLDERS.
+     */
+    private static boolean isPlaceholder(ByteBuffer bytes, int start, int end) {
+        for (PLACEHOLDERS placeholder : PLACEHOLDERS.values()) {
+            String name = placeholder.name();
+            boolean matches = name.length() == end - start;
+            for (int i = 0; matches && i < name.length(); i++) {
+                matches = bytes.get(start + i) == name.charAt(i);
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the value of a placeholder for an email. The recipient fields of
+     * an email sent to several recipients list all of them.
+     *
+     * @param placeholder the placeholder to fill in.
+     * @param email       the email the body is rendered for.
+     * @return the value, never empty.
+     */
+    private static String fill(PLACEHOLDERS placeholder, Email email) {
+        List<String> receivers = email.getReceivers();
+        return switch (placeholder) {
+            case sender -> email.getSender();
+            case recipient -> receivers.size() == 1 ? receivers.get(0) : String.join(", ", receivers);
+            case name -> {
+                if (receivers.size() == 1) {
+                    yield nameOf(receivers.get(0));
+                }
+                StringBuilder names = new StringBuilder();
+                for (String receiver : receivers) {
+                    names.append(names.isEmpty() ? "" : ", ").append(nameOf(receiver));
+                }
+                yield names.toString();
+            }
+        };
+    }
+
+    /**
+     * Derives a display name from the local part of an address, each word
+     * separated by ".", "_", "-" or "+" being capitalized ("jean.dupont" gives
+     * "Jean Dupont").
+     *
+     * @param address the email address.
+     * @return the name, the local part itself if it has no word.
+     */
+    static String nameOf(String address) {
+        int at = address.indexOf('@');
+        String local = at < 0 ? address : address.substring(0, at);
+        StringBuilder name = new StringBuilder(local.length());
+        boolean wordStart = true;
+
+        for (int i = 0; i < local.length(); i++) {
+            char c = local.charAt(i);
+            if (c == '.' || c == '_' || c == '-' || c == '+') {
+                wordStart = true;
+                continue;
+            }
+            if (wordStart && !name.isEmpty()) {
+                name.append(' ');
+            }
+            name.append(wordStart ? Character.toUpperCase(c) : c);
+            wordStart = false;
+        }
+        return name.isEmpty() ? local : name.toString();
+    }
+
+    /**
+     * Tells whether a text only holds ASCII characters.
+     *
+     * @param text the text.
+     * @return true if no character is above 0x7F.
+     */
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes bytes in quoted-printable. Printable ASCII is kept as is, but
+     * "=", every other byte, and a space or tab ending a line are written as
+     * =XX. Line endings (CR, LF or CRLF) become CRLF, and a line longer than
+     * 76 characters is split with soft line breaks ("=" at the end of a line).
+     *
+     * @param bytes the encoded text.
+     * @return the quoted-printable text, with CRLF line endings.
+     */
+    static String encodeQuotedPrintable(byte[] bytes) {
+        StringBuilder encoded = new StringBuilder(bytes.length + bytes.length / 8);
+        int lineLength = 0;
+
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xFF;
+            if (b == '\r' || b == '\n') {
+                if (b == '\r' && i + 1 < bytes.length && bytes[i + 1] == '\n') {
+                    i++;
+                }
+                encoded.append("\r\n");
+                lineLength = 0;
+                continue;
+            }
+            boolean lineEnd = i + 1 == bytes.length || bytes[i + 1] == '\r' || bytes[i + 1] == '\n';
+            boolean literal = (b > ' ' && b < 0x7F && b != '=') || ((b == ' ' || b == '\t') && !lineEnd);
+            int width = literal ? 1 : 3;
+            // The last character of a line may take the place of the soft line break
+            if (lineLength + width > QUOTED_PRINTABLE_LINE_LENGTH - (lineEnd ? 0 : 1)) {
+                encoded.append("=\r\n");
+                lineLength = 0;
+            }
+            if (literal) {
+                encoded.append((char) b);
+            } else {
+                encoded.append('=').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
+            }
+            lineLength += width;
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Encodes a header value as RFC 2047 "B" encoded-words if it contains
+     * anything but printable ASCII. The text is cut between code points, so
+     * that no character is split across two encoded-words, and the words are
+     * folded on separate lines of at most 76 characters (RFC 2047, section 2),
+     * the first one sharing its line with the name of the header.
+     *
+     * @param text            the header value.
+     * @param encoding        the charset the words are encoded with.
+     * @param firstLineOffset the number of characters before the value on its first line.
+     * @return the header value, as is if it is printable ASCII.
+     */
+    static String encodeWords(String text, Charset encoding, int firstLineOffset) {
+        boolean ascii = true;
+        for (int i = 0; i < text.length() && ascii; i++) {
+            char c = text.charAt(i);
+            ascii = c >= 0x20 && c < 0x7F;
+        }
+        if (ascii) {
+            return text;
+        }
+
+        String prefix = "=?" + encoding.name() + "?B?";
+        String suffix = "?=";
+        // 4 base64 characters per 3 bytes, the folded lines starting with a space
+        int maxBytes = wordBytes(Math.min(ENCODED_WORD_LENGTH, ENCODED_LINE_LENGTH - 1), prefix, suffix);
+        int firstBytes = wordBytes(Math.min(ENCODED_WORD_LENGTH, ENCODED_LINE_LENGTH - firstLineOffset),
+                prefix, suffix);
+        Base64.Encoder base64 = Base64.getEncoder();
+        StringBuilder words = new StringBuilder();
+        ByteArrayOutputStream word = new ByteArrayOutputStream(maxBytes);
+
+        int i = 0;
+        while (i < text.length()) {
+            int next = text.offsetByCodePoints(i, 1);
+            byte[] bytes = text.substring(i, next).getBytes(encoding);
+            int limit = words.isEmpty() ? firstBytes : maxBytes;
+            if (word.size() > 0 && word.size() + bytes.length > limit) {
+                appendWord(words, prefix, base64.encodeToString(word.toByteArray()), suffix);
+                word.reset();
+            }
+            word.write(bytes, 0, bytes.length);
+            i = next;
+        }
+        appendWord(words, prefix, base64.encodeToString(word.toByteArray()), suffix);
+        return words.toString();
+    }
+
+    /**
+     * Computes how many bytes of text an encoded-word of the given length holds.
+     *
+     * @param length the maximum length of the encoded-word.
+     * @param prefix the charset and encoding of the word.
+     * @param suffix the end of the word.
+     * @return the number of bytes, a multiple of 3 and at least 3.
+     */
+    private static int wordBytes(int length, String prefix, String suffix) {
+        return Math.max(3, (length - prefix.length() - suffix.length()) / 4 * 3);
+    }
+
+    /**
+     * Appends an encoded-word, folded on a new line if it is not the first one.
+     *
+     * @param words   the encoded-words so far.
+     * @param prefix  the charset and encoding of the word.
+     * @param encoded the base64 encoded text.
+     * @param suffix  the end of the word.
+     */
+    private static void appendWord(StringBuilder words, String prefix, String encoded, String suffix) {
+        if (!words.isEmpty()) {
+            words.append("\r\n ");
+        }
+        words.append(prefix).append(encoded).append(suffix);
+    }
+
+    /**
+     * Encodes a segment of a body and dot-stuffs it in a single pass over the
+     * encoded bytes: a line starting with "." gets an extra "." so that it
+     * cannot end DATA early, and bare LF or CR line endings are turned into
+     * CRLF. A body sent in BDAT chunks only gets its line endings fixed.
+     *
+     * @param body      the segment to encode.
+     * @param encoding  the character encoding of the body.
+     * @param lineStart whether the segment starts a line.
+     * @param last      whether the segment ends the body.
+     * @param chunked   whether the body is sent with BDAT instead of DATA.
+     * @return the encoded segment, the last one ending with the end of data indicator unless chunked.
+     */
+    static byte[] encodePayload(String body, Charset encoding, boolean lineStart, boolean last, boolean chunked) {
+        byte[] bytes = body.getBytes(encoding);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(bytes.length + bytes.length / 32 + 8);
+
+        for (int i = 0; i < bytes.length; i++) {
+            byte b = bytes[i];
+            if (b == '\r' || b == '\n') {
+                if (b == '\r' && i + 1 < bytes.length && bytes[i + 1] == '\n') {
+                    i++;
+                }
+                payload.write('\r');
+                payload.write('\n');
+                lineStart = true;
+                continue;
+            }
+            if (lineStart && b == '.' && !chunked) {
+                payload.write('.');
+            }
+            payload.write(b);
+            lineStart = false;
+        }
+
+        if (!last) {
+            return payload.toByteArray();
+        }
+        if (!lineStart) {
+            payload.write('\r');
+            payload.write('\n');
+        }
+        if (chunked) {
+            return payload.toByteArray();
+        }
+        payload.write('.');
+        payload.write('\r');
+        payload.write('\n');
+
+        return payload.toByteArray();
     }
 
     /**
@@ -60,7 +629,7 @@ public class Message {
      */
     @Override
     public String toString() {
-       return "[SUBJECT] " + subject + "\n" +
-              "[BODY] " + body;
+       return "[SUBJECT] " + getSubject() + "\n" +
+              "[BODY] " + getBody();
     }
 }
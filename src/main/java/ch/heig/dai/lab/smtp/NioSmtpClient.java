@@ -0,0 +1,224 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Non-blocking SMTP client. Opens a set of sessions multiplexed over one or a
+ * few event loop threads, so that the number of open connections is not bound
+ * to the number of threads. Emails are spread over the sessions in a round-robin
+ * fashion; a session that failed is reopened the next time its turn comes.
+ */
+class NioSmtpClient implements MailTransport {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private final String smtpServerAddress;
+    private final int smtpServerPort;
+    private final Charset encoding;
+    private final int nbSessions;
+    private final int nbEventLoops;
+    private final int replyTimeoutMillis;
+    private final List<NioSmtpEngine> engines = new ArrayList<>();
+    private final AtomicReferenceArray<CompletableFuture<NioSmtpSession>> sessions;
+    private final AtomicInteger nextSession = new AtomicInteger();
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructor for the NioSmtpClient class.
+     *
+     * @param smtpServerAddress the SMTP server address.
+     * @param smtpServerPort    the SMTP server port.
+     * @param encoding          the character encoding to use.
+     * @param nbSessions        the number of SMTP sessions to open.
+     * @param nbEventLoops      the number of event loop threads driving the sessions.
+     * @param replyTimeoutMillis the time to wait for a server reply, in milliseconds.
+     * @throws IllegalArgumentException if the number of sessions or event loops is less than 1.
+     */
+    public NioSmtpClient(String smtpServerAddress, int smtpServerPort, Charset encoding,
+                         int nbSessions, int nbEventLoops, int replyTimeoutMillis) throws IllegalArgumentException {
+        if (nbSessions < 1 || nbEventLoops < 1) {
+            throw new IllegalArgumentException("Number of sessions and event loops must be at least 1.");
+        }
+
+        this.smtpServerAddress = smtpServerAddress;
+        this.smtpServerPort = smtpServerPort;
+        this.encoding = encoding;
+        this.nbSessions = nbSessions;
+        this.nbEventLoops = Math.min(nbEventLoops, nbSessions);
+        this.replyTimeoutMillis = replyTimeoutMillis;
+        this.sessions = new AtomicReferenceArray<>(nbSessions);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Starts the event loops and opens every session, waiting until all of them
+     * completed the initial handshake. The event loops are stopped if a
+     * session cannot be opened.
+     *
+     * @throws IOException if a session cannot be opened.
+     */
+    @Override
+    public void connect() throws IOException {
+        for (int i = 0; i < nbEventLoops; i++) {
+            engines.add(new NioSmtpEngine("smtp-nio-" + i, replyTimeoutMillis));
+        }
+
+        for (int i = 0; i < nbSessions; i++) {
+            sessions.set(i, open(i));
+        }
+
+        EventLog.get().connect(smtpServerAddress, smtpServerPort, nbSessions);
+
+        try {
+            for (int i = 0; i < nbSessions; i++) {
+                await(sessions.get(i));
+            }
+        } catch (IOException e) {
+            for (NioSmtpEngine engine : engines) {
+                engine.shutdown();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends an email and waits until the server accepted it.
+     *
+     * @param email the Email object containing sender, recipients, subject, and body.
+     * @throws IOException if an I/O error occurs or the email is rejected.
+     */
+    @Override
+    public void send(Email email) throws IOException {
+        await(sendAsync(email));
+    }
+
+    /**
+     * Queues an email on the next session without waiting for it to be sent.
+     *
+     * @param email the Email object containing sender, recipients, subject, and body.
+     * @return a future completed once the server accepted the email.
+     */
+    public CompletableFuture<Void> sendAsync(Email email) {
+        int index = Math.floorMod(nextSession.getAndIncrement(), nbSessions);
+        return session(index).thenCompose(session -> session.send(email));
+    }
+
+    /**
+     * Gets the capabilities advertised by the server to the first session, the
+     * sessions all talking to the same server.
+     *
+     * @return the capabilities of the server, null if the first session is not open.
+     */
+    @Override
+    public SmtpCapabilities getCapabilities() {
+        CompletableFuture<NioSmtpSession> first = sessions.get(0);
+        return first != null && first.state() == Future.State.SUCCESS ? first.resultNow().getCapabilities() : null;
+    }
+
+    /**
+     * Returns the session at the given index, reopening it first if it failed.
+     * Only one caller reopens a given session; the others wait for it.
+     *
+     * @param index the index of the session.
+     * @return a future completed with the session once it is ready.
+     */
+    private CompletableFuture<NioSmtpSession> session(int index) {
+        CompletableFuture<NioSmtpSession> session = sessions.get(index);
+        if (!isBroken(session)) {
+            return session;
+        }
+        CompletableFuture<NioSmtpSession> reopened = new CompletableFuture<>();
+        if (!sessions.compareAndSet(index, session, reopened)) {
+            return sessions.get(index);
+        }
+        open(index).whenComplete((opened, error) -> {
+            if (error != null) {
+                reopened.completeExceptionally(error);
+            } else {
+                reopened.complete(opened);
+            }
+        });
+        return reopened;
+    }
+
+    /**
+     * Opens a new session on the event loop the given index belongs to.
+     *
+     * @param index the index of the session.
+     * @return a future completed with the session once it is ready.
+     */
+    private CompletableFuture<NioSmtpSession> open(int index) {
+        return engines.get(index % nbEventLoops).connect(smtpServerAddress, smtpServerPort, encoding);
+    }
+
+    /**
+     * Tells whether a session could not be opened or has been closed since.
+     *
+     * @param session the future of the session.
+     * @return true if the session has to be reopened.
+     */
+    private static boolean isBroken(CompletableFuture<NioSmtpSession> session) {
+        return session.isCompletedExceptionally() || (session.isDone() && session.join().isClosed());
+    }
+
+    /**
+     * Closes every session once its queued emails have been processed, then
+     * stops the event loops.
+     *
+     * @throws IOException if a session cannot be closed properly.
+     */
+    @Override
+    public void quit() throws IOException {
+        try {
+            List<CompletableFuture<Void>> closing = new ArrayList<>();
+            for (int i = 0; i < nbSessions; i++) {
+                closing.add(sessions.get(i)
+                        .thenCompose(NioSmtpSession::quit)
+                        .exceptionally(error -> null));
+            }
+            for (CompletableFuture<Void> session : closing) {
+                await(session);
+            }
+        } finally {
+            for (NioSmtpEngine engine : engines) {
+                engine.shutdown();
+            }
+            EventLog.get().quit(smtpServerAddress, smtpServerPort, nbSessions);
+        }
+    }
+
+    /**
+     * Waits for a future, unwrapping the I/O error it failed with.
+     *
+     * @param future the future to wait for.
+     * @return the result of the future.
+     * @throws IOException if the future failed.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Event loop driving many non-blocking SMTP sessions on a single thread. Every
+ * session is registered on the same Selector and only ever touched by the loop
+ * thread; other threads hand work to the loop through a task queue. The loop
+ * wakes up regularly to fail the sessions waiting for a reply for too long.
+ * An error in a task or a session fails that session only, never the loop.
+ */
+class NioSmtpEngine {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private final Selector selector;
+    private final Thread loopThread;
+    private final int replyTimeoutMillis;
+    private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private volatile boolean stopped;
+
+    /**
+     * A task for the event loop, along with what to do instead if the loop
+     * stopped before running it.
+     */
+    private record Task(Runnable run, Consumer<IOException> rejected) { }
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Opens the selector and starts the event loop thread.
+     *
+     * @param name               the name of the event loop thread.
+     * @param replyTimeoutMillis the time to wait for a server reply, in milliseconds.
+     * @throws IOException if the selector cannot be opened.
+     */
+    NioSmtpEngine(String name, int replyTimeoutMillis) throws IOException {
+        this.replyTimeoutMillis = replyTimeoutMillis;
+        this.selector = Selector.open();
+        this.loopThread = Thread.ofPlatform().name(name).daemon().start(this::run);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Opens a new SMTP session. The returned future completes once the server
+     * greeting and the EHLO exchange have succeeded, and fails at once if the
+     * host cannot be resolved or the event loop is stopped.
+     *
+     * @param smtpServerAddress the SMTP server address.
+     * @param smtpServerPort    the SMTP server port.
+     * @param encoding          the character encoding used for the email content.
+     * @return a future completed with the ready session.
+     */
+    CompletableFuture<NioSmtpSession> connect(String smtpServerAddress, int smtpServerPort, Charset encoding) {
+        InetSocketAddress address = new InetSocketAddress(smtpServerAddress, smtpServerPort);
+        CompletableFuture<NioSmtpSession> ready = new CompletableFuture<>();
+        if (address.isUnresolved()) {
+            ready.completeExceptionally(new UnknownHostException("[SMTP Client] Unknown host: " + smtpServerAddress));
+            return ready;
+        }
+        if (!running) {
+            ready.completeExceptionally(new IOException("[NIO] Engine stopped"));
+            return ready;
+        }
+
+        execute(() -> {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                NioSmtpSession session = new NioSmtpSession(this, channel, encoding, ready);
+                boolean connected = channel.connect(address);
+                SelectionKey key = channel.register(selector,
+                        connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, session);
+                session.attach(key, connected);
+            } catch (IOException | RuntimeException e) {
+                close(channel);
+                ready.completeExceptionally(e instanceof IOException cause ? cause
+                        : new IOException("[SMTP Client] Cannot connect to " + address + ": " + e, e));
+            }
+        }, ready::completeExceptionally);
+
+        return ready;
+    }
+
+    /**
+     * Runs a task on the event loop thread. A task is never run by another
+     * thread, since it drives sessions that only the loop thread may touch:
+     * once the loop has stopped, the task is rejected instead, so that the
+     * futures it would have completed do not hang. Every session is closed by
+     * then.
+     *
+     * @param task     the task to run.
+     * @param rejected called instead of the task, with the reason, if the loop stopped first.
+     */
+    void execute(Runnable task, Consumer<IOException> rejected) {
+        tasks.add(new Task(task, rejected));
+        if (stopped) {
+            rejectTasks();
+        } else {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops the event loop and closes the selector along with every session
+     * still registered on it.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+        try {
+            loopThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Main loop: runs the pending tasks, dispatches the ready events to their
+     * sessions, then checks the reply timeout of every session.
+     */
+    private void run() {
+        long checkInterval = replyTimeoutMillis > 0 ? Math.clamp(replyTimeoutMillis / 4, 10, 1000) : 0;
+        long nextCheck = System.nanoTime() + checkInterval * 1_000_000;
+        try {
+            while (running) {
+                runTasks();
+
+                selector.select(checkInterval);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioSmtpSession session = (NioSmtpSession) key.attachment();
+                    try {
+                        session.handle(key);
+                    } catch (RuntimeException e) {
+                        session.fail(new IOException("[NIO] Session failed: " + e, e));
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (replyTimeoutMillis > 0 && now - nextCheck >= 0) {
+                    nextCheck = now + checkInterval * 1_000_000;
+                    for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                        ((NioSmtpSession) key.attachment()).checkTimeout(now, replyTimeoutMillis);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            EventLog.get().eventLoopStopped(e);
+        } finally {
+            running = false;
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                ((NioSmtpSession) key.attachment()).fail(new IOException("[NIO] Engine stopped"));
+            }
+            stopped = true;
+            rejectTasks();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    /**
+     * Runs the queued tasks. A task that throws is reported and skipped, so
+     * that it cannot stop the loop.
+     */
+    private void runTasks() {
+        Task task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run().run();
+            } catch (RuntimeException e) {
+                EventLog.get().failure(e);
+            }
+        }
+    }
+
+    /**
+     * Rejects the queued tasks once the loop has stopped. Each task is taken
+     * from the queue by a single thread, so it is rejected once.
+     */
+    private void rejectTasks() {
+        Task task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.rejected().accept(new IOException("[NIO] Engine stopped"));
+            } catch (RuntimeException e) {
+                EventLog.get().failure(e);
+            }
+        }
+    }
+
+    /**
+     * Closes a channel that could not be registered.
+     *
+     * @param channel the channel, null if it was not opened.
+     */
+    private static void close(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // The connection failed anyway
+        }
+    }
+}
@@ -0,0 +1,644 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import ch.heig.dai.lab.smtp.SmtpMetrics.SMTP_COMMANDS;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A single non-blocking SMTP session, implemented as a state machine driven by
+ * the server replies. Emails queued on the session are sent one transaction at
+ * a time. Every method of this class must be called from the event loop thread
+ * of its NioSmtpEngine. The message is sent as a single BDAT chunk when the
+ * server advertised CHUNKING, with DATA otherwise, and a message larger than
+ * its SIZE limit is refused without sending any command. As with SmtpClient,
+ * a rejected recipient does not stop the transaction: the message goes to the
+ * accepted ones and the rejections are reported afterwards. A session that fails
+ * is closed for good: the emails whose message was not written yet are failed
+ * as temporary refusals (421), so that they are sent again, on another session.
+ */
+class NioSmtpSession {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private enum State {
+        CONNECTING(null),
+        GREETING(SMTP_COMMANDS.CONNECT),
+        EHLO(SMTP_COMMANDS.EHLO),
+        IDLE(null),
+        MAIL(SMTP_COMMANDS.MAIL),
+        RCPT(SMTP_COMMANDS.RCPT),
+        DATA(SMTP_COMMANDS.DATA),
+        CONTENT(SMTP_COMMANDS.END_OF_DATA),
+        RESET(SMTP_COMMANDS.RSET),
+        QUIT(SMTP_COMMANDS.QUIT),
+        CLOSED(null);
+
+        /**
+         * The command whose latency is recorded when a reply arrives in this
+         * state, null if no reply is expected.
+         */
+        private final SMTP_COMMANDS command;
+
+        State(SMTP_COMMANDS command) {
+            this.command = command;
+        }
+    }
+
+    /**
+     * An email waiting to be sent, along with the future completed once the
+     * server accepted or rejected it.
+     */
+    private record Transaction(Email email, CompletableFuture<Void> result) { }
+
+    private final NioSmtpEngine engine;
+    private final SocketChannel channel;
+    private final Charset encoding;
+    private final CompletableFuture<NioSmtpSession> ready;
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private final Queue<Transaction> pending = new ArrayDeque<>();
+    private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private final CharsetEncoder encoder;
+    private final boolean asciiCompatible;
+    // Reused by every RCPT TO: the reply to one comes after the whole line was written
+    private ByteBuffer commandBuffer = ByteBuffer.allocate(COMMAND_BUFFER_SIZE);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private SelectionKey key;
+    private State state = State.CONNECTING;
+    private Transaction current;
+    private int receiverIndex;
+    private final List<String> acceptedReceivers = new ArrayList<>();
+    private final List<String> rejectedReceivers = new ArrayList<>();
+    private final List<String> rejections = new ArrayList<>();
+    private int rejectionCode;
+    private volatile SmtpCapabilities capabilities = SmtpCapabilities.NONE;
+    private final List<String> ehloLines = new ArrayList<>();
+    private ByteBuffer[] content;
+    private int replyStart;
+    private int replyEnd;
+    private long commandStart = System.nanoTime();
+    private long lastActivity = System.nanoTime();
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int COMMAND_BUFFER_SIZE = 512;
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs a session on a channel that is connecting to the server.
+     *
+     * @param engine   the engine whose event loop drives the session.
+     * @param channel  the non-blocking channel to the SMTP server.
+     * @param encoding the character encoding used for the email content.
+     * @param ready    the future completed once the EHLO exchange succeeded.
+     */
+    NioSmtpSession(NioSmtpEngine engine, SocketChannel channel, Charset encoding,
+                   CompletableFuture<NioSmtpSession> ready) {
+        this.engine = engine;
+        this.channel = channel;
+        this.encoding = encoding;
+        this.encoder = encoding.newEncoder();
+        this.asciiCompatible = SmtpCodec.isAsciiCompatible(encoding);
+        this.ready = ready;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Queues an email on the session. May be called from any thread.
+     *
+     * @param email the email to send.
+     * @return a future completed once the server accepted the email, or
+     *         completed exceptionally if it was rejected.
+     */
+    CompletableFuture<Void> send(Email email) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        engine.execute(() -> {
+            if (state == State.CLOSED || state == State.QUIT) {
+                result.completeExceptionally(unsent(new IOException("[NIO] Session closed")));
+                return;
+            }
+            pending.add(new Transaction(email, result));
+            startNextTransaction();
+        }, stopped -> result.completeExceptionally(unsent(stopped)));
+        return result;
+    }
+
+    /**
+     * Sends the QUIT command once every queued email has been processed. May be
+     * called from any thread. A session that already failed has nothing left
+     * to close, its failure having been reported to its emails.
+     *
+     * @return a future completed once the connection is closed.
+     */
+    CompletableFuture<Void> quit() {
+        engine.execute(() -> {
+            if (state == State.IDLE) {
+                command(State.QUIT, "QUIT");
+            } else if (state == State.CLOSED) {
+                closed.complete(null);
+            } else if (state != State.QUIT) {
+                pending.add(new Transaction(null, closed));
+            }
+        }, stopped -> closed.complete(null));
+        return closed.exceptionally(error -> null);
+    }
+
+    /**
+     * Tells whether the session is closed, after QUIT or a failure. May be
+     * called from any thread.
+     *
+     * @return true if no email can be sent on the session anymore.
+     */
+    boolean isClosed() {
+        return closed.isDone();
+    }
+
+    /**
+     * Gets the extensions the server advertised in its EHLO reply. May be
+     * called from any thread.
+     *
+     * @return the capabilities of the server, none before the EHLO reply.
+     */
+    SmtpCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Fails the session if it has been waiting for the server for longer than
+     * the reply timeout, the time being counted from the last byte read or
+     * written. An idle session is never timed out.
+     *
+     * @param now                the value of System.nanoTime().
+     * @param replyTimeoutMillis the reply timeout in milliseconds.
+     */
+    void checkTimeout(long now, long replyTimeoutMillis) {
+        if (state == State.IDLE || state == State.CLOSED) {
+            return;
+        }
+        if (now - lastActivity > replyTimeoutMillis * 1_000_000) {
+            fail(new SocketTimeoutException("[SMTP Server] No reply within " + replyTimeoutMillis + " ms"));
+        }
+    }
+
+    /**
+     * Binds the session to its selection key.
+     *
+     * @param key       the key of the channel registered on the selector.
+     * @param connected whether the channel connected immediately.
+     */
+    void attach(SelectionKey key, boolean connected) {
+        this.key = key;
+        if (connected) {
+            state = State.GREETING;
+        }
+    }
+
+    /**
+     * Handles the events reported by the selector for this session.
+     *
+     * @param key the selection key of the session.
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (key.isConnectable() && channel.finishConnect()) {
+                state = State.GREETING;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Closes the session and fails every email that was not sent yet. Only
+     * the email whose message was being written may have been delivered, its
+     * outcome is unknown; the others are failed as temporary refusals. The
+     * session is closed normally if it was quitting.
+     *
+     * @param cause the reason the session is closed.
+     */
+    void fail(IOException cause) {
+        boolean quitting = state == State.QUIT;
+        boolean contentSent = state == State.CONTENT;
+        close();
+        ready.completeExceptionally(cause);
+        if (current != null) {
+            current.result().completeExceptionally(contentSent ? cause : unsent(cause));
+            current = null;
+        }
+        Transaction transaction;
+        while ((transaction = pending.poll()) != null) {
+            if (transaction.email() == null) {
+                quitting = true;
+            } else {
+                transaction.result().completeExceptionally(unsent(cause));
+            }
+        }
+        if (quitting) {
+            closed.complete(null);
+        } else {
+            closed.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Builds the error of an email the session failed before writing its
+     * message, so that it can be sent again.
+     *
+     * @param cause the reason the session failed.
+     * @return a temporary refusal (421).
+     */
+    private static SmtpDeliveryException unsent(IOException cause) {
+        return new SmtpDeliveryException(421, "[NIO] Session lost before the message was sent: "
+                + cause.getMessage());
+    }
+
+    /**
+     * Reads the available bytes and processes every complete reply line.
+     *
+     * @throws IOException if an I/O error occurs or the server closed the connection.
+     */
+    private void read() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            throw new IOException("[SMTP Server] Connection closed");
+        }
+        if (read > 0) {
+            lastActivity = System.nanoTime();
+        }
+
+        readBuffer.flip();
+        int lineStart = readBuffer.position();
+        for (int i = lineStart; i < readBuffer.limit() && state != State.CLOSED; i++) {
+            if (readBuffer.get(i) == '\n') {
+                boolean last = i - lineStart < 4 || readBuffer.get(lineStart + 3) != '-';
+                if (state == State.EHLO) {
+                    ehloLines.add(lineText(lineStart + 4, i));
+                }
+                if (last) {
+                    replyStart = lineStart;
+                    replyEnd = i;
+                    int code = SmtpCodec.parseCode(readBuffer, lineStart, i);
+                    SmtpMetrics.get().reply(code);
+                    onReply(code);
+                }
+                lineStart = i + 1;
+            }
+        }
+        readBuffer.position(lineStart);
+        readBuffer.compact();
+
+        if (!readBuffer.hasRemaining()) {
+            throw new IOException("[SMTP Server] Reply line too long");
+        }
+    }
+
+    /**
+     * Decodes the reply line being processed, without its line terminator. Only
+     * meant to be called when the text is needed, for instance to report an error.
+     *
+     * @return the reply line.
+     */
+    private String replyText() {
+        return lineText(replyStart, replyEnd);
+    }
+
+    /**
+     * Decodes part of a reply line of the read buffer, without its line terminator.
+     *
+     * @param start the index of the first byte.
+     * @param end   the index of the LF ending the line.
+     * @return the decoded text, empty if the line is shorter.
+     */
+    private String lineText(int start, int end) {
+        if (end > start && readBuffer.get(end - 1) == '\r') {
+            end--;
+        }
+        if (end <= start) {
+            return "";
+        }
+        byte[] line = new byte[end - start];
+        readBuffer.get(start, line);
+        return new String(line, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Advances the state machine with the status code of a server reply.
+     *
+     * @param code the status code of the reply.
+     * @throws IOException if the reply ends the session.
+     */
+    private void onReply(int code) throws IOException {
+        if (state.command != null) {
+            SmtpMetrics.get().record(state.command, commandStart);
+        }
+
+        switch (state) {
+            case GREETING -> {
+                expect(code, 220);
+                command(State.EHLO, "EHLO test");
+            }
+            case EHLO -> {
+                expect(code, 250);
+                capabilities = SmtpCapabilities.parse(ehloLines);
+                ehloLines.clear();
+                state = State.IDLE;
+                ready.complete(this);
+                startNextTransaction();
+            }
+            case MAIL -> {
+                if (accepted(code, 250)) {
+                    receiverIndex = 0;
+                    acceptedReceivers.clear();
+                    rejectedReceivers.clear();
+                    rejections.clear();
+                    sendNextReceiver();
+                }
+            }
+            case RCPT -> {
+                List<String> receivers = current.email().getReceivers();
+                String receiver = receivers.get(receiverIndex);
+                if (code == 250 || code == 251) {
+                    acceptedReceivers.add(receiver);
+                } else {
+                    if (rejections.isEmpty()) {
+                        rejectionCode = code;
+                    }
+                    if (code == 452 && !acceptedReceivers.isEmpty()) {
+                        // Recipient limit of the server reached: deliver to the accepted
+                        // recipients now, the others are left for another transaction
+                        rejections.add((receivers.size() - receiverIndex) + " recipients deferred: " + replyText());
+                        sendMessage();
+                        return;
+                    }
+                    // Only a permanent refusal is final, a temporary one (4xx) can be retried
+                    if (code >= 500) {
+                        rejectedReceivers.add(receiver);
+                    }
+                    rejections.add("<" + receiver + "> " + replyText());
+                }
+                receiverIndex++;
+                sendNextReceiver();
+            }
+            case DATA -> {
+                if (accepted(code, 354)) {
+                    write(State.CONTENT, content);
+                }
+            }
+            case CONTENT -> {
+                if (accepted(code, 250)) {
+                    if (!rejections.isEmpty()) {
+                        SmtpMetrics.get().messageSent(acceptedReceivers.size());
+                        current.result().completeExceptionally(new SmtpDeliveryException(rejectionCode,
+                                "[SMTP Server] Recipients rejected: " + rejections,
+                                List.copyOf(acceptedReceivers), List.copyOf(rejectedReceivers)));
+                    } else {
+                        SmtpMetrics.get().messageSent(current.email().getReceivers().size());
+                        current.result().complete(null);
+                    }
+                    current = null;
+                    state = State.IDLE;
+                    startNextTransaction();
+                }
+            }
+            case RESET -> {
+                expect(code, 250);
+                state = State.IDLE;
+                startNextTransaction();
+            }
+            case QUIT -> {
+                close();
+                closed.complete(null);
+            }
+            default -> throw new IOException("[SMTP Server] Unexpected reply: " + replyText());
+        }
+    }
+
+    /**
+     * Starts the next queued transaction if the session is idle.
+     */
+    private void startNextTransaction() {
+        if (state != State.IDLE || current != null) {
+            return;
+        }
+
+        Transaction transaction;
+        while ((transaction = pending.poll()) != null) {
+            if (transaction.email() == null) {
+                command(State.QUIT, "QUIT");
+                return;
+            }
+
+            // Per-email headers, then the shared pre-encoded body, in the form of the transfer mode
+            Email email = transaction.email();
+            Email.Rendering rendering = email.render(encoding, capabilities);
+            ByteBuffer[] payload = rendering.payload();
+            content = new ByteBuffer[payload.length + 1];
+            content[0] = ByteBuffer.wrap(rendering.headers());
+            System.arraycopy(payload, 0, content, 1, payload.length);
+            long size = rendering.size();
+            try {
+                capabilities.checkSize(size);
+            } catch (SmtpDeliveryException e) {
+                transaction.result().completeExceptionally(e);
+                continue;
+            }
+
+            current = transaction;
+            command(State.MAIL, "MAIL FROM:<" + email.getSender() + ">" + capabilities.mailParameters(size));
+            return;
+        }
+    }
+
+    /**
+     * Sends the RCPT TO command of the next receiver, or the message once
+     * every receiver has been answered. If none of them was accepted, the
+     * email fails without its message and the transaction is reset.
+     */
+    private void sendNextReceiver() {
+        List<String> receivers = current.email().getReceivers();
+        if (receiverIndex < receivers.size()) {
+            try {
+                write(State.RCPT, encodeCommand("RCPT TO:<", receivers, receiverIndex, ">"));
+            } catch (CharacterCodingException e) {
+                current.result().completeExceptionally(e);
+                current = null;
+                command(State.RESET, "RSET");
+            }
+        } else if (acceptedReceivers.isEmpty()) {
+            // Nothing is delivered, but the recipients refused for good need not be retried
+            current.result().completeExceptionally(new SmtpDeliveryException(rejectionCode,
+                    "[SMTP Server] Recipients rejected: " + rejections, List.of(), List.copyOf(rejectedReceivers)));
+            current = null;
+            command(State.RESET, "RSET");
+        } else {
+            sendMessage();
+        }
+    }
+
+    /**
+     * Sends the message: with CHUNKING, the BDAT command, the headers and the
+     * body in a single gathering write, otherwise the DATA command, the content
+     * following its 354 reply.
+     */
+    private void sendMessage() {
+        if (capabilities.chunking()) {
+            byte[] command = ("BDAT " + SmtpClient.remaining(content) + " LAST\r\n").getBytes(encoding);
+            ByteBuffer[] chunk = new ByteBuffer[content.length + 1];
+            chunk[0] = ByteBuffer.wrap(command);
+            System.arraycopy(content, 0, chunk, 1, content.length);
+            write(State.CONTENT, chunk);
+        } else {
+            command(State.DATA, "DATA");
+        }
+    }
+
+    /**
+     * Checks a reply of the current transaction. A rejected command fails the
+     * transaction and resets the session so that the next email can be sent.
+     *
+     * @param code     the status code of the reply.
+     * @param expected the expected status code.
+     * @return true if the reply has the expected status code.
+     */
+    private boolean accepted(int code, int expected) {
+        if (code == expected) {
+            return true;
+        }
+
+        current.result().completeExceptionally(new SmtpDeliveryException(code, replyText()));
+        current = null;
+        command(State.RESET, "RSET");
+        return false;
+    }
+
+    /**
+     * Checks a reply outside of a transaction.
+     *
+     * @param code     the status code of the reply.
+     * @param expected the expected status code.
+     * @throws IOException if the reply does not have the expected status code.
+     */
+    private void expect(int code, int expected) throws IOException {
+        if (code != expected) {
+            throw new IOException("[SMTP Server] " + replyText());
+        }
+    }
+
+    /**
+     * Queues a command and moves the state machine to the state waiting for its
+     * reply.
+     *
+     * @param next    the state waiting for the reply of the command.
+     * @param command the command, without its line terminator.
+     */
+    private void command(State next, String command) {
+        write(next, ByteBuffer.wrap((command + "\r\n").getBytes(encoding)));
+    }
+
+    /**
+     * Encodes a command line whose argument is an address of a list into the
+     * reusable command buffer, through the same helper as SmtpCodec, so that
+     * the address of an AddressList is copied straight from its arena. The
+     * buffer grows if the line does not fit.
+     *
+     * @param prefix    the start of the command.
+     * @param addresses the list holding the address.
+     * @param index     the index of the address in the list.
+     * @param suffix    the end of the command, without its line terminator.
+     * @return the command buffer, ready to be written.
+     * @throws CharacterCodingException if the address cannot be encoded.
+     */
+    private ByteBuffer encodeCommand(String prefix, List<String> addresses, int index, String suffix)
+            throws CharacterCodingException {
+        while (true) {
+            try {
+                SmtpCodec.encodeCommand(commandBuffer.clear(), encoder, asciiCompatible, prefix, addresses, index, suffix);
+                return commandBuffer.flip();
+            } catch (BufferOverflowException e) {
+                commandBuffer = ByteBuffer.allocate(commandBuffer.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * Queues raw output and moves the state machine to the state waiting for the
+     * server reply. The latency of the command is measured from this call.
+     *
+     * @param next    the state waiting for the reply.
+     * @param buffers the bytes to send, line terminators included.
+     */
+    private void write(State next, ByteBuffer... buffers) {
+        state = next;
+        commandStart = System.nanoTime();
+        lastActivity = commandStart;
+        writeQueue.addAll(Arrays.asList(buffers));
+        try {
+            flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes as much of the queued output as the channel accepts, with a single
+     * gathering write, and asks the selector for write readiness if some output
+     * is left.
+     *
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    private void flush() throws IOException {
+        if (!writeQueue.isEmpty()) {
+            long written = channel.write(writeQueue.toArray(new ByteBuffer[0]));
+            if (written > 0) {
+                lastActivity = System.nanoTime();
+            }
+            SmtpMetrics.get().bytesSent(written);
+        }
+        while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+            writeQueue.poll();
+        }
+        key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Closes the channel, which also cancels its selection key.
+     */
+    private void close() {
+        state = State.CLOSED;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // The session is closed anyway
+        }
+    }
+}
@@ -0,0 +1,737 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Crash-safe journal of the emails of a campaign, kept in an append-only
+ * memory-mapped file. Every email is journaled before being sent, and the
+ * outcome of each of its recipients (accepted or rejected for good) once the
+ * server answered. When the application is restarted after a crash, the
+ * journal is replayed and only the recipients without an outcome are sent
+ * again. The journal starts with a description of its campaign: if the
+ * campaign stopped before all of its emails were journaled, it is generated
+ * again from the same inputs and its recipients not journaled yet are sent
+ * after the outstanding ones.
+ * <p>
+ * Records are framed with their length and a CRC32C checksum, so a record
+ * torn by a crash is detected and ignored. Appending only copies bytes into the
+ * mapping. Forcing them to the disk is left to a flusher thread, which
+ * commits all the records appended since its previous pass at once (group
+ * commit), according to the durability level:
+ * <ul>
+ *     <li>none: never forced, the records survive a crash of the application
+ *     but not of the operating system;</li>
+ *     <li>batch: forced in the background every FLUSH_INTERVAL_MILLIS;</li>
+ *     <li>sync: the sender of an email waits until its outcome is forced.</li>
+ * </ul>
+ */
+class OutboundSpool implements Closeable {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final int MAGIC = 0x53504F4C; // "SPOL"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 9; // length, checksum, type
+    private static final int INITIAL_MAPPING_SIZE = 4 * 1024 * 1024;
+    private static final long FLUSH_INTERVAL_MILLIS = 10;
+
+    private static final byte MESSAGE = 1;
+    private static final byte QUEUED = 2;
+    private static final byte OUTCOME = 3;
+    private static final byte END = 4;
+    private static final byte CAMPAIGN = 5;
+
+    private static final byte PENDING = 0;
+    private static final byte ACCEPTED = 1;
+    private static final byte REJECTED = 2;
+
+    /**
+     * An email journaled but not fully sent, with the state of each of its
+     * recipients.
+     */
+    private record Entry(long id, Email email, byte[] statuses) { }
+
+    /**
+     * An email being sent, along with its journal id and its full list of
+     * recipients (the email may only hold the ones still pending).
+     */
+    private record InFlight(long id, List<String> receivers) { }
+
+    private final Path file;
+    private final ConfigLoader.SPOOL_DURABILITY durability;
+    private final FileChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition forced = lock.newCondition();
+    private final CRC32C checksum = new CRC32C();
+    private final Map<Message, Integer> messageIds = new IdentityHashMap<>();
+    private final Map<Email, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();
+    private final Set<String> journaled = new HashSet<>();
+
+    private MappedByteBuffer mapping;
+    private int writePosition;
+    private int forcedPosition;
+    private long nextId;
+    private int nextMessageId;
+    private String campaign;
+    private boolean complete;
+    private boolean closed;
+    private Thread flusher;
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Opens a journal, creating it if needed, and replays its records.
+     *
+     * @param file       the journal file.
+     * @param durability when the records are forced to the disk.
+     * @throws IOException if the file cannot be opened or is not a journal.
+     */
+    OutboundSpool(Path file, ConfigLoader.SPOOL_DURABILITY durability) throws IOException {
+        this.file = file;
+        this.durability = durability;
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            map(Math.max(INITIAL_MAPPING_SIZE, channel.size()));
+            if (channel.size() == 0 || mapping.getInt(0) == 0) {
+                writeFileHeader();
+            } else if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION) {
+                throw new IOException("[Spool] Not a spool file: " + file);
+            }
+            replay();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        if (durability != ConfigLoader.SPOOL_DURABILITY.none) {
+            flusher = Thread.ofPlatform().daemon().name("spool-flusher").start(this::flushLoop);
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Tells whether the journal holds emails that were not sent to all of
+     * their recipients.
+     *
+     * @return true if a previous campaign has to be resumed.
+     */
+    boolean hasOutstanding() {
+        return !entries.isEmpty();
+    }
+
+    /**
+     * Tells whether the previous campaign journaled all of its emails before
+     * stopping. If not, the emails it did not reach are not in the journal and
+     * cannot be resumed.
+     *
+     * @return true if the journal holds the whole previous campaign.
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Tells whether the journal holds a campaign that stopped before all of
+     * its emails were journaled. Such a campaign is resumed by generating it
+     * again and passing its emails to queue().
+     *
+     * @return true if the campaign has to be generated again to be completed.
+     */
+    boolean isInterrupted() {
+        return campaign != null && !complete;
+    }
+
+    /**
+     * Gets the description of the campaign of the journal, to check that it
+     * is generated again from the same inputs.
+     *
+     * @return the description given to startCampaign, null if there is none.
+     */
+    String getCampaign() {
+        return campaign;
+    }
+
+    /**
+     * Gets the number of emails that were not sent to all of their recipients.
+     *
+     * @return the number of outstanding emails.
+     */
+    int getOutstandingCount() {
+        return entries.size();
+    }
+
+    /**
+     * Iterates over the outstanding emails, each one reduced to the recipients
+     * that have no outcome yet. Their outcomes are journaled with completed().
+     *
+     * @return the outstanding emails.
+     */
+    Iterator<Email> outstanding() {
+        Iterator<Entry> pending = new ArrayList<>(entries.values()).iterator();
+        entries.clear();
+
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return pending.hasNext();
+            }
+
+            @Override
+            public Email next() {
+                Entry entry = pending.next();
+                List<String> receivers = entry.email().getReceivers();
+                List<String> remaining = new ArrayList<>(receivers.size());
+                for (int i = 0; i < receivers.size(); i++) {
+                    if (entry.statuses()[i] == PENDING) {
+                        remaining.add(receivers.get(i));
+                    }
+                }
+
+                Email email = remaining.size() == receivers.size()
+                        ? entry.email()
+                        : new Email(entry.email().getSender(), remaining, entry.email().getMessage());
+                inFlight.put(email, new InFlight(entry.id(), receivers));
+                return email;
+            }
+        };
+    }
+
+    /**
+     * Starts a new campaign, discarding the journal of the previous one.
+     *
+     * @param campaign the description of the inputs the campaign is generated from.
+     */
+    void startCampaign(String campaign) {
+        lock.lock();
+        try {
+            // Zeroed rather than truncated, since the file is still mapped
+            for (int i = 0; i < writePosition; i++) {
+                mapping.put(i, (byte) 0);
+            }
+            if (durability != ConfigLoader.SPOOL_DURABILITY.none) {
+                mapping.force();
+            }
+            writeFileHeader();
+            messageIds.clear();
+            entries.clear();
+            journaled.clear();
+            nextId = 0;
+            nextMessageId = 0;
+            complete = false;
+            this.campaign = campaign;
+            byte[] description = campaign.getBytes(StandardCharsets.UTF_8);
+            append(CAMPAIGN, 4 + description.length, buffer -> putBytes(buffer, description));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Journals the emails of the campaign as they are generated, before they
+     * are sent. When an interrupted campaign is resumed, its outstanding emails
+     * come first, and the generated emails are reduced to the recipients that
+     * were not journaled yet, so that no recipient gets the same email twice.
+     * Once the generated emails are exhausted, the journal is marked complete.
+     *
+     * @param emails the generated emails.
+     * @return the outstanding emails, then the generated ones, journaled on the fly.
+     */
+    Iterator<Email> queue(Iterator<Email> emails) {
+        Iterator<Email> resumed = outstanding();
+
+        return new Iterator<>() {
+            private Email next;
+
+            @Override
+            public boolean hasNext() {
+                if (resumed.hasNext() || next != null) {
+                    return true;
+                }
+                while (next == null && emails.hasNext()) {
+                    next = notJournaled(emails.next());
+                }
+                if (next != null) {
+                    return true;
+                }
+                if (!complete) {
+                    complete = true;
+                    journaled.clear();
+                    append(END, 0, buffer -> { });
+                }
+                return false;
+            }
+
+            @Override
+            public Email next() {
+                if (resumed.hasNext()) {
+                    return resumed.next();
+                }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Email email = next;
+                next = null;
+                inFlight.put(email, new InFlight(queued(email), email.getReceivers()));
+                return email;
+            }
+        };
+    }
+
+    /**
+     * Journals the outcome of an email. Recipients accepted by the server, or
+     * rejected for good, will not be sent again. If the outcome is unknown
+     * (connection error, temporary failure), nothing is journaled and the
+     * email will be sent again on the next run. With the sync durability, waits
+     * until the outcome is forced to the disk.
+     *
+     * @param email the email that was sent.
+     * @param error the error it failed with, null if it was accepted.
+     */
+    void completed(Email email, Throwable error) {
+        InFlight sent = inFlight.remove(email);
+        if (sent == null) {
+            return;
+        }
+
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+
+        byte[] statuses = new byte[sent.receivers().size()];
+        if (error == null) {
+            mark(statuses, sent.receivers(), email.getReceivers(), ACCEPTED);
+        } else if (error instanceof SmtpDeliveryException refusal) {
+            if (refusal.getAccepted().isEmpty() && refusal.getRejected().isEmpty()) {
+                if (!refusal.isPermanent()) {
+                    return;
+                }
+                mark(statuses, sent.receivers(), email.getReceivers(), REJECTED);
+            } else {
+                mark(statuses, sent.receivers(), refusal.getAccepted(), ACCEPTED);
+                mark(statuses, sent.receivers(), refusal.getRejected(), REJECTED);
+            }
+        } else {
+            return;
+        }
+
+        int end = append(OUTCOME, 8 + 4 + statuses.length, buffer -> {
+            buffer.putLong(sent.id());
+            buffer.putInt(statuses.length);
+            buffer.put(statuses);
+        });
+        if (durability == ConfigLoader.SPOOL_DURABILITY.sync) {
+            awaitForced(end);
+        }
+    }
+
+    /**
+     * Forces the journal to the disk, stops the flusher and trims the file to
+     * its content.
+     *
+     * @throws IOException if the journal cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (durability != ConfigLoader.SPOOL_DURABILITY.none) {
+            mapping.force();
+        }
+        mapping = null;
+        try {
+            channel.truncate(writePosition);
+        } catch (IOException e) {
+            // Some systems refuse to truncate a mapped file, the zeroed tail is ignored by the replay anyway
+        }
+        channel.close();
+    }
+
+    /**
+     * Journals a new email, and its message the first time it is used.
+     *
+     * @param email the email about to be sent.
+     * @return the id of the email in the journal.
+     */
+    private long queued(Email email) {
+        int messageId = messageId(email.getMessage());
+        byte[] sender = email.getSender().getBytes(StandardCharsets.UTF_8);
+        List<byte[]> receivers = new ArrayList<>(email.getReceivers().size());
+        int size = 8 + 4 + 4 + sender.length + 4;
+        for (String receiver : email.getReceivers()) {
+            byte[] bytes = receiver.getBytes(StandardCharsets.UTF_8);
+            receivers.add(bytes);
+            size += 4 + bytes.length;
+        }
+
+        lock.lock();
+        try {
+            long id = nextId++;
+            append(QUEUED, size, buffer -> {
+                buffer.putLong(id);
+                buffer.putInt(messageId);
+                putBytes(buffer, sender);
+                buffer.putInt(receivers.size());
+                for (byte[] receiver : receivers) {
+                    putBytes(buffer, receiver);
+                }
+            });
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the id of a message in the journal, journaling the message the
+     * first time it is used.
+     *
+     * @param message the message of an email.
+     * @return the id of the message.
+     */
+    private int messageId(Message message) {
+        lock.lock();
+        try {
+            Integer messageId = messageIds.get(message);
+            if (messageId != null) {
+                return messageId;
+            }
+
+            int id = nextMessageId++;
+            messageIds.put(message, id);
+            byte[] subject = message.getSubject().getBytes(StandardCharsets.UTF_8);
+            byte[] body = message.getBody().getBytes(StandardCharsets.UTF_8);
+            append(MESSAGE, 4 + 4 + subject.length + 4 + body.length, buffer -> {
+                buffer.putInt(id);
+                putBytes(buffer, subject);
+                putBytes(buffer, body);
+            });
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record to the journal: its length and checksum, its type and
+     * its payload.
+     *
+     * @param type        the type of the record.
+     * @param payloadSize the size of the payload, in bytes.
+     * @param payload     writes the payload into the journal.
+     * @return the position of the end of the record in the journal.
+     * @throws UncheckedIOException if the journal cannot be extended.
+     */
+    private int append(byte type, int payloadSize, Consumer<ByteBuffer> payload) {
+        lock.lock();
+        try {
+            int recordSize = RECORD_HEADER_SIZE + payloadSize;
+            if (writePosition + recordSize > mapping.capacity()) {
+                // Force the full mapping before replacing it by a larger one
+                mapping.force();
+                map(Math.max((long) mapping.capacity() * 2, (long) writePosition + recordSize));
+            }
+
+            ByteBuffer record = mapping.slice(writePosition, recordSize);
+            record.position(8).put(type);
+            payload.accept(record);
+
+            checksum.reset();
+            checksum.update(record.flip().position(8));
+            mapping.putInt(writePosition + 4, (int) checksum.getValue());
+            mapping.putInt(writePosition, payloadSize);
+
+            writePosition += recordSize;
+            appended.signal();
+            return writePosition;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the journal is forced to the disk up to a position. The
+     * waiting threads are released together by a single force.
+     *
+     * @param position the position to wait for.
+     */
+    private void awaitForced(int position) {
+        lock.lock();
+        try {
+            while (forcedPosition < position && !closed) {
+                forced.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the appended records to the disk until the journal is closed. With
+     * the batch durability, waits FLUSH_INTERVAL_MILLIS between two forces so
+     * that each of them commits many records.
+     */
+    private void flushLoop() {
+        while (true) {
+            MappedByteBuffer target;
+            int from;
+            int to;
+            lock.lock();
+            try {
+                while (writePosition == forcedPosition && !closed) {
+                    appended.awaitUninterruptibly();
+                }
+                if (closed) {
+                    forced.signalAll();
+                    return;
+                }
+                target = mapping;
+                from = forcedPosition;
+                to = writePosition;
+            } finally {
+                lock.unlock();
+            }
+
+            target.force(from, to - from);
+
+            lock.lock();
+            try {
+                forcedPosition = Math.max(forcedPosition, to);
+                forced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            if (durability == ConfigLoader.SPOOL_DURABILITY.batch) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(FLUSH_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the records of the journal, rebuilding the outstanding emails,
+     * until the end of the journal or the first torn record.
+     *
+     * @throws IOException if the journal refers to an unknown message or email.
+     */
+    private void replay() throws IOException {
+        Map<Integer, Message> messages = new HashMap<>();
+        int position = FILE_HEADER_SIZE;
+
+        while (position + RECORD_HEADER_SIZE <= mapping.capacity()) {
+            int payloadSize = mapping.getInt(position);
+            int recordSize = RECORD_HEADER_SIZE + payloadSize;
+            if (payloadSize < 0 || position + recordSize > mapping.capacity() || mapping.get(position + 8) == 0) {
+                break;
+            }
+
+            ByteBuffer record = mapping.slice(position + 8, recordSize - 8);
+            checksum.reset();
+            checksum.update(record.duplicate());
+            if ((int) checksum.getValue() != mapping.getInt(position + 4)) {
+                break;
+            }
+
+            byte type = record.get();
+            switch (type) {
+                case MESSAGE -> {
+                    int id = record.getInt();
+                    messages.put(id, new Message(getString(record), getString(record)));
+                    nextMessageId = Math.max(nextMessageId, id + 1);
+                }
+                case QUEUED -> {
+                    long id = record.getLong();
+                    Message message = messages.get(record.getInt());
+                    if (message == null) {
+                        throw new IOException("[Spool] Unknown message in " + file);
+                    }
+                    String sender = getString(record);
+                    int nbReceivers = record.getInt();
+                    List<String> receivers = new ArrayList<>(nbReceivers);
+                    for (int i = 0; i < nbReceivers; i++) {
+                        receivers.add(getString(record));
+                        journaled.add(key(sender, receivers.get(i)));
+                    }
+                    entries.put(id, new Entry(id, new Email(sender, receivers, message), new byte[nbReceivers]));
+                    nextId = Math.max(nextId, id + 1);
+                }
+                case OUTCOME -> {
+                    Entry entry = entries.get(record.getLong());
+                    int nbStatuses = record.getInt();
+                    if (entry == null || nbStatuses != entry.statuses().length) {
+                        throw new IOException("[Spool] Unknown email in " + file);
+                    }
+                    for (int i = 0; i < nbStatuses; i++) {
+                        byte status = record.get();
+                        if (status != PENDING) {
+                            entry.statuses()[i] = status;
+                        }
+                    }
+                }
+                case END -> complete = true;
+                case CAMPAIGN -> campaign = getString(record);
+                default -> throw new IOException("[Spool] Unknown record in " + file);
+            }
+            position += recordSize;
+        }
+
+        writePosition = position;
+        forcedPosition = position;
+
+        // Drop the torn tail of a crashed run, if any, so it cannot be mistaken for records later
+        long end = Math.min(mapping.capacity(), channel.size());
+        for (int i = position; i < end; i++) {
+            mapping.put(i, (byte) 0);
+        }
+
+        if (complete) {
+            journaled.clear();
+        }
+        entries.values().removeIf(entry -> {
+            for (byte status : entry.statuses()) {
+                if (status == PENDING) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Maps the beginning of the journal, extending the file if needed.
+     *
+     * @param size the size of the mapping, in bytes.
+     * @throws IOException if the file cannot be mapped.
+     */
+    private void map(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("[Spool] Journal too large: " + file);
+        }
+        mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Writes the header identifying the file as a journal.
+     */
+    private void writeFileHeader() {
+        mapping.putInt(0, MAGIC);
+        mapping.putInt(4, VERSION);
+        writePosition = FILE_HEADER_SIZE;
+        forcedPosition = 0;
+    }
+
+    /**
+     * Reduces a generated email to the recipients that were not journaled by
+     * the interrupted run of its campaign.
+     *
+     * @param email the generated email.
+     * @return the email, reduced if needed, or null if all its recipients were journaled.
+     */
+    private Email notJournaled(Email email) {
+        if (journaled.isEmpty()) {
+            return email;
+        }
+        List<String> remaining = new ArrayList<>(email.getReceivers().size());
+        for (String receiver : email.getReceivers()) {
+            if (!journaled.contains(key(email.getSender(), receiver))) {
+                remaining.add(receiver);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return null;
+        }
+        return remaining.size() == email.getReceivers().size()
+                ? email
+                : new Email(email.getSender(), remaining, email.getMessage());
+    }
+
+    /**
+     * Identifies a recipient of a campaign: an address may be in several
+     * groups, but only once with the same sender.
+     *
+     * @param sender   the sender of the email.
+     * @param receiver the recipient.
+     * @return the key of the recipient.
+     */
+    private static String key(String sender, String receiver) {
+        return sender + '\n' + receiver;
+    }
+
+    /**
+     * Sets the status of some recipients of an email.
+     *
+     * @param statuses   the statuses of all the recipients of the email.
+     * @param receivers  all the recipients of the email.
+     * @param recipients the recipients whose status is set.
+     * @param status     the status to set.
+     */
+    private static void mark(byte[] statuses, List<String> receivers, List<String> recipients, byte status) {
+        for (String recipient : recipients) {
+            int index = receivers.indexOf(recipient);
+            if (index >= 0) {
+                statuses[index] = status;
+            }
+        }
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
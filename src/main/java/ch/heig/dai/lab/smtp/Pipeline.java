@@ -0,0 +1,364 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Chain of stages connected by bounded queues, so that reading the victims,
+ * building the emails, rendering them and sending them overlap instead of
+ * running one after the other. Each stage runs its own workers, which take items from the
+ * previous stage, map each to zero or more items and put them in the stage's
+ * output queue; the last queue is read as an Iterator by the sender. When a
+ * downstream stage is slower, the queue in front of it fills up and the
+ * workers upstream block on it, so a slow relay throttles the whole chain and
+ * the items in memory never exceed the queue capacities. The depth of every
+ * queue and the time spent blocked on a full queue or waiting on an empty one
+ * are measured, exported over JMX and printed as a summary.
+ */
+public class Pipeline implements PipelineMXBean, Closeable {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final String OBJECT_NAME = "ch.heig.dai.lab.smtp:type=Pipeline";
+    private static final Object END = new Object();
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /**
+     * A stage: its workers, its output queue and its counters.
+     */
+    private static final class Stage {
+        private final String name;
+        private final int parallelism;
+        private final BlockingQueue<Object> queue;
+        private final AtomicInteger running;
+        private final LongAdder items = new LongAdder();
+        private final LongAdder blockedNanos = new LongAdder();
+        private final LongAdder starvedNanos = new LongAdder();
+        private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+        private volatile RuntimeException error;
+
+        /**
+         * Constructs a stage.
+         *
+         * @param name        the name of the stage.
+         * @param parallelism the number of workers of the stage.
+         * @param capacity    the capacity of the output queue.
+         */
+        private Stage(String name, int parallelism, int capacity) {
+            this.name = name;
+            this.parallelism = parallelism;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.running = new AtomicInteger(parallelism);
+        }
+
+        /**
+         * Puts an item in the output queue, waiting for room if it is full.
+         *
+         * @param item the item, or END.
+         * @throws InterruptedException if the worker is interrupted while waiting.
+         */
+        private void put(Object item) throws InterruptedException {
+            if (!queue.offer(item)) {
+                long start = System.nanoTime();
+                queue.put(item);
+                blockedNanos.add(System.nanoTime() - start);
+            }
+            maxDepth.accumulate(queue.size());
+        }
+
+        /**
+         * Takes an item from the output queue, waiting for one if it is empty.
+         *
+         * @return the item, or END.
+         * @throws InterruptedException if the consumer is interrupted while waiting.
+         */
+        private Object take() throws InterruptedException {
+            Object item = queue.poll();
+            if (item == null) {
+                long start = System.nanoTime();
+                item = queue.take();
+                starvedNanos.add(System.nanoTime() - start);
+            }
+            return item;
+        }
+    }
+
+    private final int capacity;
+    private final List<Stage> stages = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs an empty pipeline.
+     *
+     * @param capacity the capacity of the output queue of every stage.
+     * @throws IllegalArgumentException if the capacity is less than 1.
+     */
+    public Pipeline(int capacity) throws IllegalArgumentException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Pipeline queue size must be at least 1.");
+        }
+        this.capacity = capacity;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Registers the pipeline on the platform MBean server, replacing a
+     * pipeline registered before.
+     *
+     * @throws JMException if the MBean cannot be registered.
+     */
+    public void register() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        var server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * Adds a stage and starts its workers. The workers share the input, one
+     * of them taking an item at a time, so the input does not have to be
+     * thread-safe; with several workers, the items may leave the stage in
+     * another order. A worker failing on an item ends the stage, the error
+     * being thrown to the consumer once the items produced before it are
+     * consumed.
+     *
+     * @param name        the name of the stage, in the metrics.
+     * @param input       the items to process, for instance the output of the previous stage.
+     * @param parallelism the number of workers of the stage.
+     * @param map         maps an item to the items to pass downstream.
+     * @param <I>         the type of the input items.
+     * @param <O>         the type of the output items.
+     * @return the output of the stage, to be read by a single consumer.
+     * @throws IllegalArgumentException if the parallelism is less than 1.
+     */
+    public <I, O> Iterator<O> stage(String name, Iterator<I> input, int parallelism,
+                                    Function<? super I, ? extends Iterable<? extends O>> map)
+            throws IllegalArgumentException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Stage " + name + " needs at least 1 worker.");
+        }
+        Stage stage = new Stage(name, parallelism, capacity);
+        stages.add(stage);
+
+        for (int i = 0; i < parallelism; i++) {
+            workers.add(Thread.ofPlatform().name("pipeline-" + name + "-" + i).daemon()
+                    .start(() -> work(stage, input, map)));
+        }
+        return output(stage);
+    }
+
+    /**
+     * Body of a worker: processes items until the input is exhausted, an item
+     * fails or the pipeline is closed. The last worker to stop ends the
+     * output of the stage.
+     *
+     * @param stage the stage of the worker.
+     * @param input the shared input of the stage.
+     * @param map   maps an item to the items to pass downstream.
+     * @param <I>   the type of the input items.
+     * @param <O>   the type of the output items.
+     */
+    private static <I, O> void work(Stage stage, Iterator<I> input,
+                                    Function<? super I, ? extends Iterable<? extends O>> map) {
+        try {
+            while (stage.error == null) {
+                I item;
+                synchronized (input) {
+                    if (!input.hasNext()) {
+                        break;
+                    }
+                    item = input.next();
+                }
+                for (O output : map.apply(item)) {
+                    stage.put(output);
+                    stage.items.increment();
+                }
+            }
+        } catch (RuntimeException e) {
+            if (stage.error == null) {
+                stage.error = e;
+            }
+        } catch (InterruptedException e) {
+            // Pipeline closed
+            return;
+        }
+
+        if (stage.running.decrementAndGet() == 0) {
+            try {
+                stage.put(END);
+            } catch (InterruptedException ignored) {
+                // Pipeline closed
+            }
+        }
+    }
+
+    /**
+     * Reads the output queue of a stage as an iterator.
+     *
+     * @param stage the stage.
+     * @param <O>   the type of the output items.
+     * @return the output of the stage.
+     */
+    private static <O> Iterator<O> output(Stage stage) {
+        return new Iterator<>() {
+            private Object next;
+            private boolean ended;
+
+            @Override
+            public boolean hasNext() {
+                if (next != null) {
+                    return true;
+                }
+                if (ended) {
+                    return false;
+                }
+                try {
+                    next = stage.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the " + stage.name + " stage.", e);
+                }
+                if (next == END) {
+                    next = null;
+                    ended = true;
+                    if (stage.error != null) {
+                        throw stage.error;
+                    }
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public O next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                O item = (O) next;
+                next = null;
+                return item;
+            }
+        };
+    }
+
+    /**
+     * Stops every worker still running, for instance when the consumer gave
+     * up on the output.
+     */
+    @Override
+    public void close() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Gets the number of items waiting in the output queue of each stage.
+     *
+     * @return the queue depths, by stage.
+     */
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        stages.forEach(stage -> depths.put(stage.name, stage.queue.size()));
+        return depths;
+    }
+
+    /**
+     * Gets the largest number of items seen in the output queue of each stage.
+     *
+     * @return the maximum queue depths, by stage.
+     */
+    @Override
+    public Map<String, Integer> getMaxQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        stages.forEach(stage -> depths.put(stage.name, stage.maxDepth.intValue()));
+        return depths;
+    }
+
+    /**
+     * Gets the number of items produced by each stage.
+     *
+     * @return the item counts, by stage.
+     */
+    @Override
+    public Map<String, Long> getItems() {
+        Map<String, Long> items = new LinkedHashMap<>();
+        stages.forEach(stage -> items.put(stage.name, stage.items.sum()));
+        return items;
+    }
+
+    /**
+     * Gets the time the workers of each stage spent blocked on their full
+     * output queue, summed over the workers.
+     *
+     * @return the blocked time in seconds, by stage.
+     */
+    @Override
+    public Map<String, Double> getBlockedSeconds() {
+        Map<String, Double> seconds = new LinkedHashMap<>();
+        stages.forEach(stage -> seconds.put(stage.name, stage.blockedNanos.sum() / NANOS_PER_SECOND));
+        return seconds;
+    }
+
+    /**
+     * Gets the time the consumers of each stage spent waiting on its empty
+     * output queue.
+     *
+     * @return the starved time in seconds, by stage.
+     */
+    @Override
+    public Map<String, Double> getStarvedSeconds() {
+        Map<String, Double> seconds = new LinkedHashMap<>();
+        stages.forEach(stage -> seconds.put(stage.name, stage.starvedNanos.sum() / NANOS_PER_SECOND));
+        return seconds;
+    }
+
+    /**
+     * Prints a summary of every stage: workers, items produced, largest queue
+     * depth, time its workers were blocked by the stage downstream and time
+     * the stage downstream waited for it.
+     *
+     * @param out the stream to print to.
+     */
+    public void printSummary(PrintStream out) {
+        if (stages.isEmpty()) {
+            return;
+        }
+        out.printf("[Pipeline] %-8s %8s %10s %10s %10s %10s%n",
+                "Stage", "Workers", "Items", "Max queue", "Blocked s", "Starved s");
+        for (Stage stage : stages) {
+            out.printf("[Pipeline] %-8s %8d %10d %10d %10.3f %10.3f%n", stage.name, stage.parallelism,
+                    stage.items.sum(), stage.maxDepth.intValue(),
+                    stage.blockedNanos.sum() / NANOS_PER_SECOND, stage.starvedNanos.sum() / NANOS_PER_SECOND);
+        }
+    }
+}
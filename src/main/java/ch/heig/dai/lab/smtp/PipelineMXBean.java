@@ -0,0 +1,55 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.util.Map;
+
+/**
+ * Management interface of Pipeline, readable with any JMX client under the
+ * name "ch.heig.dai.lab.smtp:type=Pipeline". Every map is keyed by stage name,
+ * in pipeline order. A stage whose consumers wait a lot is the bottleneck; a
+ * stage whose workers are blocked a lot is throttled by a slower stage
+ * downstream. It has to be public for the platform MBean server to introspect
+ * it.
+ */
+public interface PipelineMXBean {
+    /**
+     * Gets the number of items waiting in the output queue of each stage.
+     *
+     * @return the queue depths, by stage.
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * Gets the largest number of items seen in the output queue of each stage.
+     *
+     * @return the maximum queue depths, by stage.
+     */
+    Map<String, Integer> getMaxQueueDepths();
+
+    /**
+     * Gets the number of items produced by each stage.
+     *
+     * @return the item counts, by stage.
+     */
+    Map<String, Long> getItems();
+
+    /**
+     * Gets the time the workers of each stage spent blocked on their full
+     * output queue, summed over the workers.
+     *
+     * @return the blocked time in seconds, by stage.
+     */
+    Map<String, Double> getBlockedSeconds();
+
+    /**
+     * Gets the time the consumers of each stage spent waiting on its empty
+     * output queue.
+     *
+     * @return the starved time in seconds, by stage.
+     */
+    Map<String, Double> getStarvedSeconds();
+}
@@ -0,0 +1,179 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Consistent hash ring mapping recipient domains to relays. Each relay owns
+ * VIRTUAL_NODES_PER_WEIGHT points per unit of weight on the ring, and a domain
+ * is routed to the owner of the first point at or after its hash. A relay
+ * marked down is skipped, so only the domains it owned move to other relays,
+ * and only until its retry delay expires: its domains are then routed to it
+ * again, which probes it with real traffic, and it is either marked up by the
+ * first email it delivers or marked down for another delay. The ring is immutable apart from the
+ * relay states, so lookups need no locking.
+ */
+class RelayRing {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final int VIRTUAL_NODES_PER_WEIGHT = 128;
+    private static final long RELAY_RETRY_DELAY_MILLIS = 30_000;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final List<SmtpRelay> relays;
+    private final long[] points;
+    private final int[] owners;
+    private final AtomicLongArray downUntil;
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Builds the ring of the given relays.
+     *
+     * @param relays the relays, at least one.
+     * @throws IllegalArgumentException if there is no relay.
+     */
+    RelayRing(List<SmtpRelay> relays) throws IllegalArgumentException {
+        if (relays.isEmpty()) {
+            throw new IllegalArgumentException("At least one relay is required.");
+        }
+
+        this.relays = List.copyOf(relays);
+        this.downUntil = new AtomicLongArray(relays.size());
+
+        int nbPoints = 0;
+        for (SmtpRelay relay : relays) {
+            nbPoints += relay.weight() * VIRTUAL_NODES_PER_WEIGHT;
+        }
+
+        // Sort the points by hash, keeping each point with its owner
+        long[][] ring = new long[nbPoints][];
+        int index = 0;
+        for (int r = 0; r < relays.size(); r++) {
+            SmtpRelay relay = relays.get(r);
+            for (int i = 0; i < relay.weight() * VIRTUAL_NODES_PER_WEIGHT; i++) {
+                ring[index++] = new long[]{hash(relay + "#" + i), r};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+
+        this.points = new long[nbPoints];
+        this.owners = new int[nbPoints];
+        for (int i = 0; i < nbPoints; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Gets the relays of the ring, in the order of their indexes.
+     *
+     * @return the relays.
+     */
+    List<SmtpRelay> getRelays() {
+        return relays;
+    }
+
+    /**
+     * Finds the relay of a recipient, from the domain of its address.
+     *
+     * @param address the email address of the recipient.
+     * @return the index of the relay, or -1 if every relay is down.
+     */
+    int route(String address) {
+        int start = Arrays.binarySearch(points, hashDomain(address));
+        if (start < 0) {
+            start = -start - 1;
+        }
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < points.length; i++) {
+            int owner = owners[(start + i) % points.length];
+            if (downUntil.get(owner) <= now) {
+                return owner;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks a relay down: its domains are routed to the other relays until the
+     * retry delay expires.
+     *
+     * @param relay the index of the relay.
+     * @return true if the relay was up, false if it was already marked down.
+     */
+    boolean markDown(int relay) {
+        long now = System.currentTimeMillis();
+        return downUntil.getAndSet(relay, now + RELAY_RETRY_DELAY_MILLIS) <= now;
+    }
+
+    /**
+     * Marks a relay up again, once it delivered an email.
+     *
+     * @param relay the index of the relay.
+     * @return true if the relay was marked down, false if it was already up.
+     */
+    boolean markUp(int relay) {
+        // Read first, so that the relays that never failed cost no write
+        return downUntil.get(relay) != 0 && downUntil.getAndSet(relay, 0) != 0;
+    }
+
+    /**
+     * Hashes the domain of an email address, ignoring its case, without
+     * extracting it as a String.
+     *
+     * @param address the email address.
+     * @return the hash of the part after the last "@".
+     */
+    private static long hashDomain(String address) {
+        int at = address.lastIndexOf('@');
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = at + 1; i < address.length(); i++) {
+            hash = (hash ^ Character.toLowerCase(address.charAt(i))) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Hashes a string.
+     *
+     * @param value the string to hash.
+     * @return the hash of the string.
+     */
+    private static long hash(String value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Spreads the bits of an FNV-1a hash over the whole ring (finalizer of
+     * MurmurHash3).
+     *
+     * @param hash the hash to mix.
+     * @return the mixed hash.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When and how long to wait before sending again an email the SMTP server
+ * refused temporarily (4xx reply), entirely or for some of its recipients.
+ * The delay doubles with every retry, up to MAX_DELAY_MILLIS, and is drawn at
+ * random between half and all of it, so that emails refused together by a
+ * busy server do not all come back at the same time. Recipients left over by
+ * the recipient limit of the server, or by the refusal for good of another
+ * recipient, are sent again without delay.
+ */
+class RetryPolicy {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final long MAX_DELAY_MILLIS = 60_000;
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs a retry policy.
+     *
+     * @param maxRetries      the number of retries before giving up, 0 to never retry.
+     * @param baseDelayMillis the delay before the first retry, in milliseconds.
+     * @throws IllegalArgumentException if a value is negative.
+     */
+    RetryPolicy(int maxRetries, long baseDelayMillis) throws IllegalArgumentException {
+        if (maxRetries < 0 || baseDelayMillis < 0) {
+            throw new IllegalArgumentException("Retry count and delay must not be negative.");
+        }
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Tells whether an email should be sent again after a failure. Only the
+     * recipients not yet accepted nor refused for good are sent again, so a
+     * partial refusal is worth retrying whatever its first status code.
+     *
+     * @param error   the error the email failed with.
+     * @param retries the number of retries already made.
+     * @return true if the failure is temporary and retries are left.
+     */
+    boolean shouldRetry(Throwable error, int retries) {
+        return retries < maxRetries && error instanceof SmtpDeliveryException e
+                && (e.isTransient() || !e.getAccepted().isEmpty() || !e.getRejected().isEmpty());
+    }
+
+    /**
+     * Draws the delay before the next retry.
+     *
+     * @param error   the error the email failed with.
+     * @param retries the number of retries already made.
+     * @return the delay in milliseconds.
+     */
+    long delayMillis(Throwable error, int retries) {
+        // Neither the recipient limit nor a recipient refused for good means the server is busy
+        if (error instanceof SmtpDeliveryException e && (e.isRecipientLimit() || e.isPermanent())) {
+            return 0;
+        }
+        long delay = Math.min(MAX_DELAY_MILLIS, baseDelayMillis << Math.min(retries, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Gets the number of retries before giving up.
+     *
+     * @return the maximum number of retries.
+     */
+    int getMaxRetries() {
+        return maxRetries;
+    }
+}
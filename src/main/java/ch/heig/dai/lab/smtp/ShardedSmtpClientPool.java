@@ -0,0 +1,159 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends the emails through several SMTP relays, each one with its own
+ * SmtpClientPool. Recipients are routed by consistent hashing of their domain
+ * (see RelayRing), so a given domain always goes through the same relay and
+ * reuses its warm connections. An email whose recipients belong to several
+ * relays is split into one email per relay. A relay no session can be opened
+ * with is marked down and its recipients are routed again to the remaining
+ * relays; nothing was sent to it, so nothing can be delivered twice. A relay
+ * failing once a session is open is not marked down: the outcome of the email
+ * is unknown, and it is reported like on a single server. A relay marked down
+ * gets its domains back after the retry delay of the RelayRing, and is marked
+ * up by the first email it delivers.
+ * Each relay adapts its own concurrency and has its own rate limit.
+ */
+public class ShardedSmtpClientPool {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private final RelayRing ring;
+    private final List<SmtpClientPool> pools = new ArrayList<>();
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs a pool of SMTP sessions for each relay.
+     *
+     * @param relays            the relays to send the emails through.
+     * @param encoding          the character encoding used by the sessions.
+     * @param poolSize          the maximum number of sessions open at the same time, per relay.
+     * @param idleTimeoutMillis  the time after which an idle session is closed.
+     * @param replyTimeoutMillis the time to wait for the connection and for each reply, 0 to wait forever.
+     * @param rateLimit          the maximum number of emails sent per second, per relay, 0 for no limit.
+     * @param startTls           the STARTTLS support shared by the sessions of every relay, null to stay in plain text.
+     * @throws IllegalArgumentException if there is no relay, the pool size is less than 1, or the
+     *                                  idle timeout, the reply timeout or the rate limit is negative.
+     */
+    public ShardedSmtpClientPool(List<SmtpRelay> relays, Charset encoding, int poolSize, long idleTimeoutMillis,
+                                 int replyTimeoutMillis, int rateLimit, StartTls startTls)
+            throws IllegalArgumentException {
+        this.ring = new RelayRing(relays);
+        for (SmtpRelay relay : relays) {
+            pools.add(new SmtpClientPool(relay.address(), relay.port(), encoding, poolSize, idleTimeoutMillis,
+                    replyTimeoutMillis, rateLimit, startTls));
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Sends an email through the relays of its recipients. Every part of the
+     * email is attempted even if another part fails.
+     *
+     * @param email the email to send.
+     * @throws SmtpDeliveryException if a part of the email was refused, telling
+     *                               which recipients were delivered or refused.
+     * @throws IOException if a part of the email could not be sent, or if every
+     *                     relay is down.
+     * @throws InterruptedException if the thread is interrupted while waiting for a session.
+     */
+    public void send(Email email) throws IOException, InterruptedException {
+        List<String> errors = new ArrayList<>();
+        List<String> accepted = new ArrayList<>();
+        List<String> rejected = new ArrayList<>();
+        List<String> unsent = email.getReceivers();
+        int code = 0;
+
+        // Each round marks at least one relay down, so there are at most as many rounds as relays
+        for (int round = 0; round < pools.size() && !unsent.isEmpty(); round++) {
+            Map<Integer, List<String>> shards = split(unsent);
+            unsent = new ArrayList<>();
+
+            for (Map.Entry<Integer, List<String>> shard : shards.entrySet()) {
+                int relay = shard.getKey();
+                if (relay < 0) {
+                    errors.add("No relay available for " + shard.getValue());
+                    continue;
+                }
+
+                Email part = shard.getValue().size() == email.getReceivers().size()
+                        ? email
+                        : new Email(email.getSender(), shard.getValue(), email.getMessage());
+                try {
+                    pools.get(relay).send(part);
+                    accepted.addAll(shard.getValue());
+                    if (ring.markUp(relay)) {
+                        EventLog.get().relayUp(ring.getRelays().get(relay));
+                    }
+                } catch (ConnectException | UnknownHostException e) {
+                    // Relay unreachable, nothing sent: move its share of the ring to the other relays
+                    if (ring.markDown(relay)) {
+                        EventLog.get().relayDown(ring.getRelays().get(relay), e);
+                    }
+                    unsent.addAll(shard.getValue());
+                } catch (SmtpDeliveryException e) {
+                    errors.add(e.getMessage());
+                    code = code == 0 ? e.getCode() : code;
+                    accepted.addAll(e.getAccepted());
+                    rejected.addAll(e.getRejected());
+                    if (e.getAccepted().isEmpty() && e.getRejected().isEmpty() && e.isPermanent()) {
+                        rejected.addAll(shard.getValue());
+                    }
+                } catch (IOException e) {
+                    errors.add(e.getMessage());
+                }
+            }
+        }
+
+        if (!unsent.isEmpty()) {
+            errors.add("No relay available for " + unsent);
+        }
+        if (!errors.isEmpty() && (code != 0 || !accepted.isEmpty())) {
+            throw new SmtpDeliveryException(code, String.join("\n", errors), accepted, rejected);
+        }
+        if (!errors.isEmpty()) {
+            throw new IOException(String.join("\n", errors));
+        }
+    }
+
+    /**
+     * Closes every idle session of every relay.
+     */
+    public void close() {
+        for (SmtpClientPool pool : pools) {
+            pool.close();
+        }
+    }
+
+    /**
+     * Groups recipients by relay, keeping their order.
+     *
+     * @param receivers the recipients to route.
+     * @return the recipients of each relay, by relay index (-1 if every relay is down).
+     */
+    private Map<Integer, List<String>> split(List<String> receivers) {
+        Map<Integer, List<String>> shards = new LinkedHashMap<>();
+        for (String receiver : receivers) {
+            shards.computeIfAbsent(ring.route(receiver), relay -> new ArrayList<>()).add(receiver);
+        }
+        return shards;
+    }
+}
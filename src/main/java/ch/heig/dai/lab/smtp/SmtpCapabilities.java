@@ -0,0 +1,103 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The SMTP extensions a server advertised in its EHLO reply, used to pick the
+ * fastest transfer mode it supports: envelope commands sent as a single batch
+ * (PIPELINING, RFC 2920), message sent as length-prefixed BDAT chunks instead
+ * of a dot-stuffed DATA stream (CHUNKING, RFC 3030), and messages larger than
+ * the declared SIZE (RFC 1870) refused before any command is sent. STARTTLS
+ * (RFC 3207) tells whether the connection can be upgraded to TLS.
+ *
+ * @param pipelining   whether the envelope commands may be sent without waiting for their replies.
+ * @param chunking     whether the message may be sent with BDAT.
+ * @param eightBitMime whether the message may contain 8-bit text (BODY=8BITMIME).
+ * @param smtpUtf8     whether addresses and headers may contain UTF-8.
+ * @param maxSize      the largest message accepted in bytes, 0 if the server declared no limit.
+ * @param startTls     whether the connection may be upgraded to TLS.
+ */
+record SmtpCapabilities(boolean pipelining, boolean chunking, boolean eightBitMime, boolean smtpUtf8, long maxSize,
+                        boolean startTls) {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    /**
+     * The capabilities of a server that advertised no extension.
+     */
+    static final SmtpCapabilities NONE = new SmtpCapabilities(false, false, false, false, 0, false);
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Parses the lines of an EHLO reply. The first line is the greeting of the
+     * server, each following line an extension keyword with its parameters.
+     * Unknown extensions are ignored.
+     *
+     * @param lines the text of the reply lines, without their status code.
+     * @return the capabilities of the server.
+     */
+    static SmtpCapabilities parse(List<String> lines) {
+        boolean pipelining = false;
+        boolean chunking = false;
+        boolean eightBitMime = false;
+        boolean smtpUtf8 = false;
+        long maxSize = 0;
+        boolean startTls = false;
+
+        for (int i = 1; i < lines.size(); i++) {
+            String[] words = lines.get(i).trim().split("\\s+");
+            switch (words[0].toUpperCase(Locale.ROOT)) {
+                case "PIPELINING" -> pipelining = true;
+                case "CHUNKING" -> chunking = true;
+                case "8BITMIME" -> eightBitMime = true;
+                case "SMTPUTF8" -> smtpUtf8 = true;
+                case "STARTTLS" -> startTls = true;
+                case "SIZE" -> {
+                    try {
+                        maxSize = words.length > 1 ? Math.max(0, Long.parseLong(words[1])) : 0;
+                    } catch (NumberFormatException e) {
+                        maxSize = 0;
+                    }
+                }
+                default -> { }
+            }
+        }
+        return new SmtpCapabilities(pipelining, chunking, eightBitMime, smtpUtf8, maxSize, startTls);
+    }
+
+    /**
+     * Refuses locally a message larger than the SIZE declared by the server,
+     * which would be refused anyway after a round trip.
+     *
+     * @param size the size of the message in bytes, headers included.
+     * @throws SmtpDeliveryException if the message is too large for the server (552).
+     */
+    void checkSize(long size) throws SmtpDeliveryException {
+        if (maxSize > 0 && size > maxSize) {
+            throw new SmtpDeliveryException(552, "[SMTP Client] Message of " + size
+                    + " bytes exceeds the server SIZE limit of " + maxSize + " bytes", List.of(), List.of());
+        }
+    }
+
+    /**
+     * Builds the parameters of the MAIL FROM command: the size of the message
+     * if the server declared SIZE, and BODY=8BITMIME if it accepts 8-bit text.
+     *
+     * @param size the size of the message in bytes.
+     * @return the parameters, each preceded by a space, empty if none applies.
+     */
+    String mailParameters(long size) {
+        if (maxSize == 0 && !eightBitMime) {
+            return "";
+        }
+        return (maxSize > 0 ? " SIZE=" + size : "") + (eightBitMime ? " BODY=8BITMIME" : "");
+    }
+}
@@ -4,20 +4,50 @@
  */
 
  package ch.heig.dai.lab.smtp;
+ import ch.heig.dai.lab.smtp.SmtpMetrics.SMTP_COMMANDS;
+ import javax.net.ssl.SSLSocket;
  import java.io.*;
  import java.net.*;
+ import java.nio.ByteBuffer;
+ import java.nio.channels.Channels;
+ import java.nio.channels.SocketChannel;
  import java.nio.charset.Charset;
+ import java.util.ArrayList;
+ import java.util.List;
  
- class SmtpClient {
+ /**
+  * Blocking SMTP client. Each session uses its own socket and is driven by the
+  * calling thread. The latency of every command is recorded in SmtpMetrics.
+  * The transfer mode follows the capabilities advertised in the EHLO reply:
+  * envelope batched with PIPELINING, message sent as a single BDAT chunk with
+  * CHUNKING (so the whole transaction takes one round trip when both are
+  * offered), DATA otherwise. With STARTTLS support, the connection is upgraded
+  * to TLS right after the first EHLO, which is then sent again. The body is
+  * declared 8bit only to a server offering 8BITMIME; otherwise it is sent as
+  * 7bit if it is plain ASCII, in quoted-printable if not.
+  */
+ class SmtpClient implements MailTransport {
      // ------------------------------------------------------------------------------
      // Attributes
      // ------------------------------------------------------------------------------
+     static final String EIGHT_BIT = "8bit";
+     static final String SEVEN_BIT = "7bit";
+     static final String QUOTED_PRINTABLE = "quoted-printable";
+
      private final String smtpServerAddress;
      private final int smtpServerPort;
      private final Charset encoding;
-     private Socket socket ;
-     private BufferedReader in;
-     private BufferedWriter out;
+     private final StartTls startTls;
+     private final int replyTimeoutMillis;
+     private SocketChannel channel;
+     private SSLSocket tlsSocket;
+     private SmtpCodec codec;
+     private volatile SmtpCapabilities capabilities = SmtpCapabilities.NONE;
+     private final ByteBuffer peek = ByteBuffer.allocate(1);
+     // Whether the message of the current transaction was written, so that it may have been delivered
+     private boolean contentSent;
+     // Whether every command sent so far got its complete reply, so that the next reply answers the next command
+     private boolean inStep = true;
  
      // ------------------------------------------------------------------------------
      // Constructor
@@ -29,9 +59,40 @@
       * @param encoding The character encoding to use.
       */
      public SmtpClient(String smtpServerAddress, int smtpServerPort, Charset encoding) {
+         this(smtpServerAddress, smtpServerPort, encoding, null);
+     }
+
+     /**
+      * Constructor for an SmtpClient upgrading its connection with STARTTLS.
+      * @param smtpServerAddress The SMTP server address.
+      * @param smtpServerPort The SMTP server port.
+      * @param encoding The character encoding to use.
+      * @param startTls The STARTTLS support shared by the sessions, null to stay in plain text.
+      */
+     public SmtpClient(String smtpServerAddress, int smtpServerPort, Charset encoding, StartTls startTls) {
+         this(smtpServerAddress, smtpServerPort, encoding, startTls, 0);
+     }
+
+     /**
+      * Constructor for an SmtpClient giving up on a server that does not answer
+      * in time.
+      * @param smtpServerAddress The SMTP server address.
+      * @param smtpServerPort The SMTP server port.
+      * @param encoding The character encoding to use.
+      * @param startTls The STARTTLS support shared by the sessions, null to stay in plain text.
+      * @param replyTimeoutMillis The time to wait for the connection and for each reply, 0 to wait forever.
+      * @throws IllegalArgumentException If the reply timeout is negative.
+      */
+     public SmtpClient(String smtpServerAddress, int smtpServerPort, Charset encoding, StartTls startTls,
+                       int replyTimeoutMillis) throws IllegalArgumentException {
+         if (replyTimeoutMillis < 0) {
+             throw new IllegalArgumentException("Reply timeout must not be negative.");
+         }
          this.smtpServerAddress = smtpServerAddress;
          this.smtpServerPort = smtpServerPort;
          this.encoding = encoding;
+         this.startTls = startTls;
+         this.replyTimeoutMillis = replyTimeoutMillis;
      }
  
      // ------------------------------------------------------------------------------
@@ -39,96 +100,548 @@
      // ------------------------------------------------------------------------------
  
      /**
-      * Establishes a connection to the SMTP server and performs the initial handshake.
+      * Establishes a connection to the SMTP server and performs the initial handshake,
+      * upgrading the connection to TLS if STARTTLS is enabled. With a reply
+      * timeout, the replies are read through the socket stream, the only one
+      * honouring SO_TIMEOUT; the TLS socket layered over it inherits it.
       * @throws UnknownHostException If the server address is invalid.
-      * @throws IOException If an I/O error occurs during connection or communication.
+      * @throws SmtpDeliveryException If the server is temporarily unavailable (4xx greeting).
+      * @throws SocketTimeoutException If the server does not answer within the reply timeout.
+      * @throws IOException If an I/O error occurs during connection or communication, or the
+      *                     server does not offer STARTTLS although it is enabled.
       */
+     @Override
      public void connect() throws UnknownHostException, IOException {
-         socket = new Socket(smtpServerAddress, smtpServerPort);
-         in = new BufferedReader(new InputStreamReader(socket.getInputStream(), encoding));
-         out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), encoding));
-         System.out.println("Connecting to " + smtpServerAddress + ":" + smtpServerPort);
+         InetSocketAddress address = new InetSocketAddress(smtpServerAddress, smtpServerPort);
+         if (address.isUnresolved()) {
+             throw new UnknownHostException(smtpServerAddress);
+         }
+         long start = System.nanoTime();
+         if (replyTimeoutMillis > 0) {
+             channel = SocketChannel.open();
+             channel.socket().connect(address, replyTimeoutMillis);
+             channel.socket().setSoTimeout(replyTimeoutMillis);
+             codec = new SmtpCodec(Channels.newChannel(channel.socket().getInputStream()), channel, encoding);
+         } else {
+             channel = SocketChannel.open(address);
+             codec = new SmtpCodec(channel, channel, encoding);
+         }
+         tlsSocket = null;
+         inStep = true;
+         EventLog.get().connect(smtpServerAddress, smtpServerPort, 1);
  
-         checkSMTPServerStatut("220");
+         int greeting = readReply(SMTP_COMMANDS.CONNECT, start);
+         if (greeting >= 400 && greeting < 500) {
+             // A busy server (421) is worth trying again later
+             throw new SmtpDeliveryException(greeting, codec.replyText());
+         }
+         if (greeting != 220) {
+             throw new IOException("[SMTP Server] " + codec.replyText());
+         }
+         capabilities = ehlo();
+
+         if (startTls != null) {
+             // Never fall back to plain text, the relay would see the emails unprotected
+             if (!capabilities.startTls()) {
+                 throw new IOException("[SMTP Server] " + smtpServerAddress + ":" + smtpServerPort
+                         + " does not offer STARTTLS");
+             }
+             start = System.nanoTime();
+             sendLine("STARTTLS");
+             checkSMTPServerStatut(220, SMTP_COMMANDS.STARTTLS, start);
+
+             tlsSocket = startTls.handshake(channel.socket(), smtpServerAddress, smtpServerPort);
+             codec = new SmtpCodec(Channels.newChannel(tlsSocket.getInputStream()),
+                     Channels.newChannel(tlsSocket.getOutputStream()), encoding);
+             // The server forgets everything it said before the handshake (RFC 3207, section 4.2)
+             capabilities = ehlo();
+         }
+     }
+
+     /**
+      * Sends EHLO and parses the extensions the server advertises in its reply.
+      * @return The capabilities of the server.
+      * @throws IOException If an I/O error occurs or the server rejects EHLO.
+      */
+     private SmtpCapabilities ehlo() throws IOException {
+         long start = System.nanoTime();
          sendLine("EHLO test");
+
+         List<String> lines = new ArrayList<>();
+         int code = codec.readReply(lines);
+         SmtpMetrics.get().record(SMTP_COMMANDS.EHLO, start);
+         if (code != 250) {
+             throw new IOException("[SMTP Server] " + codec.replyText());
+         }
+         return SmtpCapabilities.parse(lines);
+     }
  
-         String inLine;
-         while ((inLine = in.readLine()) != null) {
-             if (inLine.charAt(3) == ' ') {
-                 break;
-             }
+     /**
+      * Gets the extensions the server advertised in its EHLO response.
+      * @return the capabilities of the server, none before connect().
+      */
+     @Override
+     public SmtpCapabilities getCapabilities() {
+         return capabilities;
+     }
+ 
+     /**
+      * Chooses the Content-Transfer-Encoding of an email for a server: 8bit if
+      * the server offers 8BITMIME (RFC 6152), 7bit if the body is plain ASCII,
+      * quoted-printable otherwise.
+      * @param email The email to send.
+      * @param capabilities The capabilities of the server.
+      * @return The transfer encoding, one of EIGHT_BIT, SEVEN_BIT and QUOTED_PRINTABLE.
+      */
+     static String transferEncoding(Email email, SmtpCapabilities capabilities) {
+         if (capabilities.eightBitMime()) {
+             return EIGHT_BIT;
+         }
+         return email.getMessage().isAscii(email) ? SEVEN_BIT : QUOTED_PRINTABLE;
+     }
+
+     /**
+      * Renders the body of an email in the given transfer encoding, in the
+      * form of the transfer mode of the server.
+      * @param email The email to render.
+      * @param encoding The character encoding of the body.
+      * @param capabilities The capabilities of the server, which select the form of the body.
+      * @param transferEncoding The transfer encoding chosen by transferEncoding().
+      * @return The buffers to send in order.
+      */
+     static ByteBuffer[] render(Email email, Charset encoding, SmtpCapabilities capabilities,
+                                String transferEncoding) {
+         if (QUOTED_PRINTABLE.equals(transferEncoding)) {
+             return email.getMessage().renderQuotedPrintable(email, encoding, capabilities.chunking());
          }
+         return email.getMessage().render(email, encoding, capabilities.chunking());
+     }
+
+     /**
+      * Counts the bytes left in buffers.
+      * @param buffers The buffers to measure.
+      * @return The total number of remaining bytes.
+      */
+     static long remaining(ByteBuffer[] buffers) {
+         long remaining = 0;
+         for (ByteBuffer buffer : buffers) {
+             remaining += buffer.remaining();
+         }
+         return remaining;
      }
  
      /**
-      * Sends an email using the SMTP protocol.
+      * Sends an email using the SMTP protocol. A message larger than the SIZE
+      * declared by the server is refused before any command is sent. If the
+      * connection is lost before the message itself was written, typically an
+      * idle session the server closed, nothing can have been delivered: it is
+      * reported as a temporary refusal (421), which the retry policy sends
+      * again, rather than as an unknown outcome. Either way, the session is
+      * then out of step with the server and must be closed, see isInStep().
       * @param email The Email object containing sender, recipients, subject, and body.
+      * @throws SmtpDeliveryException If the server refused the email, or some of its recipients.
       * @throws IOException If an I/O error occurs during communication.
       */
+     @Override
      public void send(Email email) throws IOException {
+         contentSent = false;
+         inStep = false;
+         try {
+             transfer(email);
+             inStep = true;
+         } catch (SmtpDeliveryException e) {
+             // A refusal is a complete reply: the session is still in step with the server
+             inStep = true;
+             throw e;
+         } catch (IOException e) {
+             if (contentSent) {
+                 throw e;
+             }
+             throw new SmtpDeliveryException(421, "[SMTP Client] Connection to " + smtpServerAddress + ":"
+                     + smtpServerPort + " lost before the message was sent: " + e.getMessage(),
+                     List.of(), List.of());
+         }
+     }
+
+     /**
+      * Runs the mail transaction of an email.
+      * @param email The Email object containing sender, recipients, subject, and body.
+      * @throws SmtpDeliveryException If the server refused the email, or some of its recipients.
+      * @throws IOException If an I/O error occurs during communication.
+      */
+     private void transfer(Email email) throws IOException {
+         // Per-email headers, then the shared pre-encoded body, in the form of the transfer mode
+         Email.Rendering rendering = email.render(encoding, capabilities);
+         byte[] headers = rendering.headers();
+         ByteBuffer[] payload = rendering.payload();
+         long size = rendering.size();
+         capabilities.checkSize(size);
+ 
+         SmtpDeliveryException partial;
+         if (capabilities.pipelining()) {
+             partial = sendEnvelopePipelined(email, size, headers, payload);
+         } else {
+             partial = sendEnvelope(email, size);
+         }
+ 
+         // Sending the data, unless it was part of the pipelined batch
+         if (!capabilities.pipelining() || !capabilities.chunking()) {
+             long start = System.nanoTime();
+             if (capabilities.chunking()) {
+                 writeChunk(headers, payload);
+                 checkSMTPServerStatut(250, SMTP_COMMANDS.BDAT, start);
+             } else {
+                 contentSent = true;
+                 codec.write(headers);
+                 codec.flush(payload);
+                 checkSMTPServerStatut(250, SMTP_COMMANDS.END_OF_DATA, start);
+             }
+         }
+         SmtpMetrics.get().messageSent(partial == null ? email.getReceivers().size() : partial.getAccepted().size());
+ 
+         EventLog.get().send(email, smtpServerAddress, smtpServerPort);
+ 
+         if (partial != null) {
+             throw partial;
+         }
+     }
+ 
+     /**
+      * Builds the headers of an email, followed by the blank line separating
+      * them from the body. The body itself is rendered from the cached template
+      * of the email's Message. The To header names the recipient of an email
+      * sent to a single one, and hides the recipients of a group from each other
+      * otherwise. A non-ASCII subject is written as cached RFC 2047 encoded-words.
+      * The body is declared 8bit, as for a server offering 8BITMIME.
+      * @param email The Email object containing sender and subject.
+      * @param encoding The character encoding announced in the headers.
+      * @return The headers, each line terminated with CRLF.
+      */
+     static String buildHeaders(Email email, Charset encoding) {
+         return buildHeaders(email, encoding, EIGHT_BIT);
+     }
+
+     /**
+      * Builds the headers of an email, followed by the blank line separating
+      * them from the body, declaring the given transfer encoding of the body.
+      * @param email The Email object containing sender and subject.
+      * @param encoding The character encoding announced in the headers.
+      * @param transferEncoding The Content-Transfer-Encoding of the body.
+      * @return The headers, each line terminated with CRLF.
+      */
+     static String buildHeaders(Email email, Charset encoding, String transferEncoding) {
+         List<String> receivers = email.getReceivers();
+         return "MIME-Version: 1.0\r\n" +                                                  // MIME
+                "Content-Type: text/plain; charset=\"" + encoding.name() + "\"\r\n" +     // Encoding
+                "Content-Transfer-Encoding: " + transferEncoding + "\r\n" +
+                "From: " + email.getSender() + "\r\n" +                                    // Headers
+                "To: " + (receivers.size() == 1                                            // To
+                        ? receivers.get(0)
+                        : "undisclosed-recipients:;") + "\r\n" +
+                "Subject: " + email.getMessage().getEncodedSubject(encoding) + "\r\n" +    // Subject
+                "\r\n";
+     }
+ 
+     /**
+      * Sends the message as a single BDAT chunk (RFC 3030): the command with
+      * the exact length, the headers and the pre-encoded body, in one gathering
+      * write. Nothing is scanned for dot-stuffing.
+      * @param headers The encoded headers, followed by the blank line.
+      * @param payload The rendered chunked payload of the body.
+      * @throws IOException If an I/O error occurs during writing.
+      */
+     private void writeChunk(byte[] headers, ByteBuffer[] payload) throws IOException {
+         contentSent = true;
+         codec.command("BDAT ", Long.toString(headers.length + remaining(payload)), " LAST");
+         codec.write(headers);
+         codec.flush(payload);
+     }
+ 
+     /**
+      * Sends the envelope (MAIL FROM, RCPT TO and, without CHUNKING, DATA) one
+      * command at a time, waiting for the server's reply before sending the next
+      * command. As with the pipelined envelope, a rejected recipient does not
+      * stop the transaction: the message is delivered to the recipients
+      * accepted and the rejected ones are reported afterwards. If the server's
+      * recipient limit is reached (452), the remaining recipients are not sent
+      * and are reported as deferred. Nothing is sent if every recipient is
+      * rejected.
+      * @param email The Email object containing sender and recipients.
+      * @param size The size of the message, declared in MAIL FROM if the server supports SIZE.
+      * @return The exception to report once the data is sent if some recipients were rejected or deferred, null if all were accepted.
+      * @throws IOException If an I/O error occurs, or MAIL FROM, DATA or every recipient is rejected.
+      */
+     private SmtpDeliveryException sendEnvelope(Email email, long size) throws IOException {
          // MAIL FROM
-         sendLine("MAIL FROM:<" + email.getSender() + ">");
-         checkSMTPServerStatut("250");
-     
+         long start = System.nanoTime();
+         codec.command("MAIL FROM:<", email.getSender(), ">" + capabilities.mailParameters(size));
+         codec.flush();
+         checkSMTPServerStatut(250, SMTP_COMMANDS.MAIL, start);
+ 
          // RCPT TO for each receiver
-         for (var r : email.getReceivers()) {
-             sendLine("RCPT TO:<" + r + ">");
-             checkSMTPServerStatut("250");
+         List<String> receivers = email.getReceivers();
+         List<String> accepted = new ArrayList<>(receivers.size());
+         List<String> rejected = new ArrayList<>();
+         List<String> rejections = new ArrayList<>();
+         int rejectionCode = 0;
+         for (int i = 0; i < receivers.size(); i++) {
+             start = System.nanoTime();
+             codec.command("RCPT TO:<", receivers, i, ">");
+             codec.flush();
+             int code = readReply(SMTP_COMMANDS.RCPT, start);
+             String r = receivers.get(i);
+             if (code == 250 || code == 251) {
+                 accepted.add(r);
+                 continue;
+             }
+             if (rejections.isEmpty()) {
+                 rejectionCode = code;
+             }
+             if (code == 452 && !accepted.isEmpty()) {
+                 // Too many recipients: the remaining ones go in another transaction
+                 rejections.add((receivers.size() - i) + " recipients deferred: " + codec.replyText());
+                 break;
+             }
+             // Only a permanent refusal is final, a temporary one (4xx) can be retried
+             if (code >= 500) {
+                 rejected.add(r);
+             }
+             rejections.add("<" + r + "> " + codec.replyText());
          }
-     
-         // DATA
-         sendLine("DATA");
-         checkSMTPServerStatut("354");
+
+         if (accepted.isEmpty()) {
+             // Nothing is delivered, but the recipients refused for good need not be retried
+             throw new SmtpDeliveryException(rejectionCode, "[SMTP Server] Recipients rejected: " + rejections,
+                     List.of(), rejected);
+         }
+ 
+         // DATA, unless the message is sent with BDAT
+         if (!capabilities.chunking()) {
+             start = System.nanoTime();
+             sendLine("DATA");
+             checkSMTPServerStatut(354, SMTP_COMMANDS.DATA, start);
+         }
+         return rejections.isEmpty() ? null : new SmtpDeliveryException(rejectionCode,
+                 "[SMTP Server] Recipients rejected: " + rejections, accepted, rejected);
+     }
+ 
+     /**
+      * Sends the envelope (MAIL FROM, RCPT TO and DATA) as a single batch, then
+      * reads the replies back in the same order (RFC 2920). With CHUNKING, the
+      * BDAT chunk takes the place of DATA, so the whole transaction is a single
+      * write and a single round trip. Every reply is read before reporting a
+      * failure, so the connection stays in sync.
+      * If the server accepts DATA (or the chunk) although some recipients were
+      * rejected, the message is still delivered to the accepted recipients and
+      * the rejected ones are reported afterwards. The latency of each command
+      * is measured from the moment the batch is written until its own reply is read.
+      * @param email The Email object containing sender and recipients.
+      * @param size The size of the message, declared in MAIL FROM if the server supports SIZE.
+      * @param headers The encoded headers, sent in the batch with CHUNKING.
+      * @param payload The payload of the body, sent in the batch with CHUNKING.
+      * @return The exception to report once the data is sent if some recipients were rejected, null if all were accepted.
+      * @throws IOException If an I/O error occurs or a command is rejected.
+      */
+     private SmtpDeliveryException sendEnvelopePipelined(Email email, long size, byte[] headers, ByteBuffer[] payload)
+             throws IOException {
+         List<String> receivers = email.getReceivers();
+         boolean chunking = capabilities.chunking();
+ 
+         long start = System.nanoTime();
+         codec.command("MAIL FROM:<", email.getSender(), ">" + capabilities.mailParameters(size));
+         for (int i = 0; i < receivers.size(); i++) {
+             codec.command("RCPT TO:<", receivers, i, ">");
+         }
+         if (chunking) {
+             writeChunk(headers, payload);
+         } else {
+             codec.command("DATA");
+             codec.flush();
+         }
+ 
+         int mailCode = readReply(SMTP_COMMANDS.MAIL, start);
+         String mailError = mailCode == 250 ? null : codec.replyText();
+         // The accepted recipients are only listed once one is rejected
+         List<String> accepted = null;
+         List<String> rejected = new ArrayList<>();
+         List<String> rejections = new ArrayList<>();
+         int rejectionCode = 0;
+         for (int i = 0; i < receivers.size(); i++) {
+             int rcptCode = readReply(SMTP_COMMANDS.RCPT, start);
+             if (rcptCode == 250 || rcptCode == 251) {
+                 if (accepted != null) {
+                     accepted.add(receivers.get(i));
+                 }
+             } else {
+                 String r = receivers.get(i);
+                 if (accepted == null) {
+                     accepted = new ArrayList<>(receivers.subList(0, i));
+                 }
+                 if (rejections.isEmpty()) {
+                     rejectionCode = rcptCode;
+                 }
+                 // Only a permanent refusal is final, a temporary one (4xx) can be retried
+                 if (rcptCode >= 500) {
+                     rejected.add(r);
+                 }
+                 rejections.add("<" + r + "> " + codec.replyText());
+             }
+         }
+         int dataCode = readReply(chunking ? SMTP_COMMANDS.BDAT : SMTP_COMMANDS.DATA, start);
  
-         StringBuilder content = new StringBuilder();
-         content.append("Content-Type: text/plain; charset=\"").append(encoding.name()).append("\"\n") // Encoding
-         .append("From: ").append(email.getSender()).append("\n") // Headers
-         .append("To: you\n")                                         // To   
-         .append("Subject: ").append(email.getSubject()).append("\n") // Subject
-         .append("\n").append(email.getBody()).append("\r\n.\r");  // Body
+         if (mailError != null) {
+             throw new SmtpDeliveryException(mailCode, mailError);
+         }
+         if (dataCode != (chunking ? 250 : 354)) {
+             if (rejections.isEmpty()) {
+                 throw new SmtpDeliveryException(dataCode, codec.replyText());
+             }
+             // Nothing was delivered, but the recipients refused for good need not be retried
+             throw new SmtpDeliveryException(rejectionCode, "[SMTP Server] Recipients rejected: " + rejections,
+                     List.of(), rejected);
+         }
+         return rejections.isEmpty() ? null : new SmtpDeliveryException(rejectionCode,
+                 "[SMTP Server] Recipients rejected: " + rejections, accepted, rejected);
+     }
  
-         // Sending the data
-         sendLine(content.toString());
-         checkSMTPServerStatut("250");
+     /**
+      * Aborts the current mail transaction so the session can be reused for
+      * the next one.
+      * @throws IOException If an I/O error occurs or the server rejects RSET.
+      */
+     public void reset() throws IOException {
+         long start = System.nanoTime();
+         sendLine("RSET");
+         checkSMTPServerStatut(250, SMTP_COMMANDS.RSET, start);
+     }
  
-         System.out.println("Sending email... (" + smtpServerAddress + ":" + smtpServerPort + ")");
-         System.out.println(email);
+     /**
+      * Tells whether the last transaction ended on a complete reply, either
+      * with success or with a refusal of the server. After a reply timeout or
+      * a lost connection, a late reply would be read as the answer to the next
+      * command: the session must then be closed rather than reset.
+      * @return true if the session can be reset and reused.
+      */
+     public boolean isInStep() {
+         return inStep;
+     }
+
+     /**
+      * Checks that the session is still usable by sending a NOOP command.
+      * @return true if the server answered the NOOP, false otherwise.
+      */
+     public boolean isAlive() {
+         try {
+             long start = System.nanoTime();
+             sendLine("NOOP");
+             checkSMTPServerStatut(250, SMTP_COMMANDS.NOOP, start);
+             return true;
+         } catch (IOException e) {
+             return false;
+         }
      }
  
+     /**
+      * Tells, without any round trip, whether the server closed the session
+      * or sent an unsolicited reply (typically a 421 before closing it) since
+      * the last transaction. The bytes read by the check are lost, so a session
+      * for which it returns true must be closed.
+      * @return true if the session must not be reused.
+      */
+     public boolean isClosedByServer() {
+         if (codec.hasBufferedInput()) {
+             return true;
+         }
+         try {
+             channel.configureBlocking(false);
+             try {
+                 return channel.read(peek.clear()) != 0;
+             } finally {
+                 channel.configureBlocking(true);
+             }
+         } catch (IOException | RuntimeException e) {
+             return true;
+         }
+     }
+
      /**
       * Closes the connection to the SMTP server.
       * @throws IOException If an I/O error occurs during disconnection.
       */
+     @Override
      public void quit() throws IOException {
+         long start = System.nanoTime();
          sendLine("QUIT");
-         checkSMTPServerStatut("221");
-         in.close();
-         out.close();
-         socket.close();
+         checkSMTPServerStatut(221, SMTP_COMMANDS.QUIT, start);
+         if (tlsSocket != null) {
+             // Sends the TLS close_notify, then closes the connection
+             tlsSocket.close();
+         }
+         channel.close();
      
-         System.out.println("Closing connection...");
+         EventLog.get().quit(smtpServerAddress, smtpServerPort, 1);
      }
  
      /**
-      * Sends a single line of text to the SMTP server.
+      * Closes the connection to the SMTP server, ignoring any error. Used to drop
+      * a session that is no longer trusted. A session out of step is closed
+      * without QUIT, whose reply could not be told from a late one.
+      */
+     public void close() {
+         if (inStep) {
+             try {
+                 quit();
+                 return;
+             } catch (IOException | RuntimeException e) {
+                 // Dropped below
+             }
+         }
+         try {
+             if (channel != null) {
+                 channel.close();
+             }
+         } catch (IOException ignored) {
+             // The session is dropped anyway
+         }
+     }
+ 
+     /**
+      * Sends a single command line to the SMTP server, terminated with CRLF.
       * @param outLine The line of text to send.
       * @throws IOException If an I/O error occurs during writing.
       */
      private void sendLine(String outLine) throws IOException {
-         out.write(outLine + "\n");
-         out.flush();
+         codec.command(outLine);
+         codec.flush();
      }
  
      /**
-      * Checks the server's response status code.
-      * @param prefix The expected prefix of the response status code.
-      * @throws IOException If the server's response does not match the expected prefix.
+      * Reads a complete server reply (continuation lines included) and records
+      * the latency of the command it answers.
+      * @param command The command the reply answers.
+      * @param start The value of System.nanoTime() when the command was sent.
+      * @return The status code of the reply.
+      * @throws IOException If an I/O error occurs or the reply is malformed.
       */
-     private void checkSMTPServerStatut(String prefix) throws IOException {
-         String inLine = in.readLine();
+     private int readReply(SMTP_COMMANDS command, long start) throws IOException {
+         int code = codec.readReply();
+         SmtpMetrics.get().record(command, start);
+         return code;
+     }
  
-         if (!inLine.startsWith(prefix)) {
-             throw new IOException("[SMTP Server] " + inLine);
+     /**
+      * Reads a complete server reply (continuation lines included), records
+      * the latency of the command it answers and checks its status code.
+      * @param expected The expected status code.
+      * @param command The command the reply answers.
+      * @param start The value of System.nanoTime() when the command was sent.
+      * @throws SmtpDeliveryException If the server's response does not have the expected status code.
+      * @throws IOException If an I/O error occurs or the reply is malformed.
+      */
+     private void checkSMTPServerStatut(int expected, SMTP_COMMANDS command, long start) throws IOException {
+         int code = readReply(command, start);
+         if (code != expected) {
+             throw new SmtpDeliveryException(code, codec.replyText());
          }
      }
  }
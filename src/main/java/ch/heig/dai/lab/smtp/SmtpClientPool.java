@@ -0,0 +1,241 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded pool of SmtpClient sessions connected to the same SMTP server.
+ * At most poolSize sessions are open at the same time. Sessions are reused
+ * between mail transactions: a session whose transaction was refused is reset
+ * with RSET before going back to the pool, and one whose transaction failed
+ * without a complete reply is closed. Before being handed out again, an idle
+ * session the server visibly closed is dropped, which costs no round trip,
+ * and a session idle for longer than a quarter of the idle timeout is also
+ * checked with NOOP. A server closing a session between the check and the
+ * next transaction is reported by SmtpClient as a temporary refusal, which
+ * the retry policy sends again. Sessions idle for longer than
+ * the idle timeout are closed instead of being reused. Every session gives up
+ * on a server that does not answer within the reply timeout.
+ * Within the pool size, the number of emails sent at the same time is adapted
+ * to the server by an AdaptiveLimiter, and an optional TokenBucket caps the
+ * number of emails sent per second. The capabilities advertised by the server
+ * are cached from the first session, so that a message larger than its SIZE
+ * limit is refused without waiting for a session.
+ */
+public class SmtpClientPool {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final int PROBE_FRACTION = 4;
+
+    private final String smtpServerAddress;
+    private final int smtpServerPort;
+    private final Charset encoding;
+    private final StartTls startTls;
+    private final long idleTimeoutMillis;
+    private final int replyTimeoutMillis;
+    private final Semaphore permits;
+    private final AdaptiveLimiter limiter;
+    private final TokenBucket rateLimiter;
+    private volatile SmtpCapabilities capabilities;
+    private final ConcurrentLinkedDeque<IdleSession> idleSessions = new ConcurrentLinkedDeque<>();
+
+    /**
+     * A session waiting in the pool, along with the time it was released.
+     */
+    private record IdleSession(SmtpClient client, long releasedAt) { }
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs a pool of SMTP sessions for the given server.
+     *
+     * @param smtpServerAddress the SMTP server address.
+     * @param smtpServerPort    the SMTP server port.
+     * @param encoding          the character encoding used by the sessions.
+     * @param poolSize          the maximum number of sessions open at the same time.
+     * @param idleTimeoutMillis  the time after which an idle session is closed.
+     * @param replyTimeoutMillis the time to wait for the connection and for each reply, 0 to wait forever.
+     * @param rateLimit          the maximum number of emails sent per second, 0 for no limit.
+     * @param startTls           the STARTTLS support shared by the sessions, null to stay in plain text.
+     * @throws IllegalArgumentException if the pool size is less than 1, or the
+     *                                  idle timeout, the reply timeout or the rate limit is negative.
+     */
+    public SmtpClientPool(String smtpServerAddress, int smtpServerPort, Charset encoding,
+                          int poolSize, long idleTimeoutMillis, int replyTimeoutMillis, int rateLimit,
+                          StartTls startTls) throws IllegalArgumentException {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1.");
+        }
+
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Idle timeout must not be negative.");
+        }
+
+        if (replyTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Reply timeout must not be negative.");
+        }
+
+        this.smtpServerAddress = smtpServerAddress;
+        this.smtpServerPort = smtpServerPort;
+        this.encoding = encoding;
+        this.startTls = startTls;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.replyTimeoutMillis = replyTimeoutMillis;
+        this.permits = new Semaphore(poolSize, true);
+        this.limiter = new AdaptiveLimiter(poolSize);
+        this.rateLimiter = new TokenBucket(rateLimit);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Sends an email over one of the pooled sessions. Blocks until the adaptive
+     * limit and the rate limit let it through and a session is available.
+     *
+     * @param email the email to send.
+     * @throws SmtpDeliveryException if the server rejects the email, or if it is
+     *                               larger than the SIZE limit of the server.
+     * @throws IOException if an I/O error occurs.
+     * @throws InterruptedException if the thread is interrupted while waiting for a session.
+     */
+    public void send(Email email) throws IOException, InterruptedException {
+        SmtpCapabilities known = capabilities;
+        if (known != null && known.maxSize() > 0) {
+            // Rendered once: the session sends the same rendering
+            known.checkSize(email.render(encoding, known).size());
+        }
+
+        rateLimiter.acquire();
+        long start = limiter.acquire();
+        Throwable error = null;
+        try {
+            permits.acquire();
+            try {
+                SmtpClient client = borrow();
+                boolean success = false;
+                try {
+                    client.send(email);
+                    success = true;
+                } finally {
+                    release(client, success);
+                }
+            } finally {
+                permits.release();
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            limiter.release(start, error);
+        }
+    }
+
+    /**
+     * Gets the capabilities advertised by the server to the first session.
+     *
+     * @return the capabilities of the server, null before a session was opened.
+     */
+    public SmtpCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Gets the number of emails currently allowed to be sent at the same time.
+     *
+     * @return the adaptive concurrency limit, at most the pool size.
+     */
+    public int getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    /**
+     * Closes every idle session of the pool.
+     */
+    public void close() {
+        IdleSession session;
+        while ((session = idleSessions.pollFirst()) != null) {
+            session.client().close();
+        }
+    }
+
+    /**
+     * Takes an idle session from the pool or opens a new one. Idle sessions that
+     * timed out, that the server closed, or that were idle long enough to be
+     * probed and do not answer NOOP, are closed and skipped.
+     *
+     * @return a connected session ready for a new mail transaction.
+     * @throws SmtpDeliveryException if the server is temporarily unavailable (4xx greeting).
+     * @throws ConnectException if a new session cannot be opened, whatever the step that failed.
+     * @throws IOException if the address of the server cannot be resolved.
+     */
+    private SmtpClient borrow() throws IOException {
+        IdleSession session;
+        while ((session = idleSessions.pollFirst()) != null) {
+            long idle = System.currentTimeMillis() - session.releasedAt();
+            boolean expired = idle > idleTimeoutMillis;
+            // A NOOP round trip per email would cost as much as the pipelined transaction itself
+            boolean probe = idle > idleTimeoutMillis / PROBE_FRACTION;
+            if (!expired && !session.client().isClosedByServer() && (!probe || session.client().isAlive())) {
+                return session.client();
+            }
+            session.client().close();
+        }
+
+        SmtpClient client = new SmtpClient(smtpServerAddress, smtpServerPort, encoding, startTls,
+                replyTimeoutMillis);
+        try {
+            client.connect();
+        } catch (SmtpDeliveryException | ConnectException | UnknownHostException e) {
+            client.close();
+            throw e;
+        } catch (IOException e) {
+            client.close();
+            // The greeting, EHLO or TLS handshake failed: no transaction was started either
+            ConnectException failure = new ConnectException("[SMTP Client] Cannot open a session with "
+                    + smtpServerAddress + ":" + smtpServerPort + ": " + e.getMessage());
+            failure.initCause(e);
+            throw failure;
+        }
+        capabilities = client.getCapabilities();
+        return client;
+    }
+
+    /**
+     * Gives a session back to the pool. A session whose transaction was
+     * refused by the server is reset with RSET first, and closed if the reset
+     * fails. A session whose transaction failed without a complete reply, for
+     * instance on a reply timeout, is closed: the late reply would otherwise
+     * be read as the answer to RSET and every later command.
+     *
+     * @param client  the session to give back.
+     * @param success whether the last transaction completed successfully.
+     */
+    private void release(SmtpClient client, boolean success) {
+        if (!client.isInStep()) {
+            client.close();
+            return;
+        }
+        if (!success) {
+            try {
+                client.reset();
+            } catch (IOException e) {
+                client.close();
+                return;
+            }
+        }
+
+        idleSessions.offerFirst(new IdleSession(client, System.currentTimeMillis()));
+    }
+}
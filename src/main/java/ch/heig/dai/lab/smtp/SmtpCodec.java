@@ -0,0 +1,471 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Byte-level encoder and decoder of the SMTP wire protocol. Commands are
+ * written into a single reusable direct buffer and terminated with CRLF, reply
+ * codes are parsed straight from the received bytes. A String is only built
+ * when the text of a reply is actually needed, for instance to report an error.
+ * The bytes written and the reply codes read are counted in SmtpMetrics.
+ */
+class SmtpCodec {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final CharsetEncoder encoder;
+    private final boolean asciiCompatible;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE).limit(0);
+    private final byte[] lastLine = new byte[READ_BUFFER_SIZE];
+    private int lastLineLength;
+
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final String ASCII_SAMPLE = "MAIL FROM:<a.z@A-Z.09>\r\n";
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs a codec reading the replies from one channel and writing the
+     * commands to another (usually the same socket channel).
+     *
+     * @param in       the channel the server replies are read from.
+     * @param out      the channel the commands are written to.
+     * @param encoding the character encoding of the email content.
+     */
+    SmtpCodec(ReadableByteChannel in, WritableByteChannel out, Charset encoding) {
+        this.in = in;
+        this.out = out;
+        this.encoder = encoding.newEncoder();
+        this.asciiCompatible = isAsciiCompatible(encoding);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Buffers a command line, terminated with CRLF. Nothing is sent before
+     * flush() is called, so several commands can be sent in a single write.
+     *
+     * @param command the command, without its line terminator.
+     * @throws IOException if an I/O error occurs while flushing a full buffer.
+     */
+    void command(CharSequence command) throws IOException {
+        write(command);
+        write(CRLF);
+    }
+
+    /**
+     * Buffers a command line made of a prefix, an argument and a suffix (for
+     * instance "MAIL FROM:&lt;", the address and "&gt;"), without concatenating
+     * them first.
+     *
+     * @param prefix   the start of the command.
+     * @param argument the argument of the command.
+     * @param suffix   the end of the command, without its line terminator.
+     * @throws IOException if an I/O error occurs while flushing a full buffer.
+     */
+    void command(CharSequence prefix, CharSequence argument, CharSequence suffix) throws IOException {
+        write(prefix);
+        write(argument);
+        write(suffix);
+        write(CRLF);
+    }
+
+    /**
+     * Buffers a command line whose argument is an address of a list. The
+     * address of an AddressList is copied straight from the bytes of its
+     * arena, without building a String, when the charset encodes ASCII as
+     * itself.
+     *
+     * @param prefix    the start of the command.
+     * @param addresses the list holding the address.
+     * @param index     the index of the address in the list.
+     * @param suffix    the end of the command, without its line terminator.
+     * @throws IOException if an I/O error occurs while flushing a full buffer,
+     *                     or the command is longer than the buffer.
+     */
+    void command(CharSequence prefix, List<String> addresses, int index, CharSequence suffix) throws IOException {
+        int position = writeBuffer.position();
+        try {
+            encodeCommand(writeBuffer, encoder, asciiCompatible, prefix, addresses, index, suffix);
+            return;
+        } catch (BufferOverflowException e) {
+            writeBuffer.position(position);
+        }
+
+        flushBuffer();
+        try {
+            encodeCommand(writeBuffer, encoder, asciiCompatible, prefix, addresses, index, suffix);
+        } catch (BufferOverflowException e) {
+            writeBuffer.clear();
+            throw new IOException("[SMTP Client] Command too long: " + prefix + addresses.get(index) + suffix);
+        }
+    }
+
+    /**
+     * Encodes a command line whose argument is an address of a list at the
+     * position of a buffer, terminated with CRLF. The address of an
+     * AddressList is copied straight from the bytes of its arena when the
+     * charset encodes ASCII as itself. Shared by the blocking and the
+     * non-blocking clients.
+     *
+     * @param target          the buffer receiving the line.
+     * @param encoder         the encoder of the session's charset, for non-ASCII text.
+     * @param asciiCompatible whether the charset encodes ASCII as itself, see isAsciiCompatible().
+     * @param prefix          the start of the command.
+     * @param addresses       the list holding the address.
+     * @param index           the index of the address in the list.
+     * @param suffix          the end of the command, without its line terminator.
+     * @throws BufferOverflowException if the line does not fit in the buffer,
+     *                                 whose position is then undefined.
+     * @throws CharacterCodingException if the address cannot be encoded.
+     */
+    static void encodeCommand(ByteBuffer target, CharsetEncoder encoder, boolean asciiCompatible,
+                              CharSequence prefix, List<String> addresses, int index, CharSequence suffix)
+            throws BufferOverflowException, CharacterCodingException {
+        put(target, encoder, asciiCompatible, prefix);
+        if (addresses instanceof AddressArena.AddressList list && asciiCompatible) {
+            AddressArena arena = list.arena();
+            int address = list.arenaIndex(index);
+            target.put(arena.data(), arena.start(address), arena.end(address) - arena.start(address));
+        } else {
+            put(target, encoder, asciiCompatible, addresses.get(index));
+        }
+        put(target, encoder, asciiCompatible, suffix);
+        target.put(CRLF);
+    }
+
+    /**
+     * Tells whether a charset encodes the ASCII characters of the SMTP commands
+     * as themselves, so that ASCII text and addresses can be copied byte by byte.
+     *
+     * @param encoding the charset.
+     * @return true for US-ASCII, ISO-8859-1, UTF-8 and the like.
+     */
+    static boolean isAsciiCompatible(Charset encoding) {
+        return Arrays.equals(ASCII_SAMPLE.getBytes(encoding), ASCII_SAMPLE.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Buffers text encoded with the configured character encoding. ASCII text is
+     * copied byte by byte, any other text goes through the charset encoder.
+     *
+     * @param text the text to write.
+     * @throws IOException if an I/O error occurs or the text cannot be encoded.
+     */
+    void write(CharSequence text) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80 || !asciiCompatible) {
+                encode(text, i);
+                return;
+            }
+            if (!writeBuffer.hasRemaining()) {
+                flushBuffer();
+            }
+            writeBuffer.put((byte) c);
+        }
+    }
+
+    /**
+     * Buffers raw bytes.
+     *
+     * @param bytes the bytes to write.
+     * @throws IOException if an I/O error occurs while flushing a full buffer.
+     */
+    void write(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Buffers a slice of raw bytes.
+     *
+     * @param bytes  the array holding the bytes to write.
+     * @param offset the index of the first byte to write.
+     * @param length the number of bytes to write.
+     * @throws IOException if an I/O error occurs while flushing a full buffer.
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (!writeBuffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int chunk = Math.min(writeBuffer.remaining(), end - offset);
+            writeBuffer.put(bytes, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    /**
+     * Sends every buffered byte to the server.
+     *
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    void flush() throws IOException {
+        flushBuffer();
+    }
+
+    /**
+     * Sends every buffered byte followed by a payload, in a single gathering
+     * write when the channel supports it. The payload is not copied into the
+     * write buffer, so cached payload segments can be shared by many emails.
+     *
+     * @param payload the buffers to send after the buffered bytes, in order.
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    void flush(ByteBuffer... payload) throws IOException {
+        writeBuffer.flip();
+        long remaining = writeBuffer.remaining();
+        for (ByteBuffer part : payload) {
+            remaining += part.remaining();
+        }
+        SmtpMetrics.get().bytesSent(remaining);
+
+        if (out instanceof GatheringByteChannel gathering) {
+            ByteBuffer[] buffers = new ByteBuffer[payload.length + 1];
+            buffers[0] = writeBuffer;
+            System.arraycopy(payload, 0, buffers, 1, payload.length);
+            while (remaining > 0) {
+                remaining -= gathering.write(buffers);
+            }
+        } else {
+            while (writeBuffer.hasRemaining()) {
+                out.write(writeBuffer);
+            }
+            for (ByteBuffer part : payload) {
+                while (part.hasRemaining()) {
+                    out.write(part);
+                }
+            }
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * Reads a complete reply, including every continuation line of a
+     * multi-line reply ("250-...").
+     *
+     * @return the status code of the reply.
+     * @throws IOException if the connection is closed or the reply is malformed.
+     */
+    int readReply() throws IOException {
+        return readReply(null);
+    }
+
+    /**
+     * Reads a complete reply, including every continuation line of a
+     * multi-line reply ("250-...").
+     *
+     * @param lines if not null, receives the text of every line of the reply,
+     *              without the status code (used for the EHLO keywords).
+     * @return the status code of the reply.
+     * @throws IOException if the connection is closed or the reply is malformed.
+     */
+    int readReply(List<String> lines) throws IOException {
+        while (true) {
+            int end = nextLineEnd();
+            int start = readBuffer.position();
+            int code = parseCode(readBuffer, start, end);
+            boolean last = end - start < 4 || readBuffer.get(start + 3) != '-';
+
+            lastLineLength = end - start;
+            readBuffer.get(start, lastLine, 0, lastLineLength);
+            readBuffer.position(end);
+            skipLineTerminator();
+
+            if (code < 0) {
+                throw new IOException("[SMTP Server] Malformed reply: " + replyText());
+            }
+            if (lines != null) {
+                lines.add(lastLineLength > 4 ? new String(lastLine, 4, lastLineLength - 4, StandardCharsets.US_ASCII) : "");
+            }
+            if (last) {
+                SmtpMetrics.get().reply(code);
+                return code;
+            }
+        }
+    }
+
+    /**
+     * Tells whether bytes were received beyond the last reply read. Between two
+     * transactions, they can only be an unsolicited reply.
+     *
+     * @return true if the read buffer is not empty.
+     */
+    boolean hasBufferedInput() {
+        return readBuffer.hasRemaining();
+    }
+
+    /**
+     * Builds the text of the last reply line read. Only meant to be called when
+     * the text is needed, for instance to report an error.
+     *
+     * @return the last reply line, status code included.
+     */
+    String replyText() {
+        return new String(lastLine, 0, lastLineLength, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Parses the three-digit status code at the start of a reply line.
+     *
+     * @param buffer the buffer containing the line.
+     * @param start  the index of the first byte of the line.
+     * @param end    the index of the end of the line.
+     * @return the status code, or -1 if the line does not start with three digits.
+     */
+    static int parseCode(ByteBuffer buffer, int start, int end) {
+        if (end - start < 3) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = start; i < start + 3; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            code = code * 10 + digit;
+        }
+        return code;
+    }
+
+    /**
+     * Finds the end of the next reply line, reading from the channel until a
+     * complete line is available.
+     *
+     * @return the index of the end of the line, line terminator excluded.
+     * @throws IOException if the connection is closed or the line is too long.
+     */
+    private int nextLineEnd() throws IOException {
+        int scanned = readBuffer.position();
+        while (true) {
+            for (int i = scanned; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    return i > readBuffer.position() && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                }
+            }
+            scanned = readBuffer.limit() - readBuffer.position();
+
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                throw new IOException("[SMTP Server] Reply line too long");
+            }
+            int read = in.read(readBuffer);
+            readBuffer.flip();
+            if (read < 0) {
+                throw new IOException("[SMTP Server] Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Moves past the CRLF (or bare LF) terminating the current line.
+     */
+    private void skipLineTerminator() {
+        if (readBuffer.get(readBuffer.position()) == '\r') {
+            readBuffer.position(readBuffer.position() + 1);
+        }
+        readBuffer.position(readBuffer.position() + 1);
+    }
+
+    /**
+     * Puts text in a buffer, ASCII text byte by byte, any other text through
+     * the charset encoder.
+     *
+     * @param target          the buffer receiving the text.
+     * @param encoder         the encoder of the charset.
+     * @param asciiCompatible whether the charset encodes ASCII as itself.
+     * @param text            the text to put.
+     * @throws BufferOverflowException if the text does not fit in the buffer.
+     * @throws CharacterCodingException if the text cannot be encoded.
+     */
+    private static void put(ByteBuffer target, CharsetEncoder encoder, boolean asciiCompatible, CharSequence text)
+            throws BufferOverflowException, CharacterCodingException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80 || !asciiCompatible) {
+                encoder.reset();
+                CoderResult result = encoder.encode(CharBuffer.wrap(text, i, length), target, true);
+                if (result.isUnderflow()) {
+                    result = encoder.flush(target);
+                }
+                if (result.isOverflow()) {
+                    throw new BufferOverflowException();
+                }
+                if (result.isError()) {
+                    result.throwException();
+                }
+                return;
+            }
+            target.put((byte) c);
+        }
+    }
+
+    /**
+     * Encodes the rest of a text with the charset encoder, flushing the buffer
+     * whenever it is full.
+     *
+     * @param text the text to write.
+     * @param from the index of the first character to encode.
+     * @throws IOException if an I/O error occurs or the text cannot be encoded.
+     */
+    private void encode(CharSequence text, int from) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text, from, text.length());
+        encoder.reset();
+
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, writeBuffer, true);
+            if (result.isOverflow()) {
+                flushBuffer();
+            } else if (result.isError()) {
+                result.throwException();
+            }
+        } while (!result.isUnderflow());
+
+        while (encoder.flush(writeBuffer).isOverflow()) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Writes the content of the write buffer to the channel and clears it.
+     *
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        SmtpMetrics.get().bytesSent(writeBuffer.remaining());
+        while (writeBuffer.hasRemaining()) {
+            out.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+}
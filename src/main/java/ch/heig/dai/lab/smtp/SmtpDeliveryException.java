@@ -0,0 +1,120 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An email refused by the SMTP server, entirely or for some of its
+ * recipients. Unlike a plain IOException, which means the outcome of the email
+ * is unknown, it tells which recipients were accepted and which were refused
+ * for good, so that only the other ones are retried.
+ */
+public class SmtpDeliveryException extends IOException {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+    // Not serialized: a deserialized exception reports no accepted nor rejected recipients
+    private final transient List<String> accepted;
+    private final transient List<String> rejected;
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs the exception of an email refused as a whole.
+     *
+     * @param code  the status code of the server reply.
+     * @param reply the server reply.
+     */
+    public SmtpDeliveryException(int code, String reply) {
+        this(code, "[SMTP Server] " + reply, List.of(), List.of());
+    }
+
+    /**
+     * Constructs the exception of an email delivered to some of its recipients
+     * only.
+     *
+     * @param code     the status code of the first refusal.
+     * @param message  the detail message.
+     * @param accepted the recipients the email was delivered to.
+     * @param rejected the recipients the email was refused for good.
+     */
+    public SmtpDeliveryException(int code, String message, List<String> accepted, List<String> rejected) {
+        super(message);
+        this.code = code;
+        this.accepted = List.copyOf(accepted);
+        this.rejected = List.copyOf(rejected);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Gets the status code of the server reply.
+     *
+     * @return the status code.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Tells whether the server refused the email for good (5xx reply), as
+     * opposed to a temporary failure (4xx reply) worth retrying.
+     *
+     * @return true if the refusal is permanent.
+     */
+    public boolean isPermanent() {
+        return code >= 500;
+    }
+
+    /**
+     * Tells whether the server refused the email for now only (4xx reply), so
+     * that it may be sent again later.
+     *
+     * @return true if the refusal is temporary.
+     */
+    public boolean isTransient() {
+        return code >= 400 && code < 500;
+    }
+
+    /**
+     * Tells whether the server stopped accepting recipients because its limit
+     * per transaction was reached (452 after some recipients were accepted).
+     * The other recipients can be sent at once in another transaction, the
+     * server is not overloaded.
+     *
+     * @return true if the email was delivered to the recipients up to the limit.
+     */
+    public boolean isRecipientLimit() {
+        return code == 452 && !getAccepted().isEmpty();
+    }
+
+    /**
+     * Gets the recipients the email was delivered to, when it was delivered to
+     * some of them only.
+     *
+     * @return the accepted recipients, empty if the email was refused as a whole.
+     */
+    public List<String> getAccepted() {
+        return accepted != null ? accepted : List.of();
+    }
+
+    /**
+     * Gets the recipients the email was refused for good, when it was delivered
+     * to some of them only.
+     *
+     * @return the rejected recipients, empty if the email was refused as a whole.
+     */
+    public List<String> getRejected() {
+        return rejected != null ? rejected : List.of();
+    }
+}
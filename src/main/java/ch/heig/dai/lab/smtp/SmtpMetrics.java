@@ -0,0 +1,267 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Process-wide instrumentation of the SMTP clients: a latency histogram per
+ * SMTP command and counters of messages, recipients, bytes and reply codes.
+ * Counters are LongAdders and histograms only do atomic increments, so the
+ * senders running in parallel do not contend on a lock. The metrics are
+ * exposed over JMX and printed as a summary at the end of the application.
+ */
+public class SmtpMetrics implements SmtpMetricsMXBean {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    /**
+     * The timed steps of an SMTP session. CONNECT goes from opening the
+     * connection to the greeting, TLS_HANDSHAKE is the handshake following
+     * STARTTLS, END_OF_DATA goes from sending the content to the server's
+     * acceptance, BDAT from sending a chunk (or, pipelined, the whole
+     * transaction) to its acceptance.
+     */
+    enum SMTP_COMMANDS {CONNECT, EHLO, STARTTLS, TLS_HANDSHAKE, MAIL, RCPT, DATA, END_OF_DATA, BDAT, RSET, NOOP, QUIT}
+
+    private static final SmtpMetrics INSTANCE = new SmtpMetrics();
+    private static final String OBJECT_NAME = "ch.heig.dai.lab.smtp:type=SmtpMetrics";
+    private static final int MAX_REPLY_CODE = 599;
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final long startedAt = System.nanoTime();
+    private final Map<SMTP_COMMANDS, LatencyHistogram> latencies = new EnumMap<>(SMTP_COMMANDS.class);
+    private final LongAdder[] replyCodes = new LongAdder[MAX_REPLY_CODE + 1];
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder recipients = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder tlsHandshakes = new LongAdder();
+    private final LongAdder tlsResumed = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Creates every histogram and counter up front, so that recording never
+     * has to.
+     */
+    private SmtpMetrics() {
+        for (SMTP_COMMANDS command : SMTP_COMMANDS.values()) {
+            latencies.put(command, new LatencyHistogram());
+        }
+        for (int i = 0; i < replyCodes.length; i++) {
+            replyCodes[i] = new LongAdder();
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Gets the metrics shared by every SMTP client of the application.
+     *
+     * @return the metrics.
+     */
+    public static SmtpMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics on the platform MBean server. Does nothing if they
+     * are already registered.
+     *
+     * @throws JMException if the MBean cannot be registered.
+     */
+    public void register() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        var server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+    }
+
+    /**
+     * Records the latency of a command, from the given start to now.
+     *
+     * @param command     the timed command.
+     * @param startNanos  the value of System.nanoTime() when the command was sent.
+     */
+    void record(SMTP_COMMANDS command, long startNanos) {
+        latencies.get(command).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Counts a reply of the server.
+     *
+     * @param code the status code of the reply.
+     */
+    void reply(int code) {
+        if (code >= 0 && code <= MAX_REPLY_CODE) {
+            replyCodes[code].increment();
+        }
+    }
+
+    /**
+     * Counts bytes written to an SMTP connection.
+     *
+     * @param count the number of bytes written.
+     */
+    void bytesSent(long count) {
+        bytes.add(count);
+    }
+
+    /**
+     * Counts an email accepted by the server.
+     *
+     * @param nbRecipients the number of recipients the email was accepted for.
+     */
+    void messageSent(int nbRecipients) {
+        messages.increment();
+        recipients.add(nbRecipients);
+    }
+
+    /**
+     * Records a TLS handshake.
+     *
+     * @param startNanos the value of System.nanoTime() when the handshake started.
+     * @param resumed    whether the handshake resumed a cached session.
+     */
+    void tlsHandshake(long startNanos, boolean resumed) {
+        record(SMTP_COMMANDS.TLS_HANDSHAKE, startNanos);
+        tlsHandshakes.increment();
+        if (resumed) {
+            tlsResumed.increment();
+        }
+    }
+
+    /**
+     * Counts recipients left out because they are on the suppression list.
+     *
+     * @param nbRecipients the number of suppressed recipients.
+     */
+    void recipientsSuppressed(int nbRecipients) {
+        suppressed.add(nbRecipients);
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messages.sum();
+    }
+
+    @Override
+    public long getRecipientsSent() {
+        return recipients.sum();
+    }
+
+    @Override
+    public long getRecipientsSuppressed() {
+        return suppressed.sum();
+    }
+
+    @Override
+    public long getTlsHandshakes() {
+        return tlsHandshakes.sum();
+    }
+
+    @Override
+    public long getTlsResumedHandshakes() {
+        return tlsResumed.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getMessagesPerSecond() {
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        return seconds > 0 ? messages.sum() / seconds : 0;
+    }
+
+    @Override
+    public Map<String, Long> getReplyCodes() {
+        Map<String, Long> codes = new TreeMap<>();
+        for (int code = 0; code < replyCodes.length; code++) {
+            long count = replyCodes[code].sum();
+            if (count > 0) {
+                codes.put(String.valueOf(code), count);
+            }
+        }
+        return codes;
+    }
+
+    @Override
+    public Map<String, Double> getP50Millis() {
+        return percentiles(h -> h.getValueAtPercentile(50) / NANOS_PER_MILLI);
+    }
+
+    @Override
+    public Map<String, Double> getP99Millis() {
+        return percentiles(h -> h.getValueAtPercentile(99) / NANOS_PER_MILLI);
+    }
+
+    @Override
+    public Map<String, Double> getP999Millis() {
+        return percentiles(h -> h.getValueAtPercentile(99.9) / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Prints the throughput, the latency percentiles of every command that was
+     * used and the reply codes.
+     *
+     * @param out the stream to print to.
+     */
+    public void printSummary(PrintStream out) {
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        out.printf("%n[Metrics] %d emails to %d recipients (%d bytes) in %.2f s: %.1f emails/s%n",
+                getMessagesSent(), getRecipientsSent(), getBytesSent(), seconds, getMessagesPerSecond());
+        if (getTlsHandshakes() > 0) {
+            out.printf("[Metrics] TLS handshakes: %d, %d resumed (%.1f%%)%n", getTlsHandshakes(),
+                    getTlsResumedHandshakes(), 100.0 * getTlsResumedHandshakes() / getTlsHandshakes());
+        }
+        if (getRecipientsSuppressed() > 0) {
+            out.printf("[Metrics] %d recipients suppressed%n", getRecipientsSuppressed());
+        }
+        out.printf("[Metrics] %-12s %8s %10s %10s %10s %10s%n", "Command", "Count", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Map.Entry<SMTP_COMMANDS, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() > 0) {
+                out.printf("[Metrics] %-12s %8d %10.3f %10.3f %10.3f %10.3f%n", entry.getKey(), histogram.getCount(),
+                        histogram.getValueAtPercentile(50) / NANOS_PER_MILLI,
+                        histogram.getValueAtPercentile(99) / NANOS_PER_MILLI,
+                        histogram.getValueAtPercentile(99.9) / NANOS_PER_MILLI,
+                        histogram.getMax() / NANOS_PER_MILLI);
+            }
+        }
+        out.println("[Metrics] Reply codes: " + getReplyCodes());
+    }
+
+    /**
+     * Computes a statistic of every command that was used.
+     *
+     * @param statistic the statistic to compute from a histogram.
+     * @return the statistic, by command.
+     */
+    private Map<String, Double> percentiles(ToDoubleFunction<LatencyHistogram> statistic) {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<SMTP_COMMANDS, LatencyHistogram> entry : latencies.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                values.put(entry.getKey().name(), statistic.applyAsDouble(entry.getValue()));
+            }
+        }
+        return values;
+    }
+}
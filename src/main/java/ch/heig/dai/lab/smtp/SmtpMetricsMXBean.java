@@ -0,0 +1,94 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.util.Map;
+
+/**
+ * Management interface of SmtpMetrics, readable with any JMX client (JConsole,
+ * VisualVM, ...) under the name "ch.heig.dai.lab.smtp:type=SmtpMetrics". It has
+ * to be public for the platform MBean server to introspect it.
+ */
+public interface SmtpMetricsMXBean {
+    /**
+     * Gets the number of emails accepted by the server.
+     *
+     * @return the number of emails sent.
+     */
+    long getMessagesSent();
+
+    /**
+     * Gets the number of recipients accepted by the server.
+     *
+     * @return the number of recipients.
+     */
+    long getRecipientsSent();
+
+    /**
+     * Gets the number of recipients left out because they are on the
+     * suppression list.
+     *
+     * @return the number of suppressed recipients.
+     */
+    long getRecipientsSuppressed();
+
+    /**
+     * Gets the number of TLS handshakes made after STARTTLS.
+     *
+     * @return the number of handshakes, resumed ones included.
+     */
+    long getTlsHandshakes();
+
+    /**
+     * Gets the number of TLS handshakes that resumed a cached session instead
+     * of making a full handshake.
+     *
+     * @return the number of resumed handshakes.
+     */
+    long getTlsResumedHandshakes();
+
+    /**
+     * Gets the number of bytes written to the SMTP connections.
+     *
+     * @return the number of bytes sent.
+     */
+    long getBytesSent();
+
+    /**
+     * Gets the average throughput since the application started.
+     *
+     * @return the number of emails sent per second.
+     */
+    double getMessagesPerSecond();
+
+    /**
+     * Gets the number of replies received for each status code.
+     *
+     * @return the number of replies, by status code.
+     */
+    Map<String, Long> getReplyCodes();
+
+    /**
+     * Gets the median latency of each SMTP command.
+     *
+     * @return the median latency in milliseconds, by command.
+     */
+    Map<String, Double> getP50Millis();
+
+    /**
+     * Gets the 99th percentile latency of each SMTP command.
+     *
+     * @return the 99th percentile latency in milliseconds, by command.
+     */
+    Map<String, Double> getP99Millis();
+
+    /**
+     * Gets the 99.9th percentile latency of each SMTP command.
+     *
+     * @return the 99.9th percentile latency in milliseconds, by command.
+     */
+    Map<String, Double> getP999Millis();
+}
@@ -0,0 +1,87 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+/**
+ * An SMTP relay the emails can be sent through, along with its weight: a
+ * relay of weight 2 receives about twice as many recipient domains as a relay
+ * of weight 1.
+ *
+ * @param address the address of the relay.
+ * @param port    the port of the relay.
+ * @param weight  the share of the recipient domains routed to the relay.
+ */
+public record SmtpRelay(String address, int port, int weight) {
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Validates the relay.
+     *
+     * @throws IllegalArgumentException if the address is blank, the port is out
+     *                                  of range or the weight is less than 1.
+     */
+    public SmtpRelay {
+        if (address == null || address.isBlank()) {
+            throw new IllegalArgumentException("Relay address must not be empty.");
+        }
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("Invalid relay port: " + port);
+        }
+        if (weight < 1) {
+            throw new IllegalArgumentException("Relay weight must be at least 1.");
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Parses a relay written as "address:port" or "address:port:weight". An
+     * IPv6 address is written in brackets, as in "[::1]:25". The weight
+     * defaults to 1.
+     *
+     * @param relay the relay definition.
+     * @return the parsed relay.
+     * @throws IllegalArgumentException if the definition is malformed.
+     */
+    public static SmtpRelay parse(String relay) throws IllegalArgumentException {
+        String definition = relay.trim();
+        String address = null;
+        if (definition.startsWith("[")) {
+            int end = definition.indexOf(']');
+            if (end < 0 || end + 1 >= definition.length() || definition.charAt(end + 1) != ':') {
+                throw new IllegalArgumentException("Invalid relay, expected [address]:port[:weight]: " + relay);
+            }
+            address = definition.substring(1, end);
+            definition = definition.substring(end + 1);
+        }
+
+        // After a bracketed address, the first part is empty and ignored
+        String[] parts = definition.split(":", -1);
+        if (parts.length < 2 || parts.length > 3) {
+            throw new IllegalArgumentException("Invalid relay, expected address:port[:weight]: " + relay);
+        }
+
+        try {
+            return new SmtpRelay(address != null ? address : parts[0].trim(), Integer.parseInt(parts[1].trim()),
+                    parts.length == 3 ? Integer.parseInt(parts[2].trim()) : 1);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid relay, expected address:port[:weight]: " + relay);
+        }
+    }
+
+    /**
+     * Returns the relay as "address:port", an IPv6 address being written in
+     * brackets so that the result can be parsed back.
+     *
+     * @return the address and port of the relay.
+     */
+    @Override
+    public String toString() {
+        return (address.indexOf(':') >= 0 ? "[" + address + "]" : address) + ":" + port;
+    }
+}
@@ -0,0 +1,569 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lightweight in-process SMTP server standing in for a real relay during
+ * benchmarks and stress runs. It speaks enough of the protocol for the clients
+ * of this project (EHLO/HELO, STARTTLS, MAIL, RCPT, DATA, BDAT, RSET, NOOP and
+ * QUIT) and discards every message it receives. It can simulate slow or flaky
+ * relays with a per-command latency, random 4xx/5xx replies and a limit on the
+ * number of transactions per connection. Each connection is served by its own virtual
+ * thread, so thousands of concurrent sessions are cheap.
+ */
+public class SmtpSink implements Closeable {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private final int requestedPort;
+    private final Map<String, Long> latencies = new ConcurrentHashMap<>();
+    private List<String> extensions = List.of("PIPELINING", "8BITMIME", "SIZE 10485760", "CHUNKING", "SMTPUTF8");
+    private double transientErrorRate = 0;
+    private double permanentErrorRate = 0;
+    private int transactionLimit = 0;
+    private int recipientLimit = 0;
+    private Set<String> unknownRecipients = Set.of();
+    private SSLContext tls;
+    private ServerSocket serverSocket;
+
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder recipients = new LongAdder();
+
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int BACKLOG = 1024;
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs a sink listening on the loopback interface.
+     *
+     * @param port the port to listen on, 0 for an ephemeral port.
+     */
+    public SmtpSink(int port) {
+        this.requestedPort = port;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Configuration
+    // ------------------------------------------------------------------------------
+    /**
+     * Sets the extensions advertised in the EHLO reply.
+     *
+     * @param extensions the EHLO keywords, for instance "PIPELINING" or "SIZE 1000000".
+     * @return this sink.
+     */
+    public SmtpSink setExtensions(List<String> extensions) {
+        this.extensions = List.copyOf(extensions);
+        return this;
+    }
+
+    /**
+     * Delays the reply to a command. May be changed while the sink is running.
+     *
+     * @param verb   the SMTP verb, for instance "RCPT", or "CONNECT" for the greeting.
+     * @param millis the delay in milliseconds.
+     * @return this sink.
+     */
+    public SmtpSink setLatency(String verb, long millis) {
+        latencies.put(verb.toUpperCase(), millis);
+        return this;
+    }
+
+    /**
+     * Makes the sink reject MAIL, RCPT and the end of the message data at
+     * random.
+     *
+     * @param transientErrorRate the probability of a 451 reply, between 0 and 1.
+     * @param permanentErrorRate the probability of a 550 reply, between 0 and 1.
+     * @return this sink.
+     * @throws IllegalArgumentException if a rate is not between 0 and 1.
+     */
+    public SmtpSink setErrorRates(double transientErrorRate, double permanentErrorRate) throws IllegalArgumentException {
+        if (transientErrorRate < 0 || permanentErrorRate < 0 || transientErrorRate + permanentErrorRate > 1) {
+            throw new IllegalArgumentException("Error rates must be between 0 and 1.");
+        }
+        this.transientErrorRate = transientErrorRate;
+        this.permanentErrorRate = permanentErrorRate;
+        return this;
+    }
+
+    /**
+     * Closes a connection with a 421 reply once it has completed the given
+     * number of transactions.
+     *
+     * @param transactionLimit the number of transactions per connection, 0 for no limit.
+     * @return this sink.
+     */
+    public SmtpSink setTransactionLimit(int transactionLimit) {
+        this.transactionLimit = transactionLimit;
+        return this;
+    }
+
+    /**
+     * Refuses the recipients of a transaction beyond the given number with a
+     * 452 reply, as RFC 5321 recommends for servers limiting the recipients.
+     *
+     * @param recipientLimit the number of recipients per transaction, 0 for no limit.
+     * @return this sink.
+     */
+    public SmtpSink setRecipientLimit(int recipientLimit) {
+        this.recipientLimit = recipientLimit;
+        return this;
+    }
+
+    /**
+     * Refuses the given recipients with a 550 reply, as a server does for
+     * mailboxes it does not know.
+     *
+     * @param unknownRecipients the addresses to refuse.
+     * @return this sink.
+     */
+    public SmtpSink setUnknownRecipients(Set<String> unknownRecipients) {
+        this.unknownRecipients = Set.copyOf(unknownRecipients);
+        return this;
+    }
+
+    /**
+     * Offers STARTTLS (RFC 3207) with the given server context, for instance
+     * one holding a self-signed certificate (see tlsContext). A session that
+     * did not start TLS is still served in plain text.
+     *
+     * @param tls the server context, null to not offer STARTTLS.
+     * @return this sink.
+     */
+    public SmtpSink setTls(SSLContext tls) {
+        this.tls = tls;
+        return this;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Builds a server TLS context from a PKCS12 key store, such as one made by
+     * keytool -genkeypair -storetype PKCS12.
+     *
+     * @param keyStore the key store holding the private key and certificate of the sink.
+     * @param password the password of the key store and of its key.
+     * @return the server context.
+     * @throws IOException if the key store cannot be read or used.
+     */
+    public static SSLContext tlsContext(Path keyStore, char[] password) throws IOException {
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            store.load(in, password);
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(store, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid key store " + keyStore + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts listening and accepting connections in the background.
+     *
+     * @return this sink.
+     * @throws IOException if the server socket cannot be opened.
+     */
+    public SmtpSink start() throws IOException {
+        serverSocket = new ServerSocket(requestedPort, BACKLOG, InetAddress.getLoopbackAddress());
+        Thread.ofPlatform().daemon().name("smtp-sink-" + serverSocket.getLocalPort()).start(this::acceptLoop);
+        return this;
+    }
+
+    /**
+     * Gets the port the sink is listening on.
+     *
+     * @return the local port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the number of connections accepted so far.
+     *
+     * @return the number of connections.
+     */
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    /**
+     * Gets the number of messages accepted so far.
+     *
+     * @return the number of messages.
+     */
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    /**
+     * Gets the number of recipients accepted so far.
+     *
+     * @return the number of recipients.
+     */
+    public long getRecipients() {
+        return recipients.sum();
+    }
+
+    /**
+     * Stops accepting connections. Sessions in progress end when their client
+     * disconnects.
+     *
+     * @throws IOException if the server socket cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Runs a sink from the command line, for instance as a stand-in for MailDev.
+     *
+     * @param args the port (default 1025), then optionally the transient and
+     *             permanent error rates, then a PKCS12 key store and its password
+     *             to offer STARTTLS.
+     * @throws IOException          if the server socket cannot be opened.
+     * @throws InterruptedException if the main thread is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        SmtpSink sink = new SmtpSink(args.length > 0 ? Integer.parseInt(args[0]) : 1025);
+        if (args.length > 2) {
+            sink.setErrorRates(Double.parseDouble(args[1]), Double.parseDouble(args[2]));
+        }
+        if (args.length > 4) {
+            sink.setTls(tlsContext(Path.of(args[3]), args[4].toCharArray()));
+        }
+        sink.start();
+        System.out.println("SMTP sink listening on localhost:" + sink.getPort());
+
+        // The accept loop runs on a daemon thread, keep the JVM alive
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Accepts connections until the server socket is closed.
+     */
+    private void acceptLoop() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                connections.increment();
+                Thread.ofVirtual().start(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            // Server socket closed
+        }
+    }
+
+    /**
+     * Serves a single SMTP session. Replies are only flushed when no more
+     * command is waiting in the input, so pipelined commands get their replies
+     * in a single write.
+     *
+     * @param socket the connection to the client.
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            byte[] line = new byte[MAX_LINE_LENGTH];
+            SSLSocket secured = null;
+            boolean mail = false;
+            int nbRecipients = 0;
+            int transactions = 0;
+
+            delay("CONNECT");
+            reply(out, "220 smtp-sink ready");
+            out.flush();
+
+            int length;
+            while ((length = readLine(in, line)) >= 0) {
+                String verb = verb(line, length);
+                delay(verb);
+
+                switch (verb) {
+                    case "EHLO" -> {
+                        List<String> offered = extensions;
+                        if (tls != null && secured == null) {
+                            offered = new ArrayList<>(extensions);
+                            offered.add("STARTTLS");
+                        }
+                        StringBuilder ehlo = new StringBuilder("250");
+                        ehlo.append(offered.isEmpty() ? ' ' : '-').append("smtp-sink");
+                        for (int i = 0; i < offered.size(); i++) {
+                            ehlo.append("\r\n250").append(i == offered.size() - 1 ? ' ' : '-').append(offered.get(i));
+                        }
+                        reply(out, ehlo.toString());
+                    }
+                    case "STAR" -> {
+                        if (tls == null || secured != null || mail) {
+                            reply(out, "503 STARTTLS not available");
+                            break;
+                        }
+                        reply(out, "220 Ready to start TLS");
+                        out.flush();
+
+                        // The session starts over on the secured connection (RFC 3207, section 4.2)
+                        secured = (SSLSocket) tls.getSocketFactory().createSocket(socket, null, true);
+                        secured.setUseClientMode(false);
+                        secured.startHandshake();
+                        in = new BufferedInputStream(secured.getInputStream());
+                        out = new BufferedOutputStream(secured.getOutputStream());
+                        nbRecipients = 0;
+                    }
+                    case "HELO", "NOOP" -> reply(out, "250 OK");
+                    case "RSET" -> {
+                        mail = false;
+                        nbRecipients = 0;
+                        reply(out, "250 OK");
+                    }
+                    case "MAIL" -> {
+                        if (mail) {
+                            reply(out, "503 Nested MAIL command");
+                        } else if (replyError(out)) {
+                            mail = true;
+                            reply(out, "250 OK");
+                        }
+                    }
+                    case "RCPT" -> {
+                        if (!mail) {
+                            reply(out, "503 Need MAIL before RCPT");
+                        } else if (recipientLimit > 0 && nbRecipients >= recipientLimit) {
+                            reply(out, "452 4.5.3 Too many recipients");
+                        } else if (unknownRecipients.contains(address(line, length))) {
+                            reply(out, "550 5.1.1 No such user");
+                        } else if (replyError(out)) {
+                            nbRecipients++;
+                            reply(out, "250 OK");
+                        }
+                    }
+                    case "DATA", "BDAT" -> {
+                        boolean last = true;
+                        if (verb.equals("DATA")) {
+                            if (nbRecipients == 0) {
+                                reply(out, "554 No valid recipients");
+                                break;
+                            }
+                            reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                            out.flush();
+                            skipData(in, line);
+                        } else {
+                            String[] arguments = new String(line, 0, length, StandardCharsets.US_ASCII).trim().split("\\s+");
+                            in.skipNBytes(Long.parseLong(arguments[1]));
+                            last = arguments.length > 2 && arguments[2].equalsIgnoreCase("LAST");
+                            if (nbRecipients == 0) {
+                                reply(out, "554 No valid recipients");
+                                break;
+                            }
+                            if (!last) {
+                                reply(out, "250 OK chunk received");
+                                break;
+                            }
+                        }
+
+                        if (replyError(out)) {
+                            messages.increment();
+                            recipients.add(nbRecipients);
+                            reply(out, "250 OK queued");
+                        }
+                        mail = false;
+                        nbRecipients = 0;
+
+                        if (transactionLimit > 0 && ++transactions >= transactionLimit) {
+                            reply(out, "421 Too many transactions, closing connection");
+                            out.flush();
+                            return;
+                        }
+                    }
+                    case "QUIT" -> {
+                        reply(out, "221 Bye");
+                        out.flush();
+                        return;
+                    }
+                    default -> reply(out, "502 Command not implemented");
+                }
+
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Connection dropped by the client or malformed command
+        }
+    }
+
+    /**
+     * Replies with an injected error according to the configured rates.
+     *
+     * @param out the output of the session.
+     * @return true if no error was injected and the command should succeed.
+     * @throws IOException if an I/O error occurs while replying.
+     */
+    private boolean replyError(OutputStream out) throws IOException {
+        if (transientErrorRate == 0 && permanentErrorRate == 0) {
+            return true;
+        }
+
+        double draw = ThreadLocalRandom.current().nextDouble();
+        if (draw < transientErrorRate) {
+            reply(out, "451 Temporary failure, try again later");
+            return false;
+        }
+        if (draw < transientErrorRate + permanentErrorRate) {
+            reply(out, "550 Permanent failure");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sleeps for the latency configured for a verb, if any.
+     *
+     * @param verb the SMTP verb.
+     */
+    private void delay(String verb) {
+        Long millis = latencies.get(verb);
+        if (millis != null && millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Extracts the upper-cased verb (first four characters) of a command line.
+     *
+     * @param line   the command line.
+     * @param length the length of the line.
+     * @return the verb.
+     */
+    private static String verb(byte[] line, int length) {
+        int verbLength = Math.min(4, length);
+        char[] verb = new char[verbLength];
+        for (int i = 0; i < verbLength; i++) {
+            verb[i] = Character.toUpperCase((char) line[i]);
+        }
+        return new String(verb);
+    }
+
+    /**
+     * Extracts the address between the angle brackets of a MAIL or RCPT command.
+     *
+     * @param line   the command line.
+     * @param length the length of the line.
+     * @return the address, empty if the line holds none.
+     */
+    private static String address(byte[] line, int length) {
+        String command = new String(line, 0, length, StandardCharsets.UTF_8);
+        int start = command.indexOf('<');
+        int end = command.indexOf('>', start + 1);
+        return start < 0 || end < 0 ? "" : command.substring(start + 1, end);
+    }
+
+    /**
+     * Reads a line terminated by LF (the CR, if any, is dropped).
+     *
+     * @param in   the input of the session.
+     * @param line the buffer receiving the line.
+     * @return the length of the line, or -1 at the end of the stream.
+     * @throws IOException if an I/O error occurs or the line is too long.
+     */
+    private static int readLine(InputStream in, byte[] line) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return -1;
+            }
+            if (length == line.length) {
+                throw new IOException("Line too long");
+            }
+            line[length++] = (byte) b;
+        }
+        return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+    }
+
+    /**
+     * Discards the message data up to the line containing a single ".".
+     *
+     * @param in   the input of the session.
+     * @param line a buffer for the lines of data.
+     * @throws IOException if the connection is closed before the end of the data.
+     */
+    private static void skipData(InputStream in, byte[] line) throws IOException {
+        int length;
+        while ((length = readLineTruncated(in, line)) >= 0) {
+            if (length == 1 && line[0] == '.') {
+                return;
+            }
+        }
+        throw new EOFException("Connection closed during DATA");
+    }
+
+    /**
+     * Reads a line like readLine(), but silently truncates lines longer than
+     * the buffer, since the message data is discarded anyway.
+     *
+     * @param in   the input of the session.
+     * @param line the buffer receiving the line.
+     * @return the length of the line (at most the buffer size), or -1 at the end of the stream.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static int readLineTruncated(InputStream in, byte[] line) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return -1;
+            }
+            if (length < line.length) {
+                line[length] = (byte) b;
+            }
+            length++;
+        }
+        length = Math.min(length, line.length + 1);
+        return length > 0 && length <= line.length && line[length - 1] == '\r' ? length - 1 : length;
+    }
+
+    /**
+     * Buffers a reply line.
+     *
+     * @param out   the output of the session.
+     * @param reply the reply, without its final line terminator.
+     * @throws IOException if an I/O error occurs while writing.
+     */
+    private static void reply(OutputStream out, String reply) throws IOException {
+        out.write(reply.getBytes(StandardCharsets.US_ASCII));
+        out.write('\r');
+        out.write('\n');
+    }
+}
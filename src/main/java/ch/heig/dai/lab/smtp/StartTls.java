@@ -0,0 +1,110 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+
+/**
+ * Client side of STARTTLS (RFC 3207): upgrades an SMTP connection to TLS once
+ * the server agreed to it. A single instance is shared by every connection of
+ * the application, so that they share the client session cache of its
+ * SSLContext: after the first full handshake with a relay, the next
+ * connections to it resume the session (TLS 1.3 session tickets, or TLS 1.2
+ * session IDs) and skip the certificate exchange and key agreement. The
+ * duration of every handshake and whether it was resumed are recorded in
+ * SmtpMetrics.
+ * The server certificate is checked against the default trust store, which
+ * the javax.net.ssl.trustStore system property can replace (for instance with
+ * the self-signed certificate of a test relay), and against the host name of
+ * the relay.
+ */
+final class StartTls {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final int SESSION_CACHE_SIZE = 1024;
+    private static final int SESSION_TIMEOUT_SECONDS = 3600;
+
+    private final SSLSocketFactory factory;
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs the STARTTLS support over a client context.
+     *
+     * @param context the client context, whose session cache is shared by every connection.
+     */
+    StartTls(SSLContext context) {
+        context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        this.factory = context.getSocketFactory();
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs the STARTTLS support over a new context with the default key
+     * and trust managers.
+     *
+     * @return the STARTTLS support.
+     * @throws IOException if no TLS implementation is available.
+     */
+    static StartTls withDefaultContext() throws IOException {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            return new StartTls(context);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("[TLS] Cannot create the TLS context: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Performs the TLS handshake over a connection whose server just accepted
+     * STARTTLS. The session cache is keyed by host and port, so the connections
+     * to the same relay resume each other's sessions.
+     *
+     * @param socket the plain connection.
+     * @param host   the host name of the server, checked against its certificate.
+     * @param port   the port of the server.
+     * @return the secured connection, which closes the plain one when closed.
+     * @throws IOException if the handshake fails, for instance on an untrusted certificate.
+     */
+    SSLSocket handshake(Socket socket, String host, int port) throws IOException {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        SSLSocket secured = (SSLSocket) factory.createSocket(socket, host, port, true);
+        SSLParameters parameters = secured.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        secured.setSSLParameters(parameters);
+        secured.startHandshake();
+
+        SmtpMetrics.get().tlsHandshake(start, isResumed(secured.getSession(), startMillis));
+        return secured;
+    }
+
+    /**
+     * Tells whether a handshake resumed a session rather than creating one. A
+     * resumed session keeps the creation time of the session it comes from,
+     * which is older than the handshake.
+     *
+     * @param session     the session of the handshake.
+     * @param startMillis the wall-clock time the handshake started at.
+     * @return true if the session was resumed.
+     */
+    private static boolean isResumed(SSLSession session, long startMillis) {
+        return session.getCreationTime() < startMillis;
+    }
+}
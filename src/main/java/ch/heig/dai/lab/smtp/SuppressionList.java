@@ -0,0 +1,492 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Set of addresses that must never receive an email (opt-out list), checked for
+ * every recipient just before it is sent. Addresses are compared without case,
+ * through a 64-bit hash of their lower case form: a suppression list errs on
+ * the side of not sending.
+ * <p>
+ * The set is a single buffer, which is also the format of a compiled list:
+ * <ul>
+ *     <li>a header: MAGIC, the number of hashes, the number of Bloom filter
+ *     blocks and of index buckets, as powers of two;</li>
+ *     <li>a blocked Bloom filter of about BITS_PER_ADDRESS bits per address,
+ *     whose blocks are a cache line of 512 bits. An address sets HASH_BITS bits
+ *     of a single block, so a lookup reads one cache line, and most addresses,
+ *     which are not on the list, are answered by the filter alone;</li>
+ *     <li>the hashes of the addresses, sorted and without duplicates;</li>
+ *     <li>an index giving, for the upper bits of a hash, the first sorted hash
+ *     starting with them, so that the exact lookup behind the filter is a
+ *     binary search over a handful of hashes.</li>
+ * </ul>
+ * A text list is compiled in memory when it is loaded, and can be compiled
+ * once into a file (see main) that is memory-mapped as is at the next runs,
+ * without parsing nor hashing. A lookup neither locks nor allocates, so the
+ * list can be shared by every sending thread.
+ */
+public final class SuppressionList {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final int MAGIC = 0x53555031; // "SUP1"
+    private static final int HEADER_SIZE = 24;
+    private static final int BITS_PER_ADDRESS = 10;
+    private static final int BLOCK_LONGS = 8;
+    private static final int HASH_BITS = 6;
+    private static final int ADDRESSES_PER_BUCKET = 4;
+
+    private final ByteBuffer data;
+    private final int size;
+    private final int blockMask;
+    private final int bucketShift;
+    private final int hashesOffset;
+    private final int indexOffset;
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs a suppression list over a compiled list.
+     *
+     * @param data the compiled list, as written by compile() or save().
+     * @throws IllegalArgumentException if the data is not a compiled list.
+     */
+    private SuppressionList(ByteBuffer data) throws IllegalArgumentException {
+        if (!isCompiled(data)) {
+            throw new IllegalArgumentException("Not a compiled suppression list.");
+        }
+        this.data = data;
+        this.size = data.getInt(4);
+        int blockBits = data.getInt(8);
+        int bucketBits = data.getInt(12);
+        if (size < 0 || blockBits < 0 || blockBits > 24 || bucketBits < 0 || bucketBits > 28) {
+            throw new IllegalArgumentException("Corrupted suppression list header.");
+        }
+        this.blockMask = (1 << blockBits) - 1;
+        this.bucketShift = 64 - bucketBits;
+        this.hashesOffset = HEADER_SIZE + (BLOCK_LONGS << blockBits) * Long.BYTES;
+        this.indexOffset = hashesOffset + size * Long.BYTES;
+        if ((long) hashesOffset + (long) size * Long.BYTES + ((1L << bucketBits) + 1) * Integer.BYTES > data.limit()) {
+            throw new IllegalArgumentException("Truncated suppression list.");
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Tells whether a buffer holds a compiled list rather than a text list.
+     *
+     * @param data the content of a suppression list file.
+     * @return true if the content starts with the magic number of a compiled list.
+     */
+    static boolean isCompiled(ByteBuffer data) {
+        return data.limit() >= HEADER_SIZE && data.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Wraps a compiled list, for instance a memory-mapped file, without copying it.
+     *
+     * @param data the compiled list.
+     * @return the suppression list.
+     * @throws IllegalArgumentException if the data is not a compiled list.
+     */
+    static SuppressionList wrap(ByteBuffer data) throws IllegalArgumentException {
+        return new SuppressionList(data);
+    }
+
+    /**
+     * Compiles a text list, one address per line. Lines are trimmed, and blank
+     * lines as well as lines starting with '#' are ignored. The addresses are
+     * not validated: an invalid address can never match a recipient anyway.
+     *
+     * @param text the text list, in a charset encoding ASCII as itself.
+     * @return the suppression list.
+     */
+    static SuppressionList compile(ByteBuffer text) {
+        int limit = text.limit();
+        long[] hashes = new long[Math.max(16, limit / 24)];
+        int count = 0;
+        int lineStart = 0;
+
+        while (lineStart < limit) {
+            int lineEnd = ConfigLoader.lineEnd(text, lineStart, limit);
+            int start = lineStart;
+            int end = lineEnd;
+            while (start < end && ConfigLoader.isBlank(text.get(start))) {
+                start++;
+            }
+            while (end > start && ConfigLoader.isBlank(text.get(end - 1))) {
+                end--;
+            }
+            if (start < end && text.get(start) != '#') {
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, count + (count >> 1));
+                }
+                hashes[count++] = hash(text, start, end);
+            }
+            lineStart = ConfigLoader.nextLine(text, lineEnd, limit);
+        }
+        return compile(hashes, count);
+    }
+
+    /**
+     * Compiles a list of addresses.
+     *
+     * @param addresses the addresses to suppress.
+     * @return the suppression list.
+     */
+    static SuppressionList compile(List<String> addresses) {
+        long[] hashes = new long[addresses.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = hash(addresses.get(i));
+        }
+        return compile(hashes, hashes.length);
+    }
+
+    /**
+     * Builds the compiled list of a set of hashes.
+     *
+     * @param hashes the hashes, in any order and with duplicates, sorted in place.
+     * @param count  the number of hashes in the array.
+     * @return the suppression list.
+     */
+    private static SuppressionList compile(long[] hashes, int count) {
+        Arrays.sort(hashes, 0, count);
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size == 0 || hashes[i] != hashes[size - 1]) {
+                hashes[size++] = hashes[i];
+            }
+        }
+
+        // Rounded up, so that the filter has between BITS_PER_ADDRESS and twice as many bits per address
+        int blockBits = bitsFor(2 * ((long) size * BITS_PER_ADDRESS / (BLOCK_LONGS * Long.SIZE)) - 1);
+        int bucketBits = bitsFor(size / ADDRESSES_PER_BUCKET);
+        long length = HEADER_SIZE + ((long) BLOCK_LONGS << blockBits) * Long.BYTES + (long) size * Long.BYTES
+                + ((1L << bucketBits) + 1) * Integer.BYTES;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Suppression list is too large: " + size + " addresses.");
+        }
+
+        ByteBuffer data = ByteBuffer.allocate((int) length);
+        data.putInt(0, MAGIC).putInt(4, size).putInt(8, blockBits).putInt(12, bucketBits);
+        int hashesOffset = HEADER_SIZE + (BLOCK_LONGS << blockBits) * Long.BYTES;
+        int indexOffset = hashesOffset + size * Long.BYTES;
+        int blockMask = (1 << blockBits) - 1;
+        int bucket = 0;
+
+        for (int i = 0; i < size; i++) {
+            long hash = hashes[i];
+            int block = HEADER_SIZE + ((int) hash & blockMask) * BLOCK_LONGS * Long.BYTES;
+            long bits = bloomBits(hash);
+            for (int k = 0; k < HASH_BITS; k++, bits >>>= 9) {
+                int word = block + (int) ((bits >>> 6) & (BLOCK_LONGS - 1)) * Long.BYTES;
+                data.putLong(word, data.getLong(word) | 1L << bits);
+            }
+            data.putLong(hashesOffset + i * Long.BYTES, hash);
+
+            // Buckets up to the one of this hash start at it at the latest
+            int own = bucketOf(hash, 64 - bucketBits);
+            while (bucket <= own) {
+                data.putInt(indexOffset + bucket++ * Integer.BYTES, i);
+            }
+        }
+        while (bucket <= 1 << bucketBits) {
+            data.putInt(indexOffset + bucket++ * Integer.BYTES, size);
+        }
+        return new SuppressionList(data);
+    }
+
+    /**
+     * Gets the number of bits to index about a given number of slots, so that
+     * there are between half and all of the count, and at least one.
+     *
+     * @param count the wanted number of slots.
+     * @return the base-2 logarithm of the number of slots.
+     */
+    private static int bitsFor(long count) {
+        return count <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(count);
+    }
+
+    /**
+     * Writes the compiled list to a file, to be memory-mapped at the next runs.
+     *
+     * @param file the file to write, replaced if it exists.
+     * @throws IOException if the file cannot be written.
+     */
+    void save(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer content = data.duplicate().clear();
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of distinct addresses of the list.
+     *
+     * @return the number of addresses.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Tells whether an address is on the list.
+     *
+     * @param address the address to check.
+     * @return true if the address must not receive any email.
+     */
+    public boolean contains(CharSequence address) {
+        return contains(hash(address));
+    }
+
+    /**
+     * Tells whether an address of a list is on the suppression list. The address
+     * of an AddressList is hashed straight from the bytes of its arena, without
+     * decoding it.
+     *
+     * @param addresses the list holding the address.
+     * @param index     the index of the address in the list.
+     * @return true if the address must not receive any email.
+     */
+    boolean contains(List<String> addresses, int index) {
+        if (addresses instanceof AddressArena.AddressList list) {
+            AddressArena arena = list.arena();
+            int address = list.arenaIndex(index);
+            return contains(hash(arena.data(), arena.start(address), arena.end(address)));
+        }
+        return contains(hash(addresses.get(index)));
+    }
+
+    /**
+     * Removes the suppressed addresses from a list of recipients. The list is
+     * returned as is, without allocating, when none of them is suppressed.
+     *
+     * @param receivers the recipients of an email.
+     * @return the recipients that are not suppressed, in the same order.
+     */
+    List<String> retain(List<String> receivers) {
+        int i = 0;
+        while (i < receivers.size() && !contains(receivers, i)) {
+            i++;
+        }
+        if (i == receivers.size()) {
+            return receivers;
+        }
+
+        List<String> retained = new ArrayList<>(receivers.subList(0, i));
+        for (i++; i < receivers.size(); i++) {
+            if (!contains(receivers, i)) {
+                retained.add(receivers.get(i));
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * Tells whether the Bloom filter lets an address through, without the
+     * exact lookup behind it: false for an address that is surely not on the
+     * list, true for an address on the list or a false positive.
+     *
+     * @param address the address to check.
+     * @return false if the address is not on the list.
+     */
+    boolean mayContain(CharSequence address) {
+        return mayContain(hash(address));
+    }
+
+    /**
+     * Looks a hash up: in the Bloom filter first, then in its bucket of the
+     * sorted hashes if the filter lets it through.
+     *
+     * @param hash the hash of an address.
+     * @return true if the hash is on the list.
+     */
+    private boolean contains(long hash) {
+        if (!mayContain(hash)) {
+            return false;
+        }
+
+        int bucket = bucketOf(hash, bucketShift);
+        int low = data.getInt(indexOffset + bucket * Integer.BYTES);
+        int high = data.getInt(indexOffset + (bucket + 1) * Integer.BYTES) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long value = data.getLong(hashesOffset + middle * Long.BYTES);
+            if (value < hash) {
+                low = middle + 1;
+            } else if (value > hash) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks the HASH_BITS bits of a hash in its block of the Bloom filter.
+     *
+     * @param hash the hash of an address.
+     * @return false if the hash is surely not on the list.
+     */
+    private boolean mayContain(long hash) {
+        int block = HEADER_SIZE + ((int) hash & blockMask) * BLOCK_LONGS * Long.BYTES;
+        long bits = bloomBits(hash);
+        for (int k = 0; k < HASH_BITS; k++, bits >>>= 9) {
+            int word = block + (int) ((bits >>> 6) & (BLOCK_LONGS - 1)) * Long.BYTES;
+            if ((data.getLong(word) & 1L << bits) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the index bucket of a hash, from its upper bits taken as unsigned,
+     * so that the buckets follow the signed order of the sorted hashes.
+     *
+     * @param hash        the hash.
+     * @param bucketShift 64 minus the number of bits of the index.
+     * @return the bucket of the hash.
+     */
+    private static int bucketOf(long hash, int bucketShift) {
+        // A shift of 64 would be taken modulo 64, a single bucket is handled apart
+        return bucketShift == 64 ? 0 : (int) ((hash ^ Long.MIN_VALUE) >>> bucketShift);
+    }
+
+    /**
+     * Derives the bits set by a hash in its Bloom filter block, 9 bits (a bit
+     * of the 512 of the block) per bit, from bits of the hash independent of
+     * those choosing the block.
+     *
+     * @param hash the hash.
+     * @return HASH_BITS positions of 9 bits each, lowest first.
+     */
+    private static long bloomBits(long hash) {
+        return Long.rotateLeft(hash * 0x9E3779B97F4A7C15L, 32);
+    }
+
+    /**
+     * Hashes an address given as text, in lower case. Non-ASCII characters are
+     * hashed as their low byte, as they never appear in a valid address.
+     *
+     * @param address the address.
+     * @return the hash of the address.
+     */
+    private static long hash(CharSequence address) {
+        long h = 0;
+        for (int i = 0; i < address.length(); i++) {
+            h = 31 * h + lowerCase((byte) address.charAt(i));
+        }
+        return mix(h);
+    }
+
+    /**
+     * Hashes an address given as ASCII bytes, in lower case.
+     *
+     * @param bytes the bytes holding the address.
+     * @param start the index of the first byte of the address.
+     * @param end   the index after the last byte of the address.
+     * @return the hash of the address.
+     */
+    private static long hash(byte[] bytes, int start, int end) {
+        long h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + lowerCase(bytes[i]);
+        }
+        return mix(h);
+    }
+
+    /**
+     * Hashes an address given as ASCII bytes of a buffer, in lower case.
+     *
+     * @param buffer the buffer holding the address.
+     * @param start  the index of the first byte of the address.
+     * @param end    the index after the last byte of the address.
+     * @return the hash of the address.
+     */
+    private static long hash(ByteBuffer buffer, int start, int end) {
+        long h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + lowerCase(buffer.get(i));
+        }
+        return mix(h);
+    }
+
+    /**
+     * Puts an ASCII letter in lower case.
+     *
+     * @param b the byte of a character.
+     * @return the byte of the lower case letter, or the byte itself.
+     */
+    private static int lowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    /**
+     * Finishes a polynomial hash with the MurmurHash3 mixer, so that every bit
+     * of the result depends on every byte of the address. Part of the compiled
+     * format: changing it requires a new MAGIC.
+     *
+     * @param h the polynomial hash.
+     * @return the mixed hash.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Compiles a text suppression list into a file that the application
+     * memory-maps instead of parsing the text at every run.
+     *
+     * @param args the text list, then the compiled file to write.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: SuppressionList <list.txt> <list.bin>");
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        ByteBuffer text;
+        try (FileChannel channel = FileChannel.open(Path.of(args[0]), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Suppression list is too large to be mapped: " + args[0]);
+            }
+            text = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (isCompiled(text)) {
+            throw new IOException("Suppression list is already compiled: " + args[0]);
+        }
+        // Addresses are ASCII, which UTF-8 and the usual charsets encode as is
+        SuppressionList list = compile(text);
+        list.save(Path.of(args[1]));
+        System.out.printf("[Suppression] %d addresses compiled into %s in %.1f ms%n",
+                list.size(), args[1], (System.nanoTime() - start) / 1e6);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hard ceiling on the number of emails sent per second, as a token bucket
+ * holding a single token: each email reserves the next free slot, spaced by
+ * 1/rate seconds, and sleeps until it comes. Reserving a slot is a single
+ * compare-and-set, so concurrent senders are never serialized on a lock, and
+ * the ceiling holds over any interval, without bursts after an idle period.
+ */
+class TokenBucket {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private final long intervalNanos;
+    private final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs a bucket refilled with the given number of tokens per second.
+     *
+     * @param ratePerSecond the maximum number of emails per second, 0 for no limit.
+     * @throws IllegalArgumentException if the rate is negative.
+     */
+    TokenBucket(int ratePerSecond) throws IllegalArgumentException {
+        if (ratePerSecond < 0) {
+            throw new IllegalArgumentException("Rate limit must not be negative.");
+        }
+        this.intervalNanos = ratePerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Takes a token, waiting for the bucket to be refilled if it is empty.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    void acquire() throws InterruptedException {
+        if (intervalNanos == 0) {
+            return;
+        }
+
+        long now;
+        long slot;
+        long previous;
+        do {
+            now = System.nanoTime();
+            previous = nextSlot.get();
+            slot = previous - now > 0 ? previous : now;
+        } while (!nextSlot.compareAndSet(previous, slot + intervalNanos));
+
+        TimeUnit.NANOSECONDS.sleep(slot - now);
+    }
+}
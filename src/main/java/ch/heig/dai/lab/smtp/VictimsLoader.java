@@ -0,0 +1,414 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Parallel loader of the victims file. The file is split into byte ranges on
+ * line boundaries, which are processed with fork-join in three passes:
+ * <ol>
+ *     <li>each line is trimmed, validated and normalized (domain in lower case)
+ *     into the AddressArena of its range;</li>
+ *     <li>the hashes of the addresses are inserted into a concurrent open-addressing table,
+ *     whose slots pack the upper half of a hash with the lowest position it
+ *     was seen at, in a single long updated with compare-and-set;</li>
+ *     <li>an address seen first at a lower position is checked byte by byte
+ *     against that one and dropped if it is the same.</li>
+ * </ol>
+ * The kept addresses are then copied in file order into a single arena. A
+ * hash collision between two different addresses only costs a comparison,
+ * it never drops a distinct address. Invalid lines are reported instead of
+ * stopping the load, and blank lines are ignored.
+ */
+final class VictimsLoader {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final int MIN_RANGE_SIZE = 1 << 20;
+    private static final int RANGES_PER_THREAD = 4;
+    private static final int MAX_REPORTED = 100;
+    private static final long EMPTY = 0;
+    private static final int DUPLICATE = -1;
+
+    private final ByteBuffer data;
+    private final Charset encoding;
+    private final Range[] ranges;
+    private AtomicLongArray table;
+    private int mask;
+
+    /**
+     * A byte range of the file, with the addresses found in it.
+     */
+    private static final class Range {
+        private final int from;
+        private final int to;
+        private AddressArena arena;
+        private int[] slots;
+        private int base;
+        private int duplicateCount;
+        private int lines;
+        private int invalidCount;
+        private final List<Integer> invalidNumbers = new ArrayList<>();
+        private final List<String> invalidLines = new ArrayList<>();
+
+        /**
+         * Constructs a range of the file.
+         *
+         * @param from the index of its first byte, at the start of a line.
+         * @param to   the index after its last byte, at the start of a line or the end of the file.
+         */
+        private Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Constructor
+    // ------------------------------------------------------------------------------
+    /**
+     * Constructs a loader over the content of a victims file.
+     *
+     * @param data     the content of the file, in a charset encoding ASCII as itself.
+     * @param encoding the charset of the content, used to report invalid lines.
+     */
+    private VictimsLoader(ByteBuffer data, Charset encoding) {
+        this.data = data;
+        this.encoding = encoding;
+        int parallelism = ForkJoinPool.commonPool().getParallelism();
+        // Without parallelism, a single range saves merging the arenas
+        this.ranges = split(data, parallelism == 1 ? 1 : parallelism * RANGES_PER_THREAD);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------------
+    /**
+     * Loads the victims from the content of a victims file.
+     *
+     * @param data     the content of the file, in a charset encoding ASCII as itself.
+     * @param encoding the charset of the content, used to report invalid lines.
+     * @return the valid addresses without duplicates, in file order, with the report of the load.
+     */
+    static ConfigLoader.Victims load(ByteBuffer data, Charset encoding) {
+        return new VictimsLoader(data, encoding).load();
+    }
+
+    /**
+     * Runs the passes of the load.
+     *
+     * @return the result of the load.
+     */
+    private ConfigLoader.Victims load() {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        pool.invoke(new Pass(0, ranges.length, this::parse));
+
+        int total = 0;
+        for (Range range : ranges) {
+            range.base = total;
+            total += range.arena.size();
+        }
+        // At most two thirds of the slots are used, linear probing stays short
+        int capacity = Integer.highestOneBit(Math.max(8, total + (total >> 1)) - 1) << 1;
+        table = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+
+        pool.invoke(new Pass(0, ranges.length, this::insert));
+        pool.invoke(new Pass(0, ranges.length, this::markDuplicates));
+        return merge();
+    }
+
+    /**
+     * Splits the content into ranges of at least MIN_RANGE_SIZE bytes, each
+     * starting at the start of a line.
+     *
+     * @param data      the content of the file.
+     * @param maxRanges the maximum number of ranges.
+     * @return the ranges, in file order.
+     */
+    private static Range[] split(ByteBuffer data, int maxRanges) {
+        int limit = data.limit();
+        int count = Math.max(1, Math.min(maxRanges, limit / MIN_RANGE_SIZE));
+        List<Range> ranges = new ArrayList<>(count);
+        int from = 0;
+
+        for (int i = 1; i <= count && from < limit; i++) {
+            int to = i == count ? limit : (int) ((long) limit * i / count);
+            if (to < from) {
+                to = from;
+            }
+            to = ConfigLoader.nextLine(data, ConfigLoader.lineEnd(data, to, limit), limit);
+            if (i == count) {
+                to = limit;
+            }
+            ranges.add(new Range(from, to));
+            from = to;
+        }
+        if (ranges.isEmpty()) {
+            ranges.add(new Range(0, 0));
+        }
+        return ranges.toArray(new Range[0]);
+    }
+
+    /**
+     * First pass: trims, validates and normalizes the lines of a range into its
+     * arena.
+     *
+     * @param range the range to parse.
+     */
+    private void parse(Range range) {
+        int length = range.to - range.from;
+        // A typical address takes about 24 bytes with its line terminator
+        range.arena = new AddressArena(length / 24, length);
+        int lineStart = range.from;
+
+        while (lineStart < range.to) {
+            int lineEnd = ConfigLoader.lineEnd(data, lineStart, range.to);
+            int start = lineStart;
+            int end = lineEnd;
+            while (start < end && ConfigLoader.isBlank(data.get(start))) {
+                start++;
+            }
+            while (end > start && ConfigLoader.isBlank(data.get(end - 1))) {
+                end--;
+            }
+            range.lines++;
+            lineStart = ConfigLoader.nextLine(data, lineEnd, range.to);
+            if (start == end) {
+                continue;
+            }
+
+            AddressArena arena = range.arena;
+            int index = arena.add(data, start, end - start);
+            byte[] bytes = arena.data();
+            int addressStart = arena.start(index);
+            int addressEnd = arena.end(index);
+            if (!EmailValidator.isValid(bytes, addressStart, addressEnd - addressStart)) {
+                arena.removeLast();
+                range.invalidCount++;
+                if (range.invalidLines.size() < MAX_REPORTED) {
+                    byte[] line = new byte[end - start];
+                    data.get(start, line);
+                    // Line numbers are made global when the ranges are merged
+                    range.invalidNumbers.add(range.lines);
+                    range.invalidLines.add(new String(line, encoding));
+                }
+                continue;
+            }
+
+            normalize(bytes, addressStart, addressEnd);
+        }
+    }
+
+    /**
+     * Puts the domain of a valid address in lower case, the local part being
+     * case-sensitive (RFC 5321, section 2.4).
+     *
+     * @param bytes the bytes holding the address.
+     * @param start the index of the first byte of the address.
+     * @param end   the index after the last byte of the address.
+     */
+    private static void normalize(byte[] bytes, int start, int end) {
+        int i = end - 1;
+        while (bytes[i] != '@') {
+            if (bytes[i] >= 'A' && bytes[i] <= 'Z') {
+                bytes[i] += 'a' - 'A';
+            }
+            i--;
+        }
+    }
+
+    /**
+     * Hashes an address with the polynomial of String.hashCode on 64 bits,
+     * finished with the MurmurHash3 mixer so that both halves of the hash are
+     * well spread.
+     *
+     * @param bytes the bytes holding the address.
+     * @param start the index of the first byte of the address.
+     * @param end   the index after the last byte of the address.
+     * @return the hash.
+     */
+    private static long hash(byte[] bytes, int start, int end) {
+        long h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + bytes[i];
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Second pass: inserts the hashes of the addresses of a range into the
+     * table, keeping the lowest position of each hash, and records the slot
+     * of each address.
+     *
+     * @param range the range to insert.
+     */
+    private void insert(Range range) {
+        AddressArena arena = range.arena;
+        range.slots = new int[arena.size()];
+        for (int i = 0; i < arena.size(); i++) {
+            long hash = hash(arena.data(), arena.start(i), arena.end(i));
+            long tag = hash & 0xFFFFFFFF00000000L;
+            // Positions are stored plus one, so that a used slot is never EMPTY
+            long entry = tag | (range.base + i + 1);
+            int slot = (int) hash & mask;
+            while (true) {
+                long current = table.get(slot);
+                if (current == EMPTY) {
+                    if (table.compareAndSet(slot, EMPTY, entry)) {
+                        break;
+                    }
+                } else if ((current & 0xFFFFFFFF00000000L) == tag) {
+                    if (current <= entry || table.compareAndSet(slot, current, entry)) {
+                        break;
+                    }
+                } else {
+                    slot = (slot + 1) & mask;
+                }
+            }
+            range.slots[i] = slot;
+        }
+    }
+
+    /**
+     * Third pass: marks the addresses of a range already found at a lower
+     * position, by setting their slot to DUPLICATE.
+     *
+     * @param range the range to check.
+     */
+    private void markDuplicates(Range range) {
+        AddressArena arena = range.arena;
+        int[] slots = range.slots;
+        for (int i = 0; i < arena.size(); i++) {
+            int first = (int) table.get(slots[i]) - 1;
+            if (first != range.base + i && sameAddress(arena, i, first)) {
+                slots[i] = DUPLICATE;
+                range.duplicateCount++;
+            }
+        }
+    }
+
+    /**
+     * Compares an address with the address at a given position.
+     *
+     * @param arena    the arena holding the address.
+     * @param index    the index of the address in its arena.
+     * @param position the position of the other address, over every range.
+     * @return true if both addresses have the same bytes.
+     */
+    private boolean sameAddress(AddressArena arena, int index, int position) {
+        int r = ranges.length - 1;
+        while (ranges[r].base > position) {
+            r--;
+        }
+        AddressArena other = ranges[r].arena;
+        int otherIndex = position - ranges[r].base;
+        return Arrays.equals(arena.data(), arena.start(index), arena.end(index),
+                other.data(), other.start(otherIndex), other.end(otherIndex));
+    }
+
+    /**
+     * Copies the kept addresses in file order into a single arena, and gathers
+     * the report of the ranges.
+     *
+     * @return the result of the load.
+     */
+    private ConfigLoader.Victims merge() {
+        int addresses = 0;
+        int bytes = 0;
+        for (Range range : ranges) {
+            AddressArena arena = range.arena;
+            addresses += arena.size() - range.duplicateCount;
+            // The offset after the last address, the duplicates make it an upper bound
+            bytes += arena.start(arena.size());
+        }
+
+        // A single range without duplicates is already the list of the victims
+        AddressArena victims = ranges.length == 1 && ranges[0].duplicateCount == 0
+                ? ranges[0].arena : new AddressArena(addresses, bytes);
+        int invalidCount = 0;
+        List<String> invalidLines = new ArrayList<>();
+        int duplicateCount = 0;
+        List<String> duplicates = new ArrayList<>();
+        int lines = 0;
+
+        for (Range range : ranges) {
+            AddressArena arena = range.arena;
+            ByteBuffer source = ByteBuffer.wrap(arena.data());
+            for (int i = 0; i < arena.size() && victims != arena; i++) {
+                if (range.slots[i] != DUPLICATE) {
+                    victims.add(source, arena.start(i), arena.end(i) - arena.start(i));
+                } else if (duplicates.size() < MAX_REPORTED) {
+                    duplicates.add(arena.get(i));
+                }
+            }
+            duplicateCount += range.duplicateCount;
+            for (int i = 0; i < range.invalidLines.size() && invalidLines.size() < MAX_REPORTED; i++) {
+                invalidLines.add("line " + (lines + range.invalidNumbers.get(i)) + ": " + range.invalidLines.get(i));
+            }
+            invalidCount += range.invalidCount;
+            lines += range.lines;
+        }
+
+        victims.trimToSize();
+        return new ConfigLoader.Victims(victims.asList(), invalidCount, invalidLines, duplicateCount, duplicates);
+    }
+
+    /**
+     * Runs one pass over a span of ranges, splitting it in halves until a
+     * single range is left.
+     */
+    private final class Pass extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        // A pass is never serialized, its task only lives in the pool
+        private final transient Consumer<Range> step;
+
+        /**
+         * Constructs a pass over the ranges from..to.
+         *
+         * @param from the first range, inclusive.
+         * @param to   the last range, exclusive.
+         * @param step the work done on each range.
+         */
+        private Pass(int from, int to, Consumer<Range> step) {
+            this.from = from;
+            this.to = to;
+            this.step = step;
+        }
+
+        /**
+         * Processes the range, or forks the two halves of the span.
+         */
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to) {
+                    step.accept(ranges[from]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Pass(from, middle, step), new Pass(middle, to, step));
+        }
+    }
+}
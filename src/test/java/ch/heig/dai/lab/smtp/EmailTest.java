@@ -0,0 +1,129 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks how Email.batches splits a large group into mail transactions:
+ * whole domains packed together, only the domains larger than a transaction
+ * split, within the recipient limit, and without copying the addresses of
+ * an AddressList.
+ */
+class EmailTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final String SENDER = "sender@example.com";
+    private static final Message MESSAGE = new Message("Subject", "Bonjour,\nVous avez gagné !");
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that an email within the limit is sent as is.
+     */
+    @Test
+    void keepsSmallEmail() {
+        Email email = new Email(SENDER, List.of("a1@a.com", "b1@b.com"), MESSAGE);
+
+        assertEquals(List.of(email), email.batches(2));
+        assertThrows(IllegalArgumentException.class, () -> email.batches(0));
+    }
+
+    /**
+     * Checks that domains fitting in a transaction are not split, even when
+     * the recipients are interleaved: a×3 and b×3 with a limit of 4 give
+     * [a, a, a] and [b, b, b].
+     */
+    @Test
+    void packsWholeDomains() {
+        Email email = new Email(SENDER,
+                List.of("a1@a.com", "b1@b.com", "a2@A.com", "b2@b.com", "a3@a.com", "b3@b.com"), MESSAGE);
+
+        assertEquals(List.of(List.of("a1@a.com", "a2@A.com", "a3@a.com"), List.of("b1@b.com", "b2@b.com", "b3@b.com")),
+                receivers(email.batches(4)));
+    }
+
+    /**
+     * Checks that only a domain larger than a transaction is split, its
+     * remainder being packed with the other domains, first-fit decreasing,
+     * and that every recipient is sent once within the limit.
+     */
+    @Test
+    void splitsOnlyLargeDomains() {
+        List<String> receivers = List.of("a1@a.com", "a2@a.com", "a3@a.com", "a4@a.com", "a5@a.com",
+                "b1@b.com", "c1@c.com", "c2@c.com");
+        Email email = new Email(SENDER, receivers, MESSAGE);
+
+        List<List<String>> batches = receivers(email.batches(3));
+        assertEquals(List.of(
+                List.of("a1@a.com", "a2@a.com", "a3@a.com"),
+                List.of("a4@a.com", "a5@a.com", "b1@b.com"),
+                List.of("c1@c.com", "c2@c.com")), batches);
+        for (List<String> batch : batches) {
+            assertTrue(batch.size() <= 3);
+        }
+    }
+
+    /**
+     * Checks that the transactions of an email whose recipients are an
+     * AddressList are views of the same arena.
+     */
+    @Test
+    void selectsAddressListViews() {
+        AddressArena arena = new AddressArena(4, 64);
+        for (String receiver : List.of("a1@a.com", "b1@b.com", "a2@a.com", "b2@b.com")) {
+            arena.add(receiver);
+        }
+        Email email = new Email(SENDER, arena.asList(), MESSAGE);
+
+        List<Email> batches = email.batches(2);
+        assertEquals(List.of(List.of("a1@a.com", "a2@a.com"), List.of("b1@b.com", "b2@b.com")), receivers(batches));
+        for (Email batch : batches) {
+            assertInstanceOf(AddressArena.AddressList.class, batch.getReceivers());
+        }
+    }
+
+    /**
+     * Checks that an email whose message is personalized gets a transaction
+     * per recipient, whatever the limit.
+     */
+    @Test
+    void sendsPersonalizedMessagesOneByOne() {
+        Message personalized = new Message("Subject", "Bonjour ${name} !");
+        Email email = new Email(SENDER, List.of("a1@a.com", "a2@a.com", "b1@b.com"), personalized);
+
+        List<Email> batches = email.batches(10);
+        assertEquals(3, batches.size());
+        for (Email batch : batches) {
+            assertEquals(1, batch.getReceivers().size());
+            assertSame(personalized, batch.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * Lists the recipients of each transaction.
+     *
+     * @param batches the transactions.
+     * @return their recipients, in order.
+     */
+    private static List<List<String>> receivers(List<Email> batches) {
+        List<List<String>> receivers = new ArrayList<>();
+        for (Email batch : batches) {
+            receivers.add(List.copyOf(batch.getReceivers()));
+        }
+        return receivers;
+    }
+}
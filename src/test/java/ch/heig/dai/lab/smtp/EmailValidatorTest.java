@@ -0,0 +1,88 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the single-pass EmailValidator accepts exactly the addresses
+ * matched by the regular expression it replaces, Email.REGEX.
+ */
+class EmailValidatorTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final Pattern PATTERN = Pattern.compile(Email.REGEX);
+    private static final int CORPUS_SIZE = 200_000;
+    private static final String ALPHABET = "abcXYZ019._%+-@.-!# é";
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that EmailValidator and the regular expression give the same result
+     * on a corpus of random strings built from the characters that matter to the
+     * grammar, half of them biased towards well-formed addresses.
+     */
+    @Test
+    void agreesWithRegexOnGeneratedCorpus() {
+        Random random = new Random(42);
+        int valid = 0;
+
+        for (int n = 0; n < CORPUS_SIZE; n++) {
+            StringBuilder candidate = new StringBuilder();
+            int length = random.nextInt(24);
+            for (int i = 0; i < length; i++) {
+                candidate.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            if (n % 2 == 0) {
+                candidate.append("@dom").append(random.nextBoolean() ? ".ch" : ".c");
+            }
+
+            String value = candidate.toString();
+            boolean expected = PATTERN.matcher(value).matches();
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            assertEquals(expected, EmailValidator.isValid(value), "chars: " + value);
+            assertEquals(expected, EmailValidator.isValid(bytes, 0, bytes.length), "bytes: " + value);
+            valid += expected ? 1 : 0;
+        }
+
+        assertTrue(valid > 0, "The corpus contains no valid address");
+    }
+
+    /**
+     * Checks addresses of the shapes found in the configuration folder, and the
+     * long adversarial input of the benchmark.
+     */
+    @Test
+    void validatesKnownAddresses() {
+        assertTrue(EmailValidator.isValid("service@subdomain.service-provider.example.com"));
+        assertTrue(EmailValidator.isValid("first.last+tag@example.ch"));
+        assertFalse(EmailValidator.isValid("service@subdomain.service-provider.example.c0m"));
+        assertFalse(EmailValidator.isValid("no-at-sign.example.com"));
+        assertFalse(EmailValidator.isValid("user@example.c"));
+        assertFalse(EmailValidator.isValid(""));
+        assertFalse(EmailValidator.isValid(null));
+        assertFalse(EmailValidator.isValid("a".repeat(64) + "@" + "a-b.".repeat(1000) + "x1"));
+    }
+
+    /**
+     * Checks that only the given slice of the bytes is validated.
+     */
+    @Test
+    void validatesByteSlice() {
+        byte[] bytes = "garbage user@example.com garbage".getBytes(StandardCharsets.US_ASCII);
+
+        assertTrue(EmailValidator.isValid(bytes, 8, "user@example.com".length()));
+        assertFalse(EmailValidator.isValid(bytes, 0, "garbage user@example.com".length()));
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks what FileTransport writes to the disk: the mboxrd quoting of the
+ * body lines matching ">*From ", even across payload buffers, and the
+ * Maildir files moved from tmp to new.
+ */
+class FileTransportTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final String SENDER = "sender@example.com";
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that a line starting with "From " gets a '>', that a quoted line
+     * gets one more, and that other lines are left as is.
+     */
+    @Test
+    void quotesFromLines() {
+        ByteBuffer[] payload = buffers("Bonjour\r\nFrom x\r\n>From y\r\nFromage\r\nnot From z\r\n");
+
+        assertTrue(FileTransport.needsQuoting(payload));
+        assertEquals("Bonjour\r\n>From x\r\n>>From y\r\nFromage\r\nnot From z\r\n",
+                new String(FileTransport.quote(payload), StandardCharsets.UTF_8));
+        assertFalse(FileTransport.needsQuoting(buffers("Fromage\r\n>Fro m\r\nnot From z\r\n")));
+    }
+
+    /**
+     * Checks that a line matching "From " across two payload buffers is
+     * found and quoted, and that the buffers are left unread.
+     */
+    @Test
+    void quotesFromLineAcrossBuffers() {
+        ByteBuffer[] payload = buffers("Bonjour\r\n>Fr", "om x\r\n");
+
+        assertTrue(FileTransport.needsQuoting(payload));
+        assertEquals("Bonjour\r\n>>From x\r\n", new String(FileTransport.quote(payload), StandardCharsets.UTF_8));
+        assertEquals("Bonjour\r\n>Fr".length(), payload[0].remaining());
+    }
+
+    /**
+     * Checks that every email is written to the mbox file after its own
+     * "From " line, with its body lines quoted.
+     *
+     * @param directory a temporary directory.
+     * @throws IOException if the mbox file cannot be written or read.
+     */
+    @Test
+    void writesMbox(@TempDir Path directory) throws IOException {
+        Path mbox = directory.resolve("out").resolve("campaign.mbox");
+        FileTransport transport = new FileTransport(mbox, ConfigLoader.OUTPUT_FORMATS.mbox, StandardCharsets.UTF_8);
+        transport.connect();
+        transport.send(new Email(SENDER, List.of("first@example.com"), new Message("Subject", "From x\nFin")));
+        transport.send(new Email(SENDER, List.of("second@example.com"), new Message("Subject", "Bonjour")));
+        transport.quit();
+
+        String content = Files.readString(mbox, StandardCharsets.UTF_8);
+        assertTrue(content.startsWith("From " + SENDER + " "), content);
+        assertTrue(content.contains("\r\n\r\n>From x\r\nFin\r\n"), content);
+        assertEquals(2, content.split("(^|\r\n)From " + SENDER + " ", -1).length - 1);
+    }
+
+    /**
+     * Checks that every email gets a Maildir file of its own in new, holding
+     * the whole message, and that nothing is left in tmp.
+     *
+     * @param directory a temporary directory.
+     * @throws IOException if the Maildir tree cannot be written or read.
+     */
+    @Test
+    void writesMaildir(@TempDir Path directory) throws IOException {
+        FileTransport transport = new FileTransport(directory, ConfigLoader.OUTPUT_FORMATS.maildir,
+                StandardCharsets.UTF_8);
+        transport.connect();
+        for (int i = 0; i < 3; i++) {
+            transport.send(new Email(SENDER, List.of("victim" + i + "@example.com"), new Message("Subject", "From x")));
+        }
+        transport.quit();
+
+        try (Stream<Path> tmp = Files.list(directory.resolve("tmp"));
+             Stream<Path> messages = Files.list(directory.resolve("new"))) {
+            assertEquals(0, tmp.count());
+            List<Path> files = messages.toList();
+            assertEquals(3, files.size());
+            for (Path file : files) {
+                String message = Files.readString(file, StandardCharsets.UTF_8);
+                assertTrue(message.startsWith("MIME-Version: 1.0\r\n"), message);
+                // A Maildir file holds a single message, nothing to quote
+                assertTrue(message.endsWith("\r\n\r\nFrom x\r\n"), message);
+            }
+        }
+        assertTrue(Files.isDirectory(directory.resolve("cur")));
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * Encodes the parts of a rendered body, one buffer each.
+     *
+     * @param parts the text of the buffers.
+     * @return the buffers.
+     */
+    private static ByteBuffer[] buffers(String... parts) {
+        ByteBuffer[] buffers = new ByteBuffer[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            buffers[i] = ByteBuffer.wrap(parts[i].getBytes(StandardCharsets.UTF_8));
+        }
+        return buffers;
+    }
+}
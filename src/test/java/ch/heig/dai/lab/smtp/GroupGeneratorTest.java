@@ -0,0 +1,218 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that GroupGenerator forms balanced groups holding every victim
+ * exactly once, in file order and shuffled from a seed, from a list of
+ * addresses as well as from the AddressList of an AddressArena. Large lists
+ * go through the parallel split.
+ */
+class GroupGeneratorTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final String[] DOMAINS = {"example.com", "test.ch", "mail.example.org", "domain.net"};
+    private static final long SEED = 42;
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks the groups generated in file order.
+     *
+     * @param nbVictims the number of victims.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {1000, 100_000})
+    void generatesBalancedGroups(int nbVictims) {
+        List<String> victims = victims(nbVictims);
+        int nbGroups = nbGroups(nbVictims);
+
+        for (List<String> emails : List.of(victims, arena(victims).asList())) {
+            check(new GroupGenerator(emails, nbGroups).generateGroups(), nbGroups, nbVictims);
+        }
+    }
+
+    /**
+     * Checks the groups generated from a seed, and that the same seed always
+     * gives the same groups while another seed gives other ones.
+     *
+     * @param nbVictims the number of victims.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {1000, 100_000})
+    void generatesSameGroupsFromSameSeed(int nbVictims) {
+        List<String> victims = victims(nbVictims);
+        int nbGroups = nbGroups(nbVictims);
+
+        for (List<String> emails : List.of(victims, arena(victims).asList())) {
+            GroupGenerator generator = new GroupGenerator(emails, nbGroups);
+            List<Group> groups = generator.generateGroups(SEED);
+
+            check(groups, nbGroups, nbVictims);
+            assertEquals(members(groups), members(generator.generateGroups(SEED)));
+            assertNotEquals(members(groups), members(generator.generateGroups(SEED + 1)));
+        }
+    }
+
+    /**
+     * Checks that the groups of a list and of an AddressArena holding the same
+     * victims are the same, for the same seed.
+     *
+     * @param nbVictims the number of victims.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {1000, 100_000})
+    void generatesSameGroupsFromArena(int nbVictims) {
+        List<String> victims = victims(nbVictims);
+        int nbGroups = nbGroups(nbVictims);
+        GroupGenerator fromList = new GroupGenerator(victims, nbGroups);
+        GroupGenerator fromArena = new GroupGenerator(arena(victims).asList(), nbGroups);
+
+        assertEquals(members(fromList.generateGroups()), members(fromArena.generateGroups()));
+        assertEquals(members(fromList.generateGroups(SEED)), members(fromArena.generateGroups(SEED)));
+    }
+
+    /**
+     * Checks that streamed victims give the same groups as the list in file
+     * order.
+     *
+     * @param nbVictims the number of victims.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {1000, 100_000})
+    void generatesSameGroupsFromStream(int nbVictims) {
+        List<String> victims = victims(nbVictims);
+        int nbGroups = nbGroups(nbVictims);
+        List<Group> streamed = new ArrayList<>();
+        Iterator<Group> groups = new GroupGenerator(nbVictims, nbGroups).generateGroups(victims.iterator());
+        groups.forEachRemaining(streamed::add);
+
+        check(streamed, nbGroups, nbVictims);
+        assertEquals(members(new GroupGenerator(victims, nbGroups).generateGroups()), members(streamed));
+    }
+
+    /**
+     * Checks that the groups cut one at a time are the groups of the list, in
+     * file order and from a seed, with consecutive identifiers.
+     *
+     * @param nbVictims the number of victims.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {1000, 100_000})
+    void iteratesSameGroups(int nbVictims) {
+        int nbGroups = nbGroups(nbVictims);
+        GroupGenerator generator = new GroupGenerator(arena(victims(nbVictims)).asList(), nbGroups);
+        List<Group> inOrder = new ArrayList<>();
+        generator.iterateGroups().forEachRemaining(inOrder::add);
+        List<Group> shuffled = new ArrayList<>();
+        generator.iterateGroups(SEED).forEachRemaining(shuffled::add);
+
+        check(inOrder, nbGroups, nbVictims);
+        assertEquals(members(generator.generateGroups()), members(inOrder));
+        assertEquals(members(generator.generateGroups(SEED)), members(shuffled));
+        for (int i = 1; i < nbGroups; i++) {
+            assertEquals(inOrder.get(0).getId() + i, inOrder.get(i).getId());
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that groups are balanced and hold every victim exactly once.
+     *
+     * @param groups    the generated groups.
+     * @param nbGroups  the expected number of groups.
+     * @param nbVictims the number of victims.
+     */
+    private static void check(List<Group> groups, int nbGroups, int nbVictims) {
+        assertEquals(nbGroups, groups.size());
+
+        int smallest = Integer.MAX_VALUE;
+        int largest = 0;
+        int nbMembers = 0;
+        Set<String> seen = new HashSet<>();
+        for (Group group : groups) {
+            int size = group.getReceivers().size() + 1;
+            smallest = Math.min(smallest, size);
+            largest = Math.max(largest, size);
+            nbMembers += size;
+            seen.add(group.getSender());
+            seen.addAll(group.getReceivers());
+        }
+
+        assertTrue(largest - smallest <= 1, "Unbalanced groups of " + smallest + " to " + largest + " members");
+        assertEquals(nbVictims, nbMembers);
+        assertEquals(nbVictims, seen.size());
+    }
+
+    /**
+     * Chooses an odd number of groups, so that the group sizes are not all
+     * equal.
+     *
+     * @param nbVictims the number of victims.
+     * @return the number of groups.
+     */
+    private static int nbGroups(int nbVictims) {
+        return nbVictims / 3 - 1;
+    }
+
+    /**
+     * Builds a list of distinct victims addresses.
+     *
+     * @param size the number of addresses.
+     * @return the list of addresses.
+     */
+    private static List<String> victims(int size) {
+        List<String> victims = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            victims.add("victim." + i + "@" + DOMAINS[i % DOMAINS.length]);
+        }
+        return victims;
+    }
+
+    /**
+     * Copies addresses into an AddressArena, as the victims loader does.
+     *
+     * @param victims the addresses.
+     * @return the arena holding them.
+     */
+    private static AddressArena arena(List<String> victims) {
+        AddressArena arena = new AddressArena(victims.size(), victims.size() * 32);
+        victims.forEach(arena::add);
+        return arena;
+    }
+
+    /**
+     * Lists the members of groups, senders first, in order.
+     *
+     * @param groups the groups.
+     * @return the members of every group.
+     */
+    private static List<List<String>> members(List<Group> groups) {
+        return groups.stream()
+                .map(group -> {
+                    List<String> members = new ArrayList<>(group.getReceivers().size() + 1);
+                    members.add(group.getSender());
+                    members.addAll(group.getReceivers());
+                    return members;
+                })
+                .toList();
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the payloads a Message renders for DATA and BDAT: dot-stuffed and
+ * terminated for DATA, only with fixed line endings for BDAT, and encoded
+ * once for every email sharing the message. Also checks the placeholders of
+ * the templates, the quoted-printable body and the RFC 2047 subject.
+ */
+class MessageTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+    private static final String SENDER = "sender@example.com";
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that every line starting with "." gets an extra ".", including
+     * the first and the last one, so that none can end DATA early.
+     */
+    @Test
+    void dotStuffsLinesStartingWithDot() {
+        String body = ".first\n..second\nnot.at.start\r\n.";
+
+        assertEquals("..first\r\n...second\r\nnot.at.start\r\n..\r\n.\r\n",
+                payload(body, true, true, false));
+    }
+
+    /**
+     * Checks that bare CR and LF become CRLF and that a body not ending with
+     * a line break gets one before the end of data indicator.
+     */
+    @Test
+    void fixesLineEndings() {
+        assertEquals("a\r\nb\r\nc\r\nd\r\n.\r\n", payload("a\rb\nc\r\nd", true, true, false));
+        assertEquals("a\r\n.\r\n", payload("a\r\n", true, true, false));
+    }
+
+    /**
+     * Checks that a segment that does not start a line, nor ends the body, is
+     * neither stuffed nor terminated.
+     */
+    @Test
+    void encodesInnerSegments() {
+        assertEquals(".x", payload(".x", false, false, false));
+        assertEquals("x\r\n..y", payload("x\n.y", false, false, false));
+    }
+
+    /**
+     * Checks that a body sent in BDAT chunks is neither dot-stuffed nor
+     * terminated by the end of data indicator.
+     */
+    @Test
+    void leavesChunkedBodyUnstuffed() {
+        assertEquals(".first\r\nlast\r\n", payload(".first\nlast", true, true, true));
+    }
+
+    /**
+     * Checks that the rendered body of a message without placeholders is the
+     * same single buffer content for every email, and that rendering consumes
+     * nothing shared by the next email.
+     */
+    @Test
+    void rendersSharedPayload() {
+        Message message = new Message("Subject", "Bonjour,\n.Vous avez gagné !");
+        Email first = new Email(SENDER, List.of("first@example.com"), message);
+        Email second = new Email(SENDER, List.of("second@example.com", "third@example.com"), message);
+
+        ByteBuffer[] rendered = message.render(first, UTF_8, false);
+        assertEquals(1, rendered.length);
+        assertEquals("Bonjour,\r\n..Vous avez gagné !\r\n.\r\n", text(rendered));
+        assertEquals(text(message.render(first, UTF_8, false)), text(message.render(second, UTF_8, false)));
+        assertEquals("Bonjour,\r\n.Vous avez gagné !\r\n", text(message.render(second, UTF_8, true)));
+    }
+
+    /**
+     * Checks that an email is rendered once for a given server, its size
+     * included, that its payload can be read again for a retry, and that a
+     * server with other capabilities gets a rendering of its own.
+     */
+    @Test
+    void cachesEmailRendering() {
+        Message message = new Message("Subject", "Bonjour ${name},\nVous avez gagné !");
+        Email email = new Email(SENDER, List.of("jean.dupont@example.com"), message);
+        SmtpCapabilities chunking = new SmtpCapabilities(true, true, true, false, 1000, false);
+
+        Email.Rendering rendering = email.render(UTF_8, chunking);
+        assertSame(rendering, email.render(UTF_8, chunking));
+        assertEquals(rendering.headers().length + SmtpClient.remaining(rendering.payload()), rendering.size());
+        assertEquals("Bonjour Jean Dupont,\r\nVous avez gagné !\r\n", text(rendering.payload()));
+        assertEquals(text(rendering.payload()), text(rendering.payload()));
+
+        Email.Rendering data = email.render(UTF_8, SmtpCapabilities.NONE);
+        assertNotSame(rendering, data);
+        assertTrue(new String(data.headers(), UTF_8).contains("Content-Transfer-Encoding: quoted-printable\r\n"));
+        assertTrue(text(data.payload()).endsWith("\r\n.\r\n"));
+    }
+
+    /**
+     * Checks that the placeholders are filled in for each email, from its
+     * recipients and sender, the same message being rendered for both.
+     */
+    @Test
+    void rendersPlaceholders() {
+        Message message = new Message("Subject", "Bonjour ${name},\n${recipient} a gagné !\nDe ${sender}");
+        Email single = new Email(SENDER, List.of("jean.dupont@example.com"), message);
+        Email group = new Email(SENDER, List.of("anne-marie_durand@example.com", "luc+promo@example.com"), message);
+
+        assertTrue(message.isPersonalized());
+        assertEquals("Bonjour Jean Dupont,\r\njean.dupont@example.com a gagné !\r\nDe sender@example.com\r\n.\r\n",
+                text(message.render(single, UTF_8, false)));
+        assertEquals("Bonjour Anne Marie Durand, Luc Promo,\r\nanne-marie_durand@example.com, luc+promo@example.com"
+                        + " a gagné !\r\nDe sender@example.com\r\n",
+                text(message.render(group, UTF_8, true)));
+        assertFalse(new Message("Subject", "De ${sender}").isPersonalized());
+    }
+
+    /**
+     * Checks that a placeholder starting a line is dot-stuffed when its value
+     * starts with ".", and not when it follows text on the same line.
+     */
+    @Test
+    void dotStuffsPlaceholderAtLineStart() {
+        Message message = new Message("Subject", "${sender}\nDe ${sender}");
+        Email email = new Email(".hidden@example.com", List.of("victim@example.com"), message);
+
+        assertEquals("..hidden@example.com\r\nDe .hidden@example.com\r\n.\r\n",
+                text(message.render(email, UTF_8, false)));
+        assertEquals(".hidden@example.com\r\nDe .hidden@example.com\r\n", text(message.render(email, UTF_8, true)));
+    }
+
+    /**
+     * Checks that an unknown or unterminated placeholder is refused, whether
+     * the message is built from text or from the bytes of the messages file.
+     */
+    @Test
+    void rejectsInvalidPlaceholders() {
+        assertThrows(IllegalArgumentException.class, () -> new Message("Subject", "Bonjour ${prenom}"));
+        assertThrows(IllegalArgumentException.class, () -> new Message("Subject", "Bonjour ${name"));
+        assertThrows(IllegalArgumentException.class, () -> new Message(bytes("Subject"), bytes("Bonjour ${prenom}"), UTF_8));
+        assertEquals("Bonjour ${name}", new Message(bytes("Subject"), bytes("Bonjour ${name}"), UTF_8).getBody());
+    }
+
+    /**
+     * Checks the quoted-printable encoding of a body: non-ASCII bytes, "="
+     * and trailing spaces are escaped, and long lines get soft line breaks.
+     */
+    @Test
+    void encodesQuotedPrintable() {
+        assertEquals("Vous avez gagn=C3=A9 =3D 100 CHF=20\r\nFin",
+                Message.encodeQuotedPrintable("Vous avez gagné = 100 CHF \nFin".getBytes(UTF_8)));
+
+        String line = "é".repeat(60);
+        String encoded = Message.encodeQuotedPrintable(line.getBytes(UTF_8));
+        for (String part : encoded.split("\r\n")) {
+            assertTrue(part.length() <= 76, "Line too long: " + part);
+        }
+        assertEquals("=C3=A9".repeat(60), encoded.replace("=\r\n", ""));
+    }
+
+    /**
+     * Checks that a non-ASCII subject is written as base64 encoded-words of
+     * at most 75 characters, on folded lines of at most 76 characters with
+     * the name of the header, none splitting a character, and that an ASCII
+     * subject is kept as is.
+     */
+    @Test
+    void encodesSubjectWords() {
+        assertEquals("Urgent - Compte", Message.encodeWords("Urgent - Compte", UTF_8, 0));
+
+        String subject = "Félicitations, vous avez gagné un séjour à Genève ! ".repeat(3);
+        String encoded = new Message(subject, "Body").getEncodedSubject(UTF_8);
+        for (String line : ("Subject: " + encoded).split("\r\n")) {
+            assertTrue(line.length() <= 76, "Folded line too long: " + line);
+        }
+        StringBuilder decoded = new StringBuilder();
+        for (String word : encoded.split("\r\n ")) {
+            assertTrue(word.length() <= 75, "Encoded-word too long: " + word);
+            assertTrue(word.startsWith("=?UTF-8?B?") && word.endsWith("?="), word);
+            byte[] bytes = Base64.getDecoder().decode(word.substring(10, word.length() - 2));
+            decoded.append(new String(bytes, UTF_8));
+        }
+        assertEquals(subject, decoded.toString());
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * Encodes a segment of a body in UTF-8.
+     *
+     * @param body      the segment.
+     * @param lineStart whether the segment starts a line.
+     * @param last      whether the segment ends the body.
+     * @param chunked   whether the body is sent with BDAT instead of DATA.
+     * @return the encoded segment, decoded back to text.
+     */
+    private static String payload(String body, boolean lineStart, boolean last, boolean chunked) {
+        return new String(Message.encodePayload(body, UTF_8, lineStart, last, chunked), UTF_8);
+    }
+
+    /**
+     * Encodes a text in UTF-8, as a slice of the messages file.
+     *
+     * @param text the text.
+     * @return the encoded text.
+     */
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(UTF_8));
+    }
+
+    /**
+     * Reads the buffers of a rendered body, as a gathering write would.
+     *
+     * @param buffers the rendered body.
+     * @return the text of the body.
+     */
+    private static String text(ByteBuffer[] buffers) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            byte[] part = new byte[buffer.remaining()];
+            buffer.get(part);
+            bytes.write(part, 0, part.length);
+        }
+        return bytes.toString(UTF_8);
+    }
+}
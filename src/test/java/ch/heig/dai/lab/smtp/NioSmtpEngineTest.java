@@ -0,0 +1,155 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the event loop of the non-blocking client survives the errors
+ * of a single connection or task, so that no future is left hanging, and that
+ * a session delivers an email to the recipients the server accepted.
+ */
+class NioSmtpEngineTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final String UNKNOWN_HOST = "no-such-host.invalid";
+    private static final String SENDER = "sender@example.com";
+    private static final String UNKNOWN = "unknown@example.com";
+    private static final Message MESSAGE = new Message("Félicitations", "Bonjour,\nVous avez gagné !");
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that connecting to a host that does not resolve fails at once
+     * instead of blocking.
+     */
+    @Test
+    void failsOnUnresolvableHost() {
+        NioSmtpClient client = new NioSmtpClient(UNKNOWN_HOST, 25, StandardCharsets.UTF_8, 2, 1, 1000);
+
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertThrows(UnknownHostException.class, client::connect);
+        });
+    }
+
+    /**
+     * Checks that the event loop still opens sessions after an unresolvable
+     * host and a task that throws.
+     *
+     * @throws Exception if the sink cannot be started or a session cannot be opened.
+     */
+    @Test
+    void keepsRunningAfterFailedTask() throws Exception {
+        NioSmtpEngine engine = new NioSmtpEngine("nio-test", 1000);
+        try (SmtpSink sink = new SmtpSink(0).start()) {
+            assertTimeoutPreemptively(TIMEOUT, () -> {
+                assertThrows(Exception.class,
+                        () -> engine.connect(UNKNOWN_HOST, 25, StandardCharsets.UTF_8).get());
+                engine.execute(() -> {
+                    throw new IllegalStateException("Failing task");
+                }, stopped -> fail("Engine stopped"));
+
+                NioSmtpSession session = engine.connect("localhost", sink.getPort(), StandardCharsets.UTF_8)
+                        .get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+                session.quit().get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+                assertTrue(session.isClosed());
+            });
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    /**
+     * Checks that a session opened after the event loop stopped fails at once.
+     *
+     * @throws IOException if the selector cannot be opened.
+     */
+    @Test
+    void failsConnectAfterShutdown() throws IOException {
+        NioSmtpEngine engine = new NioSmtpEngine("nio-test", 1000);
+        engine.shutdown();
+
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertThrows(Exception.class, () -> engine.connect("localhost", 25, StandardCharsets.UTF_8).get());
+        });
+    }
+
+    /**
+     * Checks that a session which outlives its event loop fails the emails
+     * given to it and still completes its QUIT, instead of running its state
+     * machine on the calling thread.
+     *
+     * @throws Exception if the sink cannot be started or the session cannot connect.
+     */
+    @Test
+    void rejectsSessionTasksAfterShutdown() throws Exception {
+        try (SmtpSink sink = new SmtpSink(0).start()) {
+            NioSmtpEngine engine = new NioSmtpEngine("nio-test", 1000);
+            assertTimeoutPreemptively(TIMEOUT, () -> {
+                NioSmtpSession session = engine.connect("localhost", sink.getPort(), StandardCharsets.UTF_8).get();
+                engine.shutdown();
+
+                Exception sent = assertThrows(Exception.class,
+                        () -> session.send(new Email(SENDER, List.of("first@example.com"), MESSAGE)).get());
+                assertInstanceOf(IOException.class, sent.getCause());
+                assertNull(session.quit().get());
+            });
+
+            assertEquals(0, sink.getMessages());
+        }
+    }
+
+    /**
+     * Checks that a recipient refused with a 550 reply does not stop the
+     * transaction: the message goes to the other recipients and the refusal
+     * is reported with them. An email whose recipients are all refused is not
+     * sent, and the session still sends the next one.
+     *
+     * @throws Exception if the sink cannot be started or the client cannot connect.
+     */
+    @Test
+    void deliversToAcceptedRecipients() throws Exception {
+        try (SmtpSink sink = new SmtpSink(0).setUnknownRecipients(Set.of(UNKNOWN)).start()) {
+            NioSmtpClient client = new NioSmtpClient("localhost", sink.getPort(), StandardCharsets.UTF_8, 1, 1, 1000);
+            assertTimeoutPreemptively(TIMEOUT, () -> {
+                client.connect();
+                try {
+                    List<String> receivers = List.of("first@example.com", UNKNOWN, "second@example.com");
+                    SmtpDeliveryException partial = assertThrows(SmtpDeliveryException.class,
+                            () -> client.send(new Email(SENDER, receivers, MESSAGE)));
+                    assertEquals(550, partial.getCode());
+                    assertEquals(List.of("first@example.com", "second@example.com"), partial.getAccepted());
+                    assertEquals(List.of(UNKNOWN), partial.getRejected());
+
+                    SmtpDeliveryException refused = assertThrows(SmtpDeliveryException.class,
+                            () -> client.send(new Email(SENDER, List.of(UNKNOWN), MESSAGE)));
+                    assertTrue(refused.getAccepted().isEmpty());
+                    assertEquals(List.of(UNKNOWN), refused.getRejected());
+
+                    client.send(new Email(SENDER, List.of("third@example.com"), MESSAGE));
+                } finally {
+                    client.quit();
+                }
+            });
+
+            assertEquals(2, sink.getMessages());
+            assertEquals(3, sink.getRecipients());
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the outbound spool resumes an interrupted campaign without
+ * sending any recipient the same email twice, and replays a journal whose
+ * last record was torn or corrupted by a crash.
+ */
+class OutboundSpoolTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final String CAMPAIGN = "victims.txt:1000:1;nbGroups=50";
+    private static final int NB_EMAILS = 50;
+    private static final int NB_RECEIVERS = 4;
+    private static final int NB_SENT = 10;
+
+    @TempDir
+    Path folder;
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Crashes a campaign while its emails are being queued, some of them sent,
+     * one of them partly, and others still in flight. The next run generates
+     * the campaign again: every recipient is then delivered exactly once, or
+     * rejected for good.
+     *
+     * @throws IOException if the journal cannot be opened.
+     */
+    @Test
+    void resumesCampaignInterruptedWhileQueuing() throws IOException {
+        Path file = folder.resolve("journal.bin");
+        Map<String, Integer> delivered = new HashMap<>();
+        Set<String> rejected = new HashSet<>();
+
+        OutboundSpool crashed = new OutboundSpool(file, ConfigLoader.SPOOL_DURABILITY.none);
+        crashed.startCampaign(CAMPAIGN);
+        Iterator<Email> queued = crashed.queue(campaign().iterator());
+        for (int i = 0; i < 20; i++) {
+            Email email = queued.next();
+            if (i < 10) {
+                deliver(email, delivered);
+                crashed.completed(email, null);
+            } else if (i == 10) {
+                // Partly delivered: one accepted, one rejected, the others without an outcome
+                List<String> receivers = email.getReceivers();
+                deliver(new Email(email.getSender(), receivers.subList(0, 1), email.getMessage()), delivered);
+                rejected.add(key(email.getSender(), receivers.get(1)));
+                crashed.completed(email, new SmtpDeliveryException(550, "[SMTP Server] Recipients rejected",
+                        List.of(receivers.get(0)), List.of(receivers.get(1))));
+            }
+            // The others are in flight when the application crashes
+        }
+
+        try (OutboundSpool resumed = new OutboundSpool(file, ConfigLoader.SPOOL_DURABILITY.none)) {
+            assertTrue(resumed.isInterrupted());
+            assertEquals(CAMPAIGN, resumed.getCampaign());
+            assertEquals(10, resumed.getOutstandingCount());
+
+            Iterator<Email> emails = resumed.queue(campaign().iterator());
+            while (emails.hasNext()) {
+                Email email = emails.next();
+                deliver(email, delivered);
+                resumed.completed(email, null);
+            }
+        }
+
+        for (Email email : campaign()) {
+            for (String receiver : email.getReceivers()) {
+                String key = key(email.getSender(), receiver);
+                if (rejected.contains(key)) {
+                    assertNull(delivered.get(key), "Rejected recipient sent again: " + receiver);
+                } else {
+                    assertEquals(1, delivered.get(key), "Deliveries to " + receiver);
+                }
+            }
+        }
+
+        try (OutboundSpool finished = new OutboundSpool(file, ConfigLoader.SPOOL_DURABILITY.none)) {
+            assertFalse(finished.isInterrupted());
+            assertFalse(finished.hasOutstanding());
+            assertTrue(finished.isComplete());
+        }
+    }
+
+    /**
+     * Checks that a new campaign journals every email and is then complete,
+     * with nothing to resume.
+     *
+     * @throws IOException if the journal cannot be opened.
+     */
+    @Test
+    void completesNewCampaign() throws IOException {
+        Path file = folder.resolve("journal.bin");
+
+        try (OutboundSpool spool = new OutboundSpool(file, ConfigLoader.SPOOL_DURABILITY.sync)) {
+            spool.startCampaign(CAMPAIGN);
+            int count = 0;
+            Iterator<Email> emails = spool.queue(campaign().iterator());
+            while (emails.hasNext()) {
+                spool.completed(emails.next(), null);
+                count++;
+            }
+            assertEquals(NB_EMAILS, count);
+        }
+
+        try (OutboundSpool spool = new OutboundSpool(file, ConfigLoader.SPOOL_DURABILITY.sync)) {
+            assertTrue(spool.isComplete());
+            assertFalse(spool.isInterrupted());
+            assertFalse(spool.hasOutstanding());
+        }
+    }
+
+    /**
+     * Damages the last record of a journal, an outcome, as a crash in the
+     * middle of its write would: the replay stops before it, so that its email
+     * is outstanding again, and the records appended afterwards are replayed
+     * on the next run.
+     *
+     * @param damage "truncate" to cut the record short, "corrupt" to change its last byte.
+     * @throws IOException if the journal cannot be opened or damaged.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"truncate", "corrupt"})
+    void replaysDamagedJournal(String damage) throws IOException {
+        Path file = folder.resolve("journal.bin");
+
+        try (OutboundSpool spool = new OutboundSpool(file, ConfigLoader.SPOOL_DURABILITY.batch)) {
+            spool.startCampaign(CAMPAIGN);
+            List<Email> queued = new ArrayList<>();
+            spool.queue(campaign().iterator()).forEachRemaining(queued::add);
+            for (int i = 0; i < NB_SENT; i++) {
+                spool.completed(queued.get(i), null);
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (damage.equals("truncate")) {
+                channel.truncate(size - 3);
+            } else {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                channel.read(last, size - 1);
+                last.put(0, (byte) (last.get(0) ^ 0x01));
+                channel.write(last.flip(), size - 1);
+            }
+        }
+
+        try (OutboundSpool resumed = new OutboundSpool(file, ConfigLoader.SPOOL_DURABILITY.batch)) {
+            assertTrue(resumed.isComplete());
+            assertEquals(NB_EMAILS - NB_SENT + 1, resumed.getOutstandingCount());
+
+            Iterator<Email> emails = resumed.outstanding();
+            Email first = emails.next();
+            assertEquals("sender." + (NB_SENT - 1) + "@example.com", first.getSender());
+            assertEquals(NB_RECEIVERS, first.getReceivers().size());
+            resumed.completed(first, null);
+            emails.forEachRemaining(email -> resumed.completed(email, null));
+        }
+
+        try (OutboundSpool finished = new OutboundSpool(file, ConfigLoader.SPOOL_DURABILITY.batch)) {
+            assertTrue(finished.isComplete());
+            assertFalse(finished.hasOutstanding());
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * Generates the emails of the campaign, the same ones on every call.
+     *
+     * @return the emails.
+     */
+    private static List<Email> campaign() {
+        Message message = new Message("Félicitations", "Bonjour,\nVous avez gagné !");
+        List<Email> emails = new ArrayList<>(NB_EMAILS);
+        for (int i = 0; i < NB_EMAILS; i++) {
+            List<String> receivers = new ArrayList<>(NB_RECEIVERS);
+            for (int j = 0; j < NB_RECEIVERS; j++) {
+                receivers.add("victim." + i + "." + j + "@example.com");
+            }
+            emails.add(new Email("sender." + i + "@example.com", receivers, message));
+        }
+        return emails;
+    }
+
+    /**
+     * Counts an email as delivered to each of its recipients.
+     *
+     * @param email     the delivered email.
+     * @param delivered the number of deliveries, by recipient.
+     */
+    private static void deliver(Email email, Map<String, Integer> delivered) {
+        for (String receiver : email.getReceivers()) {
+            delivered.merge(key(email.getSender(), receiver), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Identifies a recipient of the campaign.
+     *
+     * @param sender   the sender of the email.
+     * @param receiver the recipient.
+     * @return the key of the recipient.
+     */
+    private static String key(String sender, String receiver) {
+        return sender + " " + receiver;
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that RelayRing routes every recipient of a domain to the same relay,
+ * spreads the domains by weight, and only moves the domains of a relay that
+ * is down or removed.
+ */
+class RelayRingTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final SmtpRelay FIRST = new SmtpRelay("relay1.example.com", 25, 2);
+    private static final SmtpRelay SECOND = new SmtpRelay("relay2.example.com", 25, 1);
+    private static final SmtpRelay THIRD = new SmtpRelay("relay3.example.com", 2525, 1);
+    private static final int NB_DOMAINS = 20_000;
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that the route only depends on the domain, whatever its case and
+     * the local part of the address.
+     */
+    @Test
+    void routesDomainToSameRelay() {
+        RelayRing ring = new RelayRing(List.of(FIRST, SECOND, THIRD));
+
+        for (int i = 0; i < 1000; i++) {
+            int relay = ring.route("alice@domain" + i + ".example.com");
+            assertEquals(relay, ring.route("bob.smith@domain" + i + ".example.com"));
+            assertEquals(relay, ring.route("carol@DOMAIN" + i + ".Example.com"));
+        }
+    }
+
+    /**
+     * Checks that each relay gets a share of the domains close to its share
+     * of the total weight.
+     */
+    @Test
+    void spreadsDomainsByWeight() {
+        RelayRing ring = new RelayRing(List.of(FIRST, SECOND, THIRD));
+        int[] counts = new int[3];
+
+        for (int i = 0; i < NB_DOMAINS; i++) {
+            counts[ring.route(address(i))]++;
+        }
+
+        assertEquals(0.50, counts[0] / (double) NB_DOMAINS, 0.06);
+        assertEquals(0.25, counts[1] / (double) NB_DOMAINS, 0.06);
+        assertEquals(0.25, counts[2] / (double) NB_DOMAINS, 0.06);
+    }
+
+    /**
+     * Checks that a relay marked down only loses its own domains, to the
+     * other relays, and gets them back once marked up. Nothing is routed when
+     * every relay is down.
+     */
+    @Test
+    void movesOnlyDomainsOfDownRelay() {
+        RelayRing ring = new RelayRing(List.of(FIRST, SECOND, THIRD));
+        int[] before = routes(ring);
+
+        assertTrue(ring.markDown(1));
+        assertFalse(ring.markDown(1));
+        int[] during = routes(ring);
+        for (int i = 0; i < NB_DOMAINS; i++) {
+            if (before[i] == 1) {
+                assertNotEquals(1, during[i]);
+            } else {
+                assertEquals(before[i], during[i]);
+            }
+        }
+
+        assertTrue(ring.markUp(1));
+        assertFalse(ring.markUp(1));
+        assertArrayEquals(before, routes(ring));
+
+        ring.markDown(0);
+        ring.markDown(1);
+        ring.markDown(2);
+        assertEquals(-1, ring.route(address(0)));
+    }
+
+    /**
+     * Checks that removing a relay from the configuration keeps the domains of
+     * the remaining relays where they were.
+     */
+    @Test
+    void keepsDomainsWhenRelayRemoved() {
+        RelayRing full = new RelayRing(List.of(FIRST, SECOND, THIRD));
+        RelayRing reduced = new RelayRing(List.of(FIRST, THIRD));
+
+        for (int i = 0; i < NB_DOMAINS; i++) {
+            SmtpRelay before = full.getRelays().get(full.route(address(i)));
+            SmtpRelay after = reduced.getRelays().get(reduced.route(address(i)));
+            if (before != SECOND) {
+                assertEquals(before, after);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * Builds the address of a recipient of a distinct domain.
+     *
+     * @param domain the number of the domain.
+     * @return the address.
+     */
+    private static String address(int domain) {
+        return "victim@domain" + domain + ".example.com";
+    }
+
+    /**
+     * Routes the recipients of every domain.
+     *
+     * @param ring the ring to route with.
+     * @return the relay of each domain.
+     */
+    private static int[] routes(RelayRing ring) {
+        int[] routes = new int[NB_DOMAINS];
+        for (int i = 0; i < NB_DOMAINS; i++) {
+            routes[i] = ring.route(address(i));
+        }
+        return routes;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that SmtpClientPool does not reuse a session whose transaction
+ * failed without a complete reply, whose late reply would be read as the
+ * answer to the next command.
+ */
+class SmtpClientPoolTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final String SENDER = "sender@example.com";
+    private static final Message MESSAGE = new Message("Félicitations", "Bonjour,\nVous avez gagné !");
+    private static final int REPLY_TIMEOUT = 500;
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that after a reply timeout, reported as a temporary refusal since
+     * the message was not sent, the next email sent on the pool is delivered
+     * over a fresh session.
+     *
+     * @throws IOException if the sink cannot be started or the second email cannot be sent.
+     * @throws InterruptedException if the thread is interrupted while waiting for a session.
+     */
+    @Test
+    void closesSessionAfterReplyTimeout() throws IOException, InterruptedException {
+        try (SmtpSink sink = new SmtpSink(0).setExtensions(List.of())
+                .setLatency("MAIL", 3L * REPLY_TIMEOUT / 2).start()) {
+            SmtpClientPool pool = new SmtpClientPool("localhost", sink.getPort(), StandardCharsets.UTF_8,
+                    1, 60_000, REPLY_TIMEOUT, 0, null);
+            try {
+                SmtpDeliveryException timeout = assertThrows(SmtpDeliveryException.class,
+                        () -> pool.send(new Email(SENDER, List.of("first@example.com"), MESSAGE)));
+                assertEquals(421, timeout.getCode());
+
+                sink.setLatency("MAIL", 0);
+                pool.send(new Email(SENDER, List.of("second@example.com"), MESSAGE));
+            } finally {
+                pool.close();
+            }
+
+            assertEquals(1, sink.getMessages());
+            assertEquals(2, sink.getConnections());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that SmtpClient matches every reply to its command, whether the
+ * envelope is pipelined or not and the message sent with DATA or BDAT, when
+ * some recipients of an email are rejected.
+ */
+class SmtpClientTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final String SENDER = "sender@example.com";
+    private static final String UNKNOWN = "unknown@example.com";
+    private static final Message MESSAGE = new Message("Félicitations", "Bonjour,\nVous avez gagné !");
+    private static final int REPLY_TIMEOUT = 10_000;
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that a rejected recipient in the middle of the envelope does not
+     * shift the replies of the following commands: the message goes to the
+     * other recipients, an email whose recipients are all rejected is not
+     * sent, and the session, once reset, still sends the next email.
+     *
+     * @param extensions the extensions advertised by the server, comma-separated.
+     * @throws IOException if the sink cannot be started or the client cannot connect.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"PIPELINING,CHUNKING", "PIPELINING", "CHUNKING", ""})
+    void reportsRejectedRecipients(String extensions) throws IOException {
+        List<String> advertised = extensions.isEmpty() ? List.of() : Arrays.asList(extensions.split(","));
+        try (SmtpSink sink = new SmtpSink(0).setExtensions(advertised).setUnknownRecipients(Set.of(UNKNOWN)).start()) {
+            SmtpClient client = new SmtpClient("localhost", sink.getPort(), StandardCharsets.UTF_8, null, REPLY_TIMEOUT);
+            client.connect();
+            try {
+                assertEquals(advertised.contains("PIPELINING"), client.getCapabilities().pipelining());
+
+                List<String> receivers = List.of("first@example.com", UNKNOWN, "second@example.com");
+                SmtpDeliveryException partial = assertThrows(SmtpDeliveryException.class,
+                        () -> client.send(new Email(SENDER, receivers, MESSAGE)));
+                assertEquals(550, partial.getCode());
+                assertEquals(List.of("first@example.com", "second@example.com"), partial.getAccepted());
+                assertEquals(List.of(UNKNOWN), partial.getRejected());
+
+                SmtpDeliveryException refused = assertThrows(SmtpDeliveryException.class,
+                        () -> client.send(new Email(SENDER, List.of(UNKNOWN), MESSAGE)));
+                assertTrue(refused.getAccepted().isEmpty());
+                assertEquals(List.of(UNKNOWN), refused.getRejected());
+                // As the application does before the next email of a failed session
+                client.reset();
+
+                client.send(new Email(SENDER, List.of("third@example.com"), MESSAGE));
+            } finally {
+                client.close();
+            }
+
+            assertEquals(2, sink.getMessages());
+            assertEquals(3, sink.getRecipients());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that SmtpCodec writes the bytes of the commands as the string-based
+ * client did, and parses the codes of single and multi-line replies.
+ */
+class SmtpCodecTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that buffered commands are only written on flush, each terminated
+     * with CRLF, addresses of an AddressArena included.
+     *
+     * @throws IOException if a command cannot be written.
+     */
+    @Test
+    void writesCommandsOnFlush() throws IOException {
+        AddressArena arena = new AddressArena(2, 64);
+        arena.add("first@example.com");
+        arena.add("second@example.com");
+        SmtpCodec codec = codec("", StandardCharsets.UTF_8);
+
+        codec.command("MAIL FROM:<", "sender@example.com", ">");
+        codec.command("RCPT TO:<", arena.asList(), 1, ">");
+        codec.command("RCPT TO:<", List.of("third@example.com"), 0, ">");
+        assertEquals(0, written.size());
+
+        codec.flush(ByteBuffer.wrap("DATA\r\n".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("MAIL FROM:<sender@example.com>\r\nRCPT TO:<second@example.com>\r\n"
+                + "RCPT TO:<third@example.com>\r\nDATA\r\n", written.toString(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Checks that non-ASCII text is encoded with the charset of the codec.
+     *
+     * @throws IOException if the text cannot be written.
+     */
+    @Test
+    void encodesNonAsciiText() throws IOException {
+        for (Charset encoding : List.of(StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1)) {
+            written.reset();
+            SmtpCodec codec = codec("", encoding);
+
+            codec.command("Subject: Félicitations");
+            codec.flush();
+            assertArrayEquals("Subject: Félicitations\r\n".getBytes(encoding), written.toByteArray());
+        }
+    }
+
+    /**
+     * Checks the code, lines and text of a multi-line reply followed by a
+     * single-line one, with CRLF and bare LF terminators.
+     *
+     * @throws IOException if a reply cannot be read.
+     */
+    @Test
+    void readsMultiLineReplies() throws IOException {
+        SmtpCodec codec = codec("250-smtp.example.com\r\n250-PIPELINING\n250 SIZE 1000\r\n550 5.1.1 No such user\r\n",
+                StandardCharsets.UTF_8);
+        List<String> lines = new ArrayList<>();
+
+        assertEquals(250, codec.readReply(lines));
+        assertEquals(List.of("smtp.example.com", "PIPELINING", "SIZE 1000"), lines);
+        assertTrue(codec.hasBufferedInput());
+
+        assertEquals(550, codec.readReply());
+        assertEquals("550 5.1.1 No such user", codec.replyText());
+        assertFalse(codec.hasBufferedInput());
+    }
+
+    /**
+     * Checks that a reply without a status code, or a connection closed in the
+     * middle of a reply, is an error.
+     */
+    @Test
+    void rejectsMalformedReplies() {
+        assertThrows(IOException.class, () -> codec("OK\r\n", StandardCharsets.UTF_8).readReply());
+        assertThrows(IOException.class, () -> codec("250-first line\r\n", StandardCharsets.UTF_8).readReply());
+        assertEquals(-1, SmtpCodec.parseCode(ByteBuffer.wrap("2x0 OK".getBytes(StandardCharsets.US_ASCII)), 0, 6));
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * Builds a codec reading the given replies and writing to the written
+     * bytes of the test.
+     *
+     * @param replies  the replies of the server.
+     * @param encoding the character encoding of the codec.
+     * @return the codec.
+     */
+    private SmtpCodec codec(String replies, Charset encoding) {
+        return new SmtpCodec(Channels.newChannel(new ByteArrayInputStream(replies.getBytes(StandardCharsets.US_ASCII))),
+                Channels.newChannel(written), encoding);
+    }
+}
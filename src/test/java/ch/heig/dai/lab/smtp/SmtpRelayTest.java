@@ -0,0 +1,54 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the relay definitions SmtpRelay accepts, IPv6 addresses in brackets
+ * included, and that a relay is printed the way it is parsed.
+ */
+class SmtpRelayTest {
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks host names and IPv4 addresses, with and without a weight.
+     */
+    @Test
+    void parsesHostRelays() {
+        assertEquals(new SmtpRelay("smtp1.example.com", 25, 2), SmtpRelay.parse(" smtp1.example.com:25:2 "));
+        assertEquals(new SmtpRelay("127.0.0.1", 1025, 1), SmtpRelay.parse("127.0.0.1:1025"));
+        assertEquals("127.0.0.1:1025", SmtpRelay.parse("127.0.0.1:1025:3").toString());
+    }
+
+    /**
+     * Checks that an IPv6 address is read from its brackets and printed in
+     * them, so that the printed relay parses back to the same relay.
+     */
+    @Test
+    void parsesIpv6Relays() {
+        SmtpRelay relay = SmtpRelay.parse("[2001:db8::25]:2525:3");
+
+        assertEquals(new SmtpRelay("2001:db8::25", 2525, 3), relay);
+        assertEquals("[2001:db8::25]:2525", relay.toString());
+        assertEquals(new SmtpRelay("::1", 25, 1), SmtpRelay.parse(new SmtpRelay("::1", 25, 1).toString()));
+    }
+
+    /**
+     * Checks that malformed definitions are refused, an IPv6 address without
+     * brackets included.
+     */
+    @Test
+    void rejectsMalformedRelays() {
+        for (String relay : new String[]{"smtp1", "smtp1:port", "smtp1:25:2:1", "smtp1:25:", "::1:25",
+                "[::1]", "[::1]25", "[::1:25", "[]:25", "smtp1:0", "smtp1:25:0"}) {
+            assertThrows(IllegalArgumentException.class, () -> SmtpRelay.parse(relay), relay);
+        }
+    }
+}
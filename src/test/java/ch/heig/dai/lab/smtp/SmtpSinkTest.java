@@ -0,0 +1,149 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the replies of SmtpSink seen by an SmtpClient: the last replies
+ * before the sink closes a session, the injected errors and the recipient
+ * limit.
+ */
+class SmtpSinkTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final String SENDER = "sender@example.com";
+    private static final Message MESSAGE = new Message("Félicitations", "Bonjour,\nVous avez gagné !");
+    private static final int REPLY_TIMEOUT = 10_000;
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that the client receives the 221 reply to QUIT before the sink
+     * closes the session.
+     *
+     * @throws IOException if the sink cannot be started or QUIT is not answered.
+     */
+    @Test
+    void answersQuit() throws IOException {
+        try (SmtpSink sink = new SmtpSink(0).start()) {
+            SmtpClient client = connect(sink);
+            client.send(new Email(SENDER, List.of("first@example.com"), MESSAGE));
+            client.quit();
+
+            assertEquals(1, sink.getMessages());
+        }
+    }
+
+    /**
+     * Checks that the message completing the last transaction of a session is
+     * acknowledged, and that the 421 closing the session reaches the client.
+     *
+     * @throws IOException if the sink cannot be started or the first email is not acknowledged.
+     */
+    @Test
+    void closesSessionAfterTransactionLimit() throws IOException {
+        try (SmtpSink sink = new SmtpSink(0).setExtensions(List.of()).setTransactionLimit(1).start()) {
+            SmtpClient client = connect(sink);
+            try {
+                client.send(new Email(SENDER, List.of("first@example.com"), MESSAGE));
+
+                SmtpDeliveryException closing = assertThrows(SmtpDeliveryException.class,
+                        () -> client.send(new Email(SENDER, List.of("second@example.com"), MESSAGE)));
+                assertEquals(421, closing.getCode());
+            } finally {
+                client.close();
+            }
+
+            assertEquals(1, sink.getMessages());
+        }
+    }
+
+    /**
+     * Checks that the injected errors are temporary or permanent refusals as
+     * configured, and that nothing is delivered.
+     *
+     * @throws IOException if the sink cannot be started or the client cannot connect.
+     */
+    @Test
+    void injectsErrors() throws IOException {
+        try (SmtpSink sink = new SmtpSink(0).setErrorRates(1, 0).start()) {
+            SmtpClient client = connect(sink);
+            try {
+                SmtpDeliveryException refused = assertThrows(SmtpDeliveryException.class,
+                        () -> client.send(new Email(SENDER, List.of("first@example.com"), MESSAGE)));
+                assertEquals(451, refused.getCode());
+            } finally {
+                client.close();
+            }
+        }
+
+        try (SmtpSink sink = new SmtpSink(0).setErrorRates(0, 1).start()) {
+            SmtpClient client = connect(sink);
+            try {
+                SmtpDeliveryException refused = assertThrows(SmtpDeliveryException.class,
+                        () -> client.send(new Email(SENDER, List.of("first@example.com"), MESSAGE)));
+                assertEquals(550, refused.getCode());
+            } finally {
+                client.close();
+            }
+
+            assertEquals(0, sink.getMessages());
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new SmtpSink(0).setErrorRates(0.6, 0.6));
+    }
+
+    /**
+     * Checks that the recipients beyond the limit are deferred with 452, the
+     * message going to the ones accepted.
+     *
+     * @throws IOException if the sink cannot be started or the client cannot connect.
+     */
+    @Test
+    void defersRecipientsBeyondLimit() throws IOException {
+        try (SmtpSink sink = new SmtpSink(0).setExtensions(List.of()).setRecipientLimit(2).start()) {
+            SmtpClient client = connect(sink);
+            try {
+                List<String> receivers = List.of("first@example.com", "second@example.com", "third@example.com");
+                SmtpDeliveryException deferred = assertThrows(SmtpDeliveryException.class,
+                        () -> client.send(new Email(SENDER, receivers, MESSAGE)));
+                assertEquals(452, deferred.getCode());
+                assertEquals(receivers.subList(0, 2), deferred.getAccepted());
+                assertTrue(deferred.getRejected().isEmpty());
+            } finally {
+                client.close();
+            }
+
+            assertEquals(1, sink.getMessages());
+            assertEquals(2, sink.getRecipients());
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * Opens a session with the sink.
+     *
+     * @param sink the running sink.
+     * @return the connected client.
+     * @throws IOException if the client cannot connect.
+     */
+    private static SmtpClient connect(SmtpSink sink) throws IOException {
+        SmtpClient client = new SmtpClient("localhost", sink.getPort(), StandardCharsets.UTF_8, null, REPLY_TIMEOUT);
+        client.connect();
+        return client;
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks STARTTLS against a SmtpSink holding a self-signed certificate,
+ * generated with keytool for the test: the certificate is checked against a
+ * custom trust store, the capabilities come from the EHLO sent again over
+ * TLS, and the second connection through the same StartTls resumes the
+ * session of the first.
+ */
+class StartTlsTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final char[] PASSWORD = "changeit".toCharArray();
+    private static final String SENDER = "sender@example.com";
+    private static final Message MESSAGE = new Message("Félicitations", "Bonjour,\nVous avez gagné !");
+    private static final int REPLY_TIMEOUT = 10_000;
+
+    @TempDir
+    static Path directory;
+    private static Path keyStore;
+
+    // ------------------------------------------------------------------------------
+    // Setup
+    // ------------------------------------------------------------------------------
+    /**
+     * Generates a PKCS12 key store holding a self-signed certificate for localhost.
+     *
+     * @throws IOException if keytool cannot be run.
+     * @throws InterruptedException if the thread is interrupted while waiting for keytool.
+     */
+    @BeforeAll
+    static void generateKeyStore() throws IOException, InterruptedException {
+        keyStore = directory.resolve("sink.p12");
+        Path keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+        Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "sink",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost",
+                "-validity", "1", "-storetype", "PKCS12", "-keystore", keyStore.toString(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS), "keytool did not end");
+        assertEquals(0, process.exitValue(), output);
+    }
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that two sessions through the same StartTls send their emails
+     * over TLS, the first with a full handshake and the second resuming it.
+     *
+     * @throws IOException if the sink cannot be started or a session fails.
+     */
+    @Test
+    void resumesSessionOfPreviousConnection() throws IOException {
+        StartTls startTls = new StartTls(trusting(keyStore));
+        try (SmtpSink sink = new SmtpSink(0).setTls(SmtpSink.tlsContext(keyStore, PASSWORD)).start()) {
+            long handshakes = SmtpMetrics.get().getTlsHandshakes();
+            long resumed = SmtpMetrics.get().getTlsResumedHandshakes();
+
+            for (int i = 0; i < 2; i++) {
+                SmtpClient client = new SmtpClient("localhost", sink.getPort(), StandardCharsets.UTF_8, startTls,
+                        REPLY_TIMEOUT);
+                client.connect();
+                // Parsed from the EHLO sent again over TLS, which no longer offers STARTTLS
+                assertFalse(client.getCapabilities().startTls());
+                assertTrue(client.getCapabilities().pipelining());
+                client.send(new Email(SENDER, List.of("victim" + i + "@example.com"), MESSAGE));
+                client.quit();
+            }
+
+            assertEquals(2, SmtpMetrics.get().getTlsHandshakes() - handshakes);
+            assertEquals(1, SmtpMetrics.get().getTlsResumedHandshakes() - resumed);
+            assertEquals(2, sink.getMessages());
+        }
+    }
+
+    /**
+     * Checks that the self-signed certificate of the sink is refused by the
+     * default trust store, and that nothing is sent in plain text to a
+     * server that does not offer STARTTLS.
+     *
+     * @throws IOException if the sink cannot be started.
+     */
+    @Test
+    void refusesUntrustedOrMissingTls() throws IOException {
+        try (SmtpSink sink = new SmtpSink(0).setTls(SmtpSink.tlsContext(keyStore, PASSWORD)).start()) {
+            SmtpClient client = new SmtpClient("localhost", sink.getPort(), StandardCharsets.UTF_8,
+                    StartTls.withDefaultContext(), REPLY_TIMEOUT);
+            try {
+                assertThrows(IOException.class, client::connect);
+            } finally {
+                client.close();
+            }
+        }
+
+        try (SmtpSink sink = new SmtpSink(0).start()) {
+            SmtpClient client = new SmtpClient("localhost", sink.getPort(), StandardCharsets.UTF_8,
+                    new StartTls(trusting(keyStore)), REPLY_TIMEOUT);
+            try {
+                IOException refused = assertThrows(IOException.class, client::connect);
+                assertTrue(refused.getMessage().contains("does not offer STARTTLS"), refused.getMessage());
+            } finally {
+                client.close();
+            }
+            assertEquals(0, sink.getMessages());
+        }
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * Builds a client context trusting the certificate of a key store only.
+     *
+     * @param trustStore the PKCS12 store holding the trusted certificate.
+     * @return the client context.
+     * @throws IOException if the store cannot be read or used.
+     */
+    private static SSLContext trusting(Path trustStore) throws IOException {
+        try (InputStream in = Files.newInputStream(trustStore)) {
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            store.load(in, PASSWORD);
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(store);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid trust store " + trustStore + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that SuppressionList finds every listed address whatever its case,
+ * that its Bloom filter answers most of the other addresses alone, and that a
+ * compiled list is read back as it was written.
+ */
+class SuppressionListTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final int NB_ADDRESSES = 100_000;
+    private static final double MAX_FALSE_POSITIVE_RATE = 0.03;
+
+    @TempDir
+    Path folder;
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks that every listed address is found, in any case and from an
+     * AddressArena as well, and that no other address is.
+     */
+    @Test
+    void findsListedAddresses() {
+        SuppressionList list = SuppressionList.compile(addresses("optout", NB_ADDRESSES));
+        AddressArena arena = new AddressArena(2, 64);
+        arena.add("optout.42@domain2.example.com");
+        arena.add("victim.42@domain2.example.com");
+
+        assertEquals(NB_ADDRESSES, list.size());
+        for (String address : addresses("optout", NB_ADDRESSES)) {
+            assertTrue(list.contains(address), address);
+        }
+        for (String address : addresses("victim", NB_ADDRESSES)) {
+            assertFalse(list.contains(address), address);
+        }
+        assertTrue(list.contains("OptOut.42@Domain2.Example.COM"));
+        assertTrue(list.contains(arena.asList(), 0));
+        assertFalse(list.contains(arena.asList(), 1));
+    }
+
+    /**
+     * Checks that the Bloom filter never rejects a listed address, and lets
+     * only a small share of the other addresses through to the exact lookup.
+     */
+    @Test
+    void filtersMostAbsentAddresses() {
+        SuppressionList list = SuppressionList.compile(addresses("optout", NB_ADDRESSES));
+        int falsePositives = 0;
+
+        for (String address : addresses("optout", NB_ADDRESSES)) {
+            assertTrue(list.mayContain(address), address);
+        }
+        for (String address : addresses("victim", NB_ADDRESSES)) {
+            falsePositives += list.mayContain(address) ? 1 : 0;
+        }
+
+        double rate = falsePositives / (double) NB_ADDRESSES;
+        assertTrue(rate < MAX_FALSE_POSITIVE_RATE, "False positive rate of the Bloom filter: " + rate);
+    }
+
+    /**
+     * Checks that a text list is trimmed, that its blank lines and comments
+     * are ignored and that its duplicates are counted once.
+     */
+    @Test
+    void compilesTextList() {
+        String text = "# Opt-out list\r\n  alice@example.com \n\nBOB@example.com\r\n#carol@example.com\nalice@EXAMPLE.com";
+        SuppressionList list = SuppressionList.compile(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+
+        assertEquals(2, list.size());
+        assertTrue(list.contains("alice@example.com"));
+        assertTrue(list.contains("bob@example.com"));
+        assertFalse(list.contains("carol@example.com"));
+        assertFalse(list.contains("# Opt-out list"));
+        assertFalse(SuppressionList.compile(List.of()).contains("alice@example.com"));
+    }
+
+    /**
+     * Checks that only the suppressed recipients are removed, and that the
+     * list of recipients is returned as is when none of them is.
+     */
+    @Test
+    void retainsOtherRecipients() {
+        SuppressionList list = SuppressionList.compile(List.of("bob@example.com"));
+        List<String> clean = List.of("alice@example.com", "carol@example.com");
+
+        assertSame(clean, list.retain(clean));
+        assertEquals(List.of("alice@example.com", "carol@example.com"),
+                list.retain(List.of("alice@example.com", "Bob@Example.com", "carol@example.com")));
+        assertEquals(List.of(), list.retain(List.of("bob@example.com")));
+    }
+
+    /**
+     * Checks that a saved list is recognized and wrapped as is, and that a
+     * truncated one is refused.
+     *
+     * @throws IOException if the list cannot be saved or read.
+     */
+    @Test
+    void wrapsSavedList() throws IOException {
+        Path file = folder.resolve("suppression.bin");
+        SuppressionList.compile(addresses("optout", 1000)).save(file);
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+
+        assertTrue(SuppressionList.isCompiled(data));
+        SuppressionList list = SuppressionList.wrap(data);
+        assertEquals(1000, list.size());
+        assertTrue(list.contains("optout.999@domain9.example.com"));
+        assertFalse(list.contains("victim.999@domain9.example.com"));
+
+        assertThrows(IllegalArgumentException.class, () -> SuppressionList.wrap(data.duplicate().limit(data.limit() - 8)));
+        assertFalse(SuppressionList.isCompiled(ByteBuffer.wrap("alice@example.com\n".getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * Builds distinct addresses spread over several domains.
+     *
+     * @param prefix the local part shared by the addresses.
+     * @param size   the number of addresses.
+     * @return the addresses.
+     */
+    private static List<String> addresses(String prefix, int size) {
+        List<String> addresses = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            addresses.add(prefix + "." + i + "@domain" + (i % 10) + ".example.com");
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * @Authors Bouzourène Ryad & Christen Anthony
+ * @Date    2024-12-07
+ */
+
+package ch.heig.dai.lab.smtp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that VictimsLoader trims, validates, normalizes and deduplicates the
+ * victims as a sequential reading of the file would, whether the file is a
+ * single range or split into many, and that streamed victims are validated
+ * and normalized the same way.
+ */
+class VictimsLoaderTest {
+    // ------------------------------------------------------------------------------
+    // Attributes
+    // ------------------------------------------------------------------------------
+    private static final String VICTIMS = String.join("\n",
+            "alice@example.com",
+            "  Bob@Example.COM\t",
+            "",
+            "not-an-address",
+            "alice@EXAMPLE.com",
+            "bob@example.com\r",
+            "   ",
+            "Bob@example.com",
+            "carol@test.ch");
+    private static final int NB_VICTIMS = 300_000;
+
+    @TempDir
+    Path folder;
+
+    // ------------------------------------------------------------------------------
+    // Tests
+    // ------------------------------------------------------------------------------
+    /**
+     * Checks a small file: blank lines are ignored, lines are trimmed, domains
+     * are put in lower case but not local parts, and invalid lines and
+     * duplicates are reported with their line numbers.
+     */
+    @Test
+    void normalizesAndDeduplicates() {
+        ConfigLoader.Victims victims = VictimsLoader.load(bytes(VICTIMS), StandardCharsets.UTF_8);
+
+        assertEquals(List.of("alice@example.com", "Bob@example.com", "bob@example.com", "carol@test.ch"),
+                List.copyOf(victims.addresses()));
+        assertEquals(1, victims.invalidCount());
+        assertEquals(List.of("line 4: not-an-address"), victims.invalidLines());
+        assertEquals(2, victims.duplicateCount());
+        assertEquals(List.of("alice@example.com", "Bob@example.com"), victims.duplicates());
+    }
+
+    /**
+     * Checks a file large enough to be split into several ranges, with
+     * duplicates across ranges: the result is the one of a sequential reading.
+     */
+    @Test
+    void loadsLargeFileInParallel() {
+        StringBuilder content = new StringBuilder(NB_VICTIMS * 32);
+        Set<String> expected = new LinkedHashSet<>();
+        int invalid = 0;
+        for (int i = 0; i < NB_VICTIMS; i++) {
+            // Every seventh line repeats an earlier address, possibly from another range
+            int id = i % 7 == 6 ? i / 3 : i;
+            String line = i % 1000 == 999 ? "invalid line " + i : "victim." + id + "@Domain" + (id % 13) + ".ch";
+            content.append(line).append(i % 2 == 0 ? "\n" : "\r\n");
+            if (line.startsWith("invalid")) {
+                invalid++;
+            } else {
+                expected.add(line.toLowerCase(Locale.ROOT));
+            }
+        }
+
+        ConfigLoader.Victims victims = VictimsLoader.load(bytes(content.toString()), StandardCharsets.UTF_8);
+
+        assertEquals(new ArrayList<>(expected), new ArrayList<>(victims.addresses()));
+        assertEquals(invalid, victims.invalidCount());
+        assertEquals(NB_VICTIMS - invalid - expected.size(), victims.duplicateCount());
+        assertEquals("line 1000: invalid line 999", victims.invalidLines().get(0));
+    }
+
+    /**
+     * Checks that streamed victims are the loaded ones with their duplicates,
+     * and that the same invalid lines are reported.
+     *
+     * @throws IOException if the configuration or the victims file cannot be written or read.
+     */
+    @Test
+    void streamsSameVictims() throws IOException {
+        Files.writeString(folder.resolve("victims.txt"), VICTIMS);
+        Files.writeString(folder.resolve("config.txt"), String.join("\n",
+                "smtpServerAddress=localhost",
+                "smtpServerPort=1025",
+                "messagesEncoding=UTF-8",
+                "messagesSeparator=$---",
+                "messagesFileName=messages.txt",
+                "victimsFileName=victims.txt",
+                "nbGroups=1"));
+        ConfigLoader config = new ConfigLoader(folder.toString());
+        ConfigLoader.Victims loaded = config.loadVictims();
+
+        List<String> invalid = new ArrayList<>();
+        try (Stream<String> streamed = config.streamVictims(invalid::add)) {
+            assertEquals(List.copyOf(loaded.addresses()), List.copyOf(new LinkedHashSet<>(streamed.toList())));
+        }
+        assertEquals(loaded.invalidLines(), invalid);
+        assertEquals(loaded.addresses().size() + loaded.duplicateCount(), config.countVictims());
+    }
+
+    // ------------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------------
+    /**
+     * Encodes the content of a victims file.
+     *
+     * @param content the lines of the file.
+     * @return the content, as the mapping of the file.
+     */
+    private static ByteBuffer bytes(String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+}